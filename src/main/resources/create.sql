@@ -1,33 +1,79 @@
 CREATE TABLE Caregivers (
-    Username varchar(255),
+    Id int IDENTITY (1, 1) PRIMARY KEY,
+    Username varchar(255) UNIQUE,
     Salt BINARY(16),
     Hash BINARY(16),
-    PRIMARY KEY (Username)
+    SlotMinutes int DEFAULT 60
 );
 
 CREATE TABLE Availabilities (
     Time date,
-    Username varchar(255) REFERENCES Caregivers,
-    PRIMARY KEY (Time, Username)
+    CaregiverId int REFERENCES Caregivers,
+    SlotMinutes int,
+    Slots bigint,
+    Version int NOT NULL DEFAULT 0,
+    PRIMARY KEY (Time, CaregiverId)
 );
 
 CREATE TABLE Vaccines (
-    Name varchar(255),
+    Id int IDENTITY (1, 1) PRIMARY KEY,
+    Name varchar(255) UNIQUE,
     Doses int,
-    PRIMARY KEY (Name)
+    Version int NOT NULL DEFAULT 0
 );
 
 CREATE TABLE Patients (
-    Username varchar(255),
+    Id int IDENTITY (1, 1) PRIMARY KEY,
+    Username varchar(255) UNIQUE,
     Salt BINARY(16),
-    Hash BINARY(16),
-    PRIMARY KEY (Username)
+    Hash BINARY(16)
 );
 
 CREATE TABLE Appointments (
     id int PRIMARY KEY IDENTITY (1, 1),
     Date date,
-    Vaccine varchar(255) REFERENCES Vaccines,
-    PatientName varchar(255) REFERENCES Patients,
-    CaregiverName varchar(255) REFERENCES Caregivers
+    VaccineId int REFERENCES Vaccines,
+    PatientId int REFERENCES Patients,
+    CaregiverId int REFERENCES Caregivers,
+    Slot int,
+    SlotMinutes int,
+    Allocated bit NOT NULL DEFAULT 0
+);
+
+CREATE INDEX AppointmentsPatient ON Appointments (PatientId);
+
+CREATE INDEX AppointmentsCaregiver ON Appointments (CaregiverId);
+
+CREATE TABLE DoseAllocations (
+    VaccineId int REFERENCES Vaccines,
+    Date date,
+    Allocated int,
+    Reserved int,
+    PRIMARY KEY (VaccineId, Date)
+);
+
+CREATE TABLE CaregiverCalendars (
+    CaregiverId int REFERENCES Caregivers,
+    StartDate date,
+    Days BINARY(48),
+    PRIMARY KEY (CaregiverId)
+);
+
+CREATE TABLE AppointmentEvents (
+    Seq bigint IDENTITY (1, 1) PRIMARY KEY,
+    Type varchar(32),
+    Time datetime2 DEFAULT SYSUTCDATETIME(),
+    AppointmentId int,
+    Date date,
+    VaccineId int,
+    PatientId int,
+    CaregiverId int,
+    Slot int,
+    SlotMinutes int,
+    Doses int
+);
+
+CREATE TABLE SchedulerNodes (
+    NodeId varchar(64) PRIMARY KEY,
+    Heartbeat datetime2
 );
\ No newline at end of file
@@ -0,0 +1,49 @@
+-- tables of one date range shard, run on every database listed in the Shards variable
+-- patients, caregivers and vaccines stay in the main database, so there are no foreign keys here
+-- appointment ids of shard N start at N * 100000000 (Shards.ID_RANGE), so pass the number of the shard,
+-- its position in the Shards variable starting at 1, e.g.
+-- sqlcmd -S <server> -d <shard database> -i create_shard.sql -v ShardNumber=1
+
+IF $(ShardNumber) < 1 OR $(ShardNumber) > 21
+    THROW 50000, 'ShardNumber must be the position of this database in the Shards variable, 1 to 21', 1;
+
+CREATE TABLE Availabilities (
+    Time date,
+    CaregiverId int,
+    SlotMinutes int,
+    Slots bigint,
+    Version int NOT NULL DEFAULT 0,
+    PRIMARY KEY (Time, CaregiverId)
+);
+
+CREATE TABLE Appointments (
+    id int PRIMARY KEY IDENTITY (1, 1),
+    Date date,
+    VaccineId int,
+    PatientId int,
+    CaregiverId int,
+    Slot int,
+    SlotMinutes int,
+    Allocated bit NOT NULL DEFAULT 0
+);
+
+CREATE INDEX AppointmentsPatient ON Appointments (PatientId);
+
+CREATE INDEX AppointmentsCaregiver ON Appointments (CaregiverId);
+
+CREATE TABLE AppointmentEvents (
+    Seq bigint IDENTITY (1, 1) PRIMARY KEY,
+    Type varchar(32),
+    Time datetime2 DEFAULT SYSUTCDATETIME(),
+    AppointmentId int,
+    Date date,
+    VaccineId int,
+    PatientId int,
+    CaregiverId int,
+    Slot int,
+    SlotMinutes int,
+    Doses int
+);
+
+DECLARE @seed int = $(ShardNumber) * 100000000;
+DBCC CHECKIDENT ('Appointments', RESEED, @seed);
\ No newline at end of file
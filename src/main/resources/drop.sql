@@ -1,3 +1,7 @@
+DROP TABLE [dbo].[SchedulerNodes];
+DROP TABLE [dbo].[AppointmentEvents];
+DROP TABLE [dbo].[CaregiverCalendars];
+DROP TABLE [dbo].[DoseAllocations];
 DROP TABLE [dbo].[Appointments];
 DROP TABLE [dbo].[Availabilities];
 DROP TABLE [dbo].[Caregivers];
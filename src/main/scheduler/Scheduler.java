@@ -1,16 +1,53 @@
 package scheduler;
 
+import scheduler.cluster.ClusterNode;
+import scheduler.cluster.DatabaseMembership;
+import scheduler.db.CommandJournal;
 import scheduler.db.ConnectionManager;
+import scheduler.db.QueryLog;
+import scheduler.db.QueryType;
+import scheduler.db.Resilience;
+import scheduler.db.Shards;
+import scheduler.db.WriterLock;
+import scheduler.feed.ChangeFeed;
+import scheduler.feed.RotatingFileSink;
+import scheduler.feed.SocketSink;
+import scheduler.health.HealthServer;
 import scheduler.model.*;
+import scheduler.util.AllocationTracker;
+import scheduler.util.CommandResult;
+import scheduler.util.IntHashSet;
+import scheduler.util.RateLimiter;
 import scheduler.util.Util;
+import scheduler.util.WaitingRoom;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.*;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class Scheduler {
 
@@ -19,6 +56,49 @@ public class Scheduler {
     //       since only one user can be logged-in at a time
     private static Caregivers currentCaregivers = null;
     private static Patients currentPatients = null;
+    // journal for mutating commands, null unless JournalFile is set
+    private static CommandJournal journal = null;
+    // outcomes of applied journal commands by request number, until the next prompt reports them
+    private static final Map<Long, CommandResult> journalResults = new ConcurrentSkipListMap<>();
+    private static final int JOURNAL_CAPACITY = 64 * 1024 * 1024;
+    private static final int SNAPSHOT_MINUTES = 10;
+    // commands per second and burst of one user and of all users together
+    private static final double USER_RATE = 5;
+    private static final int USER_BURST = 10;
+    private static final double GLOBAL_RATE = 100;
+    private static final int GLOBAL_BURST = 200;
+    private static final RateLimiter limiter = new RateLimiter(USER_RATE, USER_BURST, GLOBAL_RATE, GLOBAL_BURST);
+    // booking commands admitted per second when AdmitRate is not set
+    private static final double ADMIT_RATE = 20;
+    private static WaitingRoom waitingRoom = null;
+    // cluster heartbeat, a node missing three heartbeats is dropped from the ring
+    private static final int HEARTBEAT_SECONDS = 5;
+    private static ClusterNode node = null;
+    private static BookingEngine engine = null;
+    // held shared while booking in the database, so no in-memory booking engine starts next to this process
+    private static WriterLock writerLock = null;
+    // every command is a JFR event (scheduler.Command), AllocationTracking also keeps allocation totals per command
+    private static AllocationTracker tracker = new AllocationTracker();
+    // commands come from a script, see runBatch
+    private static boolean batch = false;
+    private static final int BATCH_OUTPUT_BYTES = 64 * 1024;
+    // optional health endpoint, not ready while the queues are longer than these
+    private static HealthServer health = null;
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    private static final int READY_WAITING = 100;
+    private static final int READY_JOURNAL = 10_000;
+    private static final int READY_WRITES = 100_000;
+    // days shown by capacity without a number
+    private static final int CAPACITY_DAYS = 60;
+    // every command by name, in menu order: the number of a command is its position, starting at 1
+    private static final Map<String, Command> COMMANDS = new LinkedHashMap<>();
+    // flags of a command: it changes the database and goes through the journal,
+    // it books or frees appointments and goes through the waiting room
+    private static final int JOURNALED = 1;
+    private static final int BOOKING = 2;
+    private static final List<String> COMMAND_NAMES = new ArrayList<>();
+    private static final long FEED_FILE_BYTES = 16 * 1024 * 1024;
+    private static final int FEED_FILES = 5;
     private static final String TOKENMISMATCH = "Please check your operation information and try again!";
     private static final String VALIDDATE = "Please enter a valid date!";
     private static final String PASSWORDINVALID = "Your password is not strong enough!!!Please read requirement and Try again!!\n" +
@@ -27,14 +107,171 @@ public class Scheduler {
                                                     "2.Mixture of Uppercase and Lowercase letters and numbers\n" +
                                                     "3.Include at lease one of these special characters(!, @, #, ?)";
 
+    static {
+        command("create_patient", Scheduler::createPatient);
+        command("create_caregiver", Scheduler::createCaregiver);
+        command("login_patient", Scheduler::loginPatient);
+        command("login_caregiver", Scheduler::loginCaregiver);
+        command("search_caregiver_schedule", Scheduler::searchCaregiverSchedule);
+        command("reserve", Scheduler::reserve, JOURNALED | BOOKING);
+        command("upload_availability", Scheduler::uploadAvailability, JOURNALED);
+        command("cancel", Scheduler::cancel, JOURNALED | BOOKING);
+        command("add_doses", Scheduler::addDoses, JOURNALED);
+        command("show_appointments", Scheduler::showAppointments);
+        command("logout", Scheduler::logout);
+        command("quit", tokens -> {});//the input loops stop before running it
+        command("allocate_doses", Scheduler::allocateDoses, JOURNALED);
+        command("set_slot_length", Scheduler::setSlotLength, JOURNALED);
+        command("search_days", Scheduler::searchDays);
+        command("reserve_batch", Scheduler::reserveBatch, JOURNALED | BOOKING);
+        command("query_stats", Scheduler::queryStats);
+        command("capacity", Scheduler::capacity);
+    }
+
+    /**
+     * one entry of the command table
+     */
+    private static final class Command {
+        private final Consumer<String[]> handler;
+        private final int flags;//JOURNALED, BOOKING
+
+        private Command(Consumer<String[]> handler, int flags) {
+            this.handler = handler;
+            this.flags = flags;
+        }
+    }
+
+    private static void command(String name, Consumer<String[]> handler) {
+        command(name, handler, 0);
+    }
+
+    private static void command(String name, Consumer<String[]> handler, int flags) {
+        COMMANDS.put(name, new Command(handler, flags));
+        COMMAND_NAMES.add(name);
+    }
+
     public static void main(String[] args) throws IOException {
-        System.out.println();
-        System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
+        // scripted mode: --batch [file], commands from the file or stdin without the menu
+        batch = args.length > 0 && args[0].equals("--batch");
+        if (!batch) {
+            System.out.println();
+            System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
+        }
         // read input from user
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
+        // optional allocation tracking, "on" or the file of a flight recording, reported on quit
+        // AllocationBudget is the bytes every command may allocate on average, or a baseline file of budgets per command
+        String allocationTracking = System.getenv("AllocationTracking");
+        if (allocationTracking != null) {
+            String budget = System.getenv("AllocationBudget");
+            Map<String, Long> budgets = new HashMap<>();
+            if (budget != null && budget.matches("\\d+")) {
+                budgets.put("*", Long.parseLong(budget));
+            } else if (budget != null) {
+                budgets = AllocationTracker.readBudgets(Paths.get(budget));
+            }
+            tracker = new AllocationTracker(allocationTracking.equalsIgnoreCase("on") ? null : Paths.get(allocationTracking),
+                    budgets);
+        }
+        // optional snapshot of the appointment history, rebuilt from events on start
+        // RestoreTables=on writes it back to the tables after an outage, before anything reads them
+        String snapshotFile = System.getenv("SnapshotFile");
+        if (snapshotFile != null) {
+            try {
+                AppointmentProjection.startSnapshots(Paths.get(snapshotFile), SNAPSHOT_MINUTES);
+                if ("on".equalsIgnoreCase(System.getenv("RestoreTables"))) {
+                    AppointmentProjection projection = AppointmentProjection.getCurrent();
+                    projection.restoreTables();
+                    StringBuilder seqs = new StringBuilder();
+                    for (int shard = 0; shard < Shards.count(); shard++) {
+                        seqs.append(shard == 0 ? " #" : ", #").append(projection.getLastSeq(shard));
+                    }
+                    System.err.println("Restored " + projection.getAppointmentCount() +
+                            " appointments from events up to" + seqs + " of each shard");
+                }
+            } catch (SQLException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+        // optional in-memory booking engine, bookings are written to the tables in the background
+        if ("memory".equalsIgnoreCase(System.getenv("BookingEngine"))) {
+            if (System.getenv("NodeId") != null) {
+                System.err.println("The in-memory booking engine needs to be the only writer, booking in the database!");
+            } else {
+                try {
+                    engine = BookingEngine.load(new BookingWriter());
+                } catch (WriterLock.Taken e) {
+                    // another writer is running, starting anyway would book past the engine
+                    System.err.println(e.getMessage());
+                    System.exit(1);
+                } catch (SQLException e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        }
+        if (engine == null) {
+            try {
+                writerLock = WriterLock.acquire(false);
+            } catch (WriterLock.Taken e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            } catch (SQLException e) {
+                // the database may only be down for now, the commands will say so
+                System.err.println("Could not check for an in-memory booking engine: " + e.getMessage());
+            }
+        }
+        // move unused dose allocations of past days forward once a day
+        if (engine != null) {
+            engine.startRebalancer();
+        } else {
+            DoseAllocations.startRebalancer();
+        }
+        // optional change feed sinks for downstream consumers
+        String feedFile = System.getenv("ChangeFeedFile");
+        if (feedFile != null) {
+            ChangeFeed.addSink(new RotatingFileSink(Paths.get(feedFile), FEED_FILE_BYTES, FEED_FILES));
+        }
+        String feedPort = System.getenv("ChangeFeedPort");
+        if (feedPort != null) {
+            ChangeFeed.addSink(new SocketSink(Integer.parseInt(feedPort)));
+        }
+        // optional cluster membership, each node assigns its own share of the caregivers first
+        String nodeId = System.getenv("NodeId");
+        if (nodeId != null) {
+            node = new ClusterNode(nodeId, new DatabaseMembership(HEARTBEAT_SECONDS * 3), HEARTBEAT_SECONDS * 1000L);
+            try {
+                node.start();
+            } catch (SQLException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+        // booking commands queue in the waiting room instead of running into the connection limit
+        String admitRate = System.getenv("AdmitRate");
+        waitingRoom = new WaitingRoom(ConnectionManager.MAX_CONNECTIONS,
+                admitRate == null ? ADMIT_RATE : Double.parseDouble(admitRate));
+        // optional write-ahead journal for mutating commands
+        String journalFile = System.getenv("JournalFile");
+        if (journalFile != null) {
+            journal = CommandJournal.open(Paths.get(journalFile), JOURNAL_CAPACITY,
+                    entry -> admitted(Util.tokenize(entry.getCommand())[0], () -> applyJournaled(entry)));
+        }
+        // optional health endpoint for the orchestrator
+        String healthPort = System.getenv("HealthPort");
+        if (healthPort != null) {
+            startHealth(Integer.parseInt(healthPort));
+        }
+        if (batch) {
+            runBatch(args.length > 1 && !args[1].equals("-")
+                    ? Files.newBufferedReader(Paths.get(args[1]), StandardCharsets.UTF_8) : r);
+            r.close();
+            quit();
+            reportJournaled();
+            return;
+        }
         //keep running until user enter quit
         while (true) {
-            showCommands();
+            reportJournaled();
+            tracker.run("(menu)", Scheduler::showCommands);
             System.out.print("> ");
             String response = "";
             try {
@@ -42,8 +279,12 @@ public class Scheduler {
             } catch (IOException e) {
                 System.err.println("System reading error. Please try again!");
             }
+            // end of input, e.g. a piped script, quits
+            if (response == null) {
+                response = "quit";
+            }
             // split the user input by spaces
-            String[] tokens = response.split(" ");
+            String[] tokens = Util.tokenize(response);
             // check if input exists
             if (tokens.length == 0) {
                 System.err.println("Please don't input empty spaces only!");
@@ -51,35 +292,360 @@ public class Scheduler {
             }
             // determine which operation to perform
             String operation = tokens[0];
-            if (operation.equals("create_patient") || operation.equals("1")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver") || operation.equals("2")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient") || operation.equals("3")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver") || operation.equals("4")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule") || operation.equals("5")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve") || operation.equals("6")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability") || operation.equals("7")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel") || operation.equals("8")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses") || operation.equals("9")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments") || operation.equals("10")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout") || operation.equals("11")) {
-                logout(tokens);
-            } else if (operation.equals("quit") || operation.equals("12")) {
+            if (commandName(operation).equals("quit")) {
                 System.out.println("Good Bye!");
                 r.close();
+                quit();
+                reportJournaled();
                 return;
+            }
+            // shed excess load before it reaches the database
+            if (!limiter.tryAcquire(currentUser())) {
+                System.err.println("Too many requests, please wait a moment and try again!");
+                continue;
+            }
+            if (journal != null && isJournaled(operation)) {
+                journalCommand(tokens);
             } else {
-                System.err.println("Invalid operation name! \nPlease read through the above opeartions list and type again!");
+                admitted(operation, () -> runCommand(tokens));
+            }
+        }
+    }
+
+    /**
+     * serve the health endpoint with the queue depths of this instance
+     * @param port port on 127.0.0.1
+     * @throws IOException if the port can't be bound
+     */
+    private static void startHealth(int port) throws IOException {
+        health = new HealthServer(port)
+                .gauge("commandsInFlight", inFlight::get)
+                .gauge("waitingRoomWaiting", waitingRoom::waiting)
+                .gauge("waitingRoomInFlight", waitingRoom::inFlight)
+                .gauge("changeFeedQueue", ChangeFeed::queueDepth)
+                .gauge("changeFeedBlocked", ChangeFeed::getBlockedPublishes)
+                .gauge("rateLimitRejections", limiter::getTotalRejections)
+                .check("waitingRoom", () -> waitingRoom.waiting() < READY_WAITING);
+        if (journal != null) {
+            health.gauge("journalPending", journal::pending)
+                    .check("journal", () -> journal.getDamage() == null && journal.pending() < READY_JOURNAL);
+        }
+        if (engine != null) {
+            health.gauge("bookingWritesPending", engine::getPendingWrites)
+                    .gauge("bookingWritesDeadLettered", engine::getDeadLetteredWrites)
+                    .check("bookingWriter", () -> engine.getPendingWrites() < READY_WRITES);
+        }
+        health.start();
+    }
+
+    /**
+     * wait for background work to finish and stop, the allocation budget can still fail the process
+     * @throws IOException if the journal can't be closed
+     */
+    private static void quit() throws IOException {
+        if (health != null) {
+            health.close();
+        }
+        if (journal != null) {
+            // wait for journaled commands to reach the database
+            journal.close();
+        }
+        if (engine != null) {
+            // wait for in-memory bookings to reach the database
+            engine.close();
+        }
+        if (writerLock != null) {
+            writerLock.close();
+        }
+        ChangeFeed.close();
+        if (node != null) {
+            try {
+                node.stop();
+            } catch (SQLException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+        if (tracker.isTracking()) {
+            // scripted results stay machine-readable on stdout
+            (batch ? System.err : System.out).print(tracker.report());
+            tracker.close();
+            List<String> overBudget = tracker.overBudget();
+            if (!overBudget.isEmpty()) {
+                System.err.println("Allocation budget exceeded by: " + String.join(", ", overBudget));
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * run commands from a script without showing the menu or applying the per-user rate limit,
+     * until quit or the end of the script. Blank lines and lines starting with # are skipped.
+     * Each command prints one JSON line to stdout instead of its messages:
+     * {"line":3,"command":"reserve","status":"ok","micros":1520,"output":"...","error":""}
+     * where status is "error" if the command reported a failure (see CommandResult).
+     * Only what the command reports is in its line, messages of background threads still go to stderr.
+     * A journaled command only reports that it was accepted, its outcome follows in a line of its own
+     * once it was applied, see reportJournaled.
+     * Results are flushed whenever the script has no more input ready, so a pipe gets them promptly.
+     * @param script reader of the script
+     * @throws IOException if the script can't be read
+     */
+    private static void runBatch(BufferedReader script) throws IOException {
+        PrintStream results = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out),
+                BATCH_OUTPUT_BYTES), false, StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder(256);
+        try {
+            String line;
+            int number = 0;
+            while ((line = script.readLine()) != null) {
+                number++;
+                String[] tokens = Util.tokenize(line);
+                if (tokens.length == 0 || tokens[0].startsWith("#")) {
+                    continue;
+                }
+                String operation = tokens[0];
+                if (commandName(operation).equals("quit")) {
+                    break;
+                }
+                long start = System.nanoTime();
+                CommandResult result = CommandResult.capture(() -> {
+                    if (journal != null && isJournaled(operation)) {
+                        journalCommand(tokens);
+                    } else {
+                        admitted(operation, () -> runCommand(tokens));
+                    }
+                });
+                long micros = (System.nanoTime() - start) / 1000;
+                sb.setLength(0);
+                sb.append("{\"line\":").append(number).append(",\"command\":");
+                Util.quote(sb, commandName(operation));
+                sb.append(",\"status\":\"").append(result.isFailed() ? "error" : "ok")
+                        .append("\",\"micros\":").append(micros).append(",\"output\":");
+                Util.quote(sb, result.getOutput());
+                sb.append(",\"error\":");
+                Util.quote(sb, result.getError());
+                results.println(sb.append('}'));
+                if (!journalResults.isEmpty()) {
+                    results.flush();
+                    reportJournaled();
+                }
+                if (!script.ready()) {
+                    results.flush();
+                }
             }
+        } finally {
+            results.flush();
+            script.close();
+        }
+    }
+
+    /**
+     * run one command, synchronized so journaled commands applied in the background
+     * never see another user logged-in halfway through a command
+     * @param tokens command and its arguments
+     */
+    private static synchronized void runCommand(String[] tokens) {
+        Command command = COMMANDS.get(commandName(tokens[0]));
+        if (command == null) {
+            fail("Invalid operation name! \nPlease read through the above opeartions list and type again!");
+            return;
+        }
+        command.handler.accept(tokens);
+    }
+
+    /**
+     * @param operation command name or number
+     * @return whether the command changes the database and goes through the journal
+     */
+    private static boolean isJournaled(String operation) {
+        return hasFlag(operation, JOURNALED);
+    }
+
+    /**
+     * @param operation command name or number
+     * @return whether the command books or frees appointments and goes through the waiting room
+     */
+    private static boolean isBooking(String operation) {
+        return hasFlag(operation, BOOKING);
+    }
+
+    private static boolean hasFlag(String operation, int flag) {
+        Command command = COMMANDS.get(commandName(operation));
+        return command != null && (command.flags & flag) != 0;
+    }
+
+    /**
+     * run a command, booking commands wait for their turn in the waiting room first unless they come from a script
+     * @param operation command name or number
+     * @param command runs the command
+     */
+    private static void admitted(String operation, Runnable command) {
+        if (!isBooking(operation) || batch) {
+            inFlight.incrementAndGet();
+            try {
+                tracker.run(commandName(operation), command);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            return;
+        }
+        long entered = System.nanoTime();
+        WaitingRoom.Ticket ticket = waitingRoom.enter();
+        if (ticket.getPosition() > 0) {
+            print("You are number " + ticket.getPosition() + " in the waiting room, estimated wait: " +
+                    (ticket.getEtaMillis() + 999) / 1000 + " second(s)");
+        }
+        try {
+            waitingRoom.await(ticket);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail("Left the waiting room, please try again!");
+            return;
+        }
+        inFlight.incrementAndGet();
+        try {
+            tracker.run(commandName(operation), System.nanoTime() - entered, command);
+        } finally {
+            inFlight.decrementAndGet();
+            waitingRoom.leave(ticket);
+        }
+    }
+
+    /**
+     * @param operation command name or number as typed
+     * @return the command name, "(invalid)" if there is no such command
+     */
+    private static String commandName(String operation) {
+        if (COMMANDS.containsKey(operation)) {
+            return operation;
+        }
+        try {
+            int number = Integer.parseInt(operation);
+            if (number > 0 && number <= COMMAND_NAMES.size()) {
+                return COMMAND_NAMES.get(number - 1);
+            }
+        } catch (NumberFormatException e) {
+            // not a command number
+        }
+        return "(invalid)";
+    }
+
+    /**
+     * report one line of output of the running command, see CommandResult
+     * @param line the line
+     */
+    private static void print(Object line) {
+        CommandResult.print(line);
+    }
+
+    /**
+     * report that the running command failed, see CommandResult
+     * @param message the message for the user
+     */
+    private static void fail(String message) {
+        CommandResult.fail(message);
+    }
+
+    /**
+     * @return the logged-in username in lower case, "(anonymous)" if no one has logged-in
+     */
+    private static synchronized String currentUser() {
+        if (currentPatients != null) {
+            return currentPatients.getUsername().toLowerCase();
+        } else if (currentCaregivers != null) {
+            return currentCaregivers.getUsername().toLowerCase();
+        }
+        return "(anonymous)";
+    }
+
+    /**
+     * append a command of the logged-in user to the journal and acknowledge it once it is on disk,
+     * its outcome is reported by reportJournaled() after the journal applier has run it against the database
+     * @param tokens command and its arguments
+     */
+    private static void journalCommand(String[] tokens) {
+        char userType;
+        String username;
+        synchronized (Scheduler.class) {
+            if (currentPatients != null) {
+                userType = 'P';
+                username = currentPatients.getUsername();
+            } else if (currentCaregivers != null) {
+                userType = 'C';
+                username = currentCaregivers.getUsername();
+            } else {
+                fail("Please login your account first!");
+                return;
+            }
+        }
+        try {
+            long seq = journal.append(userType, username, String.join(" ", tokens));
+            print("Request #" + seq + " accepted, it will be processed shortly!");
+        } catch (IOException e) {
+            fail("Error occurred when saving your request, please try again!");
+        }
+    }
+
+    /**
+     * print the outcomes of the journaled commands applied since the last prompt, in request order,
+     * a script gets one JSON line per request: {"request":7,"status":"ok","output":"...","error":""}
+     */
+    private static void reportJournaled() {
+        StringBuilder sb = new StringBuilder(256);
+        for (Long seq : journalResults.keySet()) {
+            CommandResult result = journalResults.remove(seq);
+            if (batch) {
+                sb.setLength(0);
+                sb.append("{\"request\":").append(seq)
+                        .append(",\"status\":\"").append(result.isFailed() ? "error" : "ok").append("\",\"output\":");
+                Util.quote(sb, result.getOutput());
+                sb.append(",\"error\":");
+                Util.quote(sb, result.getError());
+                System.out.println(sb.append('}'));
+                continue;
+            }
+            System.out.println("Processed request #" + seq + ":");
+            System.out.print(result.getOutput().isEmpty() ? "" : result.getOutput() + "\n");
+            System.err.print(result.getError().isEmpty() ? "" : result.getError() + "\n");
+        }
+        System.out.flush();
+    }
+
+    /**
+     * run a journaled command as the user who sent it, called by the journal applier
+     * the outcome is kept for reportJournaled(), commands recovered after a crash print theirs
+     * @param entry journaled command
+     */
+    private static void applyJournaled(CommandJournal.Entry entry) {
+        CommandResult result = CommandResult.capture(() -> runJournaled(entry));
+        if (entry.isRecovered()) {
+            System.out.println("Processed request #" + entry.getSeq() + ":");
+            result.replay();
+        } else {
+            journalResults.put(entry.getSeq(), result);
+        }
+    }
+
+    private static synchronized void runJournaled(CommandJournal.Entry entry) {
+        Patients patients = currentPatients;
+        Caregivers caregivers = currentCaregivers;
+        try {
+            if (entry.getUserType() == 'P') {
+                currentPatients = new Patients.PatientBuilder(entry.getUsername(), null, null).build();
+                currentCaregivers = null;
+            } else {
+                currentCaregivers = new Caregivers.CaregiverGetter(entry.getUsername(), null).find();
+                currentPatients = null;
+                if (currentCaregivers == null) {
+                    return;
+                }
+            }
+            runCommand(Util.tokenize(entry.getCommand()));
+        } catch (SQLException e) {
+            fail(e.getMessage());
+        } finally {
+            currentPatients = patients;
+            currentCaregivers = caregivers;
         }
     }
 
@@ -103,7 +669,7 @@ public class Scheduler {
         String password = tokens[2];
         // check 3: if username is taken
         if (usernameExists(username, "Patient")) {
-            System.err.println("Username taken, try again!");
+            fail("Username taken, try again!");
             return;
         }
         // check 4: if password is strong enough
@@ -117,11 +683,11 @@ public class Scheduler {
             //create and save our new patient
             currentPatients = new Patients.PatientBuilder(username, salt, hash).build();
             currentPatients.saveToDB();
-            System.out.println(" *** Congratulation, " + username + "! Account created successfully *** ");
-            System.out.println("Patient logged in as:" + username);
+            print(" *** Congratulation, " + username + "! Account created successfully *** ");
+            print("Patient logged in as:" + username);
         } catch (SQLException e) {
             //print error message if sql execution error
-            System.err.println(e.getMessage());
+            fail(e.getMessage());
         }
     }
 
@@ -145,7 +711,7 @@ public class Scheduler {
         String password = tokens[2];
         // check 3: if username is taken
         if (usernameExists(username, "Caregiver")) {
-            System.err.println("Username taken, try again!");
+            fail("Username taken, try again!");
             return;
         }
         // check 4: if password is strong enough
@@ -158,11 +724,11 @@ public class Scheduler {
             //create and save a new caregiver
             currentCaregivers = new Caregivers.CaregiverBuilder(username, salt, hash).build();
             currentCaregivers.saveToDB();
-            System.out.println(" *** Account created successfully *** ");
-            System.out.println("Caregiver logged in as:" + username);
+            print(" *** Account created successfully *** ");
+            print("Caregiver logged in as:" + username);
         } catch (SQLException e) {
             //print error message if sql execution error
-            System.err.println(e.getMessage());
+            fail(e.getMessage());
         }
     }
 
@@ -189,13 +755,13 @@ public class Scheduler {
             patients = new Patients.PatientGetter(username, password).get();
         } catch (SQLException e) {
             //print error message if getting patient failed
-            System.err.println(e.getMessage());
+            fail(e.getMessage());
         }
         //check3: if patient username and password can match a patient account
         if (patients == null) {//get() return nothing, username and password doesn't match
-            System.err.println("Cannot find user, please try again! Make sure you enter correct information!");
+            fail("Cannot find user, please try again! Make sure you enter correct information!");
         } else {//return a patients object and login
-            System.out.println("Patient logged in as:" + username);
+            print("Patient logged in as:" + username);
             currentPatients = patients;
         }
     }
@@ -223,13 +789,13 @@ public class Scheduler {
             caregivers = new Caregivers.CaregiverGetter(username, password).get();
         } catch (SQLException e) {
             //print error message if get method failed
-            System.err.println(e.getMessage());
+            fail(e.getMessage());
         }
         //check 3: If patient username and password can match a caregiver account
         if (caregivers == null) {//return nothing, username and password doesn't match
-            System.err.println("Cannot find user, Please try again! Make sure you enter correct information!");
+            fail("Cannot find user, Please try again! Make sure you enter correct information!");
         } else {//return a caregivers object and login
-            System.out.println("Caregiver logged in as: " + username);
+            print("Caregiver logged in as: " + username);
             currentCaregivers = caregivers;
         }
     }
@@ -239,7 +805,7 @@ public class Scheduler {
      * check 1: if a patient or caregiver has logged-in
      * check 2: if input tokens length is exactly 2
      * check 3: if input date is valid
-     * Output the username for the caregivers that are available for the date,
+     * Output the username for the caregivers that are available for the date and their free time slots,
      * along with the number of available doses left for each vaccine.
      * @param tokens command, date
      * IllegalArgumentException if input date is invalid
@@ -248,12 +814,12 @@ public class Scheduler {
     private static void searchCaregiverSchedule(String[] tokens) {
         //check 1: if a patient or caregiver has logged-in
         if (currentPatients == null && currentCaregivers == null) {
-            System.err.println("Please login your account first!");
+            fail("Please login your account first!");
             return;
         }
         //check 2: if input tokens length is exactly 2
         if (tokens.length != 2) {
-            System.err.println(TOKENMISMATCH);
+            fail(TOKENMISMATCH);
             return;
         }
 
@@ -263,111 +829,412 @@ public class Scheduler {
             //get all available caregivers on this date
             List<Availabilities> availabilities = new Availabilities().getAvailabilities(date);
             if (availabilities.size() == 0) {//if no result
-                System.err.println("Oops! No Caregiver is available on this day!");
+                fail("Oops! No Caregiver is available on this day!");
             } else {//if yes result
-                System.out.println("These caregivers are available on this day:");
+                print("These caregivers are available on this day:");
                 //show caregivers and date information
                 for (Availabilities availability : availabilities) {
-                    System.out.println("Caregiver name:" + availability.getUsername() + ", on Date:" + availability.getTime());
+                    print("Caregiver name:" + availability.getUsername() + ", on Date:" + availability.getTime()
+                            + ", free slots:" + TimeSlots.format(availability.getSlots(), availability.getSlotMinutes()));
                 }
                 //get all vaccines information (name, numbers)
                 List<Vaccines> allVaccines = new Vaccines().getAllVaccines();
                 if (allVaccines.size() == 0) {// if no result
-                    System.err.println("Oops! No vaccines are on the market now!");
+                    fail("Oops! No vaccines are on the market now!");
                 } else {// if yes result
-                    System.out.println();
-                    System.out.println("These are available doses of vaccines!");
+                    print("");
+                    print("These are available doses of vaccines!");
                     for (Vaccines allVaccine : allVaccines) {
-                        System.out.println(allVaccine);
+                        print(allVaccine);
+                    }
+                    //show doses set aside for this date
+                    List<DoseAllocations> allocations = DoseAllocations.getAllocations(date);
+                    if (allocations.size() != 0) {
+                        print("");
+                        print("These doses are allocated to this day!");
+                        for (DoseAllocations allocation : allocations) {
+                            print(allocation);
+                        }
                     }
                 }
             }
         } catch (SQLException e) {
             //print error message if sql execution error
-            System.err.println(e.getMessage());
+            fail(e.getMessage());
         } catch (IllegalArgumentException e) {
             //print error message if date is invalid
-            System.err.println(VALIDDATE);
+            fail(VALIDDATE);
         }
 
     }
 
     /**
-     * reserve <date> <vaccine>
+     * search_days <number>
+     * check 1: if a patient or caregiver has logged-in
+     * check 2: if input tokens length is exactly 2
+     * check 3: if the number is a positive number
+     * Output upcoming dates on which at least <number> caregivers still have a free slot
+     * @param tokens command, number
+     */
+    private static void searchDays(String[] tokens) {
+        //check 1: if a patient or caregiver has logged-in
+        if (currentPatients == null && currentCaregivers == null) {
+            fail("Please login your account first!");
+            return;
+        }
+        //check 2: if input tokens length is exactly 2
+        if (tokens.length != 2) {
+            fail(TOKENMISMATCH);
+            return;
+        }
+        try {
+            //check 3: if the number is a positive number with try catch
+            int number = Integer.parseInt(tokens[1]);
+            if (number <= 0) {
+                throw new IllegalArgumentException();
+            }
+            List<LocalDate> days = AvailabilityCalendar.searchDays(number);
+            if (days.size() == 0) {
+                fail("Oops! No day has this many caregivers available!");
+            } else {
+                print("These days have at least " + number + " caregivers available:");
+                for (LocalDate day : days) {
+                    print("Date:" + day);
+                }
+            }
+        } catch (SQLException e) {
+            fail(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            fail("Please make sure you input a valid number!");
+        }
+    }
+
+    /**
+     * capacity [days]
+     * check 1: if a patient or caregiver has logged-in
+     * check 2: if input tokens length is 1 or 2
+     * check 3: if the number of days is a positive number
+     * Output caregivers, free slots, booked appointments and dose headroom of each upcoming day,
+     * 60 days unless a number of days is given
+     * @param tokens command and optional number of days
+     */
+    private static void capacity(String[] tokens) {
+        //check 1: if a patient or caregiver has logged-in
+        if (currentPatients == null && currentCaregivers == null) {
+            fail("Please login your account first!");
+            return;
+        }
+        //check 2: if input tokens length is 1 or 2
+        if (tokens.length != 1 && tokens.length != 2) {
+            fail(TOKENMISMATCH);
+            return;
+        }
+        try {
+            //check 3: if the number of days is a positive number with try catch
+            int days = tokens.length == 2 ? Integer.parseInt(tokens[1]) : CAPACITY_DAYS;
+            if (days <= 0 || days > CapacitySummary.HORIZON_DAYS) {
+                throw new IllegalArgumentException();
+            }
+            for (CapacitySummary.Day day : CapacitySummary.upcoming(days)) {
+                print(day);
+            }
+            print("Doses not allocated to any day:" + CapacitySummary.getUnallocated());
+        } catch (SQLException e) {
+            fail(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            fail("Please make sure you input a number of days between 1 and " +
+                    CapacitySummary.HORIZON_DAYS + "!");
+        }
+    }
+
+    /**
+     * reserve <date> <vaccine> [time]
      * check 1: If a patient has logged-in
-     * check 2: If input tokens length is exactly 3
+     * check 2: If input tokens length is 3 or 4
      * check 3: If a patient already has an appointment
      * check 4: If any caregivers are available that day
      * check 5: If input vaccine exist
-     * check 6: If input vaccine stock is enough
+     * check 6: If input vaccine stock is enough, using the allocation of that date if it has one
+     * check 7: If any caregiver has a free slot at the given time(earliest free slot if no time given)
      * randomly assigned a caregiver for the reservation on that date.
      * add a new reserve to the Appointment table
-     * remove caregiver on Availabilities table that date
+     * remove the booked slot of the caregiver on Availabilities table that date
      * minus doses for selected vaccine for one
-     * @param tokens command, date and vaccine
+     * @param tokens command, date, vaccine and optional time(HH:mm)
      * IllegalArgument Exception if input date is invalid
      * SQLException if error when reserving
      */
     private static void reserve(String[] tokens){
         //check 1: if a patient has logged-in
         if (currentPatients == null) {
-            System.err.println("please login as a patient first!");
+            fail("please login as a patient first!");
             return;
         }
-        //check 2: if input tokens length is exactly 3
-        if (tokens.length != 3) {
-            System.err.println(TOKENMISMATCH);
+        //check 2: if input tokens length is 3 or 4
+        if (tokens.length != 3 && tokens.length != 4) {
+            fail(TOKENMISMATCH);
             return;
         }
         String date = tokens[1];
         String vaccine = tokens[2];
+        String time = tokens.length == 4 ? tokens[3] : null;
+        if (engine != null) {
+            reserveInMemory(date, vaccine, time);
+            return;
+        }
 
         try {
             Appointments appointments = new Appointments();
             // check 3: If a patient already has an appointment
-            List<Appointments> patient = appointments.showAppointments("Patient", currentPatients.getUsername());
-            if (patient.size() != 0) {//get appointment for a patient
-                System.err.println("One patient can only have one appointment at most!");
+            if (appointments.hasAppointment(currentPatients.getUsername())) {
+                fail("One patient can only have one appointment at most!");
                 return;
             }
             // check if given date is valid with try catch
             Date d = Date.valueOf(date);
+            // check if given time is valid with try catch
+            if (time != null) {
+                TimeSlots.slotAt(time, TimeSlots.MIN_SLOT_MINUTES);
+            }
             //get all available caregivers and vaccines information
             List<Availabilities> availabilities = new Availabilities().getAvailabilities(d);
             Vaccines vaccines1 = new Vaccines.VaccineGetter(vaccine).get();
             // check 4: If any caregivers are available that day
             if (availabilities.size() == 0) {
-                System.err.println("Sorry, no caregiver is available today, please check the schedule and reserve again!");
+                fail("Sorry, no caregiver is available today, please check the schedule and reserve again!");
                 return;
             } else if (vaccines1 == null) {//check 5: If input vaccine exist
-                System.err.println("Sorry, the vaccine you choose is not applicable, please choose other vaccines!");
+                fail("Sorry, the vaccine you choose is not applicable, please choose other vaccines!");
                 return;
-            } else if (vaccines1.getAvailableDoses() == 0) {//check 6: If input vaccine stock is enough
-                System.err.println("Sorry, the vaccine you choose is running out of storage, please choose other vaccines!");
+            }
+            //a date with an allocation takes its dose from there, the appointment records which one it was
+            boolean allocated = DoseAllocations.getAllocation(vaccines1.getVaccineName(), d) != null;
+            if (!reserveDose(vaccines1, d, allocated)) {//check 6: If input vaccine stock is enough
+                fail("Sorry, the vaccine you choose is running out of storage, please choose other vaccines!");
             } else {
-                //randomly assign a caregiver
-                Random random = new Random();
-                int index = random.nextInt(availabilities.size());
-                String caregiver = availabilities.get(index).getUsername();
-                //remove one dose for selected vaccine
-                vaccines1.decreaseAvailableDoses(1);
-                //remove caregiver on that day on availabilities
-                new Availabilities().removeCaregiver(caregiver, d);
-                //add an appointment to the table and return its id
-                int id = new Appointments().addAppointment(currentPatients.getUsername(), caregiver, d, vaccine);
-                System.out.println("Your appointment id is:" + id + ", Your assigned caregiver is:" +
-                        caregiver + ", Your selected vaccine is:" + tokens[2]);
+                //randomly assign a caregiver, try the next one if the slot is taken by someone else first
+                List<Availabilities> candidates = new ArrayList<>(availabilities);
+                Collections.shuffle(candidates, new Random());
+                if (node != null) {
+                    //caregivers of this node first, the others are only tried when none of them is free
+                    Predicate<String> owned = node.ownership();
+                    List<Availabilities> mine = new ArrayList<>();
+                    List<Availabilities> others = new ArrayList<>();
+                    for (Availabilities candidate : candidates) {
+                        (owned.test(candidate.getUsername()) ? mine : others).add(candidate);
+                    }
+                    mine.addAll(others);
+                    candidates = mine;
+                }
+                //the dose is reserved from here on, every later step gives back what the earlier ones took if it fails
+                Availabilities assigned = null;
+                int slot = -1;
+                boolean dosesTaken = false;
+                int id;
+                try {
+                    for (Availabilities candidate : candidates) {
+                        slot = time == null ? TimeSlots.firstFree(candidate.getSlots())
+                                : TimeSlots.slotAt(time, candidate.getSlotMinutes());
+                        //remove the slot of caregiver on that day on availabilities
+                        if (TimeSlots.isFree(candidate.getSlots(), slot)
+                                && new Availabilities().removeCaregiver(candidate.getUsername(), d, slot)) {
+                            assigned = candidate;
+                            break;
+                        }
+                    }
+                    //check 7: If any caregiver has a free slot at the given time
+                    if (assigned == null) {
+                        if (allocated) {
+                            DoseAllocations.cancel(vaccine, d);
+                        }
+                        fail("Sorry, no caregiver is available at this time, please check the schedule and reserve again!");
+                        return;
+                    }
+                    //remove one dose for selected vaccine
+                    vaccines1.decreaseAvailableDoses(1);
+                    dosesTaken = true;
+                    //add an appointment to the table and return its id
+                    id = new Appointments().addAppointment(currentPatients.getUsername(), assigned.getUsername(), d,
+                            vaccine, slot, assigned.getSlotMinutes(), allocated);
+                } catch (SQLException | RuntimeException e) {
+                    undoReserve(vaccines1, d, allocated, assigned, slot, dosesTaken);
+                    throw e;
+                }
+                String caregiver = assigned.getUsername();
+                print("Your appointment id is:" + id + ", Your assigned caregiver is:" +
+                        caregiver + ", Your selected vaccine is:" + tokens[2] +
+                        ", Your time is:" + TimeSlots.startTime(slot, assigned.getSlotMinutes()));
             }
         } catch (SQLException e) {
             //print error message if sql execution error
-            System.err.println(e.getMessage());
+            fail(e.getMessage());
         } catch (IllegalArgumentException e) {
-            //print error message if input an invalid date
-            System.err.println(VALIDDATE);
+            //print error message if input an invalid date or time
+            fail("Please enter a valid date and time!");
         }
 
     }
 
+    /**
+     * reserve with the in-memory booking engine, same checks and messages as reserve
+     * @param date date as yyyy-mm-dd
+     * @param vaccine vaccine name
+     * @param time start time as HH:mm, null for the earliest free slot
+     */
+    private static void reserveInMemory(String date, String vaccine, String time) {
+        try {
+            BookingEngine.Result result = engine.reserve(IdDictionary.PATIENTS.idOf(currentPatients.getUsername()),
+                    IdDictionary.VACCINES.find(vaccine), Date.valueOf(date).toLocalDate(), time, null);
+            switch (result.getOutcome()) {
+                case HAS_APPOINTMENT:
+                    fail("One patient can only have one appointment at most!");
+                    break;
+                case NO_CAREGIVER:
+                    fail("Sorry, no caregiver is available today, please check the schedule and reserve again!");
+                    break;
+                case NO_VACCINE:
+                    fail("Sorry, the vaccine you choose is not applicable, please choose other vaccines!");
+                    break;
+                case NO_DOSES:
+                    fail("Sorry, the vaccine you choose is running out of storage, please choose other vaccines!");
+                    break;
+                case NO_SLOT:
+                    fail("Sorry, no caregiver is available at this time, please check the schedule and reserve again!");
+                    break;
+                default:
+                    BookingEngine.Booking booking = result.getBooking();
+                    print("Your appointment id is:" + booking.getId() + ", Your assigned caregiver is:" +
+                            IdDictionary.CAREGIVERS.nameOf(booking.getCaregiverId()) + ", Your selected vaccine is:" +
+                            vaccine + ", Your time is:" + TimeSlots.startTime(booking.getSlot(), booking.getSlotMinutes()));
+            }
+        } catch (SQLException e) {
+            fail(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            fail("Please enter a valid date and time!");
+        }
+    }
+
+    /**
+     * reserve_batch <date> <vaccine> <patients...>
+     * reserve_batch <date> <vaccine> @<file>
+     * check 1: If a caregiver has logged-in
+     * check 2: If input tokens length is at least 4
+     * check 3: If input date is valid
+     * check 4: If input vaccine exist
+     * check 5: If no patient is listed twice
+     * book one appointment for every patient of a group(a family, a care home) in one transaction,
+     * the patients can also be read from a file with usernames separated by spaces or lines
+     * nothing is booked if one patient can't be booked
+     * @param tokens command, date, vaccine and patient usernames or @file
+     */
+    private static void reserveBatch(String[] tokens) {
+        // check 1: if a caregiver has logged-in
+        if (currentCaregivers == null) {
+            fail("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: if input tokens length is at least 4
+        if (tokens.length < 4) {
+            fail(TOKENMISMATCH);
+            return;
+        }
+        String vaccine = tokens[2];
+        try {
+            // check 3: if input date is valid
+            Date d = Date.valueOf(tokens[1]);
+            List<String> patients = new ArrayList<>();
+            if (tokens.length == 4 && tokens[3].startsWith("@")) {
+                for (String username : Util.tokenize(new String(Files.readAllBytes(Paths.get(tokens[3].substring(1)))))) {
+                    if (!username.isEmpty()) {
+                        patients.add(username);
+                    }
+                }
+            } else {
+                patients.addAll(Arrays.asList(tokens).subList(3, tokens.length));
+            }
+            // check 4: if input vaccine exist
+            Vaccines vaccines = new Vaccines.VaccineGetter(vaccine).get();
+            if (vaccines == null) {
+                fail("Sorry, the vaccine you choose is not applicable, please choose other vaccines!");
+                return;
+            }
+            // check 5: if no patient is listed twice
+            Set<String> unique = new HashSet<>();
+            for (String patient : patients) {
+                if (!unique.add(patient.toLowerCase())) {
+                    fail("Patient " + patient + " is listed more than once!");
+                    return;
+                }
+            }
+            if (patients.isEmpty()) {
+                fail(TOKENMISMATCH);
+                return;
+            }
+            List<Appointments> booked = engine == null
+                    ? new Appointments().addAppointments(patients, d, vaccines.getVaccineName())
+                    : reserveAllInMemory(patients, d, vaccines.getVaccineName());
+            print(booked.size() + " appointments are reserved:");
+            for (Appointments a : booked) {
+                print("Appointment id:" + a.getID() + ", Patient:" + a.getPatient() +
+                        ", Caregiver:" + a.getCareGiver() + ", Time:" + a.getStartTime());
+            }
+        } catch (SQLException e) {
+            fail(e.getMessage());
+        } catch (IOException e) {
+            fail("Can't read patients from " + tokens[3].substring(1) + "!");
+        } catch (IllegalArgumentException e) {
+            //invalid date, or a patient, dose or slot check failed in the transaction
+            fail(e.getMessage() == null ? VALIDDATE : e.getMessage());
+        }
+    }
+
+    /**
+     * reserve a group with the in-memory booking engine, nothing is kept if one patient can't be booked
+     * @param patients patient names, each at most once
+     * @param date date
+     * @param vaccine vaccine name
+     * @return the new appointments in the same order as patients
+     * @throws SQLException sql execution exception
+     * @throws IllegalArgumentException if a patient doesn't exist or can't be booked, with the reason
+     */
+    private static List<Appointments> reserveAllInMemory(List<String> patients, Date date, String vaccine)
+            throws SQLException {
+        List<Integer> patientIds = new ArrayList<>();
+        for (String patient : patients) {
+            int patientId = IdDictionary.PATIENTS.find(patient);
+            if (patientId == -1) {
+                throw new IllegalArgumentException("Patient " + patient + " doesn't exist!");
+            }
+            patientIds.add(patientId);
+        }
+        List<BookingEngine.Result> results = engine.reserveAll(patientIds, IdDictionary.VACCINES.idOf(vaccine),
+                date.toLocalDate());
+        BookingEngine.Result last = results.get(results.size() - 1);
+        switch (last.getOutcome()) {
+            case HAS_APPOINTMENT:
+                throw new IllegalArgumentException("Patient " + patients.get(results.size() - 1) +
+                        " already has an appointment!");
+            case NO_DOSES:
+                // same message as Appointments.addAppointments, which only uses the allocation if there is one
+                if (engine.getRemaining(IdDictionary.VACCINES.idOf(vaccine), date.toLocalDate()) >= 0) {
+                    throw new IllegalArgumentException("Not enough doses are allocated to this date!");
+                }
+                throw new IllegalArgumentException("Not enough doses of " + vaccine + " are available!");
+            case NO_CAREGIVER:
+            case NO_SLOT:
+                throw new IllegalArgumentException("Only " + (results.size() - 1) +
+                        " caregiver slots are free on this date!");
+            case NO_VACCINE:
+                throw new IllegalArgumentException("Sorry, the vaccine you choose is not applicable!");
+            default:
+                List<Appointments> appointments = new ArrayList<>();
+                for (BookingEngine.Result result : results) {
+                    appointments.add(result.getBooking().toAppointment());
+                }
+                return appointments;
+        }
+    }
+
     /**
      * uploadAvailability <date>
      * check 1: If a caregiver has logged-in
@@ -380,12 +1247,12 @@ public class Scheduler {
     private static void uploadAvailability(String[] tokens) {
         // check 1: if a caregiver has logged-in
         if (currentCaregivers == null) {
-            System.err.println("Please login as a caregiver first!");
+            fail("Please login as a caregiver first!");
             return;
         }
         // check 2: if input tokens length is exactly 2
         if (tokens.length != 2) {
-            System.err.println(TOKENMISMATCH);
+            fail(TOKENMISMATCH);
             return;
         }
         String date = tokens[1];
@@ -394,30 +1261,34 @@ public class Scheduler {
             //check 3: if caregiver has uploaded on this date before(appointment and availabilities)
             List<Availabilities> availabilities = new Availabilities().getAvailabilities(d);
             //get appointment information for this caregiver
-            List<Appointments> appointments = new Appointments().showAppointments("Caregiver", currentCaregivers.getUsername());
+            List<Appointments> appointments = appointmentsOf("Caregiver", currentCaregivers.getUsername());
             //check if current caregiver has uploaded to availabilities table
             for (Availabilities availability : availabilities) {
                 if (availability.getUsername().equals(currentCaregivers.getUsername())) {
-                    System.err.println("You have uploaded yourself on this date before!");
+                    fail("You have uploaded yourself on this date before!");
                     return;
                 }
             }
             //check if current caregiver has an appointment on this day
             for (Appointments appointment : appointments) {
                 if (appointment.getDate().equals(d)) {
-                    System.err.println("You have uploaded yourself on this date before!");
+                    fail("You have uploaded yourself on this date before!");
                     return;
                 }
             }
             //upload to the table if it pass all checks and print message
             currentCaregivers.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
+            if (engine != null) {
+                engine.upload(IdDictionary.CAREGIVERS.idOf(currentCaregivers.getUsername()), d.toLocalDate(),
+                        currentCaregivers.getSlotMinutes());
+            }
+            print("Availability uploaded!");
         } catch (IllegalArgumentException e) {
             //print error message if input invalid date
-            System.err.println(VALIDDATE);
+            fail(VALIDDATE);
         } catch (SQLException e) {
             //print error message if sql execution error
-            System.err.println(e.getMessage());
+            fail(e.getMessage());
         }
     }
 
@@ -430,7 +1301,7 @@ public class Scheduler {
      * check 5: If current user is qualified to cancel this appointment
      * cancel appointment with given appointment id
      * delete this appointment from Appointment table
-     * add caregiver back to availability table
+     * add caregiver's slot back to availability table
      * add vaccine number back to table
      * @param tokens command and appointment_id
      * SQLException if error occurred when canceling appointment
@@ -438,12 +1309,16 @@ public class Scheduler {
     private static void cancel(String[] tokens) {
         //check 1: if a patient or caregiver has logged in
         if (currentCaregivers == null && currentPatients == null) {
-            System.err.println("Please login your account first!");
+            fail("Please login your account first!");
             return;
         }
         //check 2: if input tokens length is exactly 2
         if (tokens.length != 2) {
-            System.err.println(TOKENMISMATCH);
+            fail(TOKENMISMATCH);
+            return;
+        }
+        if (engine != null) {
+            cancelInMemory(tokens[1]);
             return;
         }
         //check 4: if the given appointment_id is in our appointment table
@@ -451,9 +1326,8 @@ public class Scheduler {
             Appointments app = new Appointments();
             //check 3: if the given appointment_id is a number with try catch
             int id = Integer.parseInt(tokens[1]);
-            List<Integer> integers = app.showAllID();
-            if (!integers.contains(id)) {
-                System.err.println("Please make sure you enter a valid id!");
+            if (!app.exists(id)) {
+                fail("Please make sure you enter a valid id!");
                 return;
             }
 
@@ -468,31 +1342,57 @@ public class Scheduler {
                 username = currentCaregivers.getUsername();
             }
             //check 5: If current user is qualified to cancel this appointment
-            List<Appointments> appointments = app.showAppointments(type, username);
-            //get all id for this user and see if input id is contained in his/her id list
-            List<Integer> ids = new ArrayList<Integer>();
-            for (Appointments appointment : appointments) {
-                ids.add(appointment.getID());
-            }
-            if (!ids.contains(id)) {
-                System.err.println("Please make sure the appointment id belongs to you!");
+            if (!app.belongsTo(id, type, username)) {
+                fail("Please make sure the appointment id belongs to you!");
                 return;
             } else {
                 //get information before delete the row because we need to upload back to availabilities table
                 Appointments appointments1 = app.getInfo(id);
-                //cancel the appointment
-                app.cancelAppointment(id);
-                // upload back to availabilities table
-                new Availabilities().upLoadAvailability(appointments1.getCareGiver(), appointments1.getDate());
+                //cancel the appointment, only the session which deleted the row gives its slot and dose back
+                if (!app.cancelAppointment(id)) {
+                    fail("Please make sure you enter a valid id!");
+                    return;
+                }
+                // give the slot back to availabilities table
+                new Availabilities().addSlot(appointments1.getCareGiver(), appointments1.getDate(),
+                        appointments1.getSlot(), appointments1.getSlotMinutes());
                 Vaccines vaccines = new Vaccines.VaccineGetter(appointments1.getVaccine()).get();
                 vaccines.increaseAvailableDoses(1);
-                System.out.println("You have successfully delete this appointment!");
+                // give the dose back to the allocation of that date if it came from there
+                if (appointments1.isAllocated()) {
+                    DoseAllocations.cancel(appointments1.getVaccine(), appointments1.getDate());
+                }
+                print("You have successfully delete this appointment!");
             }
         } catch (SQLException e) {
             //print error message if sql execution failed
-            System.err.println(e.getMessage());
+            fail(e.getMessage());
+        } catch (NumberFormatException e) {
+            fail("Please make sure you enter an numeric id or a valid date!");
+        }
+    }
+
+    /**
+     * cancel with the in-memory booking engine, same checks and messages as cancel
+     * @param appointmentId appointment id as typed
+     */
+    private static void cancelInMemory(String appointmentId) {
+        try {
+            int id = Integer.parseInt(appointmentId);
+            BookingEngine.Result result = currentPatients != null
+                    ? engine.cancel(id, IdDictionary.PATIENTS.idOf(currentPatients.getUsername()), -1)
+                    : engine.cancel(id, -1, IdDictionary.CAREGIVERS.idOf(currentCaregivers.getUsername()));
+            if (result.getOutcome() == BookingEngine.Outcome.NOT_FOUND) {
+                fail("Please make sure you enter a valid id!");
+            } else if (result.getOutcome() == BookingEngine.Outcome.NOT_YOURS) {
+                fail("Please make sure the appointment id belongs to you!");
+            } else {
+                print("You have successfully delete this appointment!");
+            }
+        } catch (SQLException e) {
+            fail(e.getMessage());
         } catch (NumberFormatException e) {
-            System.err.println("Please make sure you enter an numeric id or a valid date!");
+            fail("Please make sure you enter an numeric id or a valid date!");
         }
     }
 
@@ -507,12 +1407,12 @@ public class Scheduler {
     private static void addDoses(String[] tokens) {
         // check 1: if a caregiver has logged-in
         if (currentCaregivers == null) {
-            System.err.println("Please login as a caregiver first!");
+            fail("Please login as a caregiver first!");
             return;
         }
         // check 2: if input tokens length is exactly 3
         if (tokens.length != 3) {
-            System.err.println(TOKENMISMATCH);
+            fail(TOKENMISMATCH);
             return;
         }
         try {
@@ -527,11 +1427,108 @@ public class Scheduler {
                 vaccines.saveToDB();
             }
             vaccines.increaseAvailableDoses(doses);// increase stock numbers
-            System.out.println("Doses updated!");
+            if (engine != null) {
+                engine.addDoses(IdDictionary.VACCINES.idOf(vaccineName), doses);
+            }
+            print("Doses updated!");
+        } catch (SQLException e) {
+            fail(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            fail("Please make sure you input a valid number!");
+        }
+    }
+
+    /**
+     * allocate_doses <vaccine> <date> <number>
+     * check 1: If a caregiver has logged-in
+     * check 2: If input tokens length is exactly 4
+     * check 3: If input vaccine exist
+     * check 4: If the date and number are valid
+     * check 5: If the vaccine has enough unallocated doses
+     * set aside doses of a vaccine for one date, so other dates can't use them up
+     * @param tokens command, vaccine name, date and number
+     */
+    private static void allocateDoses(String[] tokens) {
+        // check 1: if a caregiver has logged-in
+        if (currentCaregivers == null) {
+            fail("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: if input tokens length is exactly 4
+        if (tokens.length != 4) {
+            fail(TOKENMISMATCH);
+            return;
+        }
+        String vaccineName = tokens[1];
+        try {
+            // check 4: if the date and number are valid with try catch
+            Date d = Date.valueOf(tokens[2]);
+            int doses = Integer.parseInt(tokens[3]);
+            // check 3: if input vaccine exist
+            Vaccines vaccines = new Vaccines.VaccineGetter(vaccineName).get();
+            if (vaccines == null) {
+                fail("Sorry, the vaccine you choose is not applicable, please add doses first!");
+                return;
+            }
+            // check 5: if the vaccine has enough unallocated doses
+            int unallocated = engine != null ? engine.getFreeDoses(IdDictionary.VACCINES.idOf(vaccineName))
+                    : vaccines.getAvailableDoses() - DoseAllocations.getOutstanding(vaccineName);
+            if (unallocated < doses) {
+                fail("Sorry, there are not enough unallocated doses for this vaccine!");
+                return;
+            }
+            if (engine == null) {
+                DoseAllocations.allocate(vaccineName, d, doses);
+            } else {
+                // the engine sets the doses aside first, so bookings running meanwhile can't take them
+                int vaccineId = IdDictionary.VACCINES.idOf(vaccineName);
+                if (!engine.allocate(vaccineId, d.toLocalDate(), doses)) {
+                    fail("Sorry, there are not enough unallocated doses for this vaccine!");
+                    return;
+                }
+                try {
+                    DoseAllocations.allocate(vaccineName, d, doses);
+                } catch (SQLException | RuntimeException e) {
+                    engine.unallocate(vaccineId, d.toLocalDate(), doses);
+                    throw e;
+                }
+            }
+            print("Doses allocated!");
         } catch (SQLException e) {
-            System.err.println(e.getMessage());
+            fail(e.getMessage());
         } catch (IllegalArgumentException e) {
-            System.err.println("Please make sure you input a valid number!");
+            fail("Please make sure you input a valid date and number!");
+        }
+    }
+
+    /**
+     * set_slot_length <minutes>
+     * check 1: If a caregiver has logged-in
+     * check 2: If input tokens length is exactly 2
+     * check 3: If the number is a supported slot length
+     * change the length of appointment slots for dates uploaded afterwards
+     * @param tokens command and minutes
+     */
+    private static void setSlotLength(String[] tokens) {
+        // check 1: if a caregiver has logged-in
+        if (currentCaregivers == null) {
+            fail("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: if input tokens length is exactly 2
+        if (tokens.length != 2) {
+            fail(TOKENMISMATCH);
+            return;
+        }
+        try {
+            // check 3: if input number is a supported slot length with try catch
+            currentCaregivers.updateSlotMinutes(Integer.parseInt(tokens[1]));
+            print("Slot length updated!");
+        } catch (SQLException e) {
+            fail(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            fail("Please make sure slot length is between " + TimeSlots.MIN_SLOT_MINUTES
+                    + " and " + TimeSlots.DAY_MINUTES + " minutes!");
         }
     }
 
@@ -545,7 +1542,7 @@ public class Scheduler {
     private static void showAppointments(String[] tokens) {
         //check 1: if a patient or caregiver has logged-in
         if (currentPatients == null && currentCaregivers == null) {
-            System.err.println("Please login your account before checking your appointments!");
+            fail("Please login your account before checking your appointments!");
             return;
         }
         String type;
@@ -560,29 +1557,60 @@ public class Scheduler {
                 username = currentPatients.getUsername();
             }
             //get appointment information for current user
-            List<Appointments> appointments = new Appointments().showAppointments(type, username);
+            List<Appointments> appointments = appointmentsOf(type, username);
             if (appointments.size() == 0) {
-                System.err.println("You don't have any upcoming appointments!");
+                fail("You don't have any upcoming appointments!");
             } else {
-                System.out.println("You have following appointments:");
+                print("You have following appointments:");
             }
             //check current user type and print different messages
             if (currentCaregivers != null) {
                 for (Appointments appointment : appointments) {
-                    System.out.println("Appointment ID:" + appointment.getID() + "-----Date:" + appointment.getDate() + "-----Vaccine Name:" + appointment.getVaccine()
-                            + "-----Patient Name:" + appointment.getPatient());
+                    print("Appointment ID:" + appointment.getID() + "-----Date:" + appointment.getDate() + "-----Time:" + appointment.getStartTime()
+                            + "-----Vaccine Name:" + appointment.getVaccine() + "-----Patient Name:" + appointment.getPatient());
                 }
             } else {
                 for (Appointments appointment : appointments) {
-                    System.out.println("Appointment ID:" + appointment.getID() + "-----Date:" + appointment.getDate() + "-----Vaccine Name:" + appointment.getVaccine()
-                            + "-----Caregiver Name:" + appointment.getCareGiver());
+                    print("Appointment ID:" + appointment.getID() + "-----Date:" + appointment.getDate() + "-----Time:" + appointment.getStartTime()
+                            + "-----Vaccine Name:" + appointment.getVaccine() + "-----Caregiver Name:" + appointment.getCareGiver());
                 }
             }
         } catch (SQLException e) {
-            System.err.println(e.getMessage());
+            fail(e.getMessage());
         }
     }
 
+    /**
+     * get the appointments of a patient or caregiver, from the in-memory booking engine when it is used
+     * @param type "Patient" or "Caregiver"
+     * @param username patient or caregiver name
+     * @return a list containing appointments
+     * @throws SQLException sql execution exception
+     */
+    private static List<Appointments> appointmentsOf(String type, String username) throws SQLException {
+        if (engine == null) {
+            return new Appointments().showAppointments(type, username);
+        }
+        List<BookingEngine.Booking> bookings = type.equals("Patient")
+                ? engine.appointmentsOf(IdDictionary.PATIENTS.find(username), -1)
+                : engine.appointmentsOf(-1, IdDictionary.CAREGIVERS.find(username));
+        IntHashSet patients = new IntHashSet();
+        IntHashSet caregivers = new IntHashSet();
+        IntHashSet vaccines = new IntHashSet();
+        for (BookingEngine.Booking booking : bookings) {
+            patients.add(booking.getPatientId());
+            caregivers.add(booking.getCaregiverId());
+            vaccines.add(booking.getVaccineId());
+        }
+        // one round trip for the names of every appointment instead of one per appointment
+        IdDictionary.preload(patients, caregivers, vaccines);
+        List<Appointments> appointments = new ArrayList<>();
+        for (BookingEngine.Booking booking : bookings) {
+            appointments.add(booking.toAppointment());
+        }
+        return appointments;
+    }
+
     /**
      * logout
      * check 1: If a patient or caregiver has logged-in
@@ -592,7 +1620,7 @@ public class Scheduler {
     private static void logout(String[] tokens) {
         // check 1: if a patient or caregiver has logged-in
         if (currentPatients == null && currentCaregivers == null) {
-            System.err.println("Please login your account before logout!");
+            fail("Please login your account before logout!");
             return;
         }
         if (currentCaregivers != null) {
@@ -600,7 +1628,7 @@ public class Scheduler {
         } else {
             currentPatients = null;
         }
-        System.out.println("You have successfully logged out!");
+        print("You have successfully logged out!");
     }
 
 
@@ -611,26 +1639,29 @@ public class Scheduler {
      * @return boolean for username unique or not
      */
     private static boolean usernameExists(String name, String type) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
         String selectUsername;
         if (type.equals("Patient")) {
-            selectUsername = "SELECT * FROM Patients WHERE Username = ?";
+            selectUsername = "SELECT CASE WHEN EXISTS (SELECT 1 FROM Patients WHERE Username = ?) THEN 1 ELSE 0 END";
         } else {
-            selectUsername = "SELECT * FROM Caregivers WHERE Username = ?";
+            selectUsername = "SELECT CASE WHEN EXISTS (SELECT 1 FROM Caregivers WHERE Username = ?) THEN 1 ELSE 0 END";
         }
         try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, name);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
+            return Resilience.read(() -> {
+                ConnectionManager cm = new ConnectionManager();
+                Connection con = cm.createConnection();
+                try {
+                    PreparedStatement statement = QueryType.POINT.apply(con.prepareStatement(selectUsername));
+                    statement.setString(1, name);
+                    ResultSet resultSet = statement.executeQuery();
+                    // only a flag comes back, not the salt and hash of the user
+                    return resultSet.next() && resultSet.getInt(1) == 1;
+                } finally {
+                    cm.closeConnection();
+                }
+            });
         } catch (SQLException e) {
-            System.err.println("Error occurred when checking username");
+            fail("Error occurred when checking username");
             e.printStackTrace();
-        } finally {
-            cm.closeConnection();
         }
         return true;
     }
@@ -646,12 +1677,30 @@ public class Scheduler {
     private static boolean checkStrongPassword(String password) {
         String regex = "^(?=.*\\d)(?=.*[a-z])(?=.*[A-Z])(?=.*[@,#,!,?]).{8,}$";
         if (!password.matches(regex)) {
-            System.err.println(PASSWORDINVALID);
+            fail(PASSWORDINVALID);
             return false;
         }
         return true;
     }
 
+    /**
+     * print the timings of every SQL statement run so far, slowest in total first
+     * @param tokens command
+     */
+    private static void queryStats(String[] tokens) {
+        //check 1: check if the length for tokens is exactly 1
+        if (tokens.length != 1) {
+            fail(TOKENMISMATCH);
+            return;
+        }
+        //check 2: statements are only timed while the slow query log is on
+        if (!QueryLog.isEnabled()) {
+            fail("Query statistics are off, set SlowQueryLog to collect them!");
+            return;
+        }
+        print(QueryLog.report().trim());
+    }
+
     /**
      * show greeting messages
      */
@@ -659,32 +1708,95 @@ public class Scheduler {
         // printing greetings text
         System.out.println();
         System.out.println("*** Please enter one of the following commands or command number ***");
-        System.out.println("> hint: enter yyyy-mm-dd for date!");
+        System.out.println("> hint: enter yyyy-mm-dd for date and hh:mm for time!");
         System.out.println("> hint: our username is case ignored, try that out in create and login function!");
         System.out.println("> (1)create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
         System.out.println("> (2)create_caregiver <username> <password>");
         System.out.println("> (3)login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
         System.out.println("> (4)login_caregiver <username> <password>");
         System.out.println("> (5)search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
-        System.out.println("> (6)reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
+        System.out.println("> (6)reserve <date> <vaccine> [time]");  // TODO: implement reserve (Part 2)
         System.out.println("> (7)upload_availability <date>");
         System.out.println("> (8)cancel <appointment_id>");  // TODO: implement cancel (extra credit)
         System.out.println("> (9)add_doses <vaccine> <number>");
         System.out.println("> (10)show_appointments");  // TODO: implement show_appointments (Part 2)
         System.out.println("> (11)logout");  // TODO: implement logout (Part 2)
         System.out.println("> (12)quit");
+        System.out.println("> (13)allocate_doses <vaccine> <date> <number>");
+        System.out.println("> (14)set_slot_length <minutes>");
+        System.out.println("> (15)search_days <number>");
+        System.out.println("> (16)reserve_batch <date> <vaccine> <patients...|@file>");
+        System.out.println("> (17)query_stats");
+        System.out.println("> (18)capacity [days]");
         System.out.println();
     }
 
+    /**
+     * take one dose of a vaccine for a reservation on a given date
+     * a date with an allocation can only use its own allocated doses,
+     * other dates can only use doses which are not allocated to any date
+     * @param vaccines the vaccine we want to reserve
+     * @param date the reservation date
+     * @param allocated whether the date has an allocation of this vaccine
+     * @return whether a dose is available
+     * @throws SQLException sql execution exception
+     */
+    private static boolean reserveDose(Vaccines vaccines, Date date, boolean allocated) throws SQLException {
+        String name = vaccines.getVaccineName();
+        if (allocated) {
+            return DoseAllocations.reserve(name, date);
+        }
+        return vaccines.getAvailableDoses() - DoseAllocations.getOutstanding(name) > 0;
+    }
+
+    /**
+     * give back what a failed reserve took before it failed: the caregiver slot, the dose
+     * and the dose reserved from the allocation of the date if it came from there, in reverse order
+     * each step is tried even if an earlier one fails, failures are only logged
+     * since the error of the reservation itself is what the user is told
+     * @param vaccines the vaccine, its doses are the ones taken
+     * @param date date of the reservation
+     * @param allocated whether the dose was reserved from the allocation of the date
+     * @param assigned caregiver whose slot was taken, null if no slot was taken
+     * @param slot the slot taken
+     * @param dosesTaken whether the dose was taken from the vaccine
+     */
+    private static void undoReserve(Vaccines vaccines, Date date, boolean allocated, Availabilities assigned, int slot,
+                                    boolean dosesTaken) {
+        if (assigned != null) {
+            try {
+                new Availabilities().addSlot(assigned.getUsername(), date, slot, assigned.getSlotMinutes());
+            } catch (SQLException | RuntimeException e) {
+                System.err.println("Error occurred when giving back the slot of a failed reservation: " + e.getMessage());
+            }
+        }
+        if (dosesTaken) {
+            try {
+                vaccines.increaseAvailableDoses(1);
+            } catch (SQLException | RuntimeException e) {
+                System.err.println("Error occurred when giving back the dose of a failed reservation: " + e.getMessage());
+            }
+        }
+        if (!allocated) {
+            return;
+        }
+        try {
+            DoseAllocations.cancel(vaccines.getVaccineName(), date);
+        } catch (SQLException | RuntimeException e) {
+            System.err.println("Error occurred when giving back the allocated dose of a failed reservation: " +
+                    e.getMessage());
+        }
+    }
+
     private static boolean basicLoginCheck(String[] tokens) {
         //check 1: if a patient or caregiver has logged-in
         if (currentCaregivers != null || currentPatients != null) {
-            System.err.println("Already logged-in, please logout current account and try again!");
+            fail("Already logged-in, please logout current account and try again!");
             return false;
         }
         // check 2: if input tokens length is exactly 3
         if (tokens.length != 3) {
-            System.err.println(TOKENMISMATCH);
+            fail(TOKENMISMATCH);
             return false;
         }
         return true;
@@ -693,12 +1805,12 @@ public class Scheduler {
     private static boolean basicCreateCheck(String[] tokens) {
         // check 1: if a user has logged in
         if (currentCaregivers != null || currentPatients != null) {
-            System.err.println("Please logout current account before creating a new account!");
+            fail("Please logout current account before creating a new account!");
             return false;
         }
         // check 2: if input tokens length is exactly 3
         if (tokens.length != 3) {
-            System.err.println(TOKENMISMATCH);
+            fail(TOKENMISMATCH);
             return false;
         }
         return true;
@@ -0,0 +1,131 @@
+package scheduler.cluster;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * ClusterNode is one scheduler process in a group of nodes sharing the database.
+ * Caregivers are split between the alive nodes with a HashRing, and reserve tries the caregivers
+ * of its own node first, so nodes don't race each other for the same caregiver's slots.
+ * When the members change, a caregiver moving to this node is only taken over after one more
+ * heartbeat, when its old owner has seen the change too (handoff).
+ * Ownership only avoids contention, claiming a slot is still a conditional update in the database.
+ */
+public class ClusterNode {
+
+    private final String nodeId;
+    private final Membership membership;
+    private final long handoffMillis;
+
+    private volatile HashRing ring;
+    private volatile HashRing previous = null;//ring before the last change, used during handoff
+    private volatile long handoffUntil = 0;
+    private ScheduledExecutorService heartbeats = null;
+
+    /**
+     * @param nodeId unique id of this node
+     * @param membership where nodes announce themselves
+     * @param heartbeatMillis time between two heartbeats, also the handoff time
+     */
+    public ClusterNode(String nodeId, Membership membership, long heartbeatMillis) {
+        this.nodeId = nodeId;
+        this.membership = membership;
+        this.handoffMillis = heartbeatMillis;
+        this.ring = new HashRing(Collections.singleton(nodeId));
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * @param caregiver caregiver name
+     * @return whether this node should assign appointments of this caregiver
+     */
+    public boolean owns(String caregiver) {
+        return ownership().test(caregiver);
+    }
+
+    /**
+     * the ownership of this node at this moment, use it to judge a list of caregivers against one ring
+     * instead of calling owns for each of them
+     * @return whether this node should assign appointments of a caregiver, by caregiver name
+     */
+    public Predicate<String> ownership() {
+        // ring first, refresh replaces it last
+        HashRing current = ring;
+        HashRing before = previous;
+        // a caregiver moving to this node still belongs to its old owner until the handoff ends
+        boolean handoff = before != null && System.currentTimeMillis() < handoffUntil;
+        return caregiver -> {
+            String key = caregiver.toLowerCase(Locale.ROOT);
+            return nodeId.equals(current.ownerOf(key)) && (!handoff || nodeId.equals(before.ownerOf(key)));
+        };
+    }
+
+    /**
+     * send a heartbeat and rebuild the ring if the alive nodes changed
+     * @throws SQLException sql execution exception
+     */
+    public void refresh() throws SQLException {
+        membership.heartbeat(nodeId);
+        Set<String> alive = new HashSet<>(membership.alive());
+        alive.add(nodeId);
+        if (!alive.equals(ring.getNodes())) {
+            HashRing changed = new HashRing(alive);
+            previous = ring;
+            handoffUntil = System.currentTimeMillis() + handoffMillis;
+            ring = changed;
+        }
+    }
+
+    /**
+     * join the cluster and keep sending heartbeats in the background
+     * @throws SQLException sql execution exception
+     */
+    public synchronized void start() throws SQLException {
+        if (heartbeats != null) {
+            return;
+        }
+        refresh();
+        // on joining, every caregiver of this node is taken over from the nodes which were there before
+        Set<String> others = new HashSet<>(ring.getNodes());
+        others.remove(nodeId);
+        previous = others.isEmpty() ? null : new HashRing(others);
+        heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-heartbeat-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeats.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (SQLException e) {
+                System.err.println(e.getMessage());
+            }
+        }, handoffMillis, handoffMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * stop the heartbeats and leave the cluster, the other nodes take over at their next heartbeat
+     * @throws SQLException sql execution exception
+     */
+    public synchronized void stop() throws SQLException {
+        if (heartbeats != null) {
+            heartbeats.shutdownNow();
+            heartbeats = null;
+        }
+        membership.leave(nodeId);
+    }
+}
@@ -0,0 +1,89 @@
+package scheduler.cluster;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.QueryType;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * DatabaseMembership keeps the heartbeat of every node in the SchedulerNodes table,
+ * so scheduler processes on different machines see each other through the main database
+ */
+public class DatabaseMembership implements Membership {
+
+    private final int timeoutSeconds;
+
+    /**
+     * @param timeoutSeconds a node without a heartbeat for this long is not alive
+     */
+    public DatabaseMembership(int timeoutSeconds) {
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    @Override
+    public void heartbeat(String nodeId) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String update = "UPDATE SchedulerNodes SET Heartbeat = SYSUTCDATETIME() WHERE NodeId = ?";
+        try {
+            PreparedStatement statement = con.prepareStatement(update);
+            statement.setString(1, nodeId);
+            if (statement.executeUpdate() == 0) {
+                PreparedStatement insert = con.prepareStatement(
+                        "INSERT INTO SchedulerNodes (NodeId, Heartbeat) VALUES (?, SYSUTCDATETIME())");
+                insert.setString(1, nodeId);
+                insert.executeUpdate();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when sending node heartbeat!", e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public void leave(String nodeId) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = con.prepareStatement("DELETE FROM SchedulerNodes WHERE NodeId = ?");
+            statement.setString(1, nodeId);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when leaving the cluster!", e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    @Override
+    public Set<String> alive() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String findAlive = "SELECT NodeId FROM SchedulerNodes WHERE Heartbeat > DATEADD(second, -?, SYSUTCDATETIME())";
+        Set<String> alive = new HashSet<>();
+        try {
+            PreparedStatement statement = QueryType.LIST.apply(con.prepareStatement(findAlive));
+            statement.setInt(1, timeoutSeconds);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                alive.add(resultSet.getString(1));
+            }
+            return alive;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when reading cluster members!", e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package scheduler.cluster;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * LocalMembership keeps heartbeats in memory, for several nodes running in one JVM
+ */
+public class LocalMembership implements Membership {
+
+    private final long timeoutMillis;
+    private final Map<String, Long> heartbeats = new ConcurrentHashMap<>();
+
+    /**
+     * @param timeoutMillis a node without a heartbeat for this long is not alive
+     */
+    public LocalMembership(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void heartbeat(String nodeId) {
+        heartbeats.put(nodeId, System.currentTimeMillis());
+    }
+
+    @Override
+    public void leave(String nodeId) {
+        heartbeats.remove(nodeId);
+    }
+
+    @Override
+    public Set<String> alive() {
+        long now = System.currentTimeMillis();
+        Set<String> alive = new HashSet<>();
+        heartbeats.forEach((node, time) -> {
+            if (now - time <= timeoutMillis) {
+                alive.add(node);
+            }
+        });
+        return alive;
+    }
+}
@@ -0,0 +1,32 @@
+package scheduler.cluster;
+
+import java.sql.SQLException;
+import java.util.Set;
+
+/**
+ * Membership tells a node which scheduler nodes are alive.
+ * DatabaseMembership is shared through the database by separate processes,
+ * LocalMembership is shared by several nodes in one JVM.
+ */
+public interface Membership {
+
+    /**
+     * announce that a node is alive, called again every heartbeat
+     * @param nodeId id of the node
+     * @throws SQLException sql execution exception
+     */
+    void heartbeat(String nodeId) throws SQLException;
+
+    /**
+     * remove a node at once instead of waiting for its heartbeat to expire
+     * @param nodeId id of the node
+     * @throws SQLException sql execution exception
+     */
+    void leave(String nodeId) throws SQLException;
+
+    /**
+     * @return ids of the nodes which are alive
+     * @throws SQLException sql execution exception
+     */
+    Set<String> alive() throws SQLException;
+}
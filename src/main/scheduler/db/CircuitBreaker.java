@@ -0,0 +1,151 @@
+package scheduler.db;
+
+/**
+ * A circuit breaker in front of one data source. After threshold transient failures in a row it opens and
+ * calls fail fast instead of adding load while the database recovers. Once the open time is over it is
+ * half open: a single trial call goes through while the others still fail fast, and its outcome either
+ * closes the breaker or opens it again for twice as long, at most maxOpenMillis. The thread running the trial
+ * may borrow more connections of the same data source until the outcome is reported. A trial which ends
+ * without an outcome is released at once (see release), one which never ends is given up after maxOpenMillis,
+ * and the next call becomes the trial.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int threshold;
+    private final long minOpenMillis;
+    private final long maxOpenMillis;
+
+    private State state = State.CLOSED;
+    private int failures = 0;//transient failures in a row
+    private long openMillis;//length of the next open period
+    private long openUntil = 0;
+    private long trialUntil = 0;//while half open, the trial call is running until then
+    private Thread trialThread = null;//thread running the trial call while half open
+    private long opened = 0;
+    private long rejected = 0;
+
+    /**
+     * @param threshold transient failures in a row which open the breaker, positive
+     * @param minOpenMillis first open period
+     * @param maxOpenMillis longest open period
+     * @throws IllegalArgumentException if threshold is not positive or the periods are out of order
+     */
+    public CircuitBreaker(int threshold, long minOpenMillis, long maxOpenMillis) {
+        if (threshold <= 0 || minOpenMillis <= 0 || maxOpenMillis < minOpenMillis) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings!");
+        }
+        this.threshold = threshold;
+        this.minOpenMillis = minOpenMillis;
+        this.maxOpenMillis = maxOpenMillis;
+        this.openMillis = minOpenMillis;
+    }
+
+    /**
+     * @return whether a call may go to the database now, counts a rejection otherwise
+     */
+    public synchronized boolean allow() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (state == State.HALF_OPEN && trialThread == Thread.currentThread() && now < trialUntil) {
+            // the trial call borrows another connection
+            return true;
+        }
+        if (now < (state == State.OPEN ? openUntil : trialUntil)) {
+            rejected++;
+            return false;
+        }
+        state = State.HALF_OPEN;
+        trialUntil = now + maxOpenMillis;
+        trialThread = Thread.currentThread();
+        return true;
+    }
+
+    /**
+     * the call running on this thread ended without reporting its outcome, if it was the trial call
+     * the next call becomes the trial
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN && trialThread == Thread.currentThread()) {
+            trialUntil = 0;
+            trialThread = null;
+        }
+    }
+
+    /**
+     * the database answered, closes the breaker
+     */
+    public synchronized void success() {
+        failures = 0;
+        trialThread = null;
+        if (state != State.CLOSED) {
+            state = State.CLOSED;
+            openMillis = minOpenMillis;
+        }
+    }
+
+    /**
+     * a call failed with a transient fault
+     */
+    public synchronized void failure() {
+        failures++;
+        trialThread = null;
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED && failures >= threshold) {
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntil = System.currentTimeMillis() + openMillis;
+        openMillis = Math.min(maxOpenMillis, openMillis * 2);
+        opened++;
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * @return milliseconds until calls go through again, 0 if they do now
+     */
+    public synchronized long getRetryAfterMillis() {
+        if (state == State.CLOSED) {
+            return 0;
+        }
+        return Math.max(0, (state == State.OPEN ? openUntil : trialUntil) - System.currentTimeMillis());
+    }
+
+    /**
+     * @return times the breaker opened
+     */
+    public synchronized long getOpened() {
+        return opened;
+    }
+
+    /**
+     * @return calls failed fast while the breaker was open
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return transient failures in a row
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+}
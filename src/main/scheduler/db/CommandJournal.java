@@ -0,0 +1,361 @@
+package scheduler.db;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * CommandJournal is a write-ahead log of mutating commands kept in a memory-mapped file.
+ * append() returns once the command is on disk, and one fsync covers every command
+ * appended while the previous fsync was running (group commit), so the caller can acknowledge it right away.
+ * A background applier hands the journaled commands to the database in order, up to BATCH_SIZE at a time.
+ * The applied position is written to the mapped file after every command, which survives a crash of the
+ * process, and forced to disk once per batch: after a crash only the command which was being applied runs
+ * again on the next open, after a power loss at most the commands of the last batch.
+ * A durable record which can't be read stops the applier there: the commands after it stay in the file
+ * unapplied, append() refuses new ones and getDamage() tells where it stopped.
+ *
+ * File layout: [long applied position][records...]
+ * record: [int payload length][long seq][payload bytes][int crc32 of payload]
+ */
+public class CommandJournal {
+
+    private static final int HEADER = 8;
+    private static final int RECORD_OVERHEAD = 4 + 8 + 4;
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * one journaled command and the user who sent it
+     */
+    public static class Entry {
+        private final long seq;
+        private final char userType;//'P' for patient, 'C' for caregiver
+        private final String username;
+        private final String command;
+        private final boolean recovered;//left from before the journal was opened, no one waits for it
+
+        public Entry(long seq, char userType, String username, String command, boolean recovered) {
+            this.seq = seq;
+            this.userType = userType;
+            this.username = username;
+            this.command = command;
+            this.recovered = recovered;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public char getUserType() {
+            return userType;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public boolean isRecovered() {
+            return recovered;
+        }
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final Consumer<Entry> applier;
+
+    private long nextSeq = 1;
+    private long firstSeq;//first seq appended after open, lower ones were recovered
+    private long appliedSeq = 0;//seq of the last applied record
+    private int writePosition;//end of the last appended record
+    private int durablePosition;//end of the last record on disk
+    private int appliedPosition;//end of the last applied record
+    private boolean flushing = false;
+    private boolean closed = false;
+    private String damage = null;//why the applier stopped, null while it runs
+
+    private final Thread applierThread;
+
+    private CommandJournal(FileChannel channel, MappedByteBuffer buffer, Consumer<Entry> applier) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.applier = applier;
+        this.applierThread = new Thread(this::applyLoop, "journal-applier");
+        this.applierThread.setDaemon(true);
+    }
+
+    /**
+     * open or create a journal file, commands left from a crash are applied again in the background
+     * @param path journal file
+     * @param capacity size of the file in bytes
+     * @param applier runs one journaled command against the database
+     * @return the journal
+     * @throws IOException if the file can't be opened or mapped
+     */
+    public static CommandJournal open(Path path, int capacity, Consumer<Entry> applier) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        CommandJournal journal = new CommandJournal(channel, buffer, applier);
+        journal.recover();
+        journal.applierThread.start();
+        return journal;
+    }
+
+    /**
+     * find the applied position and the end of the valid records
+     */
+    private void recover() {
+        long applied = buffer.getLong(0);
+        appliedPosition = applied < HEADER || applied > buffer.capacity() ? HEADER : (int) applied;
+        int position = appliedPosition;
+        Entry entry;
+        while ((entry = read(position)) != null) {
+            position += RECORD_OVERHEAD + payloadLength(position);
+            nextSeq = entry.seq + 1;
+        }
+        writePosition = position;
+        durablePosition = position;
+        firstSeq = nextSeq;
+    }
+
+    private int payloadLength(int position) {
+        return buffer.getInt(position);
+    }
+
+    /**
+     * @param position start of a record
+     * @return the record, null if there is no complete record at this position
+     */
+    private Entry read(int position) {
+        if (position + RECORD_OVERHEAD > buffer.capacity()) {
+            return null;
+        }
+        int length = buffer.getInt(position);
+        if (length <= 0 || position + RECORD_OVERHEAD + length > buffer.capacity()) {
+            return null;
+        }
+        long seq = buffer.getLong(position + 4);
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = buffer.get(position + 12 + i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != buffer.getInt(position + 12 + length)) {
+            return null;
+        }
+        String[] parts = new String(payload, StandardCharsets.UTF_8).split("\n", 3);
+        if (parts.length != 3 || parts[0].length() != 1) {
+            return null;
+        }
+        return new Entry(seq, parts[0].charAt(0), parts[1], parts[2], seq < firstSeq);
+    }
+
+    /**
+     * append a command and wait until it is on disk
+     * @param userType 'P' for patient, 'C' for caregiver
+     * @param username user who sent the command
+     * @param command the command line
+     * @return sequence number of the command
+     * @throws IOException if the journal is closed or the command is larger than the journal
+     */
+    public long append(char userType, String username, String command) throws IOException {
+        byte[] payload = (userType + "\n" + username + "\n" + command).getBytes(StandardCharsets.UTF_8);
+        int size = RECORD_OVERHEAD + payload.length;
+        if (HEADER + size + 4 > buffer.capacity()) {
+            throw new IOException("Command is too large for the journal!");
+        }
+        long seq;
+        int end;
+        synchronized (this) {
+            // when the file is full wait for the applier to catch up, then start again from the beginning
+            while (writePosition + size + 4 > buffer.capacity()) {
+                if (closed || damage != null) {
+                    throw new IOException(closed ? "Journal is closed!" : damage);
+                }
+                if (appliedPosition == writePosition && durablePosition == writePosition && !flushing) {
+                    writePosition = HEADER;
+                    durablePosition = HEADER;
+                    appliedPosition = HEADER;
+                    buffer.putLong(0, HEADER);
+                    buffer.putInt(HEADER, 0);
+                    // on disk before new records overwrite the applied ones, or they would be applied again
+                    buffer.force(0, HEADER + 4);
+                    break;
+                }
+                if (!waitQuietly()) {
+                    throw new InterruptedIOException("Interrupted while waiting for space in the journal!");
+                }
+            }
+            if (closed || damage != null) {
+                throw new IOException(closed ? "Journal is closed!" : damage);
+            }
+            seq = nextSeq++;
+            int position = writePosition;
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+            buffer.putLong(position + 4, seq);
+            for (int i = 0; i < payload.length; i++) {
+                buffer.put(position + 12 + i, payload[i]);
+            }
+            buffer.putInt(position + 12 + payload.length, (int) crc.getValue());
+            // terminate the log after this record, then publish the record by writing its length
+            buffer.putInt(position + size, 0);
+            buffer.putInt(position, payload.length);
+            writePosition = position + size;
+            end = writePosition;
+        }
+        awaitDurable(end);
+        return seq;
+    }
+
+    /**
+     * group commit: the first waiting thread runs fsync for every record appended so far,
+     * the others wait for it instead of running their own
+     */
+    private void awaitDurable(int end) throws IOException {
+        while (true) {
+            int target;
+            synchronized (this) {
+                while (durablePosition < end && flushing) {
+                    if (!waitQuietly()) {
+                        throw new InterruptedIOException("Interrupted while waiting for the journal to be on disk!");
+                    }
+                }
+                if (durablePosition >= end) {
+                    return;
+                }
+                flushing = true;
+                target = writePosition;
+            }
+            try {
+                buffer.force();
+            } finally {
+                synchronized (this) {
+                    flushing = false;
+                    if (target > durablePosition) {
+                        durablePosition = target;
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * background loop which applies durable records, moves the applied position after each of them
+     * and forces it to disk after each batch
+     */
+    private void applyLoop() {
+        while (true) {
+            List<Entry> batch = new ArrayList<>();
+            List<Integer> ends = new ArrayList<>();
+            synchronized (this) {
+                while (appliedPosition == durablePosition && !closed) {
+                    if (!waitQuietly()) {
+                        return;
+                    }
+                }
+                if (closed && appliedPosition == durablePosition) {
+                    return;
+                }
+                int position = appliedPosition;
+                while (position < durablePosition && batch.size() < BATCH_SIZE) {
+                    Entry entry = read(position);
+                    if (entry == null) {
+                        break;
+                    }
+                    position += RECORD_OVERHEAD + payloadLength(position);
+                    batch.add(entry);
+                    ends.add(position);
+                }
+                if (batch.isEmpty()) {
+                    // the commands after it were acknowledged, leave them in the file instead of skipping them
+                    damage = "Unreadable journal record at byte " + appliedPosition + " after request #" +
+                            appliedSeq + ", the requests after it are not applied!";
+                    System.err.println(damage);
+                    notifyAll();
+                    return;
+                }
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    applier.accept(batch.get(i));
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                synchronized (this) {
+                    appliedPosition = ends.get(i);
+                    appliedSeq = batch.get(i).seq;
+                    // in the mapped file right away, commands like add_doses aren't idempotent
+                    buffer.putLong(0, appliedPosition);
+                    notifyAll();
+                }
+            }
+            buffer.force(0, HEADER);
+        }
+    }
+
+    /**
+     * @return why the applier stopped at an unreadable record, null if it didn't
+     */
+    public synchronized String getDamage() {
+        return damage;
+    }
+
+    /**
+     * @return number of journaled commands which are not applied yet
+     */
+    public synchronized int pending() {
+        int count = 0;
+        int position = appliedPosition;
+        while (position < writePosition) {
+            position += RECORD_OVERHEAD + payloadLength(position);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * wait for pending commands to be applied and close the file
+     * @throws IOException if the file can't be closed
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            applierThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        buffer.force();
+        channel.close();
+    }
+
+    /**
+     * @return false if the thread was interrupted, with its interrupt flag set again
+     */
+    private boolean waitQuietly() {
+        try {
+            wait();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
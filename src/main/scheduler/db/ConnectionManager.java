@@ -1,20 +1,54 @@
 package scheduler.db;
 
 import java.sql.Connection;
+import java.sql.Date;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ConnectionManager {
 
-    private final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-    private final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
-            ".database.windows.net:1433;database=" + System.getenv("DBName");
+    // concurrent sessions our Azure SQL tier allows for this application
+    public static final int MAX_CONNECTIONS = 10;
+    // reads stay on the primary this long after a write, so a session always sees what it just booked
+    private static final long READ_YOUR_WRITES_MILLIS = 5000;
+
+    private static final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
+    private static final String primaryUrl = url(System.getenv("Server"));
+    private static final List<String> replicaUrls = replicas(System.getenv("ReadServers"));
+    private static final AtomicInteger nextReplica = new AtomicInteger();
+    private static final AtomicLong lastWrite = new AtomicLong(Long.MIN_VALUE);
+    private static final AtomicLong connectFailures = new AtomicLong();
+    private static volatile String lastConnectError = null;
+
     private final String userName = System.getenv("UserID");
     private final String userPass = System.getenv("Password");
+    private final Route route;
+    private final int shard;
+    private final String shardUrl;//url of a date range shard, null for the main database
 
     private Connection con = null;
+    private boolean reported = false;//a call run by Resilience reports the outcome of the borrow
 
     public ConnectionManager() {
+        this(Route.READ_WRITE);
+    }
+
+    /**
+     * @param route READ_ONLY for DAO methods which only read and can use a read replica
+     */
+    public ConnectionManager(Route route) {
+        this(route, 0);
+    }
+
+    private ConnectionManager(Route route, int shard) {
+        this.route = route;
+        this.shard = shard;
+        this.shardUrl = Shards.url(shard);
         try {
             Class.forName(driverName);
         } catch (ClassNotFoundException e) {
@@ -22,20 +56,138 @@ public class ConnectionManager {
         }
     }
 
-    public Connection createConnection() {
+    /**
+     * @param shard shard number, see Shards
+     * @param route route on the main database, shards have no read replicas
+     * @return a connection manager for this shard
+     */
+    public static ConnectionManager forShard(int shard, Route route) {
+        return new ConnectionManager(route, shard);
+    }
+
+    /**
+     * @param date date of the Availabilities or Appointments rows to read or change
+     * @param route route on the main database
+     * @return a connection manager for the shard holding this date
+     */
+    public static ConnectionManager forDate(Date date, Route route) {
+        return forShard(Shards.shardOf(date), route);
+    }
+
+    /**
+     * @param server Azure server name, or a whole jdbc url (e.g. a local instance for testing)
+     * @return connection url of this server
+     */
+    static String url(String server) {
+        if (server != null && server.startsWith("jdbc:")) {
+            return server;
+        }
+        return "jdbc:sqlserver://" + server + ".database.windows.net:1433;database=" + System.getenv("DBName");
+    }
+
+    /**
+     * @param servers comma separated read replica servers or jdbc urls, may be null
+     * @return connection urls of the read replicas
+     */
+    private static List<String> replicas(String servers) {
+        List<String> urls = new ArrayList<>();
+        if (servers == null) {
+            return urls;
+        }
+        for (String server : servers.split(",")) {
+            server = server.trim();
+            if (server.isEmpty()) {
+                continue;
+            }
+            // Azure read scale-out only serves sessions which declare they won't write
+            urls.add(server.startsWith("jdbc:") ? server : url(server) + ";applicationIntent=ReadOnly");
+        }
+        return urls;
+    }
+
+    /**
+     * borrow a connection from the pool of the route, fails fast while the shard is recovering (see Resilience)
+     * @return a connection, close it with closeConnection()
+     * @throws SQLException if the breaker of the shard is open or no connection could be opened
+     */
+    public Connection createConnection() throws SQLException {
+        reported = Resilience.admit(shard);
         try {
-            con = DriverManager.getConnection(connectionUrl, userName, userPass);
+            if (shardUrl != null) {
+                con = ConnectionPool.of(shardUrl).borrow(userName, userPass);
+                return con;
+            }
+            if (route == Route.READ_ONLY && !replicaUrls.isEmpty()
+                    && System.currentTimeMillis() - lastWrite.get() > READ_YOUR_WRITES_MILLIS) {
+                String replica = replicaUrls.get(Math.floorMod(nextReplica.getAndIncrement(), replicaUrls.size()));
+                try {
+                    con = ConnectionPool.of(replica).borrow(userName, userPass);
+                    return con;
+                } catch (SQLException e) {
+                    // a replica being down only costs the primary some extra reads
+                    System.err.println("Read replica unavailable, reading from primary: " + e.getMessage());
+                }
+            }
+            con = ConnectionPool.of(primaryUrl).borrow(userName, userPass);
         } catch (SQLException e) {
-            e.printStackTrace();
+            connectFailures.incrementAndGet();
+            lastConnectError = e.getMessage();
+            throw Resilience.connectFailed(shard, e);
         }
         return con;
     }
 
+    /**
+     * open a connection to the primary outside the pools, e.g. for a health probe which must not wait
+     * behind busy commands; the caller closes it
+     * @param loginTimeoutSeconds give up connecting after this long
+     * @return a new connection
+     * @throws SQLException if the connection can't be opened
+     */
+    public Connection openUnpooled(int loginTimeoutSeconds) throws SQLException {
+        Properties properties = new Properties();
+        if (userName != null) {
+            properties.setProperty("user", userName);
+        }
+        if (userPass != null) {
+            properties.setProperty("password", userPass);
+        }
+        properties.setProperty("loginTimeout", String.valueOf(loginTimeoutSeconds));
+        return DriverManager.getConnection(primaryUrl, properties);
+    }
+
+    /**
+     * @return number of times createConnection couldn't get a connection
+     */
+    public static long getConnectFailures() {
+        return connectFailures.get();
+    }
+
+    /**
+     * @return message of the last failed createConnection, null if none failed
+     */
+    public static String getLastConnectError() {
+        return lastConnectError;
+    }
+
+    /**
+     * note that a connection to the primary changed data, called by the pool when it is given back
+     */
+    static void wrote() {
+        lastWrite.set(System.currentTimeMillis());
+    }
+
     public void closeConnection() {
+        if (this.con == null) {
+            return;
+        }
         try {
             this.con.close();
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        if (!reported) {
+            Resilience.released(shard);
+        }
     }
 }
@@ -0,0 +1,304 @@
+package scheduler.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ConnectionPool keeps up to ConnectionManager.MAX_CONNECTIONS open connections to one database endpoint,
+ * there is one pool per endpoint url (the primary and each read replica).
+ * Borrowed connections are proxies: prepareStatement(sql) goes through the StatementCache of the
+ * physical connection and close() hands the connection back to the pool instead of closing it.
+ * When every pooled connection is busy for longer than BORROW_TIMEOUT_MILLIS an extra connection
+ * is opened and really closed on return, so a thread holding one connection while asking for
+ * another can't deadlock the pool for good; transactions pass their connection down instead
+ * (e.g. Shards.gather with the connections it holds), this is only the last resort.
+ * A connection which was idle for longer than VALIDATE_IDLE_MILLIS is checked with isValid() before
+ * it is handed out, and dropped if the server or a firewall closed it meanwhile.
+ * Statements are JdbcEvents in flight recordings, see JdbcTrace.
+ */
+public class ConnectionPool {
+
+    private static final int STATEMENTS_PER_CONNECTION = 64;
+    private static final long BORROW_TIMEOUT_MILLIS = 5000;
+    private static final long VALIDATE_IDLE_MILLIS = 30_000;
+    private static final int VALIDATE_TIMEOUT_SECONDS = 2;
+
+    private static final Map<String, ConnectionPool> pools = new HashMap<>();
+
+    private final String url;
+    private final Deque<Pooled> idle = new ArrayDeque<>();
+    private int open = 0;//pooled connections open, idle or borrowed
+    private int waiting = 0;//borrowers waiting for a pooled connection
+    private long waitingSince = 0;//since when there was always a borrower waiting, 0 while none waits
+
+    private ConnectionPool(String url) {
+        this.url = url;
+    }
+
+    /**
+     * @param url connection url of an endpoint
+     * @return the pool of this endpoint
+     */
+    public static synchronized ConnectionPool of(String url) {
+        return pools.computeIfAbsent(url, ConnectionPool::new);
+    }
+
+    /**
+     * a physical connection and its statement cache
+     */
+    private class Pooled implements InvocationHandler {
+        private final Connection con;
+        private final StatementCache cache;
+        private final JdbcTrace trace = new JdbcTrace();
+        private final boolean pooled;//false for extra connections opened when the pool is busy
+        private boolean borrowed = true;
+        private boolean wrote = false;//a statement other than SELECT was prepared while borrowed
+        private long idleSince = 0;//when it was given back
+
+        private Pooled(Connection con, boolean pooled) {
+            this.con = con;
+            this.cache = new StatementCache(con, STATEMENTS_PER_CONNECTION);
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("prepareStatement") && !wrote) {
+                wrote = !((String) args[0]).trim().regionMatches(true, 0, "SELECT", 0, 6);
+            }
+            if (name.equals("prepareStatement") && args.length == 1) {
+                return trace.wrap(cache.prepare((String) args[0], Statement.NO_GENERATED_KEYS), (String) args[0]);
+            }
+            if (name.equals("prepareStatement") && args.length == 2 && args[1] instanceof Integer) {
+                return trace.wrap(cache.prepare((String) args[0], (Integer) args[1]), (String) args[0]);
+            }
+            if (name.equals("close")) {
+                // closing twice must not put the connection in the pool twice
+                if (borrowed) {
+                    borrowed = false;
+                    trace.finish();
+                    if (wrote) {
+                        wrote = false;
+                        ConnectionManager.wrote();
+                    }
+                    giveBack(this);
+                }
+                return null;
+            }
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            try {
+                return method.invoke(con, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * what take() got: an idle pooled connection, or else whether the slot of a new pooled connection
+     * was reserved for the borrower (open counts it already) or an extra connection must be opened
+     */
+    private static final class Taken {
+        private final Pooled idle;
+        private final boolean own;
+
+        private Taken(Pooled idle, boolean own) {
+            this.idle = idle;
+            this.own = own;
+        }
+    }
+
+    /**
+     * borrow a connection, close() it to give it back
+     * @param user user name
+     * @param password password
+     * @return a connection
+     * @throws SQLException if a new connection can't be opened
+     */
+    public Connection borrow(String user, String password) throws SQLException {
+        long start = System.nanoTime();
+        Taken taken = take();
+        while (taken.idle != null && !usable(taken.idle)) {
+            discard(taken.idle);
+            taken = take();
+        }
+        Pooled pooled = taken.idle;
+        if (pooled == null) {
+            boolean own = taken.own;
+            try {
+                pooled = new Pooled(DriverManager.getConnection(url, user, password), own);
+            } catch (SQLException e) {
+                if (own) {
+                    synchronized (this) {
+                        open--;
+                        notifyAll();
+                    }
+                }
+                throw e;
+            }
+        }
+        pooled.trace.borrowed(System.nanoTime() - start);
+        return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, pooled);
+    }
+
+    /**
+     * take an idle pooled connection, or reserve the slot of a new one under the same lock which saw it free,
+     * so no other borrower can take that slot between the check and the open
+     * @return the idle connection, else whether a slot was reserved, none is after the timeout or an interrupt
+     */
+    private synchronized Taken take() {
+        long deadline = System.currentTimeMillis() + BORROW_TIMEOUT_MILLIS;
+        while (true) {
+            Pooled pooled = idle.pollFirst();
+            if (pooled != null) {
+                try {
+                    if (!pooled.con.isClosed()) {
+                        pooled.borrowed = true;
+                        return new Taken(pooled, false);
+                    }
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+                open--;
+                continue;
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (open < ConnectionManager.MAX_CONNECTIONS) {
+                open++;
+                return new Taken(null, true);
+            }
+            if (left <= 0) {
+                return new Taken(null, false);
+            }
+            if (waiting++ == 0) {
+                waitingSince = System.currentTimeMillis();
+            }
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new Taken(null, false);
+            } finally {
+                if (--waiting == 0) {
+                    waitingSince = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether an idle connection still works, only asks the server if it was idle for a while
+     */
+    private static boolean usable(Pooled pooled) {
+        if (System.currentTimeMillis() - pooled.idleSince < VALIDATE_IDLE_MILLIS) {
+            return true;
+        }
+        try {
+            return pooled.con.isValid(VALIDATE_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * close a pooled connection which doesn't work anymore, a new one can be opened in its place
+     */
+    private void discard(Pooled pooled) {
+        pooled.cache.clear();
+        try {
+            pooled.con.close();
+        } catch (SQLException e) {
+            // it is broken already
+        }
+        synchronized (this) {
+            open--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * reset a connection and put it back in the pool, extra connections are closed
+     */
+    private void giveBack(Pooled pooled) {
+        boolean keep = pooled.pooled;
+        try {
+            if (!pooled.con.getAutoCommit()) {
+                // the borrower didn't finish its transaction, don't leak it to the next one
+                pooled.con.rollback();
+                pooled.con.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            keep = false;
+        }
+        if (!keep) {
+            pooled.cache.clear();
+            try {
+                pooled.con.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        synchronized (this) {
+            if (keep) {
+                pooled.idleSince = System.currentTimeMillis();
+                idle.addFirst(pooled);
+            } else if (pooled.pooled) {
+                open--;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return pooled connections open, idle or borrowed
+     */
+    public synchronized int getOpen() {
+        return open;
+    }
+
+    /**
+     * @return pooled connections waiting to be borrowed
+     */
+    public synchronized int getIdle() {
+        return idle.size();
+    }
+
+    /**
+     * @return borrowers waiting because every pooled connection is borrowed
+     */
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+
+    /**
+     * @return milliseconds since which borrowers have been waiting without a break, 0 while none waits
+     */
+    public synchronized long getWaitingMillis() {
+        return waiting == 0 ? 0 : System.currentTimeMillis() - waitingSince;
+    }
+
+    /**
+     * @return the pool of every endpoint used so far, by url
+     */
+    public static synchronized Map<String, ConnectionPool> getPools() {
+        return new HashMap<>(pools);
+    }
+}
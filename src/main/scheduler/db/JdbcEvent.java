@@ -0,0 +1,40 @@
+package scheduler.db;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event for one execution of a prepared statement on a pooled connection, see JdbcTrace.
+ * Queries last until their rows are read, updates and batches until they return.
+ * Parameters are never recorded, only the SQL text.
+ */
+@Name("scheduler.Jdbc")
+@Label("JDBC Statement")
+@Category({"Vaccine Scheduler", "Database"})
+@Description("One execution of a prepared statement, from execute until its rows are read")
+public class JdbcEvent extends Event {
+
+    @Label("SQL Id")
+    @Description("Hash of the SQL text, the same for every execution of a statement")
+    public String sqlId;
+
+    @Label("SQL")
+    public String sql;
+
+    @Label("Operation")
+    @Description("query, update, batch or execute")
+    public String operation;
+
+    @Label("Rows")
+    @Description("Rows read by a query, or rows changed by an update or batch, -1 if unknown")
+    public long rows;
+
+    @Label("Connection Wait")
+    @Description("Time waiting for the pooled connection, on the first statement after each borrow")
+    @Timespan(Timespan.NANOSECONDS)
+    public long connectionWait;
+}
@@ -0,0 +1,233 @@
+package scheduler.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JdbcTrace records a JdbcEvent and a QueryLog entry for every statement executed on one pooled connection.
+ * Statements are only wrapped while a flight recording has JdbcEvent enabled or the QueryLog is on,
+ * otherwise the pool hands out the cached statements as they are and tracing costs nothing.
+ * A query event ends when next() runs out of rows or its result set is closed;
+ * the model classes often read just one row and leave the rest, so events still open
+ * when the connection is given back end there.
+ */
+class JdbcTrace {
+
+    private long waitNanos = 0;//wait of the current borrow, taken by its first statement
+    private final List<Fetch> fetching = new ArrayList<>();//queries whose rows are still being read
+
+    /**
+     * start a borrow
+     * @param waitNanos time it took to get the connection
+     */
+    void borrowed(long waitNanos) {
+        this.waitNanos = waitNanos;
+    }
+
+    /**
+     * end the events of queries whose rows weren't read to the end, called when the connection is given back
+     */
+    void finish() {
+        for (int i = fetching.size() - 1; i >= 0; i--) {
+            fetching.get(i).end();
+        }
+        fetching.clear();
+        waitNanos = 0;
+    }
+
+    /**
+     * @param statement cached statement
+     * @param sql its SQL text
+     * @return the statement, wrapped if JdbcEvent is enabled or the QueryLog is on
+     */
+    PreparedStatement wrap(PreparedStatement statement, String sql) {
+        if (!QueryLog.isEnabled() && !new JdbcEvent().isEnabled()) {
+            return statement;
+        }
+        return (PreparedStatement) Proxy.newProxyInstance(JdbcTrace.class.getClassLoader(),
+                new Class<?>[] {PreparedStatement.class}, new Traced(statement, sql));
+    }
+
+    private long takeWait() {
+        long wait = waitNanos;
+        waitNanos = 0;
+        return wait;
+    }
+
+    /**
+     * one execution, ended once by end()
+     */
+    private class Execution {
+        private final Traced traced;
+        private final JdbcEvent event = new JdbcEvent();
+        private final String operation;
+        private final long start = System.nanoTime();
+        private final long waitNanos = takeWait();
+        private final Object[] params;
+        private boolean ended = false;
+
+        private Execution(Traced traced, String operation) {
+            this.traced = traced;
+            this.operation = operation;
+            this.params = QueryLog.isEnabled() ? Arrays.copyOf(traced.params, traced.bound) : null;
+            event.begin();
+        }
+
+        private void end(long rows) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            event.end();
+            if (event.shouldCommit()) {
+                event.sqlId = traced.sqlId;
+                event.sql = traced.sql;
+                event.operation = operation;
+                event.rows = rows;
+                event.connectionWait = waitNanos;
+                event.commit();
+            }
+            if (params != null) {
+                QueryLog.record(traced.sql, traced.sqlId, operation, System.nanoTime() - start, rows, waitNanos, params);
+            }
+        }
+    }
+
+    /**
+     * a prepared statement, executions become events, bound parameters are kept for the QueryLog
+     */
+    private class Traced implements InvocationHandler {
+        private final PreparedStatement statement;
+        private final String sql;
+        private final String sqlId;
+        private Object[] params = new Object[8];
+        private int bound = 0;//highest parameter index set
+
+        private Traced(PreparedStatement statement, String sql) {
+            this.statement = statement;
+            this.sql = sql;
+            this.sqlId = Integer.toHexString(sql.hashCode());
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                bind((Integer) args[0], name.equals("setNull") ? null : args[1]);
+                return forward(statement, method, args);
+            }
+            if (name.equals("clearParameters")) {
+                Arrays.fill(params, 0, bound, null);
+                bound = 0;
+                return forward(statement, method, args);
+            }
+            if (!name.startsWith("execute") || (args != null && args.length > 0)) {
+                return forward(statement, method, args);
+            }
+            if (name.equals("executeQuery")) {
+                Execution execution = new Execution(this, "query");
+                ResultSet resultSet;
+                try {
+                    resultSet = (ResultSet) forward(statement, method, args);
+                } catch (Throwable e) {
+                    execution.end(-1);
+                    throw e;
+                }
+                Fetch fetch = new Fetch(resultSet, execution);
+                fetching.add(fetch);
+                return Proxy.newProxyInstance(JdbcTrace.class.getClassLoader(), new Class<?>[] {ResultSet.class}, fetch);
+            }
+            boolean batch = name.equals("executeBatch") || name.equals("executeLargeBatch");
+            Execution execution = new Execution(this, batch ? "batch" : name.equals("execute") ? "execute" : "update");
+            Object result = null;
+            try {
+                result = forward(statement, method, args);
+                return result;
+            } finally {
+                if (result == null || name.equals("execute")) {
+                    execution.end(-1);
+                } else {
+                    execution.end(batch ? batchRows(result) : ((Number) result).longValue());
+                }
+            }
+        }
+
+        private void bind(int index, Object value) {
+            if (index < 1) {
+                return;
+            }
+            if (index > params.length) {
+                params = Arrays.copyOf(params, Math.max(index, params.length * 2));
+            }
+            params[index - 1] = value;
+            bound = Math.max(bound, index);
+        }
+    }
+
+    private static long batchRows(Object counts) {
+        long rows = 0;
+        if (counts instanceof int[]) {
+            for (int count : (int[]) counts) {
+                rows += Math.max(0, count);
+            }
+        } else {
+            for (long count : (long[]) counts) {
+                rows += Math.max(0, count);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * the result set of a query, counts the rows read and ends the query event
+     */
+    private class Fetch implements InvocationHandler {
+        private final ResultSet resultSet;
+        private final Execution execution;
+        private long rows = 0;
+
+        private Fetch(ResultSet resultSet, Execution execution) {
+            this.resultSet = resultSet;
+            this.execution = execution;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("next")) {
+                boolean next = (Boolean) forward(resultSet, method, args);
+                if (next) {
+                    rows++;
+                } else {
+                    end();
+                    fetching.remove(this);
+                }
+                return next;
+            }
+            if (name.equals("close")) {
+                end();
+                fetching.remove(this);
+            }
+            return forward(resultSet, method, args);
+        }
+
+        private void end() {
+            execution.end(rows);
+        }
+    }
+
+    private static Object forward(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
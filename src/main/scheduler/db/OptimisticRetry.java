@@ -0,0 +1,133 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * OptimisticRetry runs compare-and-swap updates against a Version column.
+ * An attempt reads the row with its version, writes only WHERE Version = the version it read,
+ * and reports a conflict when another update got there first. The attempt is then run again
+ * after a random sleep (exponential backoff with full jitter), at most MAX_ATTEMPTS times,
+ * so concurrent writers don't hold locks on each other and don't retry in lockstep.
+ * Attempts and conflicts are counted per table.
+ */
+public class OptimisticRetry {
+
+    public static final int MAX_ATTEMPTS = 5;
+    private static final long BASE_MILLIS = 2;
+    private static final long CAP_MILLIS = 100;
+
+    /**
+     * one compare-and-swap attempt, should run in its own transaction
+     * @param <T> result of a successful attempt
+     */
+    @FunctionalInterface
+    public interface Attempt<T> {
+        /**
+         * @return the result, null if the row changed since it was read
+         * @throws SQLException sql execution exception
+         */
+        T run() throws SQLException;
+    }
+
+    private static class Counters {
+        final LongAdder attempts = new LongAdder();
+        final LongAdder conflicts = new LongAdder();
+        final LongAdder exhausted = new LongAdder();
+    }
+
+    private static final ConcurrentHashMap<String, Counters> counters = new ConcurrentHashMap<>();
+
+    /**
+     * run an attempt until it doesn't conflict
+     * @param table table the attempt writes, used for the metrics and the error message
+     * @param attempt the attempt
+     * @param <T> result of the attempt
+     * @return result of the first attempt without a conflict
+     * @throws SQLException if every attempt conflicted, or sql execution exception of an attempt
+     */
+    public static <T> T run(String table, Attempt<T> attempt) throws SQLException {
+        Counters count = counters.computeIfAbsent(table, t -> new Counters());
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            count.attempts.increment();
+            // not retried after faults, a write which timed out may have committed
+            T result = Resilience.write(attempt::run);
+            if (result != null) {
+                return result;
+            }
+            count.conflicts.increment();
+            if (i + 1 < MAX_ATTEMPTS) {
+                backoff(i);
+            }
+        }
+        count.exhausted.increment();
+        throw new SQLException("Too many concurrent updates on " + table + ", please try again!");
+    }
+
+    /**
+     * sleep a random time between 0 and BASE_MILLIS * 2^retry, at most CAP_MILLIS
+     * @param retry number of the retry, starting at 0
+     */
+    private static void backoff(int retry) {
+        long bound = Math.min(CAP_MILLIS, BASE_MILLIS << retry);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * count a conflict which the caller handles itself instead of retrying,
+     * e.g. a slot taken by another booking so the next caregiver is tried
+     * @param table table of the conflicting update
+     */
+    public static void conflict(String table) {
+        Counters count = counters.computeIfAbsent(table, t -> new Counters());
+        count.attempts.increment();
+        count.conflicts.increment();
+    }
+
+    /**
+     * count an update which didn't conflict and didn't go through run
+     * @param table table of the update
+     */
+    public static void success(String table) {
+        counters.computeIfAbsent(table, t -> new Counters()).attempts.increment();
+    }
+
+    /**
+     * @param table table name
+     * @return conflicts per attempt on this table, 0 if nothing was written yet
+     */
+    public static double getConflictRate(String table) {
+        Counters count = counters.get(table);
+        if (count == null) {
+            return 0;
+        }
+        long attempts = count.attempts.sum();
+        return attempts == 0 ? 0 : (double) count.conflicts.sum() / attempts;
+    }
+
+    /**
+     * @param table table name
+     * @return number of updates which gave up after MAX_ATTEMPTS conflicts
+     */
+    public static long getExhausted(String table) {
+        Counters count = counters.get(table);
+        return count == null ? 0 : count.exhausted.sum();
+    }
+
+    /**
+     * @return conflict rate of every table written so far
+     */
+    public static Map<String, Double> getConflictRates() {
+        Map<String, Double> snapshot = new HashMap<>();
+        counters.keySet().forEach(table -> snapshot.put(table, getConflictRate(table)));
+        return snapshot;
+    }
+}
@@ -0,0 +1,247 @@
+package scheduler.db;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * QueryLog keeps per-statement timings of every statement run on a pooled connection (see JdbcTrace)
+ * and appends statements slower than a threshold to a log file, with their rows, connection wait and
+ * parameters. Numbers, dates and booleans are logged as they are, strings and bytes only by their length,
+ * since they hold usernames and password hashes.
+ * It is on when the SlowQueryLog environment variable names the log file. SlowQueryMillis sets the
+ * threshold (default 200), SlowQueryPlans=on also logs the estimated plan of each slow statement,
+ * captured in the background with SHOWPLAN_XML on another connection (the statement isn't run again),
+ * at most once per statement every PLAN_MINUTES.
+ */
+public class QueryLog {
+
+    private static final long DEFAULT_THRESHOLD_MILLIS = 200;
+    private static final long PLAN_MINUTES = 10;
+    private static final int PLAN_QUEUE = 16;
+    private static final int PLAN_LOGIN_SECONDS = 5;
+    private static final int SQL_COLUMN = 80;//characters of SQL text in the report
+
+    private static final String file = System.getenv("SlowQueryLog");
+    private static final long thresholdNanos = TimeUnit.MILLISECONDS.toNanos(threshold(System.getenv("SlowQueryMillis")));
+    private static final boolean plans = "on".equalsIgnoreCase(System.getenv("SlowQueryPlans"));
+
+    /**
+     * totals of one SQL text
+     */
+    public static class Stats {
+        private final String sql;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAdder slow = new LongAdder();
+        private volatile long plannedAt = Long.MIN_VALUE;//nanoTime of the last plan capture
+
+        private Stats(String sql) {
+            this.sql = sql;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return nanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        public long getRows() {
+            return rows.sum();
+        }
+
+        public long getWaitNanos() {
+            return waitNanos.sum();
+        }
+
+        public long getSlow() {
+            return slow.sum();
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>();
+    private static BufferedWriter writer = null;
+    // one background thread captures plans, slow statements beyond the queue get no plan
+    private static final ExecutorService planner = plans ? new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(PLAN_QUEUE), r -> {
+                Thread thread = new Thread(r, "query-plans");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.DiscardPolicy()) : null;
+
+    private static long threshold(String millis) {
+        return millis == null ? DEFAULT_THRESHOLD_MILLIS : Long.parseLong(millis);
+    }
+
+    /**
+     * @return whether statements are timed and slow ones logged
+     */
+    public static boolean isEnabled() {
+        return file != null;
+    }
+
+    /**
+     * record one finished execution, called by JdbcTrace
+     * @param sql SQL text
+     * @param sqlId hash of the SQL text
+     * @param operation query, update, batch or execute
+     * @param nanos time from execute until the rows were read
+     * @param rows rows read or changed, -1 if unknown
+     * @param waitNanos connection wait charged to this statement
+     * @param params bound parameters, index 0 is parameter 1
+     */
+    static void record(String sql, String sqlId, String operation, long nanos, long rows, long waitNanos,
+                       Object[] params) {
+        Stats total = stats.computeIfAbsent(sql, Stats::new);
+        total.count.increment();
+        total.nanos.add(nanos);
+        total.maxNanos.accumulate(nanos);
+        total.rows.add(Math.max(0, rows));
+        total.waitNanos.add(waitNanos);
+        if (nanos < thresholdNanos) {
+            return;
+        }
+        total.slow.increment();
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(Instant.now()).append(" slow ").append(operation).append(' ')
+                .append(TimeUnit.NANOSECONDS.toMillis(nanos)).append(" ms sqlId=").append(sqlId)
+                .append(" rows=").append(rows)
+                .append(" wait=").append(TimeUnit.NANOSECONDS.toMillis(waitNanos)).append(" ms params=");
+        redact(sb, params);
+        sb.append(" sql=").append(oneLine(sql));
+        write(sb.toString());
+
+        long now = System.nanoTime();
+        long planned = total.plannedAt;
+        if (planner != null && (planned == Long.MIN_VALUE || now - planned > TimeUnit.MINUTES.toNanos(PLAN_MINUTES))) {
+            total.plannedAt = now;
+            Object[] bound = params.clone();
+            planner.execute(() -> capturePlan(sql, sqlId, bound));
+        }
+    }
+
+    /**
+     * append parameters without their personal data
+     */
+    private static void redact(StringBuilder sb, Object[] params) {
+        sb.append('[');
+        for (int i = 0; i < params.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            Object param = params[i];
+            if (param == null || param instanceof Number || param instanceof Boolean || param instanceof java.util.Date) {
+                sb.append(param);
+            } else if (param instanceof CharSequence) {
+                sb.append("<string ").append(((CharSequence) param).length()).append('>');
+            } else if (param instanceof byte[]) {
+                sb.append("<bytes ").append(((byte[]) param).length).append('>');
+            } else {
+                sb.append('<').append(param.getClass().getSimpleName()).append('>');
+            }
+        }
+        sb.append(']');
+    }
+
+    private static String oneLine(String sql) {
+        return sql.replaceAll("\\s+", " ").trim();
+    }
+
+    /**
+     * get the estimated plan of a statement and log it, SHOWPLAN_XML compiles the statement without running it
+     * runs on a connection of its own which is closed afterwards, so no pooled connection is ever left
+     * in showplan mode, where every statement returns a plan instead of running
+     */
+    private static void capturePlan(String sql, String sqlId, Object[] params) {
+        try (Connection con = new ConnectionManager().openUnpooled(PLAN_LOGIN_SECONDS);
+             Statement set = con.createStatement()) {
+            set.execute("SET SHOWPLAN_XML ON");
+            try (PreparedStatement statement = con.prepareStatement(sql)) {
+                for (int i = 0; i < params.length; i++) {
+                    statement.setObject(i + 1, params[i]);
+                }
+                statement.execute();
+                ResultSet resultSet = statement.getResultSet();
+                if (resultSet != null && resultSet.next()) {
+                    write(Instant.now() + " plan sqlId=" + sqlId + " " + oneLine(resultSet.getString(1)));
+                }
+            }
+        } catch (SQLException e) {
+            write(Instant.now() + " plan sqlId=" + sqlId + " failed: " + e.getMessage());
+        }
+    }
+
+    private static synchronized void write(String line) {
+        try {
+            if (writer == null) {
+                writer = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(line);
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("Error occurred when writing the slow query log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return totals of every statement run so far, slowest in total first
+     */
+    public static List<Stats> getStats() {
+        List<Stats> list = new ArrayList<>(stats.values());
+        list.sort(Comparator.comparingLong(Stats::getTotalNanos).reversed());
+        return list;
+    }
+
+    /**
+     * @return one line per statement with its count, total, average and largest time, rows and slow executions
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-8s %8s %10s %9s %9s %9s %6s  %s%n", "sqlId", "count", "total ms", "avg ms",
+                "max ms", "avg rows", "slow", "sql"));
+        for (Stats total : getStats()) {
+            long count = Math.max(1, total.getCount());
+            String sql = oneLine(total.getSql());
+            sb.append(String.format("%-8s %8d %10.1f %9.2f %9.1f %9.1f %6d  %s%n",
+                    Integer.toHexString(total.getSql().hashCode()), total.getCount(),
+                    total.getTotalNanos() / 1e6, total.getTotalNanos() / 1e6 / count, total.getMaxNanos() / 1e6,
+                    (double) total.getRows() / count, total.getSlow(),
+                    sql.length() > SQL_COLUMN ? sql.substring(0, SQL_COLUMN) + "..." : sql));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,47 @@
+package scheduler.db;
+
+import com.microsoft.sqlserver.jdbc.ISQLServerStatement;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * QueryType sets the fetch size and response buffering of a query by the size of its result.
+ * Point and list queries read their few rows in one go, scans of whole tables or logs
+ * stream their rows with adaptive buffering instead of holding the whole result in memory.
+ * The fetch size of each type can be changed with the PointFetchSize, ListFetchSize and
+ * ScanFetchSize environment variables.
+ */
+public enum QueryType {
+
+    POINT(1, "full"),//one row by key, or an existence check
+    LIST(128, "full"),//rows of one user or one date
+    SCAN(1000, "adaptive");//every row of a table or a log
+
+    private final int fetchSize;
+    private final String buffering;
+
+    QueryType(int fetchSize, String buffering) {
+        String configured = System.getenv(name().charAt(0) + name().substring(1).toLowerCase() + "FetchSize");
+        this.fetchSize = configured == null ? fetchSize : Integer.parseInt(configured);
+        this.buffering = buffering;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * set the fetch size and response buffering of a statement before running it
+     * @param statement statement to run
+     * @return the same statement
+     * @throws SQLException sql execution exception
+     */
+    public PreparedStatement apply(PreparedStatement statement) throws SQLException {
+        statement.setFetchSize(fetchSize);
+        if (statement.isWrapperFor(ISQLServerStatement.class)) {
+            statement.unwrap(ISQLServerStatement.class).setResponseBuffering(buffering);
+        }
+        return statement;
+    }
+}
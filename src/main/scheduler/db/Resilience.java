@@ -0,0 +1,300 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resilience puts one CircuitBreaker in front of every data source, the main database and each shard
+ * (see Shards), and retries idempotent reads. ConnectionManager asks the breaker of its data source before
+ * handing out a connection, so every DAO method fails fast with a short message while that breaker is open,
+ * and a shard which is down doesn't stop the bookings of the others. A call reports its outcome to the
+ * breakers of the connections it borrowed on its own thread, a connection borrowed outside of a call only
+ * releases a trial it was admitted as (see CircuitBreaker). DAO methods which only read run through read(),
+ * which retries transient faults (see TransientErrors) with exponential backoff and full jitter,
+ * at most READ_ATTEMPTS times. Writes aren't retried here, since a write which timed out may have committed;
+ * they only report their outcome through write() (OptimisticRetry does this for every attempt).
+ */
+public class Resilience {
+
+    public static final int READ_ATTEMPTS = 3;
+    private static final long BASE_MILLIS = 50;
+    private static final long CAP_MILLIS = 1000;
+    private static final int BREAKER_THRESHOLD = 5;
+    private static final long BREAKER_MIN_OPEN_MILLIS = 1000;
+    private static final long BREAKER_MAX_OPEN_MILLIS = 30_000;
+
+    private static final CircuitBreaker[] breakers = new CircuitBreaker[Shards.count()];//by shard
+    // breakers of the connections the call running on this thread borrowed, null outside of read() and write()
+    private static final ThreadLocal<Set<CircuitBreaker>> used = new ThreadLocal<>();
+    // failures already counted, by identity, so a nested call or a shard query isn't counted twice
+    private static final Set<Throwable> reported = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<>()));
+    private static final LongAdder transientFailures = new LongAdder();
+    private static final LongAdder retries = new LongAdder();
+    private static final LongAdder recovered = new LongAdder();//reads which succeeded after a retry
+
+    /**
+     * a fault the breaker already knows about: it is open, or getting a connection failed
+     */
+    static final class Unavailable extends SQLTransientConnectionException {
+        private static final long serialVersionUID = 1L;
+
+        Unavailable(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * one database call
+     * @param <T> result of the call
+     */
+    @FunctionalInterface
+    public interface Call<T> {
+        /**
+         * @return the result
+         * @throws SQLException sql execution exception
+         */
+        T run() throws SQLException;
+    }
+
+    static {
+        for (int shard = 0; shard < breakers.length; shard++) {
+            breakers[shard] = new CircuitBreaker(BREAKER_THRESHOLD, BREAKER_MIN_OPEN_MILLIS, BREAKER_MAX_OPEN_MILLIS);
+        }
+    }
+
+    /**
+     * run a call which only reads, again after transient faults
+     * @param call the call
+     * @param <T> result of the call
+     * @return result of the first successful attempt
+     * @throws SQLException if a breaker is open, the fault isn't transient, or every attempt failed
+     */
+    public static <T> T read(Call<T> call) throws SQLException {
+        for (int i = 0; ; i++) {
+            try {
+                T result = attempt(call);
+                if (i > 0) {
+                    recovered.increment();
+                }
+                return result;
+            } catch (SQLException e) {
+                if (!isTransient(e) || i + 1 >= READ_ATTEMPTS) {
+                    throw e;
+                }
+                retries.increment();
+                backoff(i);
+            }
+        }
+    }
+
+    /**
+     * run a call which writes once, reporting its outcome to the breakers
+     * @param call the call
+     * @param <T> result of the call
+     * @return the result
+     * @throws SQLException if a breaker is open, or sql execution exception of the call
+     */
+    public static <T> T write(Call<T> call) throws SQLException {
+        return attempt(call);
+    }
+
+    /**
+     * run a call once and report its outcome to the breakers of the connections it borrowed on this thread,
+     * a nested call reports to the breakers of its own connections
+     * @param call the call
+     * @param <T> result of the call
+     * @return the result
+     * @throws SQLException sql execution exception of the call
+     */
+    static <T> T attempt(Call<T> call) throws SQLException {
+        Set<CircuitBreaker> outer = used.get();
+        Set<CircuitBreaker> borrowed = new HashSet<>();
+        used.set(borrowed);
+        try {
+            T result = call.run();
+            for (CircuitBreaker breaker : borrowed) {
+                breaker.success();
+            }
+            return result;
+        } catch (SQLException e) {
+            failed(e, borrowed);
+            throw e;
+        } finally {
+            if (outer == null) {
+                used.remove();
+            } else {
+                used.set(outer);
+            }
+        }
+    }
+
+    /**
+     * @param shard shard of the connection about to be borrowed
+     * @return whether a call run by read() or write() reports the outcome of this borrow
+     * @throws SQLException if the breaker of the shard is open, or half open with another trial call running
+     */
+    static boolean admit(int shard) throws SQLException {
+        CircuitBreaker breaker = breakers[shard];
+        if (!breaker.allow()) {
+            throw new Unavailable("The database is recovering, please try again in " +
+                    (breaker.getRetryAfterMillis() + 999) / 1000 + " second(s)!", null);
+        }
+        Set<CircuitBreaker> borrowed = used.get();
+        if (borrowed == null) {
+            return false;
+        }
+        borrowed.add(breaker);
+        return true;
+    }
+
+    /**
+     * a connection borrowed outside of read() and write() was given back, nothing reports its outcome,
+     * so if it was the trial call of a half open breaker the next call becomes the trial
+     * @param shard shard of the connection
+     */
+    static void released(int shard) {
+        breakers[shard].release();
+    }
+
+    /**
+     * report that getting a connection failed
+     * @param shard shard of the connection
+     * @param e the exception of the driver or the pool
+     * @return the exception to throw to the DAO method
+     */
+    static SQLException connectFailed(int shard, SQLException e) {
+        Set<CircuitBreaker> breaker = Collections.singleton(breakers[shard]);
+        if (failed(e, breaker)) {
+            return new Unavailable("Error occurred when connecting to the database!", e);
+        }
+        return new SQLException("Error occurred when connecting to the database!", e);
+    }
+
+    /**
+     * report a failed call, only transient faults count against the breakers, each fault once
+     * @param e the exception of the call
+     * @param borrowed breakers of the connections the call borrowed
+     * @return whether the fault is transient
+     */
+    private static boolean failed(SQLException e, Set<CircuitBreaker> borrowed) {
+        // a breaker rejected the call, or a nested call or shard query counted the fault already
+        boolean counted = !reported.add(e);
+        for (Throwable t = e; t != null && !counted; t = t.getCause()) {
+            counted = t instanceof Unavailable || t != e && reported.contains(t);
+        }
+        if (counted) {
+            return isTransient(e);
+        }
+        if (TransientErrors.isTransient(e)) {
+            transientFailures.increment();
+            for (CircuitBreaker breaker : borrowed) {
+                breaker.failure();
+            }
+            return true;
+        }
+        // the database answered, with an error of the call itself
+        for (CircuitBreaker breaker : borrowed) {
+            breaker.success();
+        }
+        return false;
+    }
+
+    /**
+     * @param e the exception of a call
+     * @return whether the fault is transient, a breaker which is open counts as one
+     */
+    private static boolean isTransient(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof Unavailable) {
+                return true;
+            }
+        }
+        return TransientErrors.isTransient(e);
+    }
+
+    /**
+     * sleep a random time between 0 and BASE_MILLIS * 2^retry, at most CAP_MILLIS
+     * @param retry number of the retry, starting at 0
+     */
+    private static void backoff(int retry) {
+        long bound = Math.min(CAP_MILLIS, BASE_MILLIS << retry);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the worst state of any breaker, OPEN if any data source is recovering
+     */
+    public static CircuitBreaker.State getState() {
+        CircuitBreaker.State worst = CircuitBreaker.State.CLOSED;
+        for (CircuitBreaker breaker : breakers) {
+            CircuitBreaker.State state = breaker.getState();
+            if (state == CircuitBreaker.State.OPEN
+                    || state == CircuitBreaker.State.HALF_OPEN && worst == CircuitBreaker.State.CLOSED) {
+                worst = state;
+            }
+        }
+        return worst;
+    }
+
+    /**
+     * @param shard shard number, 0 for the main database
+     * @return state of the breaker of this shard
+     */
+    public static CircuitBreaker.State getState(int shard) {
+        return breakers[shard].getState();
+    }
+
+    /**
+     * @return times any breaker opened
+     */
+    public static long getOpened() {
+        long opened = 0;
+        for (CircuitBreaker breaker : breakers) {
+            opened += breaker.getOpened();
+        }
+        return opened;
+    }
+
+    /**
+     * @return calls failed fast while a breaker was open
+     */
+    public static long getRejected() {
+        long rejected = 0;
+        for (CircuitBreaker breaker : breakers) {
+            rejected += breaker.getRejected();
+        }
+        return rejected;
+    }
+
+    /**
+     * @return calls which failed with a transient fault, including retried attempts
+     */
+    public static long getTransientFailures() {
+        return transientFailures.sum();
+    }
+
+    /**
+     * @return read attempts repeated after a transient fault
+     */
+    public static long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * @return reads which succeeded after at least one retry
+     */
+    public static long getRecovered() {
+        return recovered.sum();
+    }
+}
@@ -0,0 +1,11 @@
+package scheduler.db;
+
+/**
+ * Route tells ConnectionManager which endpoint a DAO method may use.
+ * READ_ONLY methods can be served by a read replica, which may be a little behind the primary,
+ * everything else goes to the primary.
+ */
+public enum Route {
+    READ_WRITE,
+    READ_ONLY
+}
@@ -0,0 +1,169 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Shards is the shard map of Availabilities and Appointments, partitioned by date range.
+ * Shard 0 is the main database and holds every date before the first range, the Shards
+ * environment variable adds one database per range: "2023-01-01=server1,2023-07-01=jdbc:sqlserver://..."
+ * means shard 1 holds 2023-01-01 up to 2023-06-30 and shard 2 holds 2023-07-01 onwards.
+ * Appointment ids of shard N start at N * ID_RANGE (see create_shard.sql), so an id alone finds its shard.
+ * Patients, caregivers, vaccines and allocations are only kept in the main database.
+ */
+public class Shards {
+
+    public static final int ID_RANGE = 100_000_000;
+
+    private static final List<Date> starts = new ArrayList<>();//first date of shard 1, 2, ...
+    private static final List<String> urls = new ArrayList<>();//url of shard 1, 2, ...
+    private static ExecutorService gatherer = null;
+
+    static {
+        String shards = System.getenv("Shards");
+        if (shards != null) {
+            for (String shard : shards.split(",")) {
+                if (shard.trim().isEmpty()) {
+                    continue;
+                }
+                String[] parts = shard.trim().split("=", 2);
+                Date start = Date.valueOf(parts[0]);
+                if (!starts.isEmpty() && !start.after(starts.get(starts.size() - 1))) {
+                    throw new IllegalArgumentException("Shard ranges must be in date order!");
+                }
+                starts.add(start);
+                urls.add(ConnectionManager.url(parts[1]));
+            }
+        }
+    }
+
+    /**
+     * one query run against a single shard
+     * @param <T> result of one shard
+     */
+    public interface Query<T> {
+        T run(Connection con) throws SQLException;
+    }
+
+    /**
+     * @return number of shards, 1 when the data is not sharded
+     */
+    public static int count() {
+        return urls.size() + 1;
+    }
+
+    /**
+     * @param date a date
+     * @return the shard holding this date
+     */
+    public static int shardOf(Date date) {
+        int shard = 0;
+        while (shard < starts.size() && !date.before(starts.get(shard))) {
+            shard++;
+        }
+        return shard;
+    }
+
+    /**
+     * @param id appointment id
+     * @return the shard holding this appointment
+     */
+    public static int shardOfId(int id) {
+        int shard = id / ID_RANGE;
+        return shard < count() ? shard : 0;
+    }
+
+    /**
+     * @param shard shard number
+     * @return url of the shard, null for the main database
+     */
+    static String url(int shard) {
+        return shard == 0 ? null : urls.get(shard - 1);
+    }
+
+    /**
+     * run a query on every shard at the same time and collect the results (scatter-gather)
+     * @param route route of the query on the main database
+     * @param query query of one shard
+     * @param <T> result of one shard
+     * @return results in shard order
+     * @throws SQLException if the query fails on any shard
+     */
+    public static <T> List<T> gather(Route route, Query<T> query) throws SQLException {
+        return gather(route, query, Collections.emptyMap());
+    }
+
+    /**
+     * gather inside a transaction: the shards the caller holds a connection of are queried on that connection,
+     * on the caller's thread, so a transaction never waits for a second connection of a pool it holds one of
+     * @param route route of the query on the main database
+     * @param query query of one shard
+     * @param held connections the caller holds, by shard
+     * @param <T> result of one shard
+     * @return results in shard order
+     * @throws SQLException if the query fails on any shard
+     */
+    public static <T> List<T> gather(Route route, Query<T> query, Map<Integer, Connection> held) throws SQLException {
+        List<T> results = new ArrayList<>();
+        if (count() == 1) {
+            Connection con = held.get(0);
+            results.add(con != null ? query.run(con) : run(ConnectionManager.forShard(0, route), query));
+            return results;
+        }
+        List<Future<T>> futures = new ArrayList<>();
+        for (int shard = 0; shard < count(); shard++) {
+            if (held.containsKey(shard)) {
+                futures.add(null);
+                continue;
+            }
+            ConnectionManager cm = ConnectionManager.forShard(shard, route);
+            futures.add(executor().submit(() -> run(cm, query)));
+        }
+        try {
+            for (int shard = 0; shard < count(); shard++) {
+                Future<T> future = futures.get(shard);
+                results.add(future == null ? query.run(held.get(shard)) : future.get());
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof SQLException ? (SQLException) e.getCause() : new SQLException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while reading shards!");
+        }
+        return results;
+    }
+
+    /**
+     * run the query of one shard, reporting its outcome to the breaker of the shard (see Resilience)
+     */
+    private static <T> T run(ConnectionManager cm, Query<T> query) throws SQLException {
+        return Resilience.attempt(() -> {
+            Connection con = cm.createConnection();
+            try {
+                return query.run(con);
+            } finally {
+                cm.closeConnection();
+            }
+        });
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (gatherer == null) {
+            gatherer = Executors.newFixedThreadPool(count(), r -> {
+                Thread thread = new Thread(r, "shard-gather");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return gatherer;
+    }
+}
@@ -0,0 +1,130 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StatementCache keeps the prepared statements of one pooled connection keyed by SQL text,
+ * so the same statement is only prepared once per connection and the server reuses its plan.
+ * The least recently used statement is closed when the cache is full.
+ * A connection is only used by one thread at a time, so the cache itself is not synchronized,
+ * only the hit and miss counters shared by every cache are.
+ */
+public class StatementCache {
+
+    private static final AtomicLong totalHits = new AtomicLong();
+    private static final AtomicLong totalMisses = new AtomicLong();
+    private static final AtomicLong totalEvictions = new AtomicLong();
+
+    private final Connection con;
+    private final int capacity;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param con physical connection the statements belong to
+     * @param capacity maximum number of cached statements
+     */
+    public StatementCache(Connection con, int capacity) {
+        this.con = con;
+        this.capacity = capacity;
+        // access order, so iteration starts from the least recently used statement
+        this.statements = new LinkedHashMap<>(capacity * 2, 0.75f, true);
+    }
+
+    /**
+     * get the cached statement for this SQL text or prepare a new one
+     * @param sql SQL text
+     * @param autoGeneratedKeys Statement.RETURN_GENERATED_KEYS or Statement.NO_GENERATED_KEYS
+     * @return the statement, with its parameters and batch cleared
+     * @throws SQLException sql execution exception
+     */
+    public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        String key = autoGeneratedKeys + ":" + sql;
+        PreparedStatement statement = statements.get(key);
+        if (statement != null && !statement.isClosed()) {
+            hits++;
+            totalHits.incrementAndGet();
+            statement.clearParameters();
+            statement.clearBatch();
+            return statement;
+        }
+        misses++;
+        totalMisses.incrementAndGet();
+        statement = con.prepareStatement(sql, autoGeneratedKeys);
+        statements.put(key, statement);
+        if (statements.size() > capacity) {
+            Iterator<Map.Entry<String, PreparedStatement>> eldest = statements.entrySet().iterator();
+            closeQuietly(eldest.next().getValue());
+            eldest.remove();
+            totalEvictions.incrementAndGet();
+        }
+        return statement;
+    }
+
+    /**
+     * close every cached statement, use before closing the connection
+     */
+    public void clear() {
+        for (PreparedStatement statement : statements.values()) {
+            closeQuietly(statement);
+        }
+        statements.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    /**
+     * @return hits of every cache together
+     */
+    public static long getTotalHits() {
+        return totalHits.get();
+    }
+
+    /**
+     * @return misses of every cache together
+     */
+    public static long getTotalMisses() {
+        return totalMisses.get();
+    }
+
+    /**
+     * @return statements closed because a cache was full
+     */
+    public static long getTotalEvictions() {
+        return totalEvictions.get();
+    }
+
+    /**
+     * @return share of prepares served from a cache, 0 if nothing was prepared yet
+     */
+    public static double getHitRate() {
+        long hits = totalHits.get();
+        long total = hits + totalMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
@@ -0,0 +1,55 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.Set;
+
+/**
+ * TransientErrors tells faults which go away by themselves, e.g. throttling, a failover, a dropped connection
+ * or a deadlock, from errors which will happen again on retry, e.g. a constraint violation.
+ * The error numbers are the ones Azure SQL documents as transient, plus deadlock victims.
+ */
+public class TransientErrors {
+
+    private static final Set<Integer> CODES = Set.of(
+            20, 64, 233,//connection closed or broken during login
+            1205,//chosen as deadlock victim
+            4060, 4221,//database unavailable, login timed out waiting for a replica
+            10053, 10054, 10060,//transport-level errors
+            10928, 10929,//resource limit reached
+            40143, 40197, 40501, 40540, 40613,//failover, service busy, database not currently available
+            42108, 42109,//serverless database paused or resuming
+            49918, 49919, 49920);//too many operations in progress
+    private static final int MAX_DEPTH = 8;//causes and chained exceptions looked at
+
+    /**
+     * @param e an exception thrown by a DAO method, with the driver's exception as its cause
+     * @return whether the fault is transient and the same call may succeed later
+     */
+    public static boolean isTransient(Throwable e) {
+        Throwable t = e;
+        for (int depth = 0; t != null && depth < MAX_DEPTH; depth++) {
+            if (t instanceof SQLTransientException || t instanceof SQLRecoverableException) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                SQLException sql = (SQLException) t;
+                String state = sql.getSQLState();
+                // connection exceptions and timeouts
+                if (state != null && (state.startsWith("08") || state.equals("HYT00") || state.equals("HY008"))) {
+                    return true;
+                }
+                if (CODES.contains(sql.getErrorCode())) {
+                    return true;
+                }
+                if (sql.getNextException() != null && sql.getNextException() != t.getCause()
+                        && isTransient(sql.getNextException())) {
+                    return true;
+                }
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,78 @@
+package scheduler.db;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * WriterLock keeps the in-memory booking engine the only writer of appointments. It is the SQL Server
+ * application lock BOOKING_WRITERS on the main database: the process running the engine holds it exclusively,
+ * every process booking in the database holds it shared, so an engine can't start next to any other writer
+ * and no writer can start next to an engine. The lock is owned by a connection of its own outside the pools
+ * which stays open while the lock is held, so SQL Server releases it when the process dies.
+ * Taking it never waits, a process which can't get it is told so and refuses to start.
+ */
+public class WriterLock implements AutoCloseable {
+
+    private static final String RESOURCE = "BOOKING_WRITERS";
+    private static final int LOGIN_TIMEOUT_SECONDS = 5;
+
+    private final Connection con;
+
+    /**
+     * another process holds the lock in a mode which conflicts with ours
+     */
+    public static final class Taken extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        private Taken(String message) {
+            super(message);
+        }
+    }
+
+    private WriterLock(Connection con) {
+        this.con = con;
+    }
+
+    /**
+     * take the lock without waiting
+     * @param exclusive true for the in-memory booking engine, false for a process booking in the database
+     * @return the lock, close it to release it
+     * @throws Taken if another process holds it in a conflicting mode
+     * @throws SQLException if the database can't be reached
+     */
+    public static WriterLock acquire(boolean exclusive) throws SQLException {
+        Connection con = new ConnectionManager().openUnpooled(LOGIN_TIMEOUT_SECONDS);
+        try {
+            CallableStatement call = con.prepareCall("{? = call sp_getapplock(?, ?, 'Session', 0)}");
+            call.registerOutParameter(1, Types.INTEGER);
+            call.setString(2, RESOURCE);
+            call.setString(3, exclusive ? "Exclusive" : "Shared");
+            call.execute();
+            // 0 granted, 1 granted after waiting, -1 timed out, -2 cancelled, -3 deadlock victim, -999 error
+            if (call.getInt(1) < 0) {
+                throw new Taken(exclusive
+                        ? "Another process is booking appointments, the in-memory booking engine must be the only writer!"
+                        : "Another process runs the in-memory booking engine, it must be the only writer!");
+            }
+            call.close();
+        } catch (SQLException e) {
+            con.close();
+            throw e;
+        }
+        return new WriterLock(con);
+    }
+
+    /**
+     * release the lock by closing its connection
+     */
+    @Override
+    public void close() {
+        try {
+            con.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
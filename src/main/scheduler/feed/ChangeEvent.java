@@ -0,0 +1,91 @@
+package scheduler.feed;
+
+import scheduler.util.Util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ChangeEvent is one inserted, updated or deleted row published on the ChangeFeed.
+ * Events are written to sinks as one JSON object per line.
+ */
+public class ChangeEvent {
+
+    public enum Op {
+        INSERT,
+        UPDATE,
+        DELETE
+    }
+
+    private final long seq;//increasing number of this event within the process
+    private final long time;//epoch millis when the change was published
+    private final String table;
+    private final Op op;
+    private final Map<String, Object> columns;
+
+    public ChangeEvent(long seq, long time, String table, Op op, Map<String, Object> columns) {
+        this.seq = seq;
+        this.time = time;
+        this.table = table;
+        this.op = op;
+        this.columns = columns;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public Op getOp() {
+        return op;
+    }
+
+    public Map<String, Object> getColumns() {
+        return columns;
+    }
+
+    /**
+     * @param keysAndValues column names followed by their values
+     * @return the columns in the given order
+     */
+    public static Map<String, Object> columns(Object... keysAndValues) {
+        Map<String, Object> columns = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < keysAndValues.length; i += 2) {
+            columns.put(String.valueOf(keysAndValues[i]), keysAndValues[i + 1]);
+        }
+        return columns;
+    }
+
+    /**
+     * @return this event as a single line of JSON
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("{\"seq\":").append(seq)
+                .append(",\"time\":").append(time)
+                .append(",\"table\":");
+        Util.quote(sb, table);
+        sb.append(",\"op\":\"").append(op).append('"');
+        for (Map.Entry<String, Object> entry : columns.entrySet()) {
+            sb.append(',');
+            Util.quote(sb, entry.getKey());
+            sb.append(':');
+            Object value = entry.getValue();
+            if (value == null) {
+                sb.append("null");
+            } else if (value instanceof Number || value instanceof Boolean) {
+                sb.append(value);
+            } else {
+                Util.quote(sb, value.toString());
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
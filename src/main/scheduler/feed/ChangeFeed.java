@@ -0,0 +1,153 @@
+package scheduler.feed;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ChangeFeed publishes every insert, update and delete done by the model layer to pluggable sinks,
+ * so reporting and notification consumers can read changes incrementally instead of scanning tables.
+ * Events wait in a bounded queue for a single dispatcher thread; when the queue is full,
+ * publish() blocks the writer until the sinks catch up (back-pressure) instead of dropping events.
+ * Without sinks publish() returns right away.
+ */
+public class ChangeFeed {
+
+    private static final int CAPACITY = 4096;
+    private static final int BATCH_SIZE = 256;
+
+    private static final List<ChangeSink> sinks = new CopyOnWriteArrayList<>();
+    private static final BlockingQueue<ChangeEvent> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private static final AtomicLong seq = new AtomicLong();
+    private static final AtomicLong blockedPublishes = new AtomicLong();
+    private static final long CLOSE_MILLIS = 5000;//how long close() waits for the dispatcher to write the queue
+    private static volatile boolean closing = false;
+    private static Thread dispatcher = null;
+
+    private ChangeFeed() {}
+
+    /**
+     * add a sink and start the dispatcher if it is not running
+     * @param sink the sink
+     */
+    public static synchronized void addSink(ChangeSink sink) {
+        sinks.add(sink);
+        if (dispatcher == null) {
+            dispatcher = new Thread(ChangeFeed::dispatch, "change-feed");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+        }
+    }
+
+    /**
+     * @return whether any sink is listening
+     */
+    public static boolean isEnabled() {
+        return !sinks.isEmpty();
+    }
+
+    /**
+     * publish a change, blocks while the queue is full
+     * @param table table name
+     * @param op kind of change
+     * @param columns changed row, see ChangeEvent.columns()
+     */
+    public static void publish(String table, ChangeEvent.Op op, Map<String, Object> columns) {
+        if (sinks.isEmpty() || closing) {
+            return;
+        }
+        ChangeEvent event = new ChangeEvent(seq.incrementAndGet(), System.currentTimeMillis(), table, op, columns);
+        try {
+            if (!queue.offer(event)) {
+                blockedPublishes.incrementAndGet();
+                queue.put(event);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of events waiting for the dispatcher
+     */
+    public static int queueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of publishes which had to wait for a full queue
+     */
+    public static long getBlockedPublishes() {
+        return blockedPublishes.get();
+    }
+
+    private static void dispatch() {
+        List<ChangeEvent> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            try {
+                ChangeEvent first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    if (closing) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (ChangeSink sink : sinks) {
+                try {
+                    sink.write(batch);
+                } catch (IOException e) {
+                    System.err.println("Error occurred when writing change feed: " + e.getMessage());
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * stop taking events, let the dispatcher write what is queued and end, then close every sink,
+     * so no sink is closed while the dispatcher may still write to it
+     */
+    public static synchronized void close() {
+        closing = true;
+        if (dispatcher != null) {
+            try {
+                dispatcher.join(CLOSE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (dispatcher.isAlive()) {
+                // a sink hangs, interrupting the dispatcher drops the events it has not written yet
+                System.err.println("Change feed dispatcher didn't finish in time, " + queue.size() +
+                        " events are dropped");
+                dispatcher.interrupt();
+                try {
+                    dispatcher.join(CLOSE_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            dispatcher = null;
+        }
+        for (ChangeSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                System.err.println("Error occurred when closing change feed: " + e.getMessage());
+            }
+        }
+        sinks.clear();
+        queue.clear();
+        closing = false;
+    }
+}
@@ -0,0 +1,23 @@
+package scheduler.feed;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A destination for change events, called from the ChangeFeed dispatcher thread only.
+ */
+public interface ChangeSink {
+
+    /**
+     * write a batch of events in publish order
+     * @param events events to write
+     * @throws IOException if the sink can't write, the feed keeps going with the other sinks
+     */
+    void write(List<ChangeEvent> events) throws IOException;
+
+    /**
+     * release files or sockets held by the sink
+     * @throws IOException if closing failed
+     */
+    void close() throws IOException;
+}
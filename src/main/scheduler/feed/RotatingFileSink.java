@@ -0,0 +1,83 @@
+package scheduler.feed;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Writes change events as JSON lines to a local file.
+ * When the file grows past maxBytes it is renamed to file.1 (file.1 to file.2 and so on),
+ * keeping at most maxFiles old files, and a new file is started.
+ * The size is counted in UTF-8 bytes as written, so names with non-ASCII characters don't let the file
+ * grow past maxBytes.
+ */
+public class RotatingFileSink implements ChangeSink {
+
+    private final Path path;
+    private final long maxBytes;
+    private final int maxFiles;
+    private OutputStream out;
+    private long size;
+
+    /**
+     * @param path file to write
+     * @param maxBytes size at which the file is rotated
+     * @param maxFiles number of rotated files to keep
+     * @throws IOException if the file can't be opened
+     */
+    public RotatingFileSink(Path path, long maxBytes, int maxFiles) throws IOException {
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        open();
+    }
+
+    private void open() throws IOException {
+        out = new BufferedOutputStream(Files.newOutputStream(path,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        size = Files.size(path);
+    }
+
+    @Override
+    public void write(List<ChangeEvent> events) throws IOException {
+        for (ChangeEvent event : events) {
+            byte[] line = event.toJson().getBytes(StandardCharsets.UTF_8);
+            out.write(line);
+            out.write('\n');
+            size += line.length + 1;
+            if (size >= maxBytes) {
+                rotate();
+            }
+        }
+        out.flush();
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        Files.deleteIfExists(path.resolveSibling(path.getFileName() + "." + maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path from = path.resolveSibling(path.getFileName() + "." + i);
+            if (Files.exists(from)) {
+                Files.move(from, path.resolveSibling(path.getFileName() + "." + (i + 1)),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(path, path.resolveSibling(path.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(path);
+        }
+        open();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
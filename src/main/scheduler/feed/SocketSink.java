@@ -0,0 +1,93 @@
+package scheduler.feed;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Serves change events as JSON lines to every client connected to a loopback port.
+ * Clients only get events published after they connect; a client which can't be written to is dropped.
+ */
+public class SocketSink implements ChangeSink {
+
+    private final ServerSocket server;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+
+    private static class Client {
+        private final Socket socket;
+        private final BufferedWriter writer;
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * @param port port on 127.0.0.1 to listen on, 0 for any free port
+     * @throws IOException if the port can't be bound
+     */
+    public SocketSink(int port) throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "change-feed-socket");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return port the sink is listening on
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                clients.add(new Client(server.accept()));
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    System.err.println("Error occurred when accepting change feed client: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void write(List<ChangeEvent> events) {
+        Iterator<Client> iterator = clients.iterator();
+        while (iterator.hasNext()) {
+            Client client = iterator.next();
+            try {
+                for (ChangeEvent event : events) {
+                    client.writer.write(event.toJson());
+                    client.writer.newLine();
+                }
+                client.writer.flush();
+            } catch (IOException e) {
+                clients.remove(client);
+                try {
+                    client.socket.close();
+                } catch (IOException ignored) {
+                    // client is gone already
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Client client : clients) {
+            client.socket.close();
+        }
+        clients.clear();
+    }
+}
@@ -0,0 +1,298 @@
+package scheduler.health;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import scheduler.db.CircuitBreaker;
+import scheduler.db.ConnectionManager;
+import scheduler.db.ConnectionPool;
+import scheduler.db.OptimisticRetry;
+import scheduler.db.Resilience;
+import scheduler.db.Shards;
+import scheduler.util.Util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Serves the health of this Scheduler over HTTP on a loopback port, for an orchestrator or load balancer:
+ * GET /health/live  200 unless threads are deadlocked
+ * GET /health/ready 200 if the database answers and every readiness check passes, 503 otherwise
+ * GET /health       200 with everything as JSON: database latency, circuit breaker, pool usage, gauges and checks
+ * Any other path is 404.
+ * The database is probed with SELECT 1 on its own connection outside the pools, so a saturated pool
+ * shows up as pool usage instead of as an unreachable database. Probes run at most once per PROBE_MILLIS,
+ * requests in between get the last result.
+ */
+public class HealthServer {
+
+    private static final long PROBE_MILLIS = 1000;
+    private static final int PROBE_TIMEOUT_SECONDS = 2;
+    // a pool is saturated once borrowers have been waiting this long without a break, a short burst is fine
+    private static final long SATURATED_MILLIS = 2000;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long started = System.currentTimeMillis();
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+    private final Map<String, BooleanSupplier> checks = new LinkedHashMap<>();
+
+    // last database probe, guarded by this
+    private Connection probe = null;
+    private long probedAt = 0;
+    private boolean reachable = false;
+    private double latencyMillis = -1;
+    private String probeError = null;
+
+    /**
+     * @param port port on 127.0.0.1 to listen on, 0 for any free port
+     * @throws IOException if the port can't be bound
+     */
+    public HealthServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        route("/health/live", exchange -> {
+            boolean live = live();
+            respond(exchange, live ? 200 : 503, "{\"live\":" + live + "}");
+        });
+        route("/health/ready", exchange -> {
+            boolean ready = ready();
+            respond(exchange, ready ? 200 : 503, "{\"ready\":" + ready + "}");
+        });
+        route("/health", exchange -> respond(exchange, 200, toJson()));
+    }
+
+    /**
+     * serve this exact path, a context matches every path it is a prefix of (e.g. /healthz or /health/x)
+     */
+    private void route(String path, HttpHandler handler) {
+        server.createContext(path, exchange -> {
+            if (exchange.getRequestURI().getPath().equals(path)) {
+                handler.handle(exchange);
+            } else {
+                respond(exchange, 404, "{\"error\":\"not found\"}");
+            }
+        });
+    }
+
+    /**
+     * report a value, e.g. a queue depth, under this name
+     * @param name name in the JSON
+     * @param gauge reads the current value
+     * @return this server
+     */
+    public synchronized HealthServer gauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+        return this;
+    }
+
+    /**
+     * add a readiness check, the instance is only ready while every check passes
+     * @param name name in the JSON
+     * @param check whether this instance can take more requests
+     * @return this server
+     */
+    public synchronized HealthServer check(String name, BooleanSupplier check) {
+        checks.put(name, check);
+        return this;
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * @return port the server is listening on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return false if threads are deadlocked, the instance can't recover and should be restarted
+     */
+    private static boolean live() {
+        return ManagementFactory.getThreadMXBean().findDeadlockedThreads() == null;
+    }
+
+    /**
+     * @return whether the database answers, no circuit breaker is open, no pool had borrowers waiting
+     * for SATURATED_MILLIS on end and every check passes
+     */
+    private synchronized boolean ready() {
+        probeDatabase();
+        if (!reachable || Resilience.getState() == CircuitBreaker.State.OPEN) {
+            return false;
+        }
+        for (ConnectionPool pool : ConnectionPool.getPools().values()) {
+            if (pool.getWaitingMillis() >= SATURATED_MILLIS) {
+                return false;
+            }
+        }
+        for (BooleanSupplier check : checks.values()) {
+            if (!check.getAsBoolean()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * run SELECT 1 on the probe connection unless it ran less than PROBE_MILLIS ago
+     */
+    private synchronized void probeDatabase() {
+        long now = System.currentTimeMillis();
+        if (now - probedAt < PROBE_MILLIS) {
+            return;
+        }
+        probedAt = now;
+        long start = System.nanoTime();
+        try {
+            if (probe == null || probe.isClosed()) {
+                probe = new ConnectionManager().openUnpooled(PROBE_TIMEOUT_SECONDS);
+            }
+            try (Statement statement = probe.createStatement()) {
+                statement.setQueryTimeout(PROBE_TIMEOUT_SECONDS);
+                ResultSet resultSet = statement.executeQuery("SELECT 1");
+                resultSet.next();
+            }
+            reachable = true;
+            probeError = null;
+        } catch (SQLException e) {
+            reachable = false;
+            probeError = e.getMessage();
+            closeProbe();
+        }
+        latencyMillis = (System.nanoTime() - start) / 1e6;
+    }
+
+    private void closeProbe() {
+        if (probe != null) {
+            try {
+                probe.close();
+            } catch (SQLException e) {
+                // the connection is dropped either way
+            }
+            probe = null;
+        }
+    }
+
+    /**
+     * @return the whole health as one JSON object
+     */
+    private synchronized String toJson() {
+        boolean ready = ready();
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("{\"live\":").append(live())
+                .append(",\"ready\":").append(ready)
+                .append(",\"uptimeSeconds\":").append((System.currentTimeMillis() - started) / 1000);
+        sb.append(",\"db\":{\"reachable\":").append(reachable)
+                .append(",\"latencyMillis\":").append(String.format(Locale.ROOT, "%.2f", latencyMillis))
+                .append(",\"error\":");
+        quoteOrNull(sb, probeError);
+        sb.append(",\"connectFailures\":").append(ConnectionManager.getConnectFailures())
+                .append(",\"lastConnectError\":");
+        quoteOrNull(sb, ConnectionManager.getLastConnectError());
+        sb.append("},\"breaker\":{\"state\":\"").append(Resilience.getState())
+                .append("\",\"opened\":").append(Resilience.getOpened())
+                .append(",\"rejected\":").append(Resilience.getRejected())
+                .append(",\"transientFailures\":").append(Resilience.getTransientFailures())
+                .append(",\"retries\":").append(Resilience.getRetries())
+                .append(",\"recovered\":").append(Resilience.getRecovered())
+                .append(",\"shards\":[");
+        for (int shard = 0; shard < Shards.count(); shard++) {
+            sb.append(shard == 0 ? "\"" : ",\"").append(Resilience.getState(shard)).append('"');
+        }
+        sb.append(']');
+        sb.append("},\"pools\":[");
+        boolean first = true;
+        for (Map.Entry<String, ConnectionPool> entry : new TreeMap<>(ConnectionPool.getPools()).entrySet()) {
+            ConnectionPool pool = entry.getValue();
+            int open = pool.getOpen();
+            int idle = pool.getIdle();
+            sb.append(first ? "" : ",").append("{\"endpoint\":");
+            // only the server part, a jdbc url may carry credentials after the first ';'
+            Util.quote(sb, entry.getKey().split(";")[0]);
+            sb.append(",\"open\":").append(open)
+                    .append(",\"idle\":").append(idle)
+                    .append(",\"borrowed\":").append(open - idle)
+                    .append(",\"waiting\":").append(pool.getWaiting())
+                    .append(",\"waitingMillis\":").append(pool.getWaitingMillis())
+                    .append(",\"max\":").append(ConnectionManager.MAX_CONNECTIONS).append('}');
+            first = false;
+        }
+        sb.append("],\"gauges\":{");
+        first = true;
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            sb.append(first ? "" : ",");
+            Util.quote(sb, gauge.getKey());
+            sb.append(':').append(gauge.getValue().getAsLong());
+            first = false;
+        }
+        sb.append("},\"checks\":{");
+        first = true;
+        for (Map.Entry<String, BooleanSupplier> check : checks.entrySet()) {
+            sb.append(first ? "" : ",");
+            Util.quote(sb, check.getKey());
+            sb.append(':').append(check.getValue().getAsBoolean());
+            first = false;
+        }
+        sb.append("},\"conflictRates\":{");
+        first = true;
+        for (Map.Entry<String, Double> rate : new TreeMap<>(OptimisticRetry.getConflictRates()).entrySet()) {
+            sb.append(first ? "" : ",");
+            Util.quote(sb, rate.getKey());
+            sb.append(':').append(String.format(Locale.ROOT, "%.4f", rate.getValue()));
+            first = false;
+        }
+        return sb.append("}}").toString();
+    }
+
+    private static void quoteOrNull(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("null");
+        } else {
+            Util.quote(sb, s);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * stop serving and close the probe connection
+     */
+    public synchronized void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        closeProbe();
+    }
+}
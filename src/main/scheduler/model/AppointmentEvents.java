@@ -0,0 +1,218 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.QueryType;
+import scheduler.db.Resilience;
+import scheduler.db.Route;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AppointmentEvents is the append-only history of bookings, availabilities and doses.
+ * Every change to Appointments, Availabilities and Vaccines writes one event in the same transaction,
+ * so the current tables can always be rebuilt from the events (see AppointmentProjection).
+ * Columns which don't apply to an event type are 0.
+ */
+public class AppointmentEvents {
+
+    public enum Type {
+        APPOINTMENT_BOOKED,//appointmentId, date, vaccineId, patientId, caregiverId, slot, slotMinutes,
+                           //doses 1 if the dose came from the allocation of the date
+        APPOINTMENT_CANCELLED,//same columns as the booked event
+        AVAILABILITY_UPLOADED,//date, caregiverId, slotMinutes
+        DOSES_ADDED//vaccineId, doses (negative when doses are taken by a booking)
+    }
+
+    private static final String APPEND = "INSERT INTO AppointmentEvents (Type, AppointmentId, Date, VaccineId, " +
+            "PatientId, CaregiverId, Slot, SlotMinutes, Doses) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final long seq;//position in the log, assigned by the database
+    private final Type type;
+    private final int appointmentId;
+    private final Date date;
+    private final int vaccineId;
+    private final int patientId;
+    private final int caregiverId;
+    private final int slot;
+    private final int slotMinutes;
+    private final int doses;
+
+    public AppointmentEvents(long seq, Type type, int appointmentId, Date date, int vaccineId, int patientId,
+                             int caregiverId, int slot, int slotMinutes, int doses) {
+        this.seq = seq;
+        this.type = type;
+        this.appointmentId = appointmentId;
+        this.date = date;
+        this.vaccineId = vaccineId;
+        this.patientId = patientId;
+        this.caregiverId = caregiverId;
+        this.slot = slot;
+        this.slotMinutes = slotMinutes;
+        this.doses = doses;
+    }
+
+    public static AppointmentEvents booked(int appointmentId, Date date, int vaccineId, int patientId,
+                                           int caregiverId, int slot, int slotMinutes, boolean allocated) {
+        return new AppointmentEvents(0, Type.APPOINTMENT_BOOKED, appointmentId, date, vaccineId, patientId,
+                caregiverId, slot, slotMinutes, allocated ? 1 : 0);
+    }
+
+    public static AppointmentEvents cancelled(int appointmentId, Date date, int vaccineId, int patientId,
+                                              int caregiverId, int slot, int slotMinutes, boolean allocated) {
+        return new AppointmentEvents(0, Type.APPOINTMENT_CANCELLED, appointmentId, date, vaccineId, patientId,
+                caregiverId, slot, slotMinutes, allocated ? 1 : 0);
+    }
+
+    public static AppointmentEvents availabilityUploaded(Date date, int caregiverId, int slotMinutes) {
+        return new AppointmentEvents(0, Type.AVAILABILITY_UPLOADED, 0, date, 0, 0, caregiverId, 0, slotMinutes, 0);
+    }
+
+    public static AppointmentEvents dosesAdded(int vaccineId, int doses) {
+        return new AppointmentEvents(0, Type.DOSES_ADDED, 0, null, vaccineId, 0, 0, 0, 0, doses);
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getAppointmentId() {
+        return appointmentId;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public int getVaccineId() {
+        return vaccineId;
+    }
+
+    public int getPatientId() {
+        return patientId;
+    }
+
+    public int getCaregiverId() {
+        return caregiverId;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public int getSlotMinutes() {
+        return slotMinutes;
+    }
+
+    public int getDoses() {
+        return doses;
+    }
+
+    /**
+     * @return whether the dose of a booked or cancelled appointment came from the allocation of its date
+     */
+    public boolean isAllocated() {
+        return doses != 0;
+    }
+
+    /**
+     * append an event using the connection of the change it records,
+     * so the event and the change commit or roll back together
+     * @param con connection of the current transaction
+     * @param event the event
+     * @throws SQLException sql execution exception
+     */
+    public static void append(Connection con, AppointmentEvents event) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(APPEND);
+        bind(statement, event);
+        statement.executeUpdate();
+    }
+
+    /**
+     * append several events with one batched statement, see append
+     * @param con connection of the current transaction
+     * @param events events in log order
+     * @throws SQLException sql execution exception
+     */
+    public static void appendAll(Connection con, List<AppointmentEvents> events) throws SQLException {
+        PreparedStatement statement = con.prepareStatement(APPEND);
+        for (AppointmentEvents event : events) {
+            bind(statement, event);
+            statement.addBatch();
+        }
+        statement.executeBatch();
+    }
+
+    private static void bind(PreparedStatement statement, AppointmentEvents event) throws SQLException {
+        statement.setString(1, event.type.name());
+        statement.setInt(2, event.appointmentId);
+        if (event.date == null) {
+            statement.setNull(3, Types.DATE);
+        } else {
+            statement.setDate(3, event.date);
+        }
+        statement.setInt(4, event.vaccineId);
+        statement.setInt(5, event.patientId);
+        statement.setInt(6, event.caregiverId);
+        statement.setInt(7, event.slot);
+        statement.setInt(8, event.slotMinutes);
+        statement.setInt(9, event.doses);
+    }
+
+    /**
+     * get the events of one shard in log order, every shard has its own log and Seq:
+     * events of appointments and availabilities are on the shard of their date, dose events on the main database
+     * @param shard shard number, 0 for the main database
+     * @param seq only events after this sequence number are returned, 0 for all events
+     * @return a list containing events
+     * @throws SQLException sql execution exception
+     */
+    public static List<AppointmentEvents> readAfter(int shard, long seq) throws SQLException {
+        return Resilience.read(() -> tryReadAfter(shard, seq));
+    }
+
+    /**
+     * one attempt of readAfter, retried by Resilience.read after transient faults
+     */
+    private static List<AppointmentEvents> tryReadAfter(int shard, long seq) throws SQLException {
+        ConnectionManager cm = ConnectionManager.forShard(shard, Route.READ_ONLY);
+        Connection con = cm.createConnection();
+
+        String readAfter = "SELECT Seq, Type, AppointmentId, Date, VaccineId, PatientId, CaregiverId, Slot, " +
+                "SlotMinutes, Doses FROM AppointmentEvents WHERE Seq > ? ORDER BY Seq";
+        List<AppointmentEvents> events = new ArrayList<>();
+        try {
+            PreparedStatement statement = QueryType.SCAN.apply(con.prepareStatement(readAfter));
+            statement.setLong(1, seq);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                events.add(new AppointmentEvents(resultSet.getLong("Seq"),
+                        Type.valueOf(resultSet.getString("Type")),
+                        resultSet.getInt("AppointmentId"),
+                        resultSet.getDate("Date"),
+                        resultSet.getInt("VaccineId"),
+                        resultSet.getInt("PatientId"),
+                        resultSet.getInt("CaregiverId"),
+                        resultSet.getInt("Slot"),
+                        resultSet.getInt("SlotMinutes"),
+                        resultSet.getInt("Doses")));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when reading appointment events!", e);
+        } finally {
+            cm.closeConnection();
+        }
+        return events;
+    }
+}
@@ -0,0 +1,404 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Route;
+import scheduler.db.Shards;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AppointmentProjection is the current state built by folding AppointmentEvents in order:
+ * appointments by id, free slots per (caregiver, date) and doses per vaccine.
+ * It can be saved to a binary snapshot, so a fresh process only folds the events written
+ * after the snapshot instead of re-reading every table, and it can write itself back
+ * to the Appointments, Availabilities and Vaccines tables.
+ * Every shard has its own event log (see AppointmentEvents.readAfter), so the projection keeps one watermark
+ * per shard. The logs don't need a common order: the events of one appointment or caregiver day are all on
+ * the shard of its date, and dose events are all on the main database.
+ * Seq is an identity column, so a transaction which commits after a later one leaves a gap behind the events
+ * already folded for a moment. Gaps are remembered and read again until their event shows up, or until
+ * GAP_MILLIS passed and the seq is taken as one of a rolled back transaction.
+ */
+public class AppointmentProjection {
+
+    private static final int SNAPSHOT_MAGIC = 0x41505334;//"APS4"
+    private static final long GAP_MILLIS = 60_000;//longer than any transaction writing events runs
+    private static final int MAX_GAP = 10_000;//larger jumps are the identity cache skipping ahead after a restart
+    private static ScheduledExecutorService snapshotter = null;
+    private static AppointmentProjection current = null;
+
+    private final long[] lastSeq = new long[Shards.count()];//last event of each shard folded into this projection
+    // per shard, seqs before its lastSeq which were not seen yet, with the time they were first missed
+    private final List<Map<Long, Long>> gaps = new ArrayList<>();
+    private final Map<Integer, AppointmentEvents> appointments = new HashMap<>();
+    // keyed by caregiver id in the high 32 bits and epoch day in the low 32 bits
+    private final Map<Long, Long> freeSlots = new HashMap<>();
+    private final Map<Long, Integer> slotMinutes = new HashMap<>();
+    private final Map<Integer, Integer> doses = new HashMap<>();
+
+    public AppointmentProjection() {
+        for (int shard = 0; shard < lastSeq.length; shard++) {
+            gaps.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * @param shard shard number
+     * @return last event of this shard folded into the projection
+     */
+    public long getLastSeq(int shard) {
+        return lastSeq[shard];
+    }
+
+    public int getAppointmentCount() {
+        return appointments.size();
+    }
+
+    /**
+     * @param vaccineId vaccine id
+     * @return doses left for this vaccine
+     */
+    public int getDoses(int vaccineId) {
+        return doses.getOrDefault(vaccineId, 0);
+    }
+
+    /**
+     * @param caregiverId caregiver id
+     * @param date date
+     * @return bitmap of free slots of this caregiver on this date
+     */
+    public long getFreeSlots(int caregiverId, Date date) {
+        return freeSlots.getOrDefault(key(caregiverId, date.toLocalDate().toEpochDay()), 0L);
+    }
+
+    private static long key(int caregiverId, long epochDay) {
+        return ((long) caregiverId << 32) | (epochDay & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return seqs before the last folded event which are still waited for
+     */
+    public int getGapCount() {
+        int count = 0;
+        for (Map<Long, Long> shard : gaps) {
+            count += shard.size();
+        }
+        return count;
+    }
+
+    /**
+     * fold one event into the projection, events folded before are ignored
+     * events may come after later ones of the same shard if they fill a gap
+     * @param shard shard whose log the event was read from
+     * @param event the event
+     */
+    public void apply(int shard, AppointmentEvents event) {
+        long seq = event.getSeq();
+        Map<Long, Long> missed = gaps.get(shard);
+        if (seq <= lastSeq[shard] && missed.remove(seq) == null) {
+            return;
+        }
+        switch (event.getType()) {
+            case APPOINTMENT_BOOKED: {
+                appointments.put(event.getAppointmentId(), event);
+                long key = key(event.getCaregiverId(), event.getDate().toLocalDate().toEpochDay());
+                freeSlots.put(key, freeSlots.getOrDefault(key, 0L) & ~TimeSlots.bit(event.getSlot()));
+                break;
+            }
+            case APPOINTMENT_CANCELLED: {
+                appointments.remove(event.getAppointmentId());
+                long key = key(event.getCaregiverId(), event.getDate().toLocalDate().toEpochDay());
+                freeSlots.put(key, freeSlots.getOrDefault(key, 0L) | TimeSlots.bit(event.getSlot()));
+                slotMinutes.putIfAbsent(key, event.getSlotMinutes());
+                break;
+            }
+            case AVAILABILITY_UPLOADED: {
+                long key = key(event.getCaregiverId(), event.getDate().toLocalDate().toEpochDay());
+                freeSlots.put(key, TimeSlots.fullDay(event.getSlotMinutes()));
+                slotMinutes.put(key, event.getSlotMinutes());
+                break;
+            }
+            case DOSES_ADDED:
+                doses.merge(event.getVaccineId(), event.getDoses(), Integer::sum);
+                break;
+        }
+        if (seq > lastSeq[shard]) {
+            long now = System.currentTimeMillis();
+            for (long missing = lastSeq[shard] + 1; missing < seq && seq - lastSeq[shard] <= MAX_GAP; missing++) {
+                missed.put(missing, now);
+            }
+            lastSeq[shard] = seq;
+        }
+    }
+
+    /**
+     * fold every event written after the watermark of each shard, and the events of gaps which committed since
+     * gaps older than GAP_MILLIS are given up
+     * @throws SQLException sql execution exception
+     */
+    public void catchUp() throws SQLException {
+        long expired = System.currentTimeMillis() - GAP_MILLIS;
+        for (int shard = 0; shard < lastSeq.length; shard++) {
+            Map<Long, Long> missed = gaps.get(shard);
+            missed.values().removeIf(time -> time < expired);
+            long from = lastSeq[shard];
+            for (long gap : missed.keySet()) {
+                from = Math.min(from, gap - 1);
+            }
+            for (AppointmentEvents event : AppointmentEvents.readAfter(shard, from)) {
+                apply(shard, event);
+            }
+        }
+    }
+
+    /**
+     * write the projection to a binary snapshot file, replacing the old one only when the write is complete
+     * @param path snapshot file
+     * @throws IOException if the file can't be written
+     */
+    public void save(Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(lastSeq.length);
+            for (int shard = 0; shard < lastSeq.length; shard++) {
+                out.writeLong(lastSeq[shard]);
+                out.writeInt(gaps.get(shard).size());
+                for (long gap : gaps.get(shard).keySet()) {
+                    out.writeLong(gap);
+                }
+            }
+            out.writeInt(appointments.size());
+            for (AppointmentEvents e : appointments.values()) {
+                out.writeLong(e.getSeq());
+                out.writeInt(e.getAppointmentId());
+                out.writeLong(e.getDate().toLocalDate().toEpochDay());
+                out.writeInt(e.getVaccineId());
+                out.writeInt(e.getPatientId());
+                out.writeInt(e.getCaregiverId());
+                out.writeInt(e.getSlot());
+                out.writeInt(e.getSlotMinutes());
+                out.writeInt(e.getDoses());
+            }
+            out.writeInt(freeSlots.size());
+            for (Map.Entry<Long, Long> entry : freeSlots.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue());
+                out.writeInt(slotMinutes.getOrDefault(entry.getKey(), TimeSlots.DEFAULT_SLOT_MINUTES));
+            }
+            out.writeInt(doses.size());
+            for (Map.Entry<Integer, Integer> entry : doses.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * read a projection from a binary snapshot file
+     * @param path snapshot file
+     * @return the projection as of the snapshot
+     * @throws IOException if the file can't be read, is not a snapshot or was taken with other shards
+     */
+    public static AppointmentProjection load(Path path) throws IOException {
+        AppointmentProjection projection = new AppointmentProjection();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not an appointment snapshot: " + path);
+            }
+            int shards = in.readInt();
+            if (shards != Shards.count()) {
+                throw new IOException("Appointment snapshot was taken with " + shards + " shards: " + path);
+            }
+            // gaps wait another GAP_MILLIS from now, the process may have been down for longer
+            long now = System.currentTimeMillis();
+            for (int shard = 0; shard < shards; shard++) {
+                projection.lastSeq[shard] = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    projection.gaps.get(shard).put(in.readLong(), now);
+                }
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long seq = in.readLong();
+                int id = in.readInt();
+                Date date = Date.valueOf(LocalDate.ofEpochDay(in.readLong()));
+                AppointmentEvents e = new AppointmentEvents(seq, AppointmentEvents.Type.APPOINTMENT_BOOKED, id, date,
+                        in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                projection.appointments.put(id, e);
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long key = in.readLong();
+                projection.freeSlots.put(key, in.readLong());
+                projection.slotMinutes.put(key, in.readInt());
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                projection.doses.put(in.readInt(), in.readInt());
+            }
+        }
+        return projection;
+    }
+
+    /**
+     * rebuild a projection from the snapshot if there is one, then fold the events written after it
+     * @param snapshot snapshot file, may not exist yet
+     * @return the up to date projection
+     * @throws SQLException sql execution exception
+     */
+    public static AppointmentProjection rebuild(Path snapshot) throws SQLException {
+        AppointmentProjection projection = new AppointmentProjection();
+        if (Files.exists(snapshot)) {
+            try {
+                projection = load(snapshot);
+            } catch (IOException e) {
+                // a broken snapshot only costs time, fold every event instead
+                System.err.println("Ignoring appointment snapshot: " + e.getMessage());
+            }
+        }
+        projection.catchUp();
+        return projection;
+    }
+
+    /**
+     * rebuild the projection and keep a snapshot of it up to date in the background
+     * @param snapshot snapshot file
+     * @param minutes minutes between two snapshots
+     * @throws SQLException sql execution exception
+     */
+    public static synchronized void startSnapshots(Path snapshot, int minutes) throws SQLException {
+        if (snapshotter != null) {
+            return;
+        }
+        current = rebuild(snapshot);
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "appointment-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                synchronized (AppointmentProjection.class) {
+                    current.catchUp();
+                    current.save(snapshot);
+                }
+            } catch (SQLException | IOException e) {
+                System.err.println("Error occurred when saving appointment snapshot: " + e.getMessage());
+            }
+        }, minutes, minutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @return the projection kept by startSnapshots, null if snapshots are not running
+     */
+    public static synchronized AppointmentProjection getCurrent() {
+        return current;
+    }
+
+    /**
+     * replace the Appointments and Availabilities rows and the Vaccines doses with this projection,
+     * use after an outage to rebuild the current tables from the event history, see the RestoreTables variable
+     * every shard gets the rows of its dates in a transaction of its own, the doses go with the main database,
+     * a restore which failed on one shard can simply be run again
+     * holds the class lock, so the snapshot thread doesn't fold events into the projection meanwhile
+     * @throws SQLException sql execution exception
+     */
+    public void restoreTables() throws SQLException {
+        synchronized (AppointmentProjection.class) {
+            List<List<AppointmentEvents>> shardAppointments = new ArrayList<>();
+            List<List<Long>> shardDays = new ArrayList<>();//keys of freeSlots
+            for (int shard = 0; shard < lastSeq.length; shard++) {
+                shardAppointments.add(new ArrayList<>());
+                shardDays.add(new ArrayList<>());
+            }
+            for (AppointmentEvents e : appointments.values()) {
+                shardAppointments.get(Shards.shardOf(e.getDate())).add(e);
+            }
+            for (long key : freeSlots.keySet()) {
+                shardDays.get(Shards.shardOf(Date.valueOf(LocalDate.ofEpochDay((int) key)))).add(key);
+            }
+            for (int shard = 0; shard < lastSeq.length; shard++) {
+                writeTables(shard, shardAppointments.get(shard), shardDays.get(shard));
+            }
+            CapacitySummary.invalidate();
+        }
+    }
+
+    private void writeTables(int shard, List<AppointmentEvents> rows, List<Long> days) throws SQLException {
+        ConnectionManager cm = ConnectionManager.forShard(shard, Route.READ_WRITE);
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            con.prepareStatement("DELETE FROM Appointments").executeUpdate();
+            con.prepareStatement("SET IDENTITY_INSERT Appointments ON").execute();
+            PreparedStatement appointment = con.prepareStatement("INSERT INTO Appointments " +
+                    "(id, Date, VaccineId, PatientId, CaregiverId, Slot, SlotMinutes, Allocated) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+            for (AppointmentEvents e : rows) {
+                appointment.setInt(1, e.getAppointmentId());
+                appointment.setDate(2, e.getDate());
+                appointment.setInt(3, e.getVaccineId());
+                appointment.setInt(4, e.getPatientId());
+                appointment.setInt(5, e.getCaregiverId());
+                appointment.setInt(6, e.getSlot());
+                appointment.setInt(7, e.getSlotMinutes());
+                appointment.setBoolean(8, e.isAllocated());
+                appointment.addBatch();
+            }
+            appointment.executeBatch();
+            con.prepareStatement("SET IDENTITY_INSERT Appointments OFF").execute();
+
+            con.prepareStatement("DELETE FROM Availabilities").executeUpdate();
+            PreparedStatement availability = con.prepareStatement(
+                    "INSERT INTO Availabilities (Time, CaregiverId, SlotMinutes, Slots) VALUES (?, ?, ?, ?)");
+            for (long key : days) {
+                availability.setDate(1, Date.valueOf(LocalDate.ofEpochDay((int) key)));
+                availability.setInt(2, (int) (key >>> 32));
+                availability.setInt(3, slotMinutes.getOrDefault(key, TimeSlots.DEFAULT_SLOT_MINUTES));
+                availability.setLong(4, freeSlots.get(key));
+                availability.addBatch();
+            }
+            availability.executeBatch();
+
+            if (shard == 0) {
+                PreparedStatement vaccine = con.prepareStatement("UPDATE Vaccines SET Doses = ?, Version = Version + 1 WHERE Id = ?");
+                for (Map.Entry<Integer, Integer> entry : doses.entrySet()) {
+                    vaccine.setInt(1, entry.getValue());
+                    vaccine.setInt(2, entry.getKey());
+                    vaccine.addBatch();
+                }
+                vaccine.executeBatch();
+            }
+            con.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            con.rollback();
+            throw new SQLException("Error occurred when restoring tables from appointment events!", e);
+        } finally {
+            con.setAutoCommit(true);
+            cm.closeConnection();
+        }
+    }
+}
@@ -1,11 +1,25 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.OptimisticRetry;
+import scheduler.db.QueryType;
+import scheduler.db.Resilience;
+import scheduler.db.Route;
+import scheduler.db.Shards;
+import scheduler.feed.ChangeEvent;
+import scheduler.feed.ChangeFeed;
+import scheduler.util.IntArrayList;
+import scheduler.util.IntHashSet;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.sql.Date;
+import java.time.LocalTime;
 
 /**
  * @author Caleb_
@@ -15,11 +29,17 @@ import java.sql.Date;
  */
 public class Appointments {
 
+    // rows per multi-row statement, SQL Server allows at most 2100 parameters
+    private static final int BATCH_ROWS = 300;
+
     private int id;//primary key and auto increment by 1
     private String patient;//patient name in appointment
     private String careGiver;//caregiver name in appointment
     private Date date;//date in appointment
     private String vaccine;//vaccine name in appointment
+    private int slot;//slot index on that date, see TimeSlots
+    private int slotMinutes;//slot length of caregiver when booked
+    private boolean allocated;//whether the dose came from the allocation of the date, see DoseAllocations
 
     /**
      * Construct an Appointment with patient caregiver usernames and date and vaccine name
@@ -29,13 +49,17 @@ public class Appointments {
      * @param careGiver
      * @param date
      * @param vaccine
+     * @param slot
+     * @param slotMinutes
      */
-    public Appointments(int id, String patient, String careGiver, Date date, String vaccine) {
+    public Appointments(int id, String patient, String careGiver, Date date, String vaccine, int slot, int slotMinutes) {
         this.id = id;
         this.patient = patient;
         this.careGiver = careGiver;
         this.date = date;
         this.vaccine = vaccine;
+        this.slot = slot;
+        this.slotMinutes = slotMinutes;
     }
 
     /**
@@ -61,63 +85,485 @@ public class Appointments {
 
     public int getID() {return id;}
 
+    public int getSlot() {
+        return slot;
+    }
+
+    public int getSlotMinutes() {
+        return slotMinutes;
+    }
+
+    public boolean isAllocated() {
+        return allocated;
+    }
+
+    public LocalTime getStartTime() {
+        return TimeSlots.startTime(slot, slotMinutes);
+    }
+
     /**
-     * get max id in appointments table, use to show user what his/her new appointment id is
-     * @return max appointment id, which is the newest appointment id
-     * @throws SQLException sql execute exception
+     * Add a new appointment to the Appointment table
+     * @param patient
+     * @param careGiver
+     * @param date
+     * @param vaccine
+     * @param slot slot index on that date
+     * @param slotMinutes slot length of the caregiver
+     * @param allocated whether the dose was reserved from the allocation of the date, a cancel gives it back there
+     * @throws SQLException sql execution exception
+     * @return return the new appointment id
      */
-    public int getMaxID() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
+    public int addAppointment(String patient, String careGiver, Date date, String vaccine, int slot, int slotMinutes,
+                              boolean allocated) throws SQLException {
+        return Resilience.write(() -> tryAddAppointment(patient, careGiver, date, vaccine, slot, slotMinutes, allocated));
+    }
+
+    /**
+     * one attempt of addAppointment, its outcome reported to the breakers by Resilience.write
+     */
+    private int tryAddAppointment(String patient, String careGiver, Date date, String vaccine, int slot, int slotMinutes,
+                                  boolean allocated) throws SQLException {
+        // the names are looked up on the main database, before the shard connection is borrowed
+        int vaccineId = IdDictionary.VACCINES.idOf(vaccine);
+        int patientId = IdDictionary.PATIENTS.idOf(patient);
+        int caregiverId = IdDictionary.CAREGIVERS.idOf(careGiver);
+        ConnectionManager cm = ConnectionManager.forDate(date, Route.READ_WRITE);
         Connection con = cm.createConnection();
 
-        String getMaxID = "SELECT MAX(id) FROM Appointments";
+        String addAppointment = "INSERT INTO Appointments (Date, VaccineId, PatientId, CaregiverId, Slot, SlotMinutes, " +
+                "Allocated) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        int id;
         try {
-            PreparedStatement statement = con.prepareStatement(getMaxID);
-            ResultSet resultSet = statement.executeQuery();
+            con.setAutoCommit(false);
+            PreparedStatement statement = con.prepareStatement(addAppointment, Statement.RETURN_GENERATED_KEYS);
+            statement.setDate(1, date);
+            statement.setInt(2, vaccineId);
+            statement.setInt(3, patientId);
+            statement.setInt(4, caregiverId);
+            statement.setInt(5, slot);
+            statement.setInt(6, slotMinutes);
+            statement.setBoolean(7, allocated);
+            statement.executeUpdate();
+            ResultSet keys = statement.getGeneratedKeys();
+            id = keys.next() ? keys.getInt(1) : 0;
+            AppointmentEvents.append(con, AppointmentEvents.booked(id, date, vaccineId, patientId,
+                    caregiverId, slot, slotMinutes, allocated));
+            con.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            con.rollback();
+            throw new SQLException("Error occurred when adding new appointment!", e);
+        } finally {
+            con.setAutoCommit(true);
+            cm.closeConnection();
+        }
+        CapacitySummary.changed(date, 0, 0, 1);
+        ChangeFeed.publish("Appointments", ChangeEvent.Op.INSERT, ChangeEvent.columns("id", id, "Date", date,
+                "VaccineId", vaccineId, "PatientId", patientId, "CaregiverId", caregiverId,
+                "Slot", slot, "SlotMinutes", slotMinutes));
+        return id;
+    }
 
-            int id = 0;
-            if (resultSet.next()) {
-                id = resultSet.getInt(1);
+    /**
+     * reserve one appointment for each patient on the same date and vaccine in one transaction,
+     * doses and caregiver slots are taken once for the whole group and the appointments are inserted
+     * with one multi-row statement, nothing is reserved if any check fails
+     * caregivers are used round-robin in random order so the group is spread over them
+     * caregiver rows are read without locks and written with a compare-and-swap on their Version,
+     * the whole transaction is run again if another booking changed one of them in between
+     * when the date is on another shard than the doses, the doses commit first and the shard after it,
+     * so a booked appointment never misses its dose: if the shard can't commit, the doses are given back,
+     * and a crash in between only leaves doses taken without appointments
+     * @param patients patient names, each at most once
+     * @param date date
+     * @param vaccine vaccine name
+     * @return the new appointments in the same order as patients
+     * @throws SQLException sql execution exception
+     * @throws IllegalArgumentException if a patient doesn't exist or already has an appointment,
+     * or there are not enough doses or free slots on this date
+     */
+    public List<Appointments> addAppointments(List<String> patients, Date date, String vaccine) throws SQLException {
+        int n = patients.size();
+        int vaccineId = IdDictionary.VACCINES.idOf(vaccine);
+        IntArrayList patientIds = new IntArrayList(n);
+        for (String patient : patients) {
+            int patientId = IdDictionary.PATIENTS.find(patient);
+            if (patientId == -1) {
+                throw new IllegalArgumentException("Patient " + patient + " doesn't exist!");
+            }
+            patientIds.add(patientId);
+        }
+        return OptimisticRetry.run("Availabilities",
+                () -> tryAddAppointments(patients, patientIds, date, vaccine, vaccineId));
+    }
+
+    /**
+     * one attempt of addAppointments
+     * @return the new appointments, null if a caregiver row changed since it was read
+     * @throws SQLException sql execution exception
+     */
+    private List<Appointments> tryAddAppointments(List<String> patients, IntArrayList patientIds, Date date,
+                                                  String vaccine, int vaccineId) throws SQLException {
+        int n = patients.size();
+        // appointments and availabilities live on the shard of the date, doses on the main database
+        ConnectionManager cm = ConnectionManager.forDate(date, Route.READ_WRITE);
+        Connection con = cm.createConnection();
+        boolean sharded = Shards.shardOf(date) != 0;
+        ConnectionManager dosesCm = sharded ? new ConnectionManager() : cm;
+        Connection dosesCon = sharded ? dosesCm.createConnection() : con;
+        boolean allocated;
+        int remainingDoses;
+        List<long[]> caregivers = new ArrayList<>();//caregiver id, slot length, free slots, free slots before, version
+        long[][] assigned = new long[n][];//caregiver id, slot length, slot for each patient
+        Map<Integer, Integer> ids = new HashMap<>();
+        List<AppointmentEvents> events = new ArrayList<>();
+        SQLException shardFailure = null;
+        try {
+            con.setAutoCommit(false);
+            dosesCon.setAutoCommit(false);
+            //check 1: none of the patients has an appointment, on any shard
+            if (Shards.count() > 1) {
+                // the patient rows stay locked until the doses commit, after the shard commit,
+                // so two bookings of one patient on different shards can't both pass the check below
+                lockPatients(dosesCon, patientIds);
+                // the shards this transaction holds a connection of are read on it, no second one is borrowed
+                Map<Integer, Connection> held = new HashMap<>();
+                held.put(0, dosesCon);
+                held.put(Shards.shardOf(date), con);
+                for (int booked : Shards.gather(Route.READ_WRITE, c -> firstBooked(c, patientIds, false), held)) {
+                    if (booked != -1) {
+                        throw new IllegalArgumentException("Patient " +
+                                patients.get(patientIds.indexOf(booked)) + " already has an appointment!");
+                    }
+                }
+            }
+            int booked = firstBooked(con, patientIds, true);
+            if (booked != -1) {
+                throw new IllegalArgumentException("Patient " +
+                        patients.get(patientIds.indexOf(booked)) + " already has an appointment!");
+            }
+            //check 2: the vaccine has n doses, allocated to this date or not allocated to any date
+            int needed = n;
+            allocated = DoseAllocations.getAllocation(dosesCon, vaccine, date) != null;
+            if (allocated) {
+                if (!DoseAllocations.reserve(dosesCon, vaccine, date, n)) {
+                    throw new IllegalArgumentException("Not enough doses are allocated to this date!");
+                }
+            } else {
+                needed += DoseAllocations.getOutstanding(dosesCon, vaccine);
             }
-            return id;
+            String takeDoses = "UPDATE Vaccines SET Doses = Doses - ?, Version = Version + 1 OUTPUT inserted.Doses " +
+                    "WHERE Id = ? AND Doses >= ?";
+            PreparedStatement doses = QueryType.POINT.apply(dosesCon.prepareStatement(takeDoses));
+            doses.setInt(1, n);
+            doses.setInt(2, vaccineId);
+            doses.setInt(3, needed);
+            ResultSet dosesLeft = doses.executeQuery();
+            if (!dosesLeft.next()) {
+                throw new IllegalArgumentException("Not enough doses of " + vaccine + " are available!");
+            }
+            remainingDoses = dosesLeft.getInt(1);
+
+            //check 3: caregivers have n free slots on this date, not locked, see the update below
+            String findFree = "SELECT CaregiverId, SlotMinutes, Slots, Version FROM Availabilities " +
+                    "WHERE Time = ? AND Slots <> 0";
+            PreparedStatement free = QueryType.LIST.apply(con.prepareStatement(findFree));
+            free.setDate(1, date);
+            ResultSet resultSet = free.executeQuery();
+            while (resultSet.next()) {
+                long freeSlots = resultSet.getLong(3);
+                caregivers.add(new long[] {resultSet.getInt(1), resultSet.getInt(2), freeSlots, freeSlots,
+                        resultSet.getInt(4)});
+            }
+            Collections.shuffle(caregivers, new Random());
+            int count = 0;
+            boolean progress = true;
+            while (count < n && progress) {
+                progress = false;
+                for (int i = 0; i < caregivers.size() && count < n; i++) {
+                    long[] caregiver = caregivers.get(i);
+                    if (caregiver[2] == 0) {
+                        continue;
+                    }
+                    int slot = TimeSlots.firstFree(caregiver[2]);
+                    caregiver[2] &= ~TimeSlots.bit(slot);
+                    assigned[count++] = new long[] {caregiver[0], caregiver[1], slot};
+                    progress = true;
+                }
+            }
+            if (count < n) {
+                throw new IllegalArgumentException("Only " + count + " caregiver slots are free on this date!");
+            }
+            PreparedStatement slots = con.prepareStatement("UPDATE Availabilities SET Slots = ?, " +
+                    "Version = Version + 1 WHERE CaregiverId = ? AND Time = ? AND Version = ?");
+            for (long[] caregiver : caregivers) {
+                if (caregiver[2] == caregiver[3]) {
+                    continue;
+                }
+                slots.setLong(1, caregiver[2]);
+                slots.setInt(2, (int) caregiver[0]);
+                slots.setDate(3, date);
+                slots.setInt(4, (int) caregiver[4]);
+                slots.addBatch();
+            }
+            for (int updated : slots.executeBatch()) {
+                if (updated == 0) {
+                    // another booking or cancel changed this caregiver since we read it
+                    con.rollback();
+                    dosesCon.rollback();
+                    DoseAllocations.invalidate();
+                    return null;
+                }
+            }
+
+            //insert the appointments, the OUTPUT order is not the VALUES order so match ids by patient
+            for (int from = 0; from < n; from += BATCH_ROWS) {
+                int rows = Math.min(BATCH_ROWS, n - from);
+                // Allocated is the same for the whole batch and written inline, so a row keeps 6 parameters
+                String addAppointments = "INSERT INTO Appointments (Date, VaccineId, PatientId, CaregiverId, Slot, " +
+                        "SlotMinutes, Allocated) OUTPUT inserted.id, inserted.PatientId VALUES " +
+                        placeholders(rows, "(?, ?, ?, ?, ?, ?, " + (allocated ? 1 : 0) + ")");
+                PreparedStatement insert = QueryType.LIST.apply(con.prepareStatement(addAppointments));
+                for (int i = 0; i < rows; i++) {
+                    long[] a = assigned[from + i];
+                    insert.setDate(i * 6 + 1, date);
+                    insert.setInt(i * 6 + 2, vaccineId);
+                    insert.setInt(i * 6 + 3, patientIds.get(from + i));
+                    insert.setInt(i * 6 + 4, (int) a[0]);
+                    insert.setInt(i * 6 + 5, (int) a[2]);
+                    insert.setInt(i * 6 + 6, (int) a[1]);
+                }
+                ResultSet keys = insert.executeQuery();
+                while (keys.next()) {
+                    ids.put(keys.getInt(2), keys.getInt(1));
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                long[] a = assigned[i];
+                events.add(AppointmentEvents.booked(ids.get(patientIds.get(i)), date, vaccineId, patientIds.get(i),
+                        (int) a[0], (int) a[2], (int) a[1], allocated));
+            }
+            AppointmentEvents.appendAll(con, events);
+            AppointmentEvents.append(dosesCon, AppointmentEvents.dosesAdded(vaccineId, -n));
+            if (sharded) {
+                // the doses commit first, a failure or a crash before the shard commits leaves doses taken
+                // without appointments, which costs capacity but never books an appointment without its dose
+                dosesCon.commit();
+                try {
+                    con.commit();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    shardFailure = e;
+                    try {
+                        con.rollback();
+                    } catch (SQLException rollbackFailure) {
+                        // the transaction is gone with the failed commit, the doses are given back below
+                    }
+                }
+            } else {
+                con.commit();
+            }
+        } catch (IllegalArgumentException e) {
+            con.rollback();
+            dosesCon.rollback();
+            DoseAllocations.invalidate();
+            throw e;
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new SQLException("Error occurred when getting Max ID!");
+            con.rollback();
+            dosesCon.rollback();
+            DoseAllocations.invalidate();
+            throw new SQLException("Error occurred when adding batch appointments!", e);
         } finally {
+            con.setAutoCommit(true);
             cm.closeConnection();
+            if (sharded) {
+                dosesCon.setAutoCommit(true);
+                dosesCm.closeConnection();
+            }
+        }
+        if (shardFailure != null) {
+            // the doses committed but the appointments didn't, give the doses back
+            DoseAllocations.invalidate();
+            Resilience.write(() -> {
+                giveDosesBack(vaccineId, date, n, allocated);
+                return null;
+            });
+            throw new SQLException("Error occurred when adding batch appointments!", shardFailure);
         }
+        // the appointments are booked from here on, nothing below may report the batch as failed
+        CapacitySummary.changed(date, 0, -n, n);
+        CapacitySummary.dosesChanged(vaccineId, -n);
+        if (allocated) {
+            CapacitySummary.allocationChanged(vaccineId, date, -n);
+        }
+        IntHashSet caregiverIds = new IntHashSet();
+        for (long[] caregiver : caregivers) {
+            caregiverIds.add((int) caregiver[0]);
+        }
+        // the names are read once, after the connections are given back, retried rather than failing the booking
+        Resilience.read(() -> {
+            IdDictionary.preload(null, caregiverIds, null);
+            return null;
+        });
+        List<Appointments> appointments = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            long[] a = assigned[i];
+            int id = ids.get(patientIds.get(i));
+            appointments.add(new Appointments(id, patients.get(i), IdDictionary.CAREGIVERS.nameOf((int) a[0]),
+                    date, vaccine, (int) a[2], (int) a[1]));
+            ChangeFeed.publish("Appointments", ChangeEvent.Op.INSERT, ChangeEvent.columns("id", id, "Date", date,
+                    "VaccineId", vaccineId, "PatientId", patientIds.get(i), "CaregiverId", (int) a[0],
+                    "Slot", (int) a[2], "SlotMinutes", (int) a[1]));
+            Availabilities.publishSlot(date, (int) a[0], (int) a[2], true);
+        }
+        for (long[] caregiver : caregivers) {
+            // caregiver is no longer free on this day once the last slot is taken
+            if (caregiver[2] == 0 && caregiver[3] != 0) {
+                AvailabilityCalendar.update(IdDictionary.CAREGIVERS.nameOf((int) caregiver[0]), date, false);
+            }
+        }
+        ChangeFeed.publish("Vaccines", ChangeEvent.Op.UPDATE, ChangeEvent.columns("Id", vaccineId,
+                "Name", vaccine, "Doses", remainingDoses));
+        return appointments;
     }
 
     /**
-     * Add a new appointment to the Appointment table
-     * @param patient
-     * @param careGiver
-     * @param date
-     * @param vaccine
-     * @throws SQLException sql execution exception
-     * @return return the new appointment id(max id)
+     * lock the rows of the patients on the main database until the transaction ends
+     * @param con connection to the main database, in a transaction
+     * @param patientIds patient ids
+     * @throws SQLException sql execute exception
+     */
+    private static void lockPatients(Connection con, IntArrayList patientIds) throws SQLException {
+        int n = patientIds.size();
+        for (int from = 0; from < n; from += BATCH_ROWS) {
+            int rows = Math.min(BATCH_ROWS, n - from);
+            PreparedStatement lock = QueryType.LIST.apply(con.prepareStatement("SELECT Id FROM Patients " +
+                    "WITH (UPDLOCK, HOLDLOCK) WHERE Id IN (" + placeholders(rows, "?") + ")"));
+            for (int i = 0; i < rows; i++) {
+                lock.setInt(i + 1, patientIds.get(from + i));
+            }
+            lock.executeQuery().close();
+        }
+    }
+
+    /**
+     * give back the doses of a batch which committed on the main database while its appointments didn't
+     * commit on their shard: add them to the vaccine, release them from the allocation of the date if they
+     * were reserved there and write a doses added event, in one transaction
+     * @param vaccineId vaccine id
+     * @param date date of the batch
+     * @param n number of doses
+     * @param allocated whether the doses were reserved from the allocation of the date
+     * @throws SQLException sql execute exception
      */
-    public int addAppointment(String patient, String careGiver, Date date, String vaccine) throws SQLException {
+    private static void giveDosesBack(int vaccineId, Date date, int n, boolean allocated) throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
-
-        String addAppointment = "INSERT INTO Appointments VALUES (?, ?, ?, ?)";
         try {
-            PreparedStatement statement = con.prepareStatement(addAppointment);
-            statement.setDate(1, date);
-            statement.setString(2, vaccine);
-            statement.setString(3, patient);
-            statement.setString(4, careGiver);
-            statement.executeUpdate();
-            return getMaxID();
+            con.setAutoCommit(false);
+            PreparedStatement doses = con.prepareStatement(
+                    "UPDATE Vaccines SET Doses = Doses + ?, Version = Version + 1 WHERE Id = ?");
+            doses.setInt(1, n);
+            doses.setInt(2, vaccineId);
+            doses.executeUpdate();
+            if (allocated) {
+                PreparedStatement release = con.prepareStatement("UPDATE DoseAllocations SET Reserved = Reserved - ? " +
+                        "WHERE VaccineId = ? AND Date = ? AND Reserved >= ?");
+                release.setInt(1, n);
+                release.setInt(2, vaccineId);
+                release.setDate(3, date);
+                release.setInt(4, n);
+                release.executeUpdate();
+            }
+            AppointmentEvents.append(con, AppointmentEvents.dosesAdded(vaccineId, n));
+            con.commit();
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new SQLException("Error occurred when adding new appointment!");
+            con.rollback();
+            throw new SQLException("Error occurred when giving back the doses of batch appointments!", e);
         } finally {
+            con.setAutoCommit(true);
             cm.closeConnection();
         }
     }
 
+    /**
+     * find a patient of the list who already has an appointment
+     * @param con connection of one shard
+     * @param patientIds patient ids
+     * @param lock keep the rows (and the gaps between them) locked until the transaction ends
+     * @return id of the first booked patient found, -1 if none of them has an appointment
+     * @throws SQLException sql execute exception
+     */
+    private static int firstBooked(Connection con, IntArrayList patientIds, boolean lock) throws SQLException {
+        int n = patientIds.size();
+        for (int from = 0; from < n; from += BATCH_ROWS) {
+            int rows = Math.min(BATCH_ROWS, n - from);
+            String findBooked = "SELECT PatientId FROM Appointments " + (lock ? "WITH (UPDLOCK, HOLDLOCK) " : "") +
+                    "WHERE PatientId IN (" + placeholders(rows, "?") + ")";
+            PreparedStatement booked = QueryType.LIST.apply(con.prepareStatement(findBooked));
+            for (int i = 0; i < rows; i++) {
+                booked.setInt(i + 1, patientIds.get(from + i));
+            }
+            ResultSet resultSet = booked.executeQuery();
+            if (resultSet.next()) {
+                return resultSet.getInt(1);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param count number of copies
+     * @param placeholder placeholder of one value or row
+     * @return count placeholders separated by commas
+     */
+    private static String placeholders(int count, String placeholder) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(placeholder);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * check whether a patient has an appointment, without reading the appointment
+     * @param patient patient name
+     * @return true if the patient has at least one appointment
+     * @throws SQLException sql execute exception
+     */
+    public boolean hasAppointment(String patient) throws SQLException {
+        return Resilience.read(() -> tryHasAppointment(patient));
+    }
+
+    /**
+     * one attempt of hasAppointment, retried by Resilience.read after transient faults
+     */
+    private boolean tryHasAppointment(String patient) throws SQLException {
+        int patientId = IdDictionary.PATIENTS.find(patient);
+        String exists = "SELECT CASE WHEN EXISTS (SELECT 1 FROM Appointments WHERE PatientId = ?) THEN 1 ELSE 0 END";
+        try {
+            for (boolean found : Shards.gather(Route.READ_WRITE, con -> {
+                PreparedStatement statement = QueryType.POINT.apply(con.prepareStatement(exists));
+                statement.setInt(1, patientId);
+                ResultSet resultSet = statement.executeQuery();
+                return resultSet.next() && resultSet.getInt(1) == 1;
+            })) {
+                if (found) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when checking patient's appointment!", e);
+        }
+    }
+
     /**
      * show all appointments for a given user
      * @param type determine if current user is a patient or caregiver
@@ -126,35 +572,43 @@ public class Appointments {
      * @throws SQLException sql execute exception
      */
     public List<Appointments> showAppointments(String type, String username) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        List<Appointments> appointments = new ArrayList<>();
+        return Resilience.read(() -> tryShowAppointments(type, username));
+    }
 
+    /**
+     * one attempt of showAppointments, retried by Resilience.read after transient faults
+     */
+    private List<Appointments> tryShowAppointments(String type, String username) throws SQLException {
         String findAppointment;
+        int userId;
         if (type.equals("Patient")) {
-            findAppointment = "SELECT * FROM Appointments WHERE PatientName = ?";
+            findAppointment = "SELECT id, Date, VaccineId, PatientId, CaregiverId, Slot, SlotMinutes, Allocated " +
+                    "FROM Appointments WHERE PatientId = ?";
+            userId = IdDictionary.PATIENTS.find(username);
         } else {
-            findAppointment = "SELECT * FROM Appointments WHERE CaregiverName = ?";
+            findAppointment = "SELECT id, Date, VaccineId, PatientId, CaregiverId, Slot, SlotMinutes, Allocated " +
+                    "FROM Appointments WHERE CaregiverId = ?";
+            userId = IdDictionary.CAREGIVERS.find(username);
         }
         try {
-            PreparedStatement statement = con.prepareStatement(findAppointment);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            while (resultSet.next()) {
-                int id = resultSet.getInt("id");
-                String caregiver = resultSet.getString("CaregiverName");
-                String patient = resultSet.getString("PatientName");
-                String vaccine = resultSet.getString("Vaccine");
-                java.sql.Date date = resultSet.getDate("Date");
-                appointments.add(new Appointments(id, patient, caregiver, date, vaccine));
-            }
-            return appointments;
+            // a user's appointments can be on every date range shard, which have no name tables to join
+            List<AppointmentEvents> rows = new ArrayList<>();
+            for (List<AppointmentEvents> shard : Shards.gather(Route.READ_ONLY, con -> {
+                List<AppointmentEvents> found = new ArrayList<>();
+                PreparedStatement statement = QueryType.LIST.apply(con.prepareStatement(findAppointment));
+                statement.setInt(1, userId);
+                ResultSet resultSet = statement.executeQuery();
+                while (resultSet.next()) {
+                    found.add(row(resultSet.getInt("id"), resultSet));
+                }
+                return found;
+            })) {
+                rows.addAll(shard);
+            }
+            return named(rows);
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new SQLException("Error occurred when showing appointment for user!");
-        } finally {
-            cm.closeConnection();
+            throw new SQLException("Error occurred when showing appointment for user!", e);
         }
     }
 
@@ -165,73 +619,186 @@ public class Appointments {
      * @throws SQLException sql execute exception
      */
     public Appointments getInfo(int id) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
+        return Resilience.read(() -> tryGetInfo(id));
+    }
+
+    /**
+     * one attempt of getInfo, retried by Resilience.read after transient faults
+     */
+    private Appointments tryGetInfo(int id) throws SQLException {
+        ConnectionManager cm = ConnectionManager.forShard(Shards.shardOfId(id), Route.READ_WRITE);
         Connection con = cm.createConnection();
 
-        String select = "SELECT * FROM Appointments WHERE id = ?";
+        String select = "SELECT Date, VaccineId, PatientId, CaregiverId, Slot, SlotMinutes, Allocated " +
+                "FROM Appointments WHERE id = ?";
+        AppointmentEvents row;
         try {
-            PreparedStatement selectStatement = con.prepareStatement(select);
+            PreparedStatement selectStatement = QueryType.POINT.apply(con.prepareStatement(select));
             selectStatement.setInt(1, id);
             ResultSet resultSet = selectStatement.executeQuery();
-
-            Appointments app = null;
-
-            while (resultSet.next()) {
-                String caregiver = resultSet.getString("CaregiverName");
-                String patient = resultSet.getString("PatientName");
-                String vaccine = resultSet.getString("Vaccine");
-                Date date = resultSet.getDate("Date");
-                app = new Appointments(id, patient, caregiver, date, vaccine);
+            if (!resultSet.next()) {
+                return null;
             }
-            return app;
+            row = row(id, resultSet);
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new SQLException("Error occurred when getting appointment information!");
+            throw new SQLException("Error occurred when getting appointment information!", e);
         } finally {
             cm.closeConnection();
         }
+        // the names are looked up after the shard connection is back
+        return named(Collections.singletonList(row)).get(0);
+    }
+
+    /**
+     * @return the ids of an appointment row, kept as a booked event until the names are looked up
+     */
+    private static AppointmentEvents row(int id, ResultSet resultSet) throws SQLException {
+        return AppointmentEvents.booked(id, resultSet.getDate("Date"), resultSet.getInt("VaccineId"),
+                resultSet.getInt("PatientId"), resultSet.getInt("CaregiverId"), resultSet.getInt("Slot"),
+                resultSet.getInt("SlotMinutes"), resultSet.getBoolean("Allocated"));
+    }
+
+    /**
+     * turn appointment rows into appointments with names, looking up every unknown name in one round trip
+     */
+    private static List<Appointments> named(List<AppointmentEvents> rows) throws SQLException {
+        IntHashSet patients = new IntHashSet();
+        IntHashSet caregivers = new IntHashSet();
+        IntHashSet vaccines = new IntHashSet();
+        for (AppointmentEvents row : rows) {
+            patients.add(row.getPatientId());
+            caregivers.add(row.getCaregiverId());
+            vaccines.add(row.getVaccineId());
+        }
+        IdDictionary.preload(patients, caregivers, vaccines);
+        List<Appointments> appointments = new ArrayList<>(rows.size());
+        for (AppointmentEvents row : rows) {
+            Appointments appointment = new Appointments(row.getAppointmentId(),
+                    IdDictionary.PATIENTS.nameOf(row.getPatientId()), IdDictionary.CAREGIVERS.nameOf(row.getCaregiverId()),
+                    row.getDate(), IdDictionary.VACCINES.nameOf(row.getVaccineId()), row.getSlot(), row.getSlotMinutes());
+            appointment.allocated = row.isAllocated();
+            appointments.add(appointment);
+        }
+        return appointments;
     }
 
     /**
-     * cancel an appointment by id
+     * cancel an appointment by id, the appointment is kept in AppointmentEvents as a cancelled event
      * @param id id of appointment we want to cancel
+     * @return true if this call deleted the appointment, false if it was gone already,
+     * e.g. cancelled by another session, only then may the caller give its slot and dose back
      * @throws SQLException sql execute exception
      */
-    public void cancelAppointment(int id) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
+    public boolean cancelAppointment(int id) throws SQLException {
+        return Resilience.write(() -> tryCancelAppointment(id));
+    }
+
+    /**
+     * one attempt of cancelAppointment, its outcome reported to the breakers by Resilience.write
+     */
+    private boolean tryCancelAppointment(int id) throws SQLException {
+        ConnectionManager cm = ConnectionManager.forShard(Shards.shardOfId(id), Route.READ_WRITE);
         Connection con = cm.createConnection();
-        String cancel = "DELETE FROM Appointments WHERE id = ?";
+        String cancel = "DELETE FROM Appointments OUTPUT deleted.Date, deleted.VaccineId, deleted.PatientId, " +
+                "deleted.CaregiverId, deleted.Slot, deleted.SlotMinutes, deleted.Allocated WHERE id = ?";
+        AppointmentEvents cancelled = null;
         try {
-            PreparedStatement cancelStatement = con.prepareStatement(cancel);
+            con.setAutoCommit(false);
+            PreparedStatement cancelStatement = QueryType.POINT.apply(con.prepareStatement(cancel));
             cancelStatement.setInt(1, id);
-            cancelStatement.executeUpdate();
+            ResultSet resultSet = cancelStatement.executeQuery();
+            if (resultSet.next()) {
+                cancelled = AppointmentEvents.cancelled(id, resultSet.getDate("Date"),
+                        resultSet.getInt("VaccineId"), resultSet.getInt("PatientId"),
+                        resultSet.getInt("CaregiverId"), resultSet.getInt("Slot"), resultSet.getInt("SlotMinutes"),
+                        resultSet.getBoolean("Allocated"));
+                AppointmentEvents.append(con, cancelled);
+            }
+            con.commit();
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new SQLException("Error occurred when canceling appointment!");
+            con.rollback();
+            throw new SQLException("Error occurred when canceling appointment!", e);
         } finally {
+            con.setAutoCommit(true);
             cm.closeConnection();
         }
+        if (cancelled != null) {
+            CapacitySummary.changed(cancelled.getDate(), 0, 0, -1);
+            ChangeFeed.publish("Appointments", ChangeEvent.Op.DELETE, ChangeEvent.columns("id", id,
+                    "Date", cancelled.getDate(), "VaccineId", cancelled.getVaccineId(),
+                    "PatientId", cancelled.getPatientId(), "CaregiverId", cancelled.getCaregiverId(),
+                    "Slot", cancelled.getSlot(), "SlotMinutes", cancelled.getSlotMinutes()));
+        }
+        return cancelled != null;
     }
 
     /**
-     * show all id in our appointments table, use to check if user's input id is valid
-     * @return list containing ids
+     * check if an appointment exists, use to check if user's input id is valid
+     * @param id appointment id
+     * @return whether the appointment exists
      * @throws SQLException sql execute exception
      */
-    public List<Integer> showAllID() throws SQLException {//get a connection with database
-        ConnectionManager cm = new ConnectionManager();
+    public boolean exists(int id) throws SQLException {
+        return Resilience.read(() -> tryExists(id));
+    }
+
+    /**
+     * one attempt of exists, retried by Resilience.read after transient faults
+     */
+    private boolean tryExists(int id) throws SQLException {
+        ConnectionManager cm = ConnectionManager.forShard(Shards.shardOfId(id), Route.READ_WRITE);
         Connection con = cm.createConnection();
-        List<Integer> list = new ArrayList<Integer>();
         try {
-            PreparedStatement statement = con.prepareStatement("SELECT id FROM Appointments");
-            ResultSet resultSet = statement.executeQuery();
-            while (resultSet.next()) {
-                list.add(resultSet.getInt("id"));
-            }
-            return list;
+            PreparedStatement statement = QueryType.POINT.apply(con.prepareStatement(
+                    "SELECT 1 FROM Appointments WHERE id = ?"));
+            statement.setInt(1, id);
+            return statement.executeQuery().next();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when searching for ID!", e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    /**
+     * check if an appointment belongs to a user, use to check if user owns an appointment
+     * one keyed lookup on the shard of the id
+     * @param id appointment id
+     * @param type determine if current user is a patient or caregiver
+     * @param username username we want to check
+     * @return whether the appointment exists and is the user's
+     * @throws SQLException sql execute exception
+     */
+    public boolean belongsTo(int id, String type, String username) throws SQLException {
+        return Resilience.read(() -> tryBelongsTo(id, type, username));
+    }
+
+    /**
+     * one attempt of belongsTo, retried by Resilience.read after transient faults
+     */
+    private boolean tryBelongsTo(int id, String type, String username) throws SQLException {
+        String findOwned;
+        int userId;
+        if (type.equals("Patient")) {
+            findOwned = "SELECT 1 FROM Appointments WHERE id = ? AND PatientId = ?";
+            userId = IdDictionary.PATIENTS.find(username);
+        } else {
+            findOwned = "SELECT 1 FROM Appointments WHERE id = ? AND CaregiverId = ?";
+            userId = IdDictionary.CAREGIVERS.find(username);
+        }
+        ConnectionManager cm = ConnectionManager.forShard(Shards.shardOfId(id), Route.READ_WRITE);
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = QueryType.POINT.apply(con.prepareStatement(findOwned));
+            statement.setInt(1, id);
+            statement.setInt(2, userId);
+            return statement.executeQuery().next();
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new SQLException("Error occurred when searching for all ID!");
+            throw new SQLException("Error occurred when searching for user's ID!", e);
         } finally {
             cm.closeConnection();
         }
@@ -1,6 +1,14 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.OptimisticRetry;
+import scheduler.db.QueryType;
+import scheduler.db.Resilience;
+import scheduler.db.Route;
+import scheduler.feed.ChangeEvent;
+import scheduler.feed.ChangeFeed;
+import scheduler.util.IntArrayList;
+import scheduler.util.IntHashSet;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -18,12 +26,18 @@ import java.sql.Date;
  */
 public class Availabilities {
 
+    private static final int DUPLICATE_KEY = 2627;//sql server error of a primary key violation
+
     private Date Time;
     private String Username;
+    private int SlotMinutes;//slot length of this day
+    private long Slots;//bitmap of free slots, see TimeSlots
 
-    public Availabilities(Date time, String username) {
+    public Availabilities(Date time, String username, int slotMinutes, long slots) {
         Time = time;
         Username = username;
+        SlotMinutes = slotMinutes;
+        Slots = slots;
     }
 
     public Availabilities() {
@@ -37,79 +51,242 @@ public class Availabilities {
         return Username;
     }
 
+    public int getSlotMinutes() {
+        return SlotMinutes;
+    }
+
+    public long getSlots() {
+        return Slots;
+    }
+
     /**
-     * get all available caregiver in a given date
+     * get all available caregiver in a given date, caregivers with every slot booked are left out
      * @param date date we wanna get information from
-     * @return a list containing available caregivers
+     * @return a list containing available caregivers and their free slots
      * @throws SQLException sql execution exception
      */
-    public List<Availabilities> getAvailabilities(Date date)  throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
+    public List<Availabilities> getAvailabilities(Date date) throws SQLException {
+        return Resilience.read(() -> tryGetAvailabilities(date));
+    }
+
+    /**
+     * one attempt of getAvailabilities, retried by Resilience.read after transient faults
+     */
+    private List<Availabilities> tryGetAvailabilities(Date date) throws SQLException {
+        ConnectionManager cm = ConnectionManager.forDate(date, Route.READ_ONLY);
         Connection con = cm.createConnection();
 
         List<Availabilities> availabilities = new ArrayList<Availabilities>();
-        String findAvailabilites = "SELECT * FROM Availabilities WHERE Time = ?";
+        // the shard has no Caregivers table to join, names are looked up at once after the connection is back
+        IntArrayList caregiverIds = new IntArrayList();
+        String findAvailabilites = "SELECT Time, CaregiverId, SlotMinutes, Slots FROM Availabilities WHERE Time = ? AND Slots <> 0";
         try {
-            PreparedStatement statement = con.prepareStatement(findAvailabilites);
+            PreparedStatement statement = QueryType.LIST.apply(con.prepareStatement(findAvailabilites));
             statement.setDate(1, date);
             ResultSet resultSet = statement.executeQuery();
             while (resultSet.next()) {
-                String username = resultSet.getString("Username");
+                caregiverIds.add(resultSet.getInt("CaregiverId"));
                 Date time = resultSet.getDate("Time");
-                availabilities.add(new Availabilities(time, username));
+                int slotMinutes = resultSet.getInt("SlotMinutes");
+                long slots = resultSet.getLong("Slots");
+                availabilities.add(new Availabilities(time, null, slotMinutes, slots));
             }
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new SQLException("Error occurred when getting caregiver's availabilities");
+            throw new SQLException("Error occurred when getting caregiver's availabilities", e);
         } finally {
             cm.closeConnection();
         }
+        IntHashSet unique = new IntHashSet(caregiverIds.size());
+        for (int caregiverId : caregiverIds.toArray()) {
+            unique.add(caregiverId);
+        }
+        IdDictionary.preload(null, unique, null);
+        for (int i = 0; i < availabilities.size(); i++) {
+            availabilities.get(i).Username = IdDictionary.CAREGIVERS.nameOf(caregiverIds.get(i));
+        }
         return availabilities;
     }
 
     /**
-     * remove a caregiver from the availability table on one day
+     * remove a caregiver from one slot on one day
+     * the slot is only cleared if it is still free, so two reservations can't get the same slot:
+     * the slot bit is the compare value of a compare-and-swap, finer than the Version column,
+     * so bookings of different slots of one caregiver don't conflict
      * @param name caregiver name we wanna remove
      * @param date date we wanna remove on
+     * @param slot slot index we wanna remove on
+     * @return true if the slot was free and is now taken, false if it was taken first or the day was removed
      * @throws SQLException sql execution exception
      */
-    public void removeCaregiver(String name, Date date) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
+    public boolean removeCaregiver(String name, Date date, int slot) throws SQLException {
+        return Resilience.write(() -> tryRemoveCaregiver(name, date, slot));
+    }
+
+    /**
+     * one attempt of removeCaregiver, its outcome reported to the breakers by Resilience.write
+     */
+    private boolean tryRemoveCaregiver(String name, Date date, int slot) throws SQLException {
+        int caregiverId = IdDictionary.CAREGIVERS.idOf(name);
+        ConnectionManager cm = ConnectionManager.forDate(date, Route.READ_WRITE);
         Connection con = cm.createConnection();
 
-        String removeCaregiver = "DELETE FROM Availabilities WHERE Username = ? AND TIME = ?";
+        String removeCaregiver = "UPDATE Availabilities SET Slots = Slots & ?, Version = Version + 1 " +
+                "OUTPUT inserted.Slots WHERE CaregiverId = ? AND Time = ? AND (Slots & ?) <> 0";
+        long slots;
         try {
-            PreparedStatement statement = con.prepareStatement(removeCaregiver);
-            statement.setString(1, name);
-            statement.setDate(2, date);
-            statement.executeUpdate();
+            PreparedStatement statement = QueryType.POINT.apply(con.prepareStatement(removeCaregiver));
+            statement.setLong(1, ~TimeSlots.bit(slot));
+            statement.setInt(2, caregiverId);
+            statement.setDate(3, date);
+            statement.setLong(4, TimeSlots.bit(slot));
+            ResultSet resultSet = statement.executeQuery();
+            if (!resultSet.next()) {
+                OptimisticRetry.conflict("Availabilities");
+                return false;
+            }
+            OptimisticRetry.success("Availabilities");
+            slots = resultSet.getLong(1);
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new SQLException("Error occurred when removing caregiver from Availabilities!");
+            throw new SQLException("Error occurred when removing caregiver from Availabilities!", e);
         } finally {
             cm.closeConnection();
         }
+        // the slot is taken from here on, nothing below may report the removal as failed
+        CapacitySummary.changed(date, 0, -1, 0);
+        publishSlot(date, caregiverId, slot, true);
+        // caregiver is no longer free on this day once the last slot is taken
+        if (slots == 0) {
+            AvailabilityCalendar.update(name, date, false);
+        }
+        return true;
     }
 
     /**
-     * upload a caregiver and date to our availabilities table
+     * upload a caregiver and date to our availabilities table with every slot of the day free
      * @param username caregiver's name
      * @param date date
+     * @param slotMinutes caregiver's slot length
      * @throws SQLException sql execution exception
      */
-    public void upLoadAvailability(String username, Date date) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
+    public void upLoadAvailability(String username, Date date, int slotMinutes) throws SQLException {
+        Resilience.write(() -> {
+            tryUpLoadAvailability(username, date, slotMinutes);
+            return null;
+        });
+    }
+
+    /**
+     * one attempt of upLoadAvailability, its outcome reported to the breakers by Resilience.write
+     */
+    private void tryUpLoadAvailability(String username, Date date, int slotMinutes) throws SQLException {
+        int caregiverId = IdDictionary.CAREGIVERS.idOf(username);
+        ConnectionManager cm = ConnectionManager.forDate(date, Route.READ_WRITE);
         Connection con = cm.createConnection();
 
-        String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
+        String addAvailability = "INSERT INTO Availabilities (Time, CaregiverId, SlotMinutes, Slots) VALUES (?, ?, ?, ?)";
         try {
+            con.setAutoCommit(false);
             PreparedStatement statement = con.prepareStatement(addAvailability);
             statement.setDate(1, date);
-            statement.setString(2, username);
+            statement.setInt(2, caregiverId);
+            statement.setInt(3, slotMinutes);
+            statement.setLong(4, TimeSlots.fullDay(slotMinutes));
             statement.executeUpdate();
+            AppointmentEvents.append(con, AppointmentEvents.availabilityUploaded(date, caregiverId, slotMinutes));
+            con.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            con.rollback();
+            throw new SQLException("Error occurred when uploading Availability!", e);
+        } finally {
+            con.setAutoCommit(true);
+            cm.closeConnection();
+        }
+        CapacitySummary.changed(date, 1, Long.bitCount(TimeSlots.fullDay(slotMinutes)), 0);
+        ChangeFeed.publish("Availabilities", ChangeEvent.Op.INSERT, ChangeEvent.columns("Time", date,
+                "CaregiverId", caregiverId, "SlotMinutes", slotMinutes, "Slots", TimeSlots.fullDay(slotMinutes)));
+        AvailabilityCalendar.update(username, date, true);
+    }
+
+    /**
+     * give one slot back to a caregiver on one day, use in cancel
+     * insert the day again if it was removed from our availabilities table
+     * @param username caregiver's name
+     * @param date date
+     * @param slot slot index
+     * @param slotMinutes slot length of the cancelled appointment
+     * @throws SQLException sql execution exception
+     */
+    public void addSlot(String username, Date date, int slot, int slotMinutes) throws SQLException {
+        int caregiverId = IdDictionary.CAREGIVERS.idOf(username);
+        boolean inserted = OptimisticRetry.run("Availabilities", () -> tryAddSlot(caregiverId, date, slot, slotMinutes));
+        // the slot is back from here on, nothing below may report the cancel as failed
+        if (inserted) {
+            // the day was gone, the caregiver counts for it again
+            CapacitySummary.changed(date, 1, 1, 0);
+            ChangeFeed.publish("Availabilities", ChangeEvent.Op.INSERT, ChangeEvent.columns("Time", date,
+                    "CaregiverId", caregiverId, "SlotMinutes", slotMinutes, "Slots", TimeSlots.bit(slot)));
+        } else {
+            CapacitySummary.changed(date, 0, 1, 0);
+            publishSlot(date, caregiverId, slot, false);
+        }
+        AvailabilityCalendar.update(username, date, true);
+    }
+
+    /**
+     * publish that one slot of a caregiver was taken or given back,
+     * every update of Availabilities on the feed has this shape: the key of the day plus TakenSlot or FreedSlot,
+     * a day which is new is published as an insert with its whole Slots bitmap instead
+     * @param date date
+     * @param caregiverId caregiver id
+     * @param slot slot index
+     * @param taken true if the slot was taken, false if it was given back
+     */
+    static void publishSlot(Date date, int caregiverId, int slot, boolean taken) {
+        ChangeFeed.publish("Availabilities", ChangeEvent.Op.UPDATE, ChangeEvent.columns("Time", date,
+                "CaregiverId", caregiverId, taken ? "TakenSlot" : "FreedSlot", slot));
+    }
+
+    /**
+     * one attempt of addSlot
+     * @return true if the day was inserted again, false if the slot was set on the existing day,
+     * null if the day was inserted by someone else between our update and our insert,
+     * the update will find it on the next attempt
+     * @throws SQLException sql execution exception
+     */
+    private Boolean tryAddSlot(int caregiverId, Date date, int slot, int slotMinutes) throws SQLException {
+        ConnectionManager cm = ConnectionManager.forDate(date, Route.READ_WRITE);
+        Connection con = cm.createConnection();
+
+        String addSlot = "UPDATE Availabilities SET Slots = Slots | ?, Version = Version + 1 WHERE CaregiverId = ? AND Time = ?";
+        String insertDay = "INSERT INTO Availabilities (Time, CaregiverId, SlotMinutes, Slots) VALUES (?, ?, ?, ?)";
+        try {
+            PreparedStatement statement = con.prepareStatement(addSlot);
+            statement.setLong(1, TimeSlots.bit(slot));
+            statement.setInt(2, caregiverId);
+            statement.setDate(3, date);
+            if (statement.executeUpdate() == 0) {
+                PreparedStatement insert = con.prepareStatement(insertDay);
+                insert.setDate(1, date);
+                insert.setInt(2, caregiverId);
+                insert.setInt(3, slotMinutes);
+                insert.setLong(4, TimeSlots.bit(slot));
+                try {
+                    insert.executeUpdate();
+                } catch (SQLException e) {
+                    if (e.getErrorCode() == DUPLICATE_KEY) {
+                        return null;
+                    }
+                    throw e;
+                }
+                return true;
+            }
+            return false;
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new SQLException("Error occurred when uploading Availability!");
+            throw new SQLException("Error occurred when giving back caregiver's slot!", e);
         } finally {
             cm.closeConnection();
         }
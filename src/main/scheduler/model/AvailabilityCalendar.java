@@ -0,0 +1,295 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.QueryType;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AvailabilityCalendar keeps one bit per day for a caregiver over a rolling horizon,
+ * bit i is set when the caregiver still has a free slot on start + i days.
+ * The whole calendar is HORIZON_DAYS / 64 longs and is stored in the CaregiverCalendars table
+ * as one BINARY column, instead of one Availabilities object per day.
+ */
+public class AvailabilityCalendar {
+
+    public static final int WORDS = 6;
+    public static final int HORIZON_DAYS = WORDS * 64;
+    public static final int BYTES = WORDS * 8;
+
+    // in-memory copy of the CaregiverCalendars table, keyed by caregiver id
+    private static final Map<Integer, AvailabilityCalendar> calendars = new HashMap<>();
+    private static boolean loaded = false;
+
+    private final String username;
+    private LocalDate start;//first day of the horizon
+    private final long[] words;
+
+    public AvailabilityCalendar(String username, LocalDate start) {
+        this(username, start, new long[WORDS]);
+    }
+
+    private AvailabilityCalendar(String username, LocalDate start, long[] words) {
+        this.username = username;
+        this.start = start;
+        this.words = words;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public LocalDate getStart() {
+        return start;
+    }
+
+    /**
+     * @param day a day
+     * @return bit index of this day, -1 if it is outside the horizon
+     */
+    private int index(LocalDate day) {
+        long i = ChronoUnit.DAYS.between(start, day);
+        return i < 0 || i >= HORIZON_DAYS ? -1 : (int) i;
+    }
+
+    /**
+     * mark a day as available, days outside the horizon are ignored
+     * @param day a day
+     * @return whether the day is inside the horizon
+     */
+    public boolean set(LocalDate day) {
+        int i = index(day);
+        if (i < 0) {
+            return false;
+        }
+        words[i >>> 6] |= 1L << i;
+        return true;
+    }
+
+    /**
+     * mark a day as not available
+     * @param day a day
+     */
+    public void clear(LocalDate day) {
+        int i = index(day);
+        if (i >= 0) {
+            words[i >>> 6] &= ~(1L << i);
+        }
+    }
+
+    /**
+     * @param day a day
+     * @return whether the caregiver is available on this day
+     */
+    public boolean isSet(LocalDate day) {
+        int i = index(day);
+        return i >= 0 && (words[i >>> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * @return number of available days in the horizon
+     */
+    public int cardinality() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * keep only the days which are also available in another calendar
+     * @param other calendar with the same start day
+     * @throws IllegalArgumentException if the two calendars start on different days
+     */
+    public void and(AvailabilityCalendar other) {
+        if (!start.equals(other.start)) {
+            throw new IllegalArgumentException("Calendars start on different days!");
+        }
+        for (int i = 0; i < WORDS; i++) {
+            words[i] &= other.words[i];
+        }
+    }
+
+    /**
+     * move the start of the horizon forward, days before the new start are dropped
+     * @param day new start day, does nothing if it is not after the current start
+     */
+    public void rollTo(LocalDate day) {
+        long shift = ChronoUnit.DAYS.between(start, day);
+        if (shift <= 0) {
+            return;
+        }
+        int wordShift = (int) Math.min(shift >>> 6, WORDS);
+        int bitShift = (int) (shift & 63);
+        for (int i = 0; i < WORDS; i++) {
+            int from = i + wordShift;
+            long low = from < WORDS ? words[from] : 0;
+            long high = from + 1 < WORDS ? words[from + 1] : 0;
+            words[i] = bitShift == 0 ? low : (low >>> bitShift) | (high << (64 - bitShift));
+        }
+        start = day;
+    }
+
+    /**
+     * @return the calendar bits as BYTES big-endian bytes
+     */
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(BYTES);
+        for (long word : words) {
+            buffer.putLong(word);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param username caregiver name
+     * @param start first day of the horizon
+     * @param bytes bytes from toBytes(), shorter arrays are padded with zeros
+     * @return the calendar
+     */
+    public static AvailabilityCalendar fromBytes(String username, LocalDate start, byte[] bytes) {
+        byte[] padded = new byte[BYTES];
+        if (bytes != null) {
+            System.arraycopy(bytes, 0, padded, 0, Math.min(bytes.length, BYTES));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(padded);
+        long[] words = new long[WORDS];
+        for (int i = 0; i < WORDS; i++) {
+            words[i] = buffer.getLong();
+        }
+        return new AvailabilityCalendar(username, start, words);
+    }
+
+    /**
+     * find days on which at least n of the given calendars are available
+     * @param calendars calendars to count, each is rolled to the given start day first
+     * @param from first day to count
+     * @param n number of caregivers needed
+     * @return days with at least n available caregivers in date order
+     */
+    public static List<LocalDate> daysWithAtLeast(Collection<AvailabilityCalendar> calendars, LocalDate from, int n) {
+        int[] counts = new int[HORIZON_DAYS];
+        for (AvailabilityCalendar calendar : calendars) {
+            calendar.rollTo(from);
+            int offset = (int) ChronoUnit.DAYS.between(from, calendar.start);
+            for (int w = 0; w < WORDS; w++) {
+                long word = calendar.words[w];
+                while (word != 0) {
+                    int day = offset + (w << 6) + Long.numberOfTrailingZeros(word);
+                    if (day < HORIZON_DAYS) {
+                        counts[day]++;
+                    }
+                    word &= word - 1;
+                }
+            }
+        }
+        List<LocalDate> days = new ArrayList<>();
+        for (int i = 0; i < HORIZON_DAYS; i++) {
+            if (counts[i] >= n) {
+                days.add(from.plusDays(i));
+            }
+        }
+        return days;
+    }
+
+    /**
+     * load every calendar from the CaregiverCalendars table into memory, only done once
+     * @throws SQLException sql execution exception
+     */
+    private static synchronized void ensureLoaded() throws SQLException {
+        if (loaded) {
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String findAll = "SELECT k.CaregiverId, c.Username, k.StartDate, k.Days " +
+                "FROM CaregiverCalendars k JOIN Caregivers c ON c.Id = k.CaregiverId";
+        try {
+            PreparedStatement statement = QueryType.SCAN.apply(con.prepareStatement(findAll));
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                int caregiverId = resultSet.getInt("CaregiverId");
+                String username = IdDictionary.CAREGIVERS.known(caregiverId, resultSet.getString("Username"));
+                LocalDate start = resultSet.getDate("StartDate").toLocalDate();
+                byte[] days = resultSet.getBytes("Days");
+                calendars.put(caregiverId, fromBytes(username, start, days));
+            }
+            loaded = true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when loading caregiver calendars!", e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    /**
+     * mark a caregiver as available or not on a given date and save the calendar
+     * @param username caregiver name
+     * @param date date
+     * @param available whether the caregiver still has a free slot on this date
+     * @throws SQLException sql execution exception
+     */
+    public static synchronized void update(String username, Date date, boolean available) throws SQLException {
+        ensureLoaded();
+        LocalDate today = LocalDate.now();
+        int caregiverId = IdDictionary.CAREGIVERS.idOf(username);
+        AvailabilityCalendar calendar = calendars.get(caregiverId);
+        boolean exists = calendar != null;
+        if (!exists) {
+            calendar = new AvailabilityCalendar(username, today);
+        }
+        calendar.rollTo(today);
+        if (available) {
+            calendar.set(date.toLocalDate());
+        } else {
+            calendar.clear(date.toLocalDate());
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String save = exists ? "UPDATE CaregiverCalendars SET StartDate = ?, Days = ? WHERE CaregiverId = ?"
+                : "INSERT INTO CaregiverCalendars (StartDate, Days, CaregiverId) VALUES (?, ?, ?)";
+        try {
+            PreparedStatement statement = con.prepareStatement(save);
+            statement.setDate(1, Date.valueOf(calendar.start));
+            statement.setBytes(2, calendar.toBytes());
+            statement.setInt(3, caregiverId);
+            statement.executeUpdate();
+            calendars.put(caregiverId, calendar);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            // the in-memory copy may be ahead of the table now, reload it next time
+            calendars.clear();
+            loaded = false;
+            throw new SQLException("Error occurred when saving caregiver calendar!", e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    /**
+     * find upcoming days on which at least n caregivers have a free slot
+     * @param n number of caregivers needed
+     * @return days in date order, starting from today
+     * @throws SQLException sql execution exception
+     */
+    public static synchronized List<LocalDate> searchDays(int n) throws SQLException {
+        ensureLoaded();
+        return daysWithAtLeast(calendars.values(), LocalDate.now(), n);
+    }
+}
@@ -0,0 +1,764 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.QueryType;
+import scheduler.db.Route;
+import scheduler.db.Shards;
+import scheduler.db.WriterLock;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+
+/**
+ * BookingEngine holds free slots, dose counters and appointments in memory and books without a database round trip.
+ * Every claim is a compare-and-swap on one atomic value, so concurrent bookings never wait on a lock:
+ * a slot is taken by clearing its bit in the caregiver's AtomicLong bitmap of that day,
+ * a dose by decrementing the vaccine's unallocated counter or the allocation of that date,
+ * and a patient by putting a placeholder into the patient index before anything else.
+ * The checks run in the same order as Scheduler.reserve/cancel and give the same outcomes.
+ * Bookings and cancels are handed to a BookingWriter which writes them to the existing tables in the background.
+ * The engine must be the only writer of appointments, so run one Scheduler per database with it:
+ * an engine loaded from the tables holds the WriterLock exclusively and can't be loaded next to any other writer.
+ */
+public class BookingEngine {
+
+    public enum Outcome {
+        BOOKED,
+        CANCELLED,
+        HAS_APPOINTMENT,//the patient already has an appointment
+        NO_CAREGIVER,//no caregiver has a free slot that day
+        NO_VACCINE,//the vaccine doesn't exist
+        NO_DOSES,//no dose is left for this date
+        NO_SLOT,//no caregiver has a free slot at the given time
+        NOT_FOUND,//no appointment has this id
+        NOT_YOURS//the appointment belongs to someone else
+    }
+
+    /**
+     * one appointment held by the engine, ids of patient, caregiver and vaccine as in IdDictionary
+     */
+    public static class Booking {
+        private final int id;
+        private final int patientId;
+        private final int caregiverId;
+        private final int vaccineId;
+        private final long epochDay;
+        private final int slot;
+        private final int slotMinutes;
+
+        Booking(int id, int patientId, int caregiverId, int vaccineId, long epochDay, int slot, int slotMinutes) {
+            this.id = id;
+            this.patientId = patientId;
+            this.caregiverId = caregiverId;
+            this.vaccineId = vaccineId;
+            this.epochDay = epochDay;
+            this.slot = slot;
+            this.slotMinutes = slotMinutes;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public int getPatientId() {
+            return patientId;
+        }
+
+        public int getCaregiverId() {
+            return caregiverId;
+        }
+
+        public int getVaccineId() {
+            return vaccineId;
+        }
+
+        public LocalDate getDay() {
+            return LocalDate.ofEpochDay(epochDay);
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
+        public int getSlotMinutes() {
+            return slotMinutes;
+        }
+
+        /**
+         * @return the booking as an Appointments object with names instead of ids
+         * @throws SQLException sql execution exception
+         */
+        public Appointments toAppointment() throws SQLException {
+            return new Appointments(id, IdDictionary.PATIENTS.nameOf(patientId),
+                    IdDictionary.CAREGIVERS.nameOf(caregiverId), Date.valueOf(getDay()),
+                    IdDictionary.VACCINES.nameOf(vaccineId), slot, slotMinutes);
+        }
+    }
+
+    /**
+     * outcome of reserve or cancel and the booking it was about, null if there is none
+     */
+    public static class Result {
+        private final Outcome outcome;
+        private final Booking booking;
+
+        private Result(Outcome outcome, Booking booking) {
+            this.outcome = outcome;
+            this.booking = booking;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        public Booking getBooking() {
+            return booking;
+        }
+    }
+
+    /**
+     * free slots of one caregiver on one day
+     */
+    private static class Slots {
+        final int caregiverId;
+        final int slotMinutes;
+        final AtomicLong free;
+
+        Slots(int caregiverId, int slotMinutes, long free) {
+            this.caregiverId = caregiverId;
+            this.slotMinutes = slotMinutes;
+            this.free = new AtomicLong(free);
+        }
+    }
+
+    // placeholder in the patient index while a reservation of this patient is running
+    private static final Booking PENDING = new Booking(0, 0, 0, 0, 0, -1, 0);
+    private static final Slots[] NO_SLOTS = new Slots[0];
+
+    // keyed by caregiver id in the high 32 bits and epoch day in the low 32 bits
+    private final ConcurrentHashMap<Long, Slots> slots = new ConcurrentHashMap<>();
+    // every caregiver of one day, copied on upload which is rare next to bookings
+    private final ConcurrentHashMap<Long, AtomicReference<Slots[]>> days = new ConcurrentHashMap<>();
+    // doses of each vaccine which are not allocated to any date
+    private final ConcurrentHashMap<Integer, AtomicInteger> freeDoses = new ConcurrentHashMap<>();
+    // keyed like slots by vaccine id and epoch day, allocated doses in the high 32 bits and reserved in the low 32 bits
+    private final ConcurrentHashMap<Long, AtomicLong> allocations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Booking> appointments = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Booking> patients = new ConcurrentHashMap<>();
+    private final AtomicInteger[] nextIds;//next appointment id of each shard
+    private final BookingWriter writer;//null to keep everything in memory only
+    private WriterLock ownership = null;//held while an engine loaded from the tables is open
+    private ScheduledExecutorService rebalancer = null;
+
+    private final LongAdder booked = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * an empty engine, use upload, addDoses and allocate to fill it
+     * @param writer writes bookings to the tables, null to keep them in memory only
+     */
+    public BookingEngine(BookingWriter writer) {
+        this.writer = writer;
+        if (writer != null) {
+            writer.attach(this);
+        }
+        this.nextIds = new AtomicInteger[Shards.count()];
+        for (int shard = 0; shard < nextIds.length; shard++) {
+            nextIds[shard] = new AtomicInteger(shard * Shards.ID_RANGE + 1);
+        }
+    }
+
+    private static long key(int id, long epochDay) {
+        return ((long) id << 32) | (epochDay & 0xFFFFFFFFL);
+    }
+
+    /**
+     * load availabilities, doses, allocations and appointments from every shard into a new engine,
+     * after taking the WriterLock exclusively so no other process writes bookings while it runs
+     * @param writer writes bookings to the tables, null to keep them in memory only
+     * @return the engine, close it to release the WriterLock
+     * @throws WriterLock.Taken if another process is booking appointments
+     * @throws SQLException sql execution exception
+     */
+    public static BookingEngine load(BookingWriter writer) throws SQLException {
+        WriterLock ownership = WriterLock.acquire(true);
+        BookingEngine engine = new BookingEngine(writer);
+        engine.ownership = ownership;
+        // doses and allocations are in the main database, availabilities and appointments on every shard
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            PreparedStatement statement = QueryType.SCAN.apply(con.prepareStatement(
+                    "SELECT Id, Doses FROM Vaccines"));
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                engine.addDoses(resultSet.getInt("Id"), resultSet.getInt("Doses"));
+            }
+            statement = QueryType.SCAN.apply(con.prepareStatement(
+                    "SELECT VaccineId, Date, Allocated, Reserved FROM DoseAllocations"));
+            resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                int vaccineId = resultSet.getInt("VaccineId");
+                int allocated = resultSet.getInt("Allocated");
+                int reserved = resultSet.getInt("Reserved");
+                long epochDay = resultSet.getDate("Date").toLocalDate().toEpochDay();
+                engine.allocations.put(key(vaccineId, epochDay), new AtomicLong(((long) allocated << 32) | reserved));
+                engine.freeDoses.computeIfAbsent(vaccineId, v -> new AtomicInteger()).addAndGet(reserved - allocated);
+            }
+            // the main database is read on the connection this method holds already
+            List<Integer> shards = Shards.gather(Route.READ_WRITE, shard -> {
+                PreparedStatement query = QueryType.SCAN.apply(shard.prepareStatement(
+                        "SELECT Time, CaregiverId, SlotMinutes, Slots FROM Availabilities"));
+                ResultSet rows = query.executeQuery();
+                while (rows.next()) {
+                    engine.add(new Slots(rows.getInt("CaregiverId"), rows.getInt("SlotMinutes"),
+                            rows.getLong("Slots")), rows.getDate("Time").toLocalDate().toEpochDay());
+                }
+                query = QueryType.SCAN.apply(shard.prepareStatement("SELECT id, Date, VaccineId, PatientId, " +
+                        "CaregiverId, Slot, SlotMinutes FROM Appointments"));
+                rows = query.executeQuery();
+                int maxId = 0;
+                while (rows.next()) {
+                    Booking booking = new Booking(rows.getInt("id"), rows.getInt("PatientId"),
+                            rows.getInt("CaregiverId"), rows.getInt("VaccineId"),
+                            rows.getDate("Date").toLocalDate().toEpochDay(), rows.getInt("Slot"),
+                            rows.getInt("SlotMinutes"));
+                    engine.appointments.put(booking.id, booking);
+                    engine.patients.put(booking.patientId, booking);
+                    maxId = Math.max(maxId, booking.id);
+                }
+                return maxId;
+            }, Collections.singletonMap(0, con));
+            for (int shard = 0; shard < shards.size(); shard++) {
+                if (shards.get(shard) >= engine.nextIds[shard].get()) {
+                    engine.nextIds[shard].set(shards.get(shard) + 1);
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            ownership.close();
+            throw new SQLException("Error occurred when loading the booking engine!", e);
+        } finally {
+            cm.closeConnection();
+        }
+        return engine;
+    }
+
+    /**
+     * add the caregivers of one day, replaces nothing which is already there
+     */
+    private boolean add(Slots day, long epochDay) {
+        if (slots.putIfAbsent(key(day.caregiverId, epochDay), day) != null) {
+            return false;
+        }
+        AtomicReference<Slots[]> caregivers = days.computeIfAbsent(epochDay, d -> new AtomicReference<>(NO_SLOTS));
+        Slots[] current;
+        Slots[] next;
+        do {
+            current = caregivers.get();
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = day;
+        } while (!caregivers.compareAndSet(current, next));
+        return true;
+    }
+
+    /**
+     * make every slot of a caregiver free on one day, use after the day is uploaded to the Availabilities table
+     * @param caregiverId caregiver id
+     * @param day date
+     * @param slotMinutes caregiver's slot length
+     * @return false if the caregiver already uploaded this day
+     */
+    public boolean upload(int caregiverId, LocalDate day, int slotMinutes) {
+        return add(new Slots(caregiverId, slotMinutes, TimeSlots.fullDay(slotMinutes)), day.toEpochDay());
+    }
+
+    /**
+     * add unallocated doses of a vaccine, create the vaccine if it doesn't exist
+     * use after the doses are added to the Vaccines table
+     * @param vaccineId vaccine id
+     * @param doses number of doses
+     */
+    public void addDoses(int vaccineId, int doses) {
+        freeDoses.computeIfAbsent(vaccineId, v -> new AtomicInteger()).addAndGet(doses);
+    }
+
+    /**
+     * set aside unallocated doses of a vaccine for one date, before DoseAllocations.allocate,
+     * the doses are only taken while enough are left, like a booking takes one
+     * @param vaccineId vaccine id
+     * @param day date
+     * @param doses number of doses
+     * @return false if the vaccine has fewer unallocated doses left
+     */
+    public boolean allocate(int vaccineId, LocalDate day, int doses) {
+        if (!takeDoses(freeDoses.computeIfAbsent(vaccineId, v -> new AtomicInteger()), doses)) {
+            return false;
+        }
+        allocations.computeIfAbsent(key(vaccineId, day.toEpochDay()), k -> new AtomicLong())
+                .addAndGet((long) doses << 32);
+        return true;
+    }
+
+    /**
+     * give back doses allocate set aside, use when DoseAllocations.allocate failed
+     * @param vaccineId vaccine id
+     * @param day date
+     * @param doses number of doses
+     */
+    public void unallocate(int vaccineId, LocalDate day, int doses) {
+        allocations.get(key(vaccineId, day.toEpochDay())).addAndGet(-((long) doses << 32));
+        freeDoses.get(vaccineId).addAndGet(doses);
+    }
+
+    /**
+     * reserve an appointment, with the checks and outcomes of Scheduler.reserve
+     * @param patientId patient id
+     * @param vaccineId vaccine id, -1 if the vaccine doesn't exist
+     * @param day date
+     * @param time start time as HH:mm, null for the earliest free slot
+     * @param preferred caregivers to try first, null to try every caregiver in random order
+     * @return BOOKED and the booking, or why nothing was booked
+     * @throws IllegalArgumentException if time is not a valid HH:mm time
+     */
+    public Result reserve(int patientId, int vaccineId, LocalDate day, String time, IntPredicate preferred) {
+        Result result = book(patientId, vaccineId, day, time, preferred);
+        if (result.outcome == Outcome.BOOKED && writer != null) {
+            writer.booked(result.booking, isAllocated(result.booking));
+        }
+        return result;
+    }
+
+    /**
+     * reserve one appointment for each patient on the same date and vaccine,
+     * nothing is kept if one patient can't be booked
+     * @param patientIds patient ids, each at most once
+     * @param vaccineId vaccine id, -1 if the vaccine doesn't exist
+     * @param day date
+     * @return BOOKED for every patient, or if one failed the results up to and including the failed one,
+     * the bookings before it are given back then
+     */
+    public List<Result> reserveAll(List<Integer> patientIds, int vaccineId, LocalDate day) {
+        List<Result> results = new ArrayList<>();
+        for (int patientId : patientIds) {
+            Result result = book(patientId, vaccineId, day, null, null);
+            if (result.outcome != Outcome.BOOKED) {
+                for (Result done : results) {
+                    release(done.booking);
+                    booked.decrement();
+                }
+                results.add(result);
+                return results;
+            }
+            results.add(result);
+        }
+        if (writer != null) {
+            for (Result result : results) {
+                writer.booked(result.booking, isAllocated(result.booking));
+            }
+        }
+        return results;
+    }
+
+    private Result book(int patientId, int vaccineId, LocalDate day, String time, IntPredicate preferred) {
+        long epochDay = day.toEpochDay();
+        if (time != null) {
+            // fail on a malformed time before anything is taken
+            TimeSlots.slotAt(time, TimeSlots.MIN_SLOT_MINUTES);
+        }
+        //check 1: the patient has no appointment, the placeholder keeps other reservations of this patient out
+        if (patients.putIfAbsent(patientId, PENDING) != null) {
+            return reject(Outcome.HAS_APPOINTMENT);
+        }
+        boolean done = false;
+        try {
+            AtomicReference<Slots[]> caregivers = days.get(epochDay);
+            Slots[] candidates = caregivers == null ? NO_SLOTS : caregivers.get();
+            //check 2: any caregiver has a free slot that day
+            if (!anyFree(candidates)) {
+                return reject(Outcome.NO_CAREGIVER);
+            }
+            //check 3: the vaccine exists
+            AtomicInteger unallocated = freeDoses.get(vaccineId);
+            if (unallocated == null) {
+                return reject(Outcome.NO_VACCINE);
+            }
+            //check 4: a dose is left, from the allocation of this date if it has one
+            AtomicLong allocation = allocations.get(key(vaccineId, epochDay));
+            if (allocation != null ? !reserveAllocated(allocation) : !takeDoses(unallocated, 1)) {
+                return reject(Outcome.NO_DOSES);
+            }
+            //check 5: a caregiver has a free slot at the given time, preferred caregivers first
+            int start = ThreadLocalRandom.current().nextInt(candidates.length);
+            for (int pass = preferred == null ? 1 : 0; pass < 2; pass++) {
+                for (int i = 0; i < candidates.length; i++) {
+                    Slots candidate = candidates[(start + i) % candidates.length];
+                    if (pass == 0 && !preferred.test(candidate.caregiverId)) {
+                        continue;
+                    }
+                    if (pass == 1 && preferred != null && preferred.test(candidate.caregiverId)) {
+                        continue;
+                    }
+                    int slot = time == null ? claimFirst(candidate.free)
+                            : claim(candidate.free, TimeSlots.slotAt(time, candidate.slotMinutes));
+                    if (slot >= 0) {
+                        int shard = nextIds.length == 1 ? 0 : Shards.shardOf(Date.valueOf(day));
+                        Booking booking = new Booking(nextIds[shard].getAndIncrement(), patientId,
+                                candidate.caregiverId, vaccineId, epochDay, slot, candidate.slotMinutes);
+                        appointments.put(booking.id, booking);
+                        patients.put(patientId, booking);
+                        booked.increment();
+                        done = true;
+                        return new Result(Outcome.BOOKED, booking);
+                    }
+                }
+            }
+            // give the dose back, nobody could be booked with it
+            if (allocation == null || !releaseAllocated(allocation)) {
+                unallocated.incrementAndGet();
+            }
+            return reject(Outcome.NO_SLOT);
+        } finally {
+            if (!done) {
+                patients.remove(patientId, PENDING);
+            }
+        }
+    }
+
+    private Result reject(Outcome outcome) {
+        rejected.increment();
+        return new Result(outcome, null);
+    }
+
+    private static boolean anyFree(Slots[] candidates) {
+        for (Slots candidate : candidates) {
+            if (candidate.free.get() != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * clear the bit of a slot if it is set
+     * @return the slot if this call took it, -1 if it was already taken or doesn't exist
+     */
+    private static int claim(AtomicLong free, int slot) {
+        if (slot < 0 || slot >= 64) {
+            return -1;
+        }
+        long bit = TimeSlots.bit(slot);
+        return (free.getAndUpdate(slots -> slots & ~bit) & bit) != 0 ? slot : -1;
+    }
+
+    /**
+     * take the earliest free slot, the next one if another thread takes it first
+     * @return the slot, -1 if no slot is free
+     */
+    private static int claimFirst(AtomicLong free) {
+        while (true) {
+            long slots = free.get();
+            if (slots == 0) {
+                return -1;
+            }
+            long bit = Long.lowestOneBit(slots);
+            if (free.compareAndSet(slots, slots & ~bit)) {
+                return Long.numberOfTrailingZeros(bit);
+            }
+        }
+    }
+
+    private static boolean takeDoses(AtomicInteger unallocated, int n) {
+        while (true) {
+            int doses = unallocated.get();
+            if (doses < n) {
+                return false;
+            }
+            if (unallocated.compareAndSet(doses, doses - n)) {
+                return true;
+            }
+        }
+    }
+
+    private static boolean reserveAllocated(AtomicLong allocation) {
+        while (true) {
+            long value = allocation.get();
+            if ((value >>> 32) - (int) value <= 0) {
+                return false;
+            }
+            if (allocation.compareAndSet(value, value + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static boolean releaseAllocated(AtomicLong allocation) {
+        while (true) {
+            long value = allocation.get();
+            if ((int) value == 0) {
+                return false;
+            }
+            if (allocation.compareAndSet(value, value - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean isAllocated(Booking booking) {
+        return allocations.containsKey(key(booking.vaccineId, booking.epochDay));
+    }
+
+    /**
+     * cancel an appointment, with the checks and outcomes of Scheduler.cancel
+     * @param id appointment id
+     * @param patientId patient who cancels, -1 if a caregiver cancels
+     * @param caregiverId caregiver who cancels, -1 if a patient cancels
+     * @return CANCELLED and the booking, or why nothing was cancelled
+     */
+    public Result cancel(int id, int patientId, int caregiverId) {
+        Booking booking = appointments.get(id);
+        //check 1: the appointment exists
+        if (booking == null) {
+            return reject(Outcome.NOT_FOUND);
+        }
+        //check 2: the appointment belongs to the user
+        if (patientId != -1 ? booking.patientId != patientId : booking.caregiverId != caregiverId) {
+            return reject(Outcome.NOT_YOURS);
+        }
+        // only one of two concurrent cancels removes it
+        if (!appointments.remove(id, booking)) {
+            return reject(Outcome.NOT_FOUND);
+        }
+        boolean allocated = release(booking);
+        cancelled.increment();
+        if (writer != null) {
+            writer.cancelled(booking, allocated);
+        }
+        return new Result(Outcome.CANCELLED, booking);
+    }
+
+    /**
+     * give the slot, dose and patient of a booking back
+     * @return whether the dose went back to the allocation of its date
+     */
+    private boolean release(Booking booking) {
+        appointments.remove(booking.id, booking);
+        Slots day = slots.get(key(booking.caregiverId, booking.epochDay));
+        if (day == null) {
+            add(new Slots(booking.caregiverId, booking.slotMinutes, 0), booking.epochDay);
+            day = slots.get(key(booking.caregiverId, booking.epochDay));
+        }
+        long bit = TimeSlots.bit(booking.slot);
+        day.free.getAndUpdate(slots -> slots | bit);
+        AtomicLong allocation = allocations.get(key(booking.vaccineId, booking.epochDay));
+        boolean allocated = allocation != null && releaseAllocated(allocation);
+        if (!allocated) {
+            freeDoses.computeIfAbsent(booking.vaccineId, v -> new AtomicInteger()).incrementAndGet();
+        }
+        patients.remove(booking.patientId, booking);
+        return allocated;
+    }
+
+    /**
+     * move unused doses of past dates forward, like DoseAllocations.rebalance does in the table
+     * @param today first date which is still bookable
+     */
+    public void rebalance(LocalDate today) {
+        long first = today.toEpochDay();
+        allocations.forEach((key, allocation) -> {
+            long epochDay = (int) (long) key;
+            if (epochDay >= first) {
+                return;
+            }
+            int vaccineId = (int) (key >>> 32);
+            long value;
+            int moved;
+            do {
+                value = allocation.get();
+                moved = (int) (value >>> 32) - (int) value;
+                if (moved <= 0) {
+                    return;
+                }
+            } while (!allocation.compareAndSet(value, ((long) (int) value << 32) | (int) value));
+            long target = first;
+            long earliest = Long.MAX_VALUE;
+            for (long other : allocations.keySet()) {
+                long day = (int) other;
+                if ((int) (other >>> 32) == vaccineId && day >= first && day < earliest) {
+                    earliest = day;
+                }
+            }
+            if (earliest != Long.MAX_VALUE) {
+                target = earliest;
+            }
+            allocations.computeIfAbsent(key(vaccineId, target), k -> new AtomicLong()).addAndGet((long) moved << 32);
+        });
+    }
+
+    /**
+     * rebalance the allocations once a day, in the table first and then in memory
+     * calling it again does nothing
+     */
+    public synchronized void startRebalancer() {
+        if (rebalancer != null) {
+            return;
+        }
+        rebalancer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "engine-rebalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rebalancer.scheduleAtFixedRate(() -> {
+            try {
+                if (writer != null) {
+                    writer.flush();
+                }
+                DoseAllocations.rebalance(Date.valueOf(LocalDate.now()));
+                rebalance(LocalDate.now());
+            } catch (SQLException e) {
+                System.err.println(e.getMessage());
+            }
+        }, 0, 1, TimeUnit.DAYS);
+    }
+
+    /**
+     * @param id appointment id
+     * @return the booking, null if there is no appointment with this id
+     */
+    public Booking get(int id) {
+        return appointments.get(id);
+    }
+
+    /**
+     * @param patientId patient id
+     * @return whether the patient has an appointment
+     */
+    public boolean hasAppointment(int patientId) {
+        Booking booking = patients.get(patientId);
+        return booking != null && booking != PENDING;
+    }
+
+    /**
+     * @param patientId patient id, -1 to get the appointments of a caregiver
+     * @param caregiverId caregiver id, -1 to get the appointments of a patient
+     * @return appointments of this patient or caregiver
+     */
+    public List<Booking> appointmentsOf(int patientId, int caregiverId) {
+        List<Booking> bookings = new ArrayList<>();
+        if (patientId != -1) {
+            Booking booking = patients.get(patientId);
+            if (booking != null && booking != PENDING) {
+                bookings.add(booking);
+            }
+            return bookings;
+        }
+        for (Booking booking : appointments.values()) {
+            if (booking.caregiverId == caregiverId) {
+                bookings.add(booking);
+            }
+        }
+        return bookings;
+    }
+
+    /**
+     * @return every appointment held by the engine
+     */
+    public List<Booking> appointments() {
+        return new ArrayList<>(appointments.values());
+    }
+
+    /**
+     * @param caregiverId caregiver id
+     * @param day date
+     * @return bitmap of free slots of this caregiver on this day, 0 if the day isn't uploaded
+     */
+    public long getFreeSlots(int caregiverId, LocalDate day) {
+        Slots free = slots.get(key(caregiverId, day.toEpochDay()));
+        return free == null ? 0 : free.free.get();
+    }
+
+    /**
+     * @param vaccineId vaccine id
+     * @return doses of this vaccine which are not allocated to any date
+     */
+    public int getFreeDoses(int vaccineId) {
+        AtomicInteger doses = freeDoses.get(vaccineId);
+        return doses == null ? 0 : doses.get();
+    }
+
+    /**
+     * @param vaccineId vaccine id
+     * @param day date
+     * @return allocated doses of this vaccine on this date which are not reserved yet, -1 if there is no allocation
+     */
+    public int getRemaining(int vaccineId, LocalDate day) {
+        AtomicLong allocation = allocations.get(key(vaccineId, day.toEpochDay()));
+        if (allocation == null) {
+            return -1;
+        }
+        long value = allocation.get();
+        return (int) (value >>> 32) - (int) value;
+    }
+
+    public long getBooked() {
+        return booked.sum();
+    }
+
+    public long getCancelled() {
+        return cancelled.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return changes not yet written to the tables, 0 if the engine keeps everything in memory only
+     */
+    public long getPendingWrites() {
+        return writer == null ? 0 : writer.pending();
+    }
+
+    /**
+     * @return number of bookings and cancels the writer gave up on, they are in its dead-letter file
+     */
+    public long getDeadLetteredWrites() {
+        return writer == null ? 0 : writer.getDeadLettered();
+    }
+
+    /**
+     * stop the rebalancer and wait until every booking is written
+     */
+    public void close() {
+        synchronized (this) {
+            if (rebalancer != null) {
+                rebalancer.shutdownNow();
+            }
+        }
+        if (writer != null) {
+            writer.close();
+        }
+        if (ownership != null) {
+            ownership.close();
+        }
+    }
+}
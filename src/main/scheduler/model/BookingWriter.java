@@ -0,0 +1,435 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Route;
+import scheduler.db.Shards;
+import scheduler.db.TransientErrors;
+import scheduler.feed.ChangeEvent;
+import scheduler.feed.ChangeFeed;
+import scheduler.util.Util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * BookingWriter writes the bookings and cancels of a BookingEngine to the Appointments, Availabilities,
+ * Vaccines, DoseAllocations and AppointmentEvents tables in the background (write-behind).
+ * Changes are queued without locks and written in batches, one transaction per shard,
+ * with the slot, dose and allocation changes of a batch summed up per row first.
+ * A shard which fails with a transient fault is written again with growing delays, shards which already
+ * committed the batch are skipped. Changes of a shard which still fails after MAX_ATTEMPTS, or fails with
+ * an error which will happen again, are appended to the dead-letter file as JSON lines for an operator
+ * to replay. The file is named by the DeadLetterFile environment variable, booking-dead-letters.jsonl by default.
+ * Until they are replayed the tables miss those changes which the engine already made.
+ */
+public class BookingWriter {
+
+    private static final int BATCH_SIZE = 512;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long RETRY_MILLIS = 1000;//delay before the second attempt, doubled after every attempt
+    private static final long MAX_RETRY_MILLIS = 30000;
+    private static final int MAX_ATTEMPTS = 8;
+    private static final int CLOSING_ATTEMPTS = 2;//attempts once close() was called, so it doesn't wait for long
+    private static final String deadLetterFile = System.getenv("DeadLetterFile") != null
+            ? System.getenv("DeadLetterFile") : "booking-dead-letters.jsonl";
+
+    /**
+     * one booking or cancel
+     */
+    private static class Change {
+        final BookingEngine.Booking booking;
+        final boolean booked;//false for a cancel
+        final boolean allocated;//whether the dose came from or went back to the allocation of its date
+
+        Change(BookingEngine.Booking booking, boolean booked, boolean allocated) {
+            this.booking = booking;
+            this.booked = booked;
+            this.allocated = allocated;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Change> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();//written or dead-lettered
+    private final AtomicLong deadLettered = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean closed = false;
+    private BookingEngine engine = null;//the engine whose changes are written, for the caregiver calendars
+
+    public BookingWriter() {
+        thread = new Thread(this::writeLoop, "booking-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void attach(BookingEngine engine) {
+        this.engine = engine;
+    }
+
+    void booked(BookingEngine.Booking booking, boolean allocated) {
+        queued.incrementAndGet();
+        queue.offer(new Change(booking, true, allocated));
+    }
+
+    void cancelled(BookingEngine.Booking booking, boolean allocated) {
+        queued.incrementAndGet();
+        queue.offer(new Change(booking, false, allocated));
+    }
+
+    /**
+     * @return number of changes which are not written yet
+     */
+    public long pending() {
+        return queued.get() - written.get();
+    }
+
+    /**
+     * @return number of changes which were given up on and appended to the dead-letter file
+     */
+    public long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    /**
+     * wait until every change queued so far is written or dead-lettered
+     */
+    public void flush() {
+        long target = queued.get();
+        while (written.get() < target && thread.isAlive()) {
+            LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    /**
+     * write the remaining changes and stop the background thread
+     */
+    public void close() {
+        closed = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<Change> batch = new ArrayList<>();
+        while (true) {
+            Change change;
+            while (batch.size() < BATCH_SIZE && (change = queue.poll()) != null) {
+                batch.add(change);
+            }
+            if (batch.isEmpty()) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+                continue;
+            }
+            write(batch);
+            written.addAndGet(batch.size());
+            batch.clear();
+        }
+    }
+
+    /**
+     * write one batch, retry the shards which didn't commit after transient faults
+     * and dead-letter the changes of shards which keep failing
+     */
+    private void write(List<Change> batch) {
+        Map<Integer, List<Change>> shards = new HashMap<>();
+        shards.put(0, new ArrayList<>());//doses and allocations are always in the main database
+        for (Change change : batch) {
+            shards.computeIfAbsent(Shards.shardOf(Date.valueOf(change.booking.getDay())), s -> new ArrayList<>())
+                    .add(change);
+        }
+        Set<Integer> committed = new HashSet<>();
+        Set<Integer> failed = new HashSet<>();
+        long delay = RETRY_MILLIS;
+        for (int attempt = 1; committed.size() + failed.size() < shards.size(); attempt++) {
+            boolean last = attempt >= (closed ? CLOSING_ATTEMPTS : MAX_ATTEMPTS);
+            for (Map.Entry<Integer, List<Change>> shard : shards.entrySet()) {
+                if (committed.contains(shard.getKey()) || failed.contains(shard.getKey())) {
+                    continue;
+                }
+                try {
+                    writeShard(shard.getKey(), shard.getValue(), shard.getKey() == 0 ? batch : null);
+                    committed.add(shard.getKey());
+                } catch (SQLException e) {
+                    if (last || !TransientErrors.isTransient(e)) {
+                        failed.add(shard.getKey());
+                        deadLetter(shard.getKey(), shard.getValue(), shard.getKey() == 0 ? batch : null, e);
+                    } else {
+                        System.err.println("Error occurred when writing bookings, retrying: " + e.getMessage());
+                    }
+                }
+            }
+            if (committed.size() + failed.size() < shards.size()) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                delay = Math.min(delay * 2, MAX_RETRY_MILLIS);
+            }
+        }
+        publish(batch, committed);
+    }
+
+    /**
+     * append the changes a shard couldn't write to the dead-letter file, one JSON line per change
+     * @param shard shard number
+     * @param changes changes on this shard, their appointment and slot changes are missing
+     * @param batch every change of the batch if this is the main database, their dose and allocation changes
+     *              are missing too, null otherwise
+     * @param e the error of the last attempt
+     */
+    private void deadLetter(int shard, List<Change> changes, List<Change> batch, SQLException e) {
+        Set<Change> appointments = Collections.newSetFromMap(new IdentityHashMap<>());
+        appointments.addAll(changes);
+        List<Change> lines = batch != null ? batch : changes;
+        long time = System.currentTimeMillis();
+        try (BufferedWriter out = Files.newBufferedWriter(Paths.get(deadLetterFile), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (Change change : lines) {
+                BookingEngine.Booking b = change.booking;
+                StringBuilder sb = new StringBuilder(256);
+                sb.append("{\"time\":").append(time)
+                        .append(",\"shard\":").append(shard)
+                        .append(",\"op\":\"").append(change.booked ? "BOOKED" : "CANCELLED")
+                        .append("\",\"id\":").append(b.getId())
+                        .append(",\"date\":\"").append(b.getDay())
+                        .append("\",\"vaccineId\":").append(b.getVaccineId())
+                        .append(",\"patientId\":").append(b.getPatientId())
+                        .append(",\"caregiverId\":").append(b.getCaregiverId())
+                        .append(",\"slot\":").append(b.getSlot())
+                        .append(",\"slotMinutes\":").append(b.getSlotMinutes())
+                        .append(",\"allocated\":").append(change.allocated)
+                        .append(",\"appointmentMissing\":").append(appointments.contains(change))
+                        .append(",\"dosesMissing\":").append(batch != null)
+                        .append(",\"error\":");
+                Util.quote(sb, String.valueOf(e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+                out.write(sb.append('}').toString());
+                out.newLine();
+            }
+        } catch (IOException io) {
+            System.err.println("Error occurred when writing dead letters to " + deadLetterFile + ": " + io.getMessage());
+        }
+        deadLettered.addAndGet(lines.size());
+        System.err.println("Gave up writing " + lines.size() + " booking changes of shard " + shard +
+                ", see " + deadLetterFile + ": " + e.getMessage());
+    }
+
+    /**
+     * write the appointment and slot changes of one shard in one transaction,
+     * and the dose and allocation changes of the whole batch if this is the main database
+     * @param shard shard number
+     * @param changes changes on this shard in queue order
+     * @param batch every change of the batch, null if this is not the main database
+     * @throws SQLException sql execution exception
+     */
+    private void writeShard(int shard, List<Change> changes, List<Change> batch) throws SQLException {
+        ConnectionManager cm = ConnectionManager.forShard(shard, Route.READ_WRITE);
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            writeAppointments(con, changes);
+            if (batch != null) {
+                writeDoses(con, batch);
+            }
+            con.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            con.rollback();
+            throw new SQLException("Error occurred when writing bookings of shard " + shard + "!", e);
+        } finally {
+            con.setAutoCommit(true);
+            cm.closeConnection();
+        }
+    }
+
+    private void writeAppointments(Connection con, List<Change> changes) throws SQLException {
+        if (changes.isEmpty()) {
+            return;
+        }
+        // an appointment booked and cancelled in the same batch never reaches the table
+        Map<Integer, Change> net = new LinkedHashMap<>();
+        // the last change of a slot decides whether it ends up free or taken
+        Map<Long, long[]> masks = new LinkedHashMap<>();//clear mask, set mask
+        List<AppointmentEvents> events = new ArrayList<>();
+        for (Change change : changes) {
+            BookingEngine.Booking b = change.booking;
+            if (net.remove(b.getId()) == null || change.booked) {
+                net.put(b.getId(), change);
+            }
+            long key = ((long) b.getCaregiverId() << 32) | (b.getDay().toEpochDay() & 0xFFFFFFFFL);
+            long[] mask = masks.computeIfAbsent(key, k -> new long[2]);
+            long bit = TimeSlots.bit(b.getSlot());
+            mask[0] = change.booked ? mask[0] | bit : mask[0] & ~bit;
+            mask[1] = change.booked ? mask[1] & ~bit : mask[1] | bit;
+            Date date = Date.valueOf(b.getDay());
+            events.add(change.booked
+                    ? AppointmentEvents.booked(b.getId(), date, b.getVaccineId(), b.getPatientId(),
+                            b.getCaregiverId(), b.getSlot(), b.getSlotMinutes(), change.allocated)
+                    : AppointmentEvents.cancelled(b.getId(), date, b.getVaccineId(), b.getPatientId(),
+                            b.getCaregiverId(), b.getSlot(), b.getSlotMinutes(), change.allocated));
+        }
+        PreparedStatement insert = con.prepareStatement("INSERT INTO Appointments (id, Date, VaccineId, PatientId, " +
+                "CaregiverId, Slot, SlotMinutes, Allocated) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        PreparedStatement delete = con.prepareStatement("DELETE FROM Appointments WHERE id = ?");
+        boolean inserts = false;
+        boolean deletes = false;
+        for (Change change : net.values()) {
+            BookingEngine.Booking b = change.booking;
+            if (change.booked) {
+                insert.setInt(1, b.getId());
+                insert.setDate(2, Date.valueOf(b.getDay()));
+                insert.setInt(3, b.getVaccineId());
+                insert.setInt(4, b.getPatientId());
+                insert.setInt(5, b.getCaregiverId());
+                insert.setInt(6, b.getSlot());
+                insert.setInt(7, b.getSlotMinutes());
+                insert.setBoolean(8, change.allocated);
+                insert.addBatch();
+                inserts = true;
+            } else {
+                delete.setInt(1, b.getId());
+                delete.addBatch();
+                deletes = true;
+            }
+        }
+        if (inserts) {
+            // ids are assigned by the engine, not by the identity column
+            con.prepareStatement("SET IDENTITY_INSERT Appointments ON").execute();
+            try {
+                insert.executeBatch();
+            } finally {
+                con.prepareStatement("SET IDENTITY_INSERT Appointments OFF").execute();
+            }
+        }
+        if (deletes) {
+            delete.executeBatch();
+        }
+        PreparedStatement slots = con.prepareStatement("UPDATE Availabilities SET Slots = (Slots & ?) | ?, " +
+                "Version = Version + 1 WHERE CaregiverId = ? AND Time = ?");
+        for (Map.Entry<Long, long[]> entry : masks.entrySet()) {
+            slots.setLong(1, ~entry.getValue()[0]);
+            slots.setLong(2, entry.getValue()[1]);
+            slots.setInt(3, (int) (entry.getKey() >>> 32));
+            slots.setDate(4, Date.valueOf(LocalDate.ofEpochDay((int) (long) entry.getKey())));
+            slots.addBatch();
+        }
+        slots.executeBatch();
+        AppointmentEvents.appendAll(con, events);
+    }
+
+    private void writeDoses(Connection con, List<Change> batch) throws SQLException {
+        Map<Integer, Integer> doses = new LinkedHashMap<>();
+        Map<Long, Integer> reserved = new LinkedHashMap<>();
+        for (Change change : batch) {
+            BookingEngine.Booking b = change.booking;
+            int delta = change.booked ? 1 : -1;
+            doses.merge(b.getVaccineId(), -delta, Integer::sum);
+            if (change.allocated) {
+                reserved.merge(((long) b.getVaccineId() << 32) | (b.getDay().toEpochDay() & 0xFFFFFFFFL),
+                        delta, Integer::sum);
+            }
+        }
+        PreparedStatement vaccines = con.prepareStatement(
+                "UPDATE Vaccines SET Doses = Doses + ?, Version = Version + 1 WHERE Id = ?");
+        List<AppointmentEvents> events = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> entry : doses.entrySet()) {
+            if (entry.getValue() == 0) {
+                continue;
+            }
+            vaccines.setInt(1, entry.getValue());
+            vaccines.setInt(2, entry.getKey());
+            vaccines.addBatch();
+            events.add(AppointmentEvents.dosesAdded(entry.getKey(), entry.getValue()));
+        }
+        vaccines.executeBatch();
+        if (!reserved.isEmpty()) {
+            PreparedStatement allocations = con.prepareStatement(
+                    "UPDATE DoseAllocations SET Reserved = Reserved + ? WHERE VaccineId = ? AND Date = ?");
+            for (Map.Entry<Long, Integer> entry : reserved.entrySet()) {
+                allocations.setInt(1, entry.getValue());
+                allocations.setInt(2, (int) (entry.getKey() >>> 32));
+                allocations.setDate(3, Date.valueOf(LocalDate.ofEpochDay((int) (long) entry.getKey())));
+                allocations.addBatch();
+            }
+            allocations.executeBatch();
+            // the cached copy doesn't know about these reservations
+            DoseAllocations.invalidate();
+        }
+        AppointmentEvents.appendAll(con, events);
+    }
+
+    /**
+     * publish the written changes on the change feed, like Appointments and Availabilities do after a commit,
+     * count them in the capacity summary and update the calendars of caregivers whose day became full
+     * or got a slot back
+     * @param batch every change of the batch
+     * @param committed shards which committed their part of the batch, dose changes count only if 0 did
+     */
+    private void publish(List<Change> batch, Set<Integer> committed) {
+        Map<Long, Boolean> days = new LinkedHashMap<>();//caregiver and day, whether a slot was given back
+        boolean doses = committed.contains(0);
+        for (Change change : batch) {
+            BookingEngine.Booking b = change.booking;
+            Date date = Date.valueOf(b.getDay());
+            int delta = change.booked ? 1 : -1;
+            if (doses) {
+                CapacitySummary.dosesChanged(b.getVaccineId(), -delta);
+                if (change.allocated) {
+                    CapacitySummary.allocationChanged(b.getVaccineId(), date, -delta);
+                }
+            }
+            if (!committed.contains(Shards.shardOf(date))) {
+                continue;
+            }
+            ChangeFeed.publish("Appointments", change.booked ? ChangeEvent.Op.INSERT : ChangeEvent.Op.DELETE,
+                    ChangeEvent.columns("id", b.getId(), "Date", date, "VaccineId", b.getVaccineId(),
+                            "PatientId", b.getPatientId(), "CaregiverId", b.getCaregiverId(),
+                            "Slot", b.getSlot(), "SlotMinutes", b.getSlotMinutes()));
+            Availabilities.publishSlot(date, b.getCaregiverId(), b.getSlot(), change.booked);
+            CapacitySummary.changed(date, 0, -delta, delta);
+            days.merge(((long) b.getCaregiverId() << 32) | (b.getDay().toEpochDay() & 0xFFFFFFFFL), !change.booked,
+                    Boolean::logicalOr);
+        }
+        for (Map.Entry<Long, Boolean> day : days.entrySet()) {
+            int caregiverId = (int) (day.getKey() >>> 32);
+            LocalDate date = LocalDate.ofEpochDay((int) (long) day.getKey());
+            boolean available = engine.getFreeSlots(caregiverId, date) != 0;
+            if (available == day.getValue()) {
+                try {
+                    AvailabilityCalendar.update(IdDictionary.CAREGIVERS.nameOf(caregiverId), Date.valueOf(date), available);
+                } catch (SQLException e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.QueryType;
+import scheduler.db.Resilience;
+import scheduler.db.Route;
+import scheduler.db.Shards;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CapacitySummary keeps the upcoming capacity of every day for dashboards: caregivers who uploaded the day,
+ * their free slots, booked appointments and doses allocated to the day but not reserved yet, plus the doses
+ * which are not allocated to any day, per vaccine. It is loaded from the tables once a day and then kept up to date
+ * by the model layer after every upload, reservation, cancel, dose and allocation change commits,
+ * so reading n days costs O(n) and no database round trip.
+ * Changes written by other processes only show up after the next daily load, or after invalidate().
+ */
+public class CapacitySummary {
+
+    public static final int HORIZON_DAYS = AvailabilityCalendar.HORIZON_DAYS;
+
+    // counters of start + i days at index i, guarded by the class
+    private static Counts counts = null;
+
+    /**
+     * capacity of one day
+     */
+    public static class Day {
+        private final LocalDate date;
+        private final int caregivers;
+        private final int freeSlots;
+        private final int booked;
+        private final int allocatedLeft;
+        private final long headroom;
+
+        private Day(LocalDate date, int caregivers, int freeSlots, int booked, int allocatedLeft, long headroom) {
+            this.date = date;
+            this.caregivers = caregivers;
+            this.freeSlots = freeSlots;
+            this.booked = booked;
+            this.allocatedLeft = allocatedLeft;
+            this.headroom = headroom;
+        }
+
+        public LocalDate getDate() {
+            return date;
+        }
+
+        /**
+         * @return caregivers who uploaded this day, including those without a free slot left
+         */
+        public int getCaregivers() {
+            return caregivers;
+        }
+
+        public int getFreeSlots() {
+            return freeSlots;
+        }
+
+        public int getBooked() {
+            return booked;
+        }
+
+        /**
+         * @return doses allocated to this day and not reserved yet
+         */
+        public int getAllocatedLeft() {
+            return allocatedLeft;
+        }
+
+        /**
+         * @return doses this day can still book at most, summed over the vaccines: what is left of the
+         * vaccine's allocation to this day if it has one, otherwise the vaccine's doses not allocated
+         * to any day, which every day without an allocation shares
+         */
+        public long getHeadroom() {
+            return headroom;
+        }
+
+        @Override
+        public String toString() {
+            return "Date:" + date + ", caregivers:" + caregivers + ", free slots:" + freeSlots +
+                    ", booked:" + booked + ", allocated doses left:" + allocatedLeft + ", dose headroom:" + headroom;
+        }
+    }
+
+    /**
+     * the counters of one load, replaced as a whole
+     */
+    private static class Counts {
+        private final LocalDate start;
+        private final int[] caregivers = new int[HORIZON_DAYS];
+        private final int[] freeSlots = new int[HORIZON_DAYS];
+        private final int[] booked = new int[HORIZON_DAYS];
+        private final int[] allocatedLeft = new int[HORIZON_DAYS];
+        private final Map<Integer, Vaccine> vaccines = new HashMap<>();//by vaccine id
+
+        private Counts(LocalDate start) {
+            this.start = start;
+        }
+
+        private Vaccine vaccine(int vaccineId) {
+            return vaccines.computeIfAbsent(vaccineId, id -> new Vaccine());
+        }
+
+        /**
+         * @return index of this day, -1 if it is outside the horizon
+         */
+        private int index(Date date) {
+            long i = ChronoUnit.DAYS.between(start, date.toLocalDate());
+            return i < 0 || i >= HORIZON_DAYS ? -1 : (int) i;
+        }
+
+        private void add(Counts shard) {
+            for (int i = 0; i < HORIZON_DAYS; i++) {
+                caregivers[i] += shard.caregivers[i];
+                freeSlots[i] += shard.freeSlots[i];
+                booked[i] += shard.booked[i];
+            }
+        }
+    }
+
+    /**
+     * the doses of one vaccine
+     */
+    private static class Vaccine {
+        private long doses = 0;
+        private long outstanding = 0;//doses allocated to any day, past days too, and not reserved
+        // doses left of the allocation of start + i days at index i, -1 if that day has no allocation
+        private final int[] allocatedLeft = new int[HORIZON_DAYS];
+
+        private Vaccine() {
+            Arrays.fill(allocatedLeft, -1);
+        }
+
+        /**
+         * @return doses not allocated to any day, which a booking on a day without an allocation can take
+         */
+        private long free() {
+            return Math.max(0, doses - outstanding);
+        }
+
+        /**
+         * @return doses a day can still book: its allocation if it has one, the free doses otherwise
+         */
+        private long headroom(int i) {
+            return allocatedLeft[i] >= 0 ? allocatedLeft[i] : free();
+        }
+    }
+
+    /**
+     * load the counters unless they were loaded today
+     * @return the counters
+     * @throws SQLException sql execution exception
+     */
+    private static synchronized Counts ensureLoaded() throws SQLException {
+        LocalDate today = LocalDate.now();
+        if (counts == null || !counts.start.equals(today)) {
+            counts = Resilience.read(() -> load(today));
+        }
+        return counts;
+    }
+
+    /**
+     * count free slots and appointments on every shard and doses on the main database
+     * @param today first day of the horizon
+     * @return the counters
+     * @throws SQLException sql execution exception
+     */
+    private static Counts load(LocalDate today) throws SQLException {
+        Date from = Date.valueOf(today);
+        Date until = Date.valueOf(today.plusDays(HORIZON_DAYS));
+        Counts loaded = new Counts(today);
+        try {
+            for (Counts shard : Shards.gather(Route.READ_WRITE, con -> loadShard(con, today, from, until))) {
+                loaded.add(shard);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when loading upcoming capacity!", e);
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            ResultSet doses = QueryType.LIST.apply(con.prepareStatement("SELECT Id, Doses FROM Vaccines"))
+                    .executeQuery();
+            while (doses.next()) {
+                loaded.vaccine(doses.getInt(1)).doses = doses.getLong(2);
+            }
+            // allocations used up count too, a day with an allocation only books from it
+            PreparedStatement allocations = QueryType.SCAN.apply(con.prepareStatement(
+                    "SELECT VaccineId, Date, Allocated - Reserved FROM DoseAllocations"));
+            ResultSet resultSet = allocations.executeQuery();
+            while (resultSet.next()) {
+                Vaccine vaccine = loaded.vaccine(resultSet.getInt(1));
+                int remaining = resultSet.getInt(3);
+                vaccine.outstanding += remaining;
+                int i = loaded.index(resultSet.getDate(2));
+                if (i >= 0) {
+                    vaccine.allocatedLeft[i] = remaining;
+                    loaded.allocatedLeft[i] += remaining;
+                }
+            }
+            return loaded;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when loading upcoming capacity!", e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static Counts loadShard(Connection con, LocalDate today, Date from, Date until) throws SQLException {
+        Counts shard = new Counts(today);
+        PreparedStatement availabilities = QueryType.SCAN.apply(con.prepareStatement(
+                "SELECT Time, Slots FROM Availabilities WHERE Time >= ? AND Time < ?"));
+        availabilities.setDate(1, from);
+        availabilities.setDate(2, until);
+        ResultSet resultSet = availabilities.executeQuery();
+        while (resultSet.next()) {
+            int i = shard.index(resultSet.getDate(1));
+            shard.caregivers[i]++;
+            shard.freeSlots[i] += Long.bitCount(resultSet.getLong(2));
+        }
+        PreparedStatement appointments = QueryType.LIST.apply(con.prepareStatement(
+                "SELECT Date, COUNT(*) FROM Appointments WHERE Date >= ? AND Date < ? GROUP BY Date"));
+        appointments.setDate(1, from);
+        appointments.setDate(2, until);
+        resultSet = appointments.executeQuery();
+        while (resultSet.next()) {
+            shard.booked[shard.index(resultSet.getDate(1))] += resultSet.getInt(2);
+        }
+        return shard;
+    }
+
+    /**
+     * get the capacity of the next days
+     * @param days number of days starting from today, at most HORIZON_DAYS
+     * @return one entry per day in date order
+     * @throws SQLException sql execution exception
+     */
+    public static synchronized List<Day> upcoming(int days) throws SQLException {
+        Counts current = ensureLoaded();
+        int n = Math.min(days, HORIZON_DAYS);
+        List<Day> list = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            long headroom = 0;
+            for (Vaccine vaccine : current.vaccines.values()) {
+                headroom += vaccine.headroom(i);
+            }
+            list.add(new Day(current.start.plusDays(i), current.caregivers[i], current.freeSlots[i],
+                    current.booked[i], current.allocatedLeft[i], headroom));
+        }
+        return list;
+    }
+
+    /**
+     * @return doses which are not allocated to any day, summed over the vaccines
+     * @throws SQLException sql execution exception
+     */
+    public static synchronized long getUnallocated() throws SQLException {
+        long unallocated = 0;
+        for (Vaccine vaccine : ensureLoaded().vaccines.values()) {
+            unallocated += vaccine.free();
+        }
+        return unallocated;
+    }
+
+    /**
+     * drop the counters, they are loaded from the tables again next time
+     * use after the tables were changed behind the model layer
+     */
+    public static synchronized void invalidate() {
+        counts = null;
+    }
+
+    /**
+     * count a committed change of the slots or appointments of one day, does nothing until the counters are loaded
+     * @param date date
+     * @param caregivers caregivers added to this day
+     * @param freeSlots free slots added, negative when slots are taken
+     * @param booked appointments added, negative when appointments are cancelled
+     */
+    static synchronized void changed(Date date, int caregivers, int freeSlots, int booked) {
+        if (counts == null) {
+            return;
+        }
+        int i = counts.index(date);
+        if (i >= 0) {
+            counts.caregivers[i] += caregivers;
+            counts.freeSlots[i] += freeSlots;
+            counts.booked[i] += booked;
+        }
+    }
+
+    /**
+     * count a committed change of the doses of a vaccine
+     * @param vaccineId vaccine id
+     * @param doses doses added, negative when doses are taken
+     */
+    static synchronized void dosesChanged(int vaccineId, int doses) {
+        if (counts != null) {
+            counts.vaccine(vaccineId).doses += doses;
+        }
+    }
+
+    /**
+     * count a committed change of the doses of a vaccine allocated to one day and not reserved yet,
+     * the day has an allocation of this vaccine from here on
+     * @param vaccineId vaccine id
+     * @param date date of the allocation
+     * @param remaining doses added to the allocation, negative when they are reserved or moved away
+     */
+    static synchronized void allocationChanged(int vaccineId, Date date, int remaining) {
+        if (counts == null) {
+            return;
+        }
+        Vaccine vaccine = counts.vaccine(vaccineId);
+        vaccine.outstanding += remaining;
+        int i = counts.index(date);
+        if (i >= 0) {
+            vaccine.allocatedLeft[i] = Math.max(0, vaccine.allocatedLeft[i]) + remaining;
+            counts.allocatedLeft[i] += remaining;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.QueryType;
+import scheduler.db.Resilience;
 import scheduler.util.Util;
 
 import java.sql.*;
@@ -8,9 +10,11 @@ import java.util.Arrays;
 
 public class Caregivers {
 
+    private int id;//surrogate key, 0 until saved
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
+    private int slotMinutes;//length of one appointment slot
 
     /**
      * construct a Caregiver using CaregiverBuilder
@@ -20,6 +24,7 @@ public class Caregivers {
         this.username = builder.username;
         this.salt = builder.salt;
         this.hash = builder.hash;
+        this.slotMinutes = TimeSlots.DEFAULT_SLOT_MINUTES;
     }
 
     /**
@@ -27,34 +32,60 @@ public class Caregivers {
      * @param getter a CaregiverGetter object
      */
     private Caregivers(CaregiverGetter getter) {
+        this.id = getter.id;
         this.username = getter.username;
         this.salt = getter.salt;
         this.hash = getter.hash;
+        this.slotMinutes = getter.slotMinutes;
     }
 
     // Getters
+    public int getId() {
+        return id;
+    }
+
     public String getUsername() {
         return username;
     }
 
+    public int getSlotMinutes() {
+        return slotMinutes;
+    }
+
     /**
      * to save a new Caregiver to our Caregiver table
      * @throws SQLException sql execution exception
      */
     public void saveToDB() throws SQLException {
+        Resilience.write(() -> {
+            trySaveToDB();
+            return null;
+        });
+    }
+
+    /**
+     * one attempt of saveToDB, its outcome reported to the breakers by Resilience.write
+     */
+    private void trySaveToDB() throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addCaregiver = "INSERT INTO Caregivers VALUES (? , ?, ?)";
+        String addCaregiver = "INSERT INTO Caregivers VALUES (? , ?, ?, ?)";
         try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
+            PreparedStatement statement = con.prepareStatement(addCaregiver, Statement.RETURN_GENERATED_KEYS);
             statement.setString(1, this.username);
             statement.setBytes(2, this.salt);
             statement.setBytes(3, this.hash);
+            statement.setInt(4, this.slotMinutes);
             statement.executeUpdate();
+            ResultSet keys = statement.getGeneratedKeys();
+            if (keys.next()) {
+                this.id = keys.getInt(1);
+                IdDictionary.CAREGIVERS.put(this.username, this.id);
+            }
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new SQLException("Error occurred when creating new Caregiver! Failed!");
+            throw new SQLException("Error occurred when creating new Caregiver! Failed!", e);
         } finally {
             cm.closeConnection();
         }
@@ -62,11 +93,50 @@ public class Caregivers {
 
     /**
      * Allow a Caregiver to upload date that he/she is available to our database
+     * every slot of the day is free after uploading
      * @param d the date a Caregiver pass in
      * @throws SQLException sql execution exception
      */
     public void uploadAvailability(Date d) throws SQLException {
-        new Availabilities().upLoadAvailability(this.username, d);
+        new Availabilities().upLoadAvailability(this.username, d, this.slotMinutes);
+    }
+
+    /**
+     * change the slot length of this Caregiver, only affects dates uploaded afterwards
+     * @param minutes new slot length in minutes
+     * @throws IllegalArgumentException if slot length is not supported
+     * @throws SQLException sql execution exception
+     */
+    public void updateSlotMinutes(int minutes) throws SQLException {
+        Resilience.write(() -> {
+            tryUpdateSlotMinutes(minutes);
+            return null;
+        });
+    }
+
+    /**
+     * one attempt of updateSlotMinutes, its outcome reported to the breakers by Resilience.write
+     */
+    private void tryUpdateSlotMinutes(int minutes) throws SQLException {
+        if (!TimeSlots.isValidLength(minutes)) {
+            throw new IllegalArgumentException();
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String updateSlot = "UPDATE Caregivers SET SlotMinutes = ? WHERE Username = ?";
+        try {
+            PreparedStatement statement = con.prepareStatement(updateSlot);
+            statement.setInt(1, minutes);
+            statement.setString(2, this.username);
+            statement.executeUpdate();
+            this.slotMinutes = minutes;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when updating slot length!", e);
+        } finally {
+            cm.closeConnection();
+        }
     }
 
     /**
@@ -106,8 +176,10 @@ public class Caregivers {
     public static class CaregiverGetter {
         private final String username;
         private final String password;
+        private int id;
         private byte[] salt;
         private byte[] hash;
+        private int slotMinutes;
 
         /**
          * Construct a CaregiverGetter with username and password
@@ -119,6 +191,45 @@ public class Caregivers {
             this.password = password;
         }
 
+        /**
+         * get a caregiver by username without checking the password,
+         * only use for a caregiver who has logged-in before, e.g. when applying journaled commands
+         * @return a Caregiver with given username, null if not found
+         * @throws SQLException sql execution exception
+         */
+        public Caregivers find() throws SQLException {
+            return Resilience.read(this::tryFind);
+        }
+
+        /**
+         * one attempt of find, retried by Resilience.read after transient faults
+         */
+        private Caregivers tryFind() throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            String getCaregiver = "SELECT Id, Salt, Hash, SlotMinutes FROM Caregivers WHERE Username = ?";
+            try {
+                PreparedStatement statement = QueryType.POINT.apply(con.prepareStatement(getCaregiver));
+                statement.setString(1, this.username);
+                ResultSet resultSet = statement.executeQuery();
+                if (resultSet.next()) {
+                    this.id = resultSet.getInt("Id");
+                    this.salt = resultSet.getBytes("Salt");
+                    this.hash = Util.trim(resultSet.getBytes("Hash"));
+                    this.slotMinutes = resultSet.getInt("SlotMinutes");
+                    IdDictionary.CAREGIVERS.put(this.username, this.id);
+                    return new Caregivers(this);
+                }
+                return null;
+            } catch (SQLException e) {
+                e.printStackTrace();
+                throw new SQLException("Error occurred when getting caregiver's information!", e);
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
         /**
          * Check whether we can find a caregiver with given username and password
          * @return a Caregiver with correct username and password
@@ -126,12 +237,19 @@ public class Caregivers {
          * @throws SQLException sql execution exception
          */
         public Caregivers get() throws SQLException {
+            return Resilience.read(this::tryGet);
+        }
+
+        /**
+         * one attempt of get, retried by Resilience.read after transient faults
+         */
+        private Caregivers tryGet() throws SQLException {
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
-            String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
+            String getCaregiver = "SELECT Id, Salt, Hash, SlotMinutes FROM Caregivers WHERE Username = ?";
             try {
-                PreparedStatement statement = con.prepareStatement(getCaregiver);
+                PreparedStatement statement = QueryType.POINT.apply(con.prepareStatement(getCaregiver));
                 statement.setString(1, this.username);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
@@ -144,15 +262,18 @@ public class Caregivers {
                     if (!Arrays.equals(hash, calculatedHash)) {
                         return null;
                     } else {
+                        this.id = resultSet.getInt("Id");
                         this.salt = salt;
                         this.hash = hash;
+                        IdDictionary.CAREGIVERS.put(this.username, this.id);
+                        this.slotMinutes = resultSet.getInt("SlotMinutes");
                         return new Caregivers(this);
                     }
                 }
                 return null;
             } catch (SQLException e) {
                 e.printStackTrace();
-                throw new SQLException("Error occurred when getting caregiver's information!");
+                throw new SQLException("Error occurred when getting caregiver's information!", e);
             } finally {
                 cm.closeConnection();
             }
@@ -0,0 +1,525 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.QueryType;
+import scheduler.db.Resilience;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DoseAllocations splits the stock of a vaccine into per-date budgets,
+ * so one busy day can not use up doses meant for the rest of the week.
+ * All allocations are loaded into memory once and kept in sync with the DoseAllocations table,
+ * so checking a (vaccine, date) budget never needs a database round trip.
+ * Reserving and releasing a dose change the row with a conditional update which is atomic on its own,
+ * the class lock is only held while the in-memory copy is read or set to the row the update returned.
+ */
+public class DoseAllocations {
+
+    // in-memory copy of the DoseAllocations table, keyed by vaccine name and date
+    private static final Map<String, DoseAllocations> allocations = new HashMap<>();
+    private static boolean loaded = false;
+    private static ScheduledExecutorService rebalancer = null;
+
+    private final String vaccine;//vaccine name of this allocation
+    private final Date date;//date of this allocation
+    private int allocated;//doses set aside for this date
+    private int reserved;//doses already reserved on this date
+
+    public DoseAllocations(String vaccine, Date date, int allocated, int reserved) {
+        this.vaccine = vaccine;
+        this.date = date;
+        this.allocated = allocated;
+        this.reserved = reserved;
+    }
+
+    public String getVaccine() {
+        return vaccine;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public int getAllocated() {
+        return allocated;
+    }
+
+    public int getReserved() {
+        return reserved;
+    }
+
+    public int getRemaining() {
+        return allocated - reserved;
+    }
+
+    private static String key(String vaccine, Date date) {
+        return vaccine + "|" + date;
+    }
+
+    /**
+     * load every allocation from the DoseAllocations table into memory, only done once
+     * @throws SQLException sql execution exception
+     */
+    private static synchronized void ensureLoaded() throws SQLException {
+        if (loaded) {
+            return;
+        }
+        Resilience.read(() -> {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try {
+                ensureLoaded(con);
+            } finally {
+                cm.closeConnection();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * load every allocation on the connection of the caller's transaction, unless they are loaded,
+     * so a transaction on the main database never borrows a second connection for it
+     * @param con connection on the main database
+     * @throws SQLException sql execution exception
+     */
+    private static synchronized void ensureLoaded(Connection con) throws SQLException {
+        if (loaded) {
+            return;
+        }
+        String findAll = "SELECT a.VaccineId, v.Name, a.Date, a.Allocated, a.Reserved " +
+                "FROM DoseAllocations a JOIN Vaccines v ON v.Id = a.VaccineId";
+        try {
+            PreparedStatement statement = QueryType.SCAN.apply(con.prepareStatement(findAll));
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                String vaccine = IdDictionary.VACCINES.known(resultSet.getInt("VaccineId"), resultSet.getString("Name"));
+                Date date = resultSet.getDate("Date");
+                int allocated = resultSet.getInt("Allocated");
+                int reserved = resultSet.getInt("Reserved");
+                allocations.put(key(vaccine, date), new DoseAllocations(vaccine, date, allocated, reserved));
+            }
+            loaded = true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when loading dose allocations!", e);
+        }
+    }
+
+    /**
+     * get the allocation of a vaccine on a given date
+     * @param vaccine vaccine name
+     * @param date date
+     * @return the allocation, null if no doses were allocated to this date
+     * @throws SQLException sql execution exception
+     */
+    public static synchronized DoseAllocations getAllocation(String vaccine, Date date) throws SQLException {
+        ensureLoaded();
+        return allocations.get(key(vaccine, date));
+    }
+
+    /**
+     * getAllocation inside the caller's transaction on the main database
+     * @param con connection of the current transaction
+     * @param vaccine vaccine name
+     * @param date date
+     * @return the allocation, null if no doses were allocated to this date
+     * @throws SQLException sql execution exception
+     */
+    static synchronized DoseAllocations getAllocation(Connection con, String vaccine, Date date) throws SQLException {
+        ensureLoaded(con);
+        return allocations.get(key(vaccine, date));
+    }
+
+    /**
+     * get all allocations on a given date, use in search_caregiver_schedule
+     * @param date date
+     * @return a list containing allocations on this date
+     * @throws SQLException sql execution exception
+     */
+    public static synchronized List<DoseAllocations> getAllocations(Date date) throws SQLException {
+        ensureLoaded();
+        List<DoseAllocations> list = new ArrayList<>();
+        for (DoseAllocations allocation : allocations.values()) {
+            if (allocation.date.equals(date)) {
+                list.add(allocation);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * number of doses of a vaccine which are allocated but not reserved yet,
+     * these doses can not be used by dates without an allocation
+     * @param vaccine vaccine name
+     * @return outstanding allocated doses
+     * @throws SQLException sql execution exception
+     */
+    public static synchronized int getOutstanding(String vaccine) throws SQLException {
+        ensureLoaded();
+        return outstanding(vaccine);
+    }
+
+    /**
+     * getOutstanding inside the caller's transaction on the main database
+     * @param con connection of the current transaction
+     * @param vaccine vaccine name
+     * @return outstanding allocated doses
+     * @throws SQLException sql execution exception
+     */
+    static synchronized int getOutstanding(Connection con, String vaccine) throws SQLException {
+        ensureLoaded(con);
+        return outstanding(vaccine);
+    }
+
+    private static int outstanding(String vaccine) {
+        int outstanding = 0;
+        for (DoseAllocations allocation : allocations.values()) {
+            if (allocation.vaccine.equals(vaccine)) {
+                outstanding += allocation.getRemaining();
+            }
+        }
+        return outstanding;
+    }
+
+    /**
+     * set aside more doses of a vaccine for a given date, create the allocation if it doesn't exist
+     * @param vaccine vaccine name
+     * @param date date
+     * @param doses positive number of doses
+     * @throws SQLException sql execution exception
+     * @throws IllegalArgumentException if doses is not positive
+     */
+    public static void allocate(String vaccine, Date date, int doses) throws SQLException {
+        Resilience.write(() -> {
+            tryAllocate(vaccine, date, doses);
+            return null;
+        });
+    }
+
+    /**
+     * one attempt of allocate, its outcome reported to the breakers by Resilience.write
+     */
+    private static synchronized void tryAllocate(String vaccine, Date date, int doses) throws SQLException {
+        if (doses <= 0) {
+            throw new IllegalArgumentException();
+        }
+        ensureLoaded();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            int vaccineId = IdDictionary.VACCINES.idOf(con, vaccine);
+            addAllocated(con, vaccine, date, doses);
+            CapacitySummary.allocationChanged(vaccineId, date, doses);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when allocating doses!", e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    /**
+     * add doses to the allocation row and the in-memory copy, insert the row if it doesn't exist
+     */
+    private static void addAllocated(Connection con, String vaccine, Date date, int doses) throws SQLException {
+        DoseAllocations allocation = allocations.get(key(vaccine, date));
+        if (allocation == null) {
+            PreparedStatement insert = con.prepareStatement("INSERT INTO DoseAllocations VALUES (?, ?, ?, 0)");
+            insert.setInt(1, IdDictionary.VACCINES.idOf(con, vaccine));
+            insert.setDate(2, date);
+            insert.setInt(3, doses);
+            insert.executeUpdate();
+            allocations.put(key(vaccine, date), new DoseAllocations(vaccine, date, doses, 0));
+        } else {
+            PreparedStatement update = con.prepareStatement(
+                    "UPDATE DoseAllocations SET Allocated = Allocated + ? WHERE VaccineId = ? AND Date = ?");
+            update.setInt(1, doses);
+            update.setInt(2, IdDictionary.VACCINES.idOf(con, vaccine));
+            update.setDate(3, date);
+            update.executeUpdate();
+            allocation.allocated += doses;
+        }
+    }
+
+    /**
+     * reserve one allocated dose of a vaccine on a given date
+     * the update only succeeds while Reserved < Allocated, so two sessions can't both take the last dose
+     * @param vaccine vaccine name
+     * @param date date
+     * @return true if a dose was reserved, false if the allocation is used up or doesn't exist
+     * @throws SQLException sql execution exception
+     */
+    public static boolean reserve(String vaccine, Date date) throws SQLException {
+        return Resilience.write(() -> tryReserve(vaccine, date));
+    }
+
+    /**
+     * one attempt of reserve, its outcome reported to the breakers by Resilience.write
+     */
+    private static boolean tryReserve(String vaccine, Date date) throws SQLException {
+        ensureLoaded();
+        DoseAllocations allocation = cached(vaccine, date, 1);
+        if (allocation == null) {
+            return false;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String reserve = "UPDATE DoseAllocations SET Reserved = Reserved + 1 OUTPUT inserted.Allocated, " +
+                "inserted.Reserved WHERE VaccineId = ? AND Date = ? AND Reserved < Allocated";
+        try {
+            int vaccineId = IdDictionary.VACCINES.idOf(con, vaccine);
+            PreparedStatement statement = QueryType.POINT.apply(con.prepareStatement(reserve));
+            statement.setInt(1, vaccineId);
+            statement.setDate(2, date);
+            ResultSet resultSet = statement.executeQuery();
+            if (!resultSet.next()) {
+                return false;
+            }
+            changed(allocation, resultSet.getInt(1), resultSet.getInt(2));
+            CapacitySummary.allocationChanged(vaccineId, date, -1);
+            return true;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when reserving allocated dose!", e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    /**
+     * reserve several allocated doses of a vaccine on a given date inside the caller's transaction,
+     * call invalidate() if that transaction rolls back
+     * @param con connection of the current transaction
+     * @param vaccine vaccine name
+     * @param date date
+     * @param doses number of doses
+     * @return true if the doses were reserved, false if the allocation doesn't have that many left
+     * @throws SQLException sql execution exception
+     */
+    public static boolean reserve(Connection con, String vaccine, Date date, int doses) throws SQLException {
+        ensureLoaded(con);
+        DoseAllocations allocation = cached(vaccine, date, doses);
+        if (allocation == null) {
+            return false;
+        }
+        String reserve = "UPDATE DoseAllocations SET Reserved = Reserved + ? OUTPUT inserted.Allocated, " +
+                "inserted.Reserved WHERE VaccineId = ? AND Date = ? AND Reserved + ? <= Allocated";
+        PreparedStatement statement = QueryType.POINT.apply(con.prepareStatement(reserve));
+        statement.setInt(1, doses);
+        statement.setInt(2, IdDictionary.VACCINES.idOf(con, vaccine));
+        statement.setDate(3, date);
+        statement.setInt(4, doses);
+        ResultSet resultSet = statement.executeQuery();
+        if (!resultSet.next()) {
+            return false;
+        }
+        changed(allocation, resultSet.getInt(1), resultSet.getInt(2));
+        return true;
+    }
+
+    /**
+     * look up an allocation in the in-memory copy, the lock is only held for the lookup
+     * @param doses doses it must have left, 0 to find it either way
+     * @return the allocation, null if it doesn't exist or has fewer than doses left
+     */
+    private static synchronized DoseAllocations cached(String vaccine, Date date, int doses) {
+        DoseAllocations allocation = allocations.get(key(vaccine, date));
+        return allocation == null || allocation.getRemaining() < doses ? null : allocation;
+    }
+
+    /**
+     * set the in-memory copy of an allocation to the row an update returned
+     */
+    private static synchronized void changed(DoseAllocations allocation, int allocated, int reserved) {
+        allocation.allocated = allocated;
+        allocation.reserved = reserved;
+    }
+
+    /**
+     * drop the in-memory copy, it is loaded from the table again next time
+     * use after a transaction which reserved doses rolls back
+     */
+    public static synchronized void invalidate() {
+        allocations.clear();
+        loaded = false;
+    }
+
+    /**
+     * give one reserved dose back to the allocation of a given date, use in cancel
+     * does nothing if there is no allocation for this date
+     * @param vaccine vaccine name
+     * @param date date
+     * @throws SQLException sql execution exception
+     */
+    public static void cancel(String vaccine, Date date) throws SQLException {
+        Resilience.write(() -> {
+            tryCancel(vaccine, date);
+            return null;
+        });
+    }
+
+    /**
+     * one attempt of cancel, its outcome reported to the breakers by Resilience.write
+     */
+    private static void tryCancel(String vaccine, Date date) throws SQLException {
+        ensureLoaded();
+        DoseAllocations allocation = cached(vaccine, date, 0);
+        if (allocation == null) {
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+
+        String release = "UPDATE DoseAllocations SET Reserved = Reserved - 1 OUTPUT inserted.Allocated, " +
+                "inserted.Reserved WHERE VaccineId = ? AND Date = ? AND Reserved > 0";
+        try {
+            int vaccineId = IdDictionary.VACCINES.idOf(con, vaccine);
+            PreparedStatement statement = QueryType.POINT.apply(con.prepareStatement(release));
+            statement.setInt(1, vaccineId);
+            statement.setDate(2, date);
+            ResultSet resultSet = statement.executeQuery();
+            if (resultSet.next()) {
+                changed(allocation, resultSet.getInt(1), resultSet.getInt(2));
+                CapacitySummary.allocationChanged(vaccineId, date, 1);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when releasing allocated dose!", e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    /**
+     * move unused doses of past dates forward to the earliest allocation on or after today
+     * (or to today if a vaccine has no upcoming allocation), all in one transaction
+     * @param today first date which is still bookable
+     * @throws SQLException sql execution exception
+     */
+    public static void rebalance(Date today) throws SQLException {
+        Resilience.write(() -> {
+            tryRebalance(today);
+            return null;
+        });
+    }
+
+    /**
+     * one attempt of rebalance, its outcome reported to the breakers by Resilience.write
+     */
+    private static synchronized void tryRebalance(Date today) throws SQLException {
+        ensureLoaded();
+        List<DoseAllocations> expired = new ArrayList<>();
+        Map<String, Date> target = new HashMap<>();
+        for (DoseAllocations allocation : allocations.values()) {
+            if (allocation.date.before(today)) {
+                if (allocation.getRemaining() > 0) {
+                    expired.add(allocation);
+                }
+            } else {
+                Date next = target.get(allocation.vaccine);
+                if (next == null || allocation.date.before(next)) {
+                    target.put(allocation.vaccine, allocation.date);
+                }
+            }
+        }
+        if (expired.isEmpty()) {
+            return;
+        }
+        expired.sort(Comparator.comparing(DoseAllocations::getDate));
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        // in-memory changes are only applied after the transaction commits
+        Map<DoseAllocations, Integer> moved = new HashMap<>();
+        Map<String, Integer> vaccineIds = new HashMap<>();
+        try {
+            con.setAutoCommit(false);
+            PreparedStatement shrink = con.prepareStatement(
+                    "UPDATE DoseAllocations SET Allocated = Reserved WHERE VaccineId = ? AND Date = ?");
+            for (DoseAllocations allocation : expired) {
+                int vaccineId = IdDictionary.VACCINES.idOf(con, allocation.vaccine);
+                vaccineIds.put(allocation.vaccine, vaccineId);
+                shrink.setInt(1, vaccineId);
+                shrink.setDate(2, allocation.date);
+                shrink.executeUpdate();
+                moved.put(allocation, allocation.getRemaining());
+            }
+            Map<String, Integer> totals = new HashMap<>();
+            Map<DoseAllocations, Integer> added = new HashMap<>();
+            for (Map.Entry<DoseAllocations, Integer> entry : moved.entrySet()) {
+                totals.merge(entry.getKey().vaccine, entry.getValue(), Integer::sum);
+            }
+            for (Map.Entry<String, Integer> entry : totals.entrySet()) {
+                Date next = target.containsKey(entry.getKey()) ? target.get(entry.getKey()) : today;
+                addAllocated(con, entry.getKey(), next, entry.getValue());
+                added.merge(allocations.get(key(entry.getKey(), next)), entry.getValue(), Integer::sum);
+            }
+            con.commit();
+            for (Map.Entry<DoseAllocations, Integer> entry : moved.entrySet()) {
+                entry.getKey().allocated = entry.getKey().reserved;
+                CapacitySummary.allocationChanged(vaccineIds.get(entry.getKey().vaccine), entry.getKey().date,
+                        -entry.getValue());
+            }
+            for (Map.Entry<DoseAllocations, Integer> entry : added.entrySet()) {
+                CapacitySummary.allocationChanged(vaccineIds.get(entry.getKey().vaccine), entry.getKey().date,
+                        entry.getValue());
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            con.rollback();
+            // the in-memory copy may have taken some of the inserts, reload it from the table next time
+            allocations.clear();
+            loaded = false;
+            throw new SQLException("Error occurred when rebalancing dose allocations!", e);
+        } finally {
+            con.setAutoCommit(true);
+            cm.closeConnection();
+        }
+    }
+
+    /**
+     * start a background job which rebalances allocations once a day
+     * calling it again does nothing
+     */
+    public static synchronized void startRebalancer() {
+        if (rebalancer != null) {
+            return;
+        }
+        rebalancer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "dose-rebalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rebalancer.scheduleAtFixedRate(() -> {
+            try {
+                rebalance(Date.valueOf(LocalDate.now()));
+            } catch (SQLException e) {
+                System.err.println(e.getMessage());
+            }
+        }, 0, 1, TimeUnit.DAYS);
+    }
+
+    @Override
+    public String toString() {
+        return "Allocation{" +
+                "vaccineName='" + vaccine + '\'' +
+                ", date=" + date +
+                ", remainingDoses=" + getRemaining() +
+                '}';
+    }
+}
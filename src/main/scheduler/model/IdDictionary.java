@@ -0,0 +1,219 @@
+package scheduler.model;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.QueryType;
+import scheduler.util.IntArrayList;
+import scheduler.util.IntHashSet;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * IdDictionary maps patient, caregiver and vaccine names to their integer Id and back.
+ * Availabilities, Appointments and the other tables only store these ids,
+ * and every model object gets the same String instance for one name.
+ * Entries are loaded from the database the first time a name or id is asked for.
+ * Code reading many rows joins the name tables where it can, or preloads the names of all ids
+ * of a result set at once, instead of asking for one id after the other.
+ */
+public class IdDictionary {
+
+    public static final IdDictionary PATIENTS = new IdDictionary("Patients", "Username", "Patient");
+    public static final IdDictionary CAREGIVERS = new IdDictionary("Caregivers", "Username", "Caregiver");
+    public static final IdDictionary VACCINES = new IdDictionary("Vaccines", "Name", "Vaccine");
+
+    private static final IdDictionary[] ALL = {PATIENTS, CAREGIVERS, VACCINES};
+
+    private final String table;
+    private final String column;
+    private final String kind;//what a name is, for messages
+    // names are compared case ignored like the database does
+    private final Map<String, Integer> ids = new HashMap<>();
+    private String[] names = new String[64];//indexed by id
+
+    private IdDictionary(String table, String column, String kind) {
+        this.table = table;
+        this.column = column;
+        this.kind = kind;
+    }
+
+    /**
+     * get the id of a name which has to exist, e.g. to write it into another table
+     * @param name username or vaccine name
+     * @return the id
+     * @throws SQLException sql execution exception, also if the name doesn't exist
+     */
+    public synchronized int idOf(String name) throws SQLException {
+        int id = find(name);
+        if (id == -1) {
+            throw new SQLException(kind + " " + name + " doesn't exist!");
+        }
+        return id;
+    }
+
+    /**
+     * get the id of a name which has to exist inside a transaction on the main database,
+     * the lookup of a name which is not known yet runs on that transaction instead of borrowing another connection
+     * @param con connection of the current transaction, on the main database
+     * @param name username or vaccine name
+     * @return the id
+     * @throws SQLException sql execution exception, also if the name doesn't exist
+     */
+    public synchronized int idOf(Connection con, String name) throws SQLException {
+        Integer id = ids.get(name.toLowerCase(Locale.ROOT));
+        if (id == null) {
+            lookup(con, "SELECT Id, " + column + " FROM " + table + " WHERE " + column + " = ?", name);
+            id = ids.get(name.toLowerCase(Locale.ROOT));
+        }
+        if (id == null) {
+            throw new SQLException(kind + " " + name + " doesn't exist!");
+        }
+        return id;
+    }
+
+    /**
+     * get the id of a name which may not exist, e.g. to look something up by it
+     * @param name username or vaccine name
+     * @return the id, -1 if the name doesn't exist
+     * @throws SQLException sql execution exception
+     */
+    public synchronized int find(String name) throws SQLException {
+        Integer id = ids.get(name.toLowerCase(Locale.ROOT));
+        if (id != null) {
+            return id;
+        }
+        lookup("SELECT Id, " + column + " FROM " + table + " WHERE " + column + " = ?", name);
+        id = ids.get(name.toLowerCase(Locale.ROOT));
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * get the name of an id
+     * @param id the id
+     * @return the name, null if the id doesn't exist
+     * @throws SQLException sql execution exception
+     */
+    public synchronized String nameOf(int id) throws SQLException {
+        if (id < names.length && id >= 0 && names[id] != null) {
+            return names[id];
+        }
+        lookup("SELECT Id, " + column + " FROM " + table + " WHERE Id = ?", id);
+        return id < names.length && id >= 0 ? names[id] : null;
+    }
+
+    /**
+     * add a name and its id, use right after inserting a new row
+     * @param name username or vaccine name
+     * @param id generated id
+     */
+    public synchronized void put(String name, int id) {
+        if (id >= names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, id + 1));
+        }
+        names[id] = name;
+        ids.put(name.toLowerCase(Locale.ROOT), id);
+    }
+
+    /**
+     * add a name read together with its id, e.g. from a join with the name table
+     * @param id the id
+     * @param name the name
+     * @return the name instance every model object shares
+     */
+    public synchronized String known(int id, String name) {
+        if (id >= 0 && id < names.length && names[id] != null) {
+            return names[id];
+        }
+        put(name, id);
+        return name;
+    }
+
+    /**
+     * load the names of every id which is not known yet, of all three dictionaries in one round trip,
+     * use before calling nameOf for each row of a result set which couldn't join the name tables,
+     * e.g. rows of a shard, which has no name tables
+     * @param patients patient ids, may be null
+     * @param caregivers caregiver ids, may be null
+     * @param vaccines vaccine ids, may be null
+     * @throws SQLException sql execution exception
+     */
+    public static void preload(IntHashSet patients, IntHashSet caregivers, IntHashSet vaccines) throws SQLException {
+        IntHashSet[] wanted = {patients, caregivers, vaccines};
+        StringBuilder sql = new StringBuilder();
+        for (int d = 0; d < ALL.length; d++) {
+            int[] missing = wanted[d] == null ? new int[0] : ALL[d].missing(wanted[d]);
+            if (missing.length == 0) {
+                continue;
+            }
+            if (sql.length() > 0) {
+                sql.append(" UNION ALL ");
+            }
+            // ids are ints, written into the statement so any number of them fits
+            sql.append("SELECT ").append(d).append(", Id, ").append(ALL[d].column).append(" FROM ")
+                    .append(ALL[d].table).append(" WHERE Id IN (");
+            for (int i = 0; i < missing.length; i++) {
+                sql.append(i == 0 ? "" : ",").append(missing[i]);
+            }
+            sql.append(')');
+        }
+        if (sql.length() == 0) {
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            ResultSet resultSet = QueryType.LIST.apply(con.prepareStatement(sql.toString())).executeQuery();
+            while (resultSet.next()) {
+                ALL[resultSet.getInt(1)].known(resultSet.getInt(2), resultSet.getString(3));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when looking up names!", e);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    /**
+     * @return the ids whose name is not known yet
+     */
+    private synchronized int[] missing(IntHashSet wanted) {
+        IntArrayList missing = new IntArrayList();
+        for (int id : wanted.toArray()) {
+            if (id < 0 || id >= names.length || names[id] == null) {
+                missing.add(id);
+            }
+        }
+        return missing.toArray();
+    }
+
+    private void lookup(String sql, Object key) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            lookup(con, sql, key);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private void lookup(Connection con, String sql, Object key) throws SQLException {
+        try {
+            PreparedStatement statement = QueryType.POINT.apply(con.prepareStatement(sql));
+            statement.setObject(1, key);
+            ResultSet resultSet = statement.executeQuery();
+            if (resultSet.next()) {
+                put(resultSet.getString(2), resultSet.getInt(1));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw new SQLException("Error occurred when looking up " + table + " id!", e);
+        }
+    }
+}
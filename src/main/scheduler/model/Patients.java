@@ -1,6 +1,8 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.QueryType;
+import scheduler.db.Resilience;
 import scheduler.util.Util;
 
 import java.sql.*;
@@ -8,6 +10,7 @@ import java.util.Arrays;
 
 public class Patients {
 
+    private int id;//surrogate key, 0 until saved
     private final String username;
     private final byte[] salt;
     private final byte[] hash;
@@ -27,12 +30,17 @@ public class Patients {
      * @param getter a PatientGetter object Patient
      */
     public Patients(PatientGetter getter) {
+        this.id = getter.id;
         this.username = getter.username;
         this.salt = getter.salt;
         this.hash = getter.hash;
     }
 
     //getters
+    public int getId() {
+        return id;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -42,19 +50,34 @@ public class Patients {
      * @throws SQLException sql execution exception
      */
     public void saveToDB() throws SQLException {
+        Resilience.write(() -> {
+            trySaveToDB();
+            return null;
+        });
+    }
+
+    /**
+     * one attempt of saveToDB, its outcome reported to the breakers by Resilience.write
+     */
+    private void trySaveToDB() throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
         String addPatient = "INSERT INTO Patients VALUES (? , ?, ?)";
         try {
-            PreparedStatement statement = con.prepareStatement(addPatient);
+            PreparedStatement statement = con.prepareStatement(addPatient, Statement.RETURN_GENERATED_KEYS);
             statement.setString(1, this.username);
             statement.setBytes(2, this.salt);
             statement.setBytes(3, this.hash);
             statement.executeUpdate();
+            ResultSet keys = statement.getGeneratedKeys();
+            if (keys.next()) {
+                this.id = keys.getInt(1);
+                IdDictionary.PATIENTS.put(this.username, this.id);
+            }
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new SQLException("Error occurred when creating new Patient! Failed!");
+            throw new SQLException("Error occurred when creating new Patient! Failed!", e);
         } finally {
             cm.closeConnection();
         }
@@ -92,6 +115,7 @@ public class Patients {
     public static class PatientGetter {
         private final String username;
         private final String password;
+        private int id;
         private byte[] salt;
         private byte[] hash;
 
@@ -108,12 +132,19 @@ public class Patients {
          * @throws SQLException sql execution exception
          */
         public Patients get() throws SQLException {
+            return Resilience.read(this::tryGet);
+        }
+
+        /**
+         * one attempt of get, retried by Resilience.read after transient faults
+         */
+        private Patients tryGet() throws SQLException {
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
-            String getPatient = "SELECT Salt, Hash FROM Patients WHERE Username = ?";
+            String getPatient = "SELECT Id, Salt, Hash FROM Patients WHERE Username = ?";
             try {
-                PreparedStatement statement = con.prepareStatement(getPatient);
+                PreparedStatement statement = QueryType.POINT.apply(con.prepareStatement(getPatient));
                 statement.setString(1, this.username);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
@@ -128,15 +159,17 @@ public class Patients {
                         return null;
                     } else {
                         //return a new patient, which is logged-in patient
+                        this.id = resultSet.getInt("Id");
                         this.salt = salt;
                         this.hash = hash;
+                        IdDictionary.PATIENTS.put(this.username, this.id);
                         return new Patients(this);
                     }
                 }
                 return null;
             } catch (SQLException e) {
                 e.printStackTrace();
-                throw new SQLException("Error occurred when getting patient's information!");
+                throw new SQLException("Error occurred when getting patient's information!", e);
             } finally {
                 cm.closeConnection();
             }
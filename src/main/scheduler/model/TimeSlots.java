@@ -0,0 +1,117 @@
+package scheduler.model;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+
+/**
+ * TimeSlots splits a working day into slots of a caregiver's slot length.
+ * The free slots of one caregiver on one day are kept in a single long,
+ * bit i is set when the slot starting at DAY_START + i * slotMinutes is free.
+ */
+public final class TimeSlots {
+
+    public static final LocalTime DAY_START = LocalTime.of(8, 0);
+    public static final int DAY_MINUTES = 600;//working day is 08:00 - 18:00
+    public static final int MIN_SLOT_MINUTES = 10;//keeps a day within 64 slots
+    public static final int DEFAULT_SLOT_MINUTES = 60;
+
+    private TimeSlots() {}
+
+    /**
+     * @param slotMinutes slot length in minutes
+     * @return whether the slot length is supported
+     */
+    public static boolean isValidLength(int slotMinutes) {
+        return slotMinutes >= MIN_SLOT_MINUTES && slotMinutes <= DAY_MINUTES;
+    }
+
+    /**
+     * @param slotMinutes slot length in minutes
+     * @return number of slots in one working day
+     */
+    public static int slotsPerDay(int slotMinutes) {
+        return DAY_MINUTES / slotMinutes;
+    }
+
+    /**
+     * @param slotMinutes slot length in minutes
+     * @return a bitmap with every slot of the day free
+     */
+    public static long fullDay(int slotMinutes) {
+        int slots = slotsPerDay(slotMinutes);
+        return slots == 64 ? -1L : (1L << slots) - 1;
+    }
+
+    /**
+     * @param slot slot index
+     * @return a bitmap with only this slot set
+     */
+    public static long bit(int slot) {
+        return 1L << slot;
+    }
+
+    /**
+     * @param slots bitmap of free slots
+     * @return index of the earliest free slot, -1 if no slot is free
+     */
+    public static int firstFree(long slots) {
+        return slots == 0 ? -1 : Long.numberOfTrailingZeros(slots);
+    }
+
+    /**
+     * @param slots bitmap of free slots
+     * @param slot slot index
+     * @return whether this slot is free
+     */
+    public static boolean isFree(long slots, int slot) {
+        return slot >= 0 && slot < 64 && (slots & bit(slot)) != 0;
+    }
+
+    /**
+     * @param slot slot index
+     * @param slotMinutes slot length in minutes
+     * @return start time of this slot
+     */
+    public static LocalTime startTime(int slot, int slotMinutes) {
+        return DAY_START.plusMinutes((long) slot * slotMinutes);
+    }
+
+    /**
+     * find the slot starting at a given time
+     * @param time time as HH:mm
+     * @param slotMinutes slot length in minutes
+     * @return slot index, -1 if no slot of this length starts at the given time
+     * @throws IllegalArgumentException if time is not a valid HH:mm time
+     */
+    public static int slotAt(String time, int slotMinutes) {
+        LocalTime t;
+        try {
+            t = LocalTime.parse(time);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(e);
+        }
+        int minutes = (t.getHour() * 60 + t.getMinute()) - (DAY_START.getHour() * 60 + DAY_START.getMinute());
+        if (minutes < 0 || minutes % slotMinutes != 0 || minutes / slotMinutes >= slotsPerDay(slotMinutes)) {
+            return -1;
+        }
+        return minutes / slotMinutes;
+    }
+
+    /**
+     * @param slots bitmap of free slots
+     * @param slotMinutes slot length in minutes
+     * @return start times of all free slots separated by spaces
+     */
+    public static String format(long slots, int slotMinutes) {
+        StringBuilder sb = new StringBuilder();
+        while (slots != 0) {
+            int slot = Long.numberOfTrailingZeros(slots);
+            if (sb.length() != 0) {
+                sb.append(' ');
+            }
+            sb.append(startTime(slot, slotMinutes));
+            slots &= slots - 1;
+        }
+        return sb.toString();
+    }
+}
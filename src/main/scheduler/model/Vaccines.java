@@ -1,18 +1,26 @@
 package scheduler.model;
 
 import scheduler.db.ConnectionManager;
+import scheduler.db.QueryType;
+import scheduler.db.Resilience;
+import scheduler.db.Route;
+import scheduler.feed.ChangeEvent;
+import scheduler.feed.ChangeFeed;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
 
 public class Vaccines {
 
+    private int id;//surrogate key, 0 until saved
     private final String vaccineName;
     private int availableDoses;
+    private int version;//Version column when this object was read or last changed
 
     private Vaccines(VaccineBuilder builder) {
         this.vaccineName = builder.vaccineName;
@@ -20,8 +28,10 @@ public class Vaccines {
     }
 
     private Vaccines(VaccineGetter getter) {
+        this.id = getter.id;
         this.vaccineName = getter.vaccineName;
         this.availableDoses = getter.availableDoses;
+        this.version = getter.version;
     }
 
     public Vaccines() {
@@ -29,6 +39,10 @@ public class Vaccines {
     }
 
     // Getters
+    public int getId() {
+        return id;
+    }
+
     public String getVaccineName() {
         return vaccineName;
     }
@@ -37,26 +51,55 @@ public class Vaccines {
         return availableDoses;
     }
 
+    public int getVersion() {
+        return version;
+    }
+
     /**
      * save a new row to vaccine
      * @throws SQLException sql execution exception
      */
     public void saveToDB() throws SQLException {
+        Resilience.write(() -> {
+            trySaveToDB();
+            return null;
+        });
+    }
+
+    /**
+     * one attempt of saveToDB, its outcome reported to the breakers by Resilience.write
+     */
+    private void trySaveToDB() throws SQLException {
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String addDoses = "INSERT INTO Vaccines VALUES (?, ?)";
+        String addDoses = "INSERT INTO Vaccines (Name, Doses) VALUES (?, ?)";
         try {
-            PreparedStatement statement = con.prepareStatement(addDoses);
+            con.setAutoCommit(false);
+            PreparedStatement statement = con.prepareStatement(addDoses, Statement.RETURN_GENERATED_KEYS);
             statement.setString(1, this.vaccineName);
             statement.setInt(2, this.availableDoses);
             statement.executeUpdate();
+            ResultSet keys = statement.getGeneratedKeys();
+            if (keys.next()) {
+                this.id = keys.getInt(1);
+                IdDictionary.VACCINES.put(this.vaccineName, this.id);
+            }
+            if (this.availableDoses != 0) {
+                AppointmentEvents.append(con, AppointmentEvents.dosesAdded(this.id, this.availableDoses));
+            }
+            con.commit();
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new SQLException("Error occurred when creating a new Vaccine!");
+            con.rollback();
+            throw new SQLException("Error occurred when creating a new Vaccine!", e);
         } finally {
+            con.setAutoCommit(true);
             cm.closeConnection();
         }
+        CapacitySummary.dosesChanged(this.id, this.availableDoses);
+        ChangeFeed.publish("Vaccines", ChangeEvent.Op.INSERT, ChangeEvent.columns("Id", this.id,
+                "Name", this.vaccineName, "Doses", this.availableDoses));
     }
 
     /**
@@ -65,21 +108,32 @@ public class Vaccines {
      * @throws SQLException sql execution exception
      */
     public List<Vaccines> getAllVaccines() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
+        return Resilience.read(this::tryGetAllVaccines);
+    }
+
+    /**
+     * one attempt of getAllVaccines, retried by Resilience.read after transient faults
+     */
+    private List<Vaccines> tryGetAllVaccines() throws SQLException {
+        ConnectionManager cm = new ConnectionManager(Route.READ_ONLY);
         Connection con = cm.createConnection();
-        String findAll = "SELECT * FROM Vaccines";
+        String findAll = "SELECT Id, Name, Doses, Version FROM Vaccines";
         List<Vaccines> vaccines = new ArrayList<Vaccines>();
         try {
-            PreparedStatement statement = con.prepareStatement(findAll);
+            PreparedStatement statement = QueryType.SCAN.apply(con.prepareStatement(findAll));
             ResultSet resultSet = statement.executeQuery();
             while (resultSet.next()) {
                 String name = resultSet.getString("Name");
                 int doses = resultSet.getInt("Doses");
-                vaccines.add(new Vaccines(new VaccineBuilder(name, doses)));
+                Vaccines vaccine = new Vaccines(new VaccineBuilder(name, doses));
+                vaccine.id = resultSet.getInt("Id");
+                vaccine.version = resultSet.getInt("Version");
+                IdDictionary.VACCINES.put(name, vaccine.id);
+                vaccines.add(vaccine);
             }
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new SQLException("Error occurred when getting vaccines information!");
+            throw new SQLException("Error occurred when getting vaccines information!", e);
         } finally {
             cm.closeConnection();
         }
@@ -96,23 +150,8 @@ public class Vaccines {
         if (num <= 0) {
             throw new IllegalArgumentException();
         }
-        this.availableDoses += num;
-
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE Vaccines SET Doses = ? WHERE name = ?;";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            throw new SQLException("Error occurred when increasing vaccine doses!");
-        } finally {
-            cm.closeConnection();
-        }
+        Resilience.write(() -> changeDoses(num));
+        publishDoses();
     }
 
     /**
@@ -122,25 +161,81 @@ public class Vaccines {
      * @throws SQLException sql execution exception
      */
     public void decreaseAvailableDoses(int num) throws SQLException {
-        if (this.availableDoses - num < 0) {
-            throw new IllegalArgumentException("Not enough available doses!");
+        Resilience.write(() -> changeDoses(-num));
+        publishDoses();
+    }
+
+    /**
+     * add doses to the row relative to what it holds now, like a booking takes them, so concurrent changes of
+     * a popular vaccine never conflict; when taking doses the update only matches while enough are left
+     * @param num doses to add, negative to take doses
+     * @return the doses left
+     * @throws IllegalArgumentException if not enough doses are left, the doses and version of this object
+     * are reloaded then
+     * @throws SQLException sql execution exception
+     */
+    private int changeDoses(int num) throws SQLException {
+        if (this.id == 0) {
+            this.id = IdDictionary.VACCINES.idOf(this.vaccineName);
         }
-        this.availableDoses -= num;
         ConnectionManager cm = new ConnectionManager();
         Connection con = cm.createConnection();
 
-        String removeAvailability  = "UPDATE Vaccines SET Doses = ? WHERE name = ?;";
+        String changeDoses = "UPDATE Vaccines SET Doses = Doses + ?, Version = Version + 1 " +
+                "OUTPUT inserted.Doses, inserted.Version WHERE Id = ? AND Doses >= ?";
+        int doses;
+        int newVersion;
         try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
+            con.setAutoCommit(false);
+            PreparedStatement statement = QueryType.POINT.apply(con.prepareStatement(changeDoses));
+            statement.setInt(1, num);
+            statement.setInt(2, this.id);
+            statement.setInt(3, Math.max(0, -num));
+            ResultSet resultSet = statement.executeQuery();
+            if (!resultSet.next()) {
+                con.rollback();
+                reload(con);
+                throw new IllegalArgumentException("Not enough available doses!");
+            }
+            doses = resultSet.getInt(1);
+            newVersion = resultSet.getInt(2);
+            AppointmentEvents.append(con, AppointmentEvents.dosesAdded(this.id, num));
+            con.commit();
         } catch (SQLException e) {
             e.printStackTrace();
-            throw new SQLException("Error occurred when decreasing vaccine doses!");
+            con.rollback();
+            throw new SQLException("Error occurred when " + (num > 0 ? "increasing" : "decreasing") + " vaccine doses!", e);
         } finally {
+            con.setAutoCommit(true);
             cm.closeConnection();
         }
+        CapacitySummary.dosesChanged(this.id, num);
+        this.availableDoses = doses;
+        this.version = newVersion;
+        return doses;
+    }
+
+    /**
+     * read the current doses and version of this vaccine
+     * @param con connection to use
+     * @throws SQLException sql execution exception
+     * @throws IllegalArgumentException if the vaccine doesn't exist anymore
+     */
+    private void reload(Connection con) throws SQLException {
+        PreparedStatement statement = QueryType.POINT.apply(
+                con.prepareStatement("SELECT Doses, Version FROM Vaccines WHERE Name = ?"));
+        statement.setString(1, this.vaccineName);
+        ResultSet resultSet = statement.executeQuery();
+        if (!resultSet.next()) {
+            throw new IllegalArgumentException("Vaccine " + this.vaccineName + " doesn't exist!");
+        }
+        this.availableDoses = resultSet.getInt("Doses");
+        this.version = resultSet.getInt("Version");
+    }
+
+    private void publishDoses() {
+        ChangeFeed.publish("Vaccines", ChangeEvent.Op.UPDATE, ChangeEvent.columns("Id",
+                this.id, "Name", this.vaccineName, "Doses", this.availableDoses));
     }
 
     @Override
@@ -172,8 +267,10 @@ public class Vaccines {
      * Vaccine getters to get information for a vaccine
      */
     public static class VaccineGetter {
-        private final String vaccineName;
+        private int id;
+        private String vaccineName;
         private int availableDoses;
+        private int version;
 
         public VaccineGetter(String vaccineName) {
             this.vaccineName = vaccineName;
@@ -186,21 +283,33 @@ public class Vaccines {
          * @throws SQLException sql execution exception
          */
         public Vaccines get() throws SQLException {
+            return Resilience.read(this::tryGet);
+        }
+
+        /**
+         * one attempt of get, retried by Resilience.read after transient faults
+         */
+        private Vaccines tryGet() throws SQLException {
             ConnectionManager cm = new ConnectionManager();
             Connection con = cm.createConnection();
 
-            String getVaccine = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
+            String getVaccine = "SELECT Id, Name, Doses, Version FROM Vaccines WHERE Name = ?";
             try {
-                PreparedStatement statement = con.prepareStatement(getVaccine);
+                PreparedStatement statement = QueryType.POINT.apply(con.prepareStatement(getVaccine));
                 statement.setString(1, this.vaccineName);
                 ResultSet resultSet = statement.executeQuery();
                 while (resultSet.next()) {
+                    // use the stored spelling of the name, the lookup ignores case
+                    this.id = resultSet.getInt("Id");
+                    this.vaccineName = resultSet.getString("Name");
                     this.availableDoses = resultSet.getInt("Doses");
+                    this.version = resultSet.getInt("Version");
+                    IdDictionary.VACCINES.put(this.vaccineName, this.id);
                     return new Vaccines(this);
                 }
                 return null;
             } catch (SQLException e) {
-                throw new SQLException();
+                throw new SQLException("Error occurred when getting vaccine information!", e);
             } finally {
                 cm.closeConnection();
             }
@@ -0,0 +1,316 @@
+package scheduler.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AllocationTracker measures the bytes allocated and the garbage collection time of every command.
+ * Each command is a CommandEvent for flight recordings. When tracking is on, the totals per command are kept
+ * for report(), and a flight recording of commands, statements, allocation samples, collections and heap summaries
+ * can be written to a file for JDK Mission Control.
+ * With budgets, overBudget() lists the commands allocating more bytes on average than their own budget,
+ * so a scripted session can fail on allocation regressions. Budgets are kept per command, since a login and
+ * a group reservation allocate orders of magnitude apart; see readBudgets() for the baseline file.
+ * The first run of a command loads classes, connections and caches, so budgets are checked against the average
+ * of the later runs only, and a command which ran once is not checked.
+ */
+public class AllocationTracker {
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private static final int ALLOCATION_SAMPLES = 150;//allocation samples per second in the recording
+    private static final Duration HEAP_PERIOD = Duration.ofSeconds(10);
+    private static final String OTHER_COMMANDS = "*";//budget key of the commands without a budget of their own
+
+    /**
+     * heap usage, recorded every HEAP_PERIOD while the recording runs
+     */
+    @Name("scheduler.Heap")
+    @Label("Heap")
+    @Category("Vaccine Scheduler")
+    @Period("10 s")
+    @StackTrace(false)
+    public static class HeapEvent extends Event {
+        @Label("Used")
+        @DataAmount
+        public long used;
+
+        @Label("Committed")
+        @DataAmount
+        public long committed;
+    }
+
+    private static final Runnable heapHook = () -> {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        HeapEvent event = new HeapEvent();
+        event.used = heap.getUsed();
+        event.committed = heap.getCommitted();
+        event.commit();
+    };
+
+    /**
+     * totals of one command
+     */
+    public static class Stats {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder allocated = new LongAdder();
+        private final LongAccumulator maxAllocated = new LongAccumulator(Math::max, 0);
+        private final LongAdder gcTime = new LongAdder();
+        private final LongAdder gcCount = new LongAdder();
+        private final AtomicBoolean warm = new AtomicBoolean();//the command ran once already
+        private final LongAdder warmCount = new LongAdder();
+        private final LongAdder warmAllocated = new LongAdder();
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getAllocated() {
+            return allocated.sum();
+        }
+
+        public long getAverageAllocated() {
+            long n = count.sum();
+            return n == 0 ? 0 : allocated.sum() / n;
+        }
+
+        /**
+         * @return average bytes allocated by the runs after the first, 0 if the command ran once
+         */
+        public long getWarmAverageAllocated() {
+            long n = warmCount.sum();
+            return n == 0 ? 0 : warmAllocated.sum() / n;
+        }
+
+        public long getMaxAllocated() {
+            return maxAllocated.get();
+        }
+
+        public long getGcTime() {
+            return gcTime.sum();
+        }
+
+        public long getGcCount() {
+            return gcCount.sum();
+        }
+    }
+
+    private final boolean tracking;
+    private final Map<String, Long> budgets;//average bytes per command by command name, see OTHER_COMMANDS
+    private final Recording recording;
+    private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * only commit CommandEvents to flight recordings started outside the application, keep no totals
+     */
+    public AllocationTracker() {
+        this.tracking = false;
+        this.budgets = new HashMap<>();
+        this.recording = null;
+    }
+
+    /**
+     * keep totals per command, and optionally record them to a file
+     * @param recordingFile flight recording written on close, null for no recording
+     * @param budgets average bytes each command may allocate by command name, "*" for every other command,
+     * empty for no budget
+     * @throws IOException if the recording file can't be written
+     */
+    public AllocationTracker(Path recordingFile, Map<String, Long> budgets) throws IOException {
+        this.tracking = true;
+        this.budgets = new HashMap<>(budgets);
+        if (recordingFile == null) {
+            this.recording = null;
+            return;
+        }
+        this.recording = new Recording();
+        recording.setName("scheduler allocations");
+        recording.enable(CommandEvent.class);
+        recording.enable(HashEvent.class);
+        recording.enable("scheduler.Jdbc");
+        recording.enable("jdk.ObjectAllocationSample").with("throttle", ALLOCATION_SAMPLES + "/s").withStackTrace();
+        recording.enable("jdk.GarbageCollection");
+        recording.enable("jdk.GCPhasePause");
+        recording.enable("jdk.GCHeapSummary");
+        FlightRecorder.addPeriodicEvent(HeapEvent.class, heapHook);
+        recording.enable(HeapEvent.class).withPeriod(HEAP_PERIOD);
+        recording.setToDisk(true);
+        recording.setDestination(recordingFile);
+        recording.start();
+    }
+
+    /**
+     * run a command and measure it on the current thread
+     * @param command command name, used as the key of the totals
+     * @param body runs the command
+     */
+    public void run(String command, Runnable body) {
+        run(command, 0, body);
+    }
+
+    /**
+     * run a command which waited for its turn and measure it on the current thread
+     * @param command command name, used as the key of the totals
+     * @param waited nanoseconds the command waited before it could run
+     * @param body runs the command
+     */
+    public void run(String command, long waited, Runnable body) {
+        CommandEvent event = new CommandEvent();
+        if (!tracking && !event.isEnabled()) {
+            body.run();
+            return;
+        }
+        long gcTime = gcTime();
+        long gcCount = gcCount();
+        event.begin();
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        try {
+            body.run();
+        } finally {
+            allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+            event.end();
+            gcTime = gcTime() - gcTime;
+            gcCount = gcCount() - gcCount;
+            if (event.shouldCommit()) {
+                event.command = command;
+                event.allocated = allocated;
+                event.gcTime = gcTime;
+                event.gcCount = gcCount;
+                event.waited = waited;
+                event.commit();
+            }
+            if (tracking) {
+                Stats total = stats.computeIfAbsent(command, c -> new Stats());
+                total.count.increment();
+                total.allocated.add(allocated);
+                total.maxAllocated.accumulate(allocated);
+                total.gcTime.add(gcTime);
+                total.gcCount.add(gcCount);
+                if (total.warm.getAndSet(true)) {
+                    total.warmCount.increment();
+                    total.warmAllocated.add(allocated);
+                }
+            }
+        }
+    }
+
+    private static long gcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            total += Math.max(0, collector.getCollectionCount());
+        }
+        return total;
+    }
+
+    public boolean isTracking() {
+        return tracking;
+    }
+
+    /**
+     * read the budgets of a baseline file, one "command=bytes" line per command,
+     * "*=bytes" for every command not listed, # starts a comment
+     * @param baseline the file
+     * @return budgets by command name
+     * @throws IOException if the file can't be read or a budget is not a number
+     */
+    public static Map<String, Long> readBudgets(Path baseline) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(baseline)) {
+            properties.load(reader);
+        }
+        Map<String, Long> budgets = new HashMap<>();
+        for (String command : properties.stringPropertyNames()) {
+            try {
+                budgets.put(command, Long.parseLong(properties.getProperty(command).trim()));
+            } catch (NumberFormatException e) {
+                throw new IOException("Allocation budget of " + command + " is not a number: " + baseline);
+            }
+        }
+        return budgets;
+    }
+
+    /**
+     * @return totals of every command run so far, by command name
+     */
+    public Map<String, Stats> getStats() {
+        return new TreeMap<>(stats);
+    }
+
+    /**
+     * @return one entry per command whose runs after the first allocated more than its budget on average,
+     * with both numbers, empty if there are no budgets
+     */
+    public List<String> overBudget() {
+        List<String> over = new ArrayList<>();
+        getStats().forEach((command, total) -> {
+            long budget = budgets.getOrDefault(command, budgets.getOrDefault(OTHER_COMMANDS, 0L));
+            if (budget > 0 && total.getWarmAverageAllocated() > budget) {
+                over.add(command + " (" + total.getWarmAverageAllocated() + " > " + budget + " bytes)");
+            }
+        });
+        return over;
+    }
+
+    /**
+     * @return one line per command with its count, average allocation of all runs and of the runs after the first,
+     * largest allocation and gc time, then the heap usage
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-26s %8s %12s %12s %12s %8s %6s%n", "command", "count", "avg bytes", "warm avg",
+                "max bytes", "gc ms", "gcs"));
+        getStats().forEach((command, total) -> sb.append(String.format("%-26s %8d %12d %12d %12d %8d %6d%n", command,
+                total.getCount(), total.getAverageAllocated(), total.getWarmAverageAllocated(), total.getMaxAllocated(),
+                total.getGcTime(), total.getGcCount())));
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        sb.append(String.format("heap: %d KB used, %d KB committed, %d ms in %d collections%n",
+                heap.getUsed() / 1024, heap.getCommitted() / 1024, gcTime(), gcCount()));
+        return sb.toString();
+    }
+
+    /**
+     * stop the recording and write it to its file
+     */
+    public void close() {
+        if (recording != null) {
+            recording.stop();
+            recording.close();
+            FlightRecorder.removePeriodicEvent(heapHook);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package scheduler.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event for one command of the Scheduler, recorded by AllocationTracker.
+ * Together with the scheduler.Jdbc and scheduler.Hash events on the same thread it shows where
+ * the time of a command goes.
+ * It is only committed while a flight recording with scheduler.Command enabled is running,
+ * e.g. java -XX:StartFlightRecording=settings=profile,filename=scheduler.jfr scheduler.Scheduler
+ */
+@Name("scheduler.Command")
+@Label("Command")
+@Category("Vaccine Scheduler")
+@Description("One command of the scheduler, with the bytes it allocated and the garbage collection time while it ran")
+@StackTrace(false)
+public class CommandEvent extends Event {
+
+    @Label("Command")
+    public String command;
+
+    @Label("Allocated")
+    @Description("Bytes allocated by the thread running the command")
+    @DataAmount
+    public long allocated;
+
+    @Label("GC Time")
+    @Description("Time spent in garbage collections which ran during the command, any thread")
+    @Timespan(Timespan.MILLISECONDS)
+    public long gcTime;
+
+    @Label("GC Count")
+    public long gcCount;
+
+    @Label("Waiting Room")
+    @Description("Time the command waited for its turn before it ran, not part of the event duration")
+    @Timespan(Timespan.NANOSECONDS)
+    public long waited;
+}
@@ -0,0 +1,93 @@
+package scheduler.util;
+
+/**
+ * CommandResult is what one command told its user: its output, its error messages and whether it failed.
+ * Commands report through print() and fail(). While a result is captured on the current thread (see capture())
+ * they go into that result, otherwise they are printed to System.out and System.err right away.
+ * Only the thread running the command is captured, so messages of background threads and stack traces
+ * are never mixed into the result of whichever command happens to run.
+ */
+public class CommandResult {
+
+    private static final ThreadLocal<CommandResult> current = new ThreadLocal<>();
+
+    private final StringBuilder output = new StringBuilder();
+    private final StringBuilder error = new StringBuilder();
+    private boolean failed = false;
+
+    /**
+     * run a command and collect what it reports on this thread
+     * @param command the command
+     * @return the result of the command
+     */
+    public static CommandResult capture(Runnable command) {
+        CommandResult previous = current.get();
+        CommandResult result = new CommandResult();
+        current.set(result);
+        try {
+            command.run();
+        } finally {
+            if (previous == null) {
+                current.remove();
+            } else {
+                current.set(previous);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * report one line of output of the running command
+     * @param line the line
+     */
+    public static void print(Object line) {
+        CommandResult result = current.get();
+        if (result == null) {
+            System.out.println(line);
+        } else {
+            result.output.append(line).append('\n');
+        }
+    }
+
+    /**
+     * report that the running command failed, with the message for the user
+     * @param message the message
+     */
+    public static void fail(String message) {
+        CommandResult result = current.get();
+        if (result == null) {
+            System.err.println(message);
+        } else {
+            result.failed = true;
+            result.error.append(message).append('\n');
+        }
+    }
+
+    /**
+     * report this result again as the result of the command running on this thread,
+     * e.g. a command which another thread ran on its behalf
+     */
+    public void replay() {
+        CommandResult result = current.get();
+        if (result == null) {
+            System.out.print(output);
+            System.err.print(error);
+        } else {
+            result.output.append(output);
+            result.error.append(error);
+            result.failed |= failed;
+        }
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    public String getOutput() {
+        return output.toString().trim();
+    }
+
+    public String getError() {
+        return error.toString().trim();
+    }
+}
@@ -0,0 +1,21 @@
+package scheduler.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for one password hash, see Util.generateHash
+ */
+@Name("scheduler.Hash")
+@Label("Password Hash")
+@Category("Vaccine Scheduler")
+public class HashEvent extends Event {
+
+    @Label("Algorithm")
+    public String algorithm;
+
+    @Label("Iterations")
+    public int iterations;
+}
@@ -0,0 +1,92 @@
+package scheduler.util;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of int values backed by an int[], no boxing on add or get.
+ */
+public class IntArrayList {
+
+    private int[] values;
+    private int size;
+
+    public IntArrayList() {
+        this(16);
+    }
+
+    /**
+     * @param capacity initial capacity
+     */
+    public IntArrayList(int capacity) {
+        values = new int[Math.max(capacity, 1)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param value value to append
+     */
+    public void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    /**
+     * @param index index of the value
+     * @return the value at this index
+     * @throws IndexOutOfBoundsException if index is not less than size
+     */
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return values[index];
+    }
+
+    /**
+     * linear scan, use an IntHashSet for repeated membership checks
+     * @param value value to find
+     * @return whether the list contains this value
+     */
+    public boolean contains(int value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * linear scan, like contains
+     * @param value value to find
+     * @return index of the first occurrence, -1 if the list doesn't contain this value
+     */
+    public int indexOf(int value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return a copy of the values
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -0,0 +1,168 @@
+package scheduler.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of int values using open addressing with linear probing, no boxing on add or contains.
+ * 0 marks an empty bucket, so it is tracked by a separate flag.
+ */
+public class IntHashSet {
+
+    private static final int PHI = 0x9E3779B9;//spreads sequential ids over the table
+
+    private int[] table;
+    private int size;
+    private boolean hasZero;
+
+    public IntHashSet() {
+        this(16);
+    }
+
+    /**
+     * @param expected number of values expected, avoids resizing while adding them
+     */
+    public IntHashSet(int expected) {
+        int capacity = 16;
+        while (capacity * 2 / 3 < expected) {
+            capacity <<= 1;
+        }
+        table = new int[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private static int slot(int value, int mask) {
+        int h = value * PHI;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @param value value to add
+     * @return true if the value was not in the set before
+     */
+    public boolean add(int value) {
+        if (value == 0) {
+            if (hasZero) {
+                return false;
+            }
+            hasZero = true;
+            size++;
+            return true;
+        }
+        int mask = table.length - 1;
+        int i = slot(value, mask);
+        while (table[i] != 0) {
+            if (table[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        size++;
+        if (size * 3 > table.length * 2) {
+            resize();
+        }
+        return true;
+    }
+
+    /**
+     * @param value value to check
+     * @return whether the value is in the set
+     */
+    public boolean contains(int value) {
+        if (value == 0) {
+            return hasZero;
+        }
+        int mask = table.length - 1;
+        int i = slot(value, mask);
+        while (table[i] != 0) {
+            if (table[i] == value) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @param value value to remove
+     * @return true if the value was in the set
+     */
+    public boolean remove(int value) {
+        if (value == 0) {
+            if (!hasZero) {
+                return false;
+            }
+            hasZero = false;
+            size--;
+            return true;
+        }
+        int mask = table.length - 1;
+        int i = slot(value, mask);
+        while (table[i] != value) {
+            if (table[i] == 0) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = 0;
+        size--;
+        // move later values of the same probe run back so lookups don't stop at the hole
+        int j = (i + 1) & mask;
+        while (table[j] != 0) {
+            int moved = table[j];
+            int home = slot(moved, mask);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                table[i] = moved;
+                table[j] = 0;
+                i = j;
+            }
+            j = (j + 1) & mask;
+        }
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(table, 0);
+        hasZero = false;
+        size = 0;
+    }
+
+    /**
+     * @return all values in no particular order
+     */
+    public int[] toArray() {
+        int[] values = new int[size];
+        int n = 0;
+        if (hasZero) {
+            values[n++] = 0;
+        }
+        for (int value : table) {
+            if (value != 0) {
+                values[n++] = value;
+            }
+        }
+        return values;
+    }
+
+    private void resize() {
+        int[] old = table;
+        table = new int[old.length * 2];
+        int mask = table.length - 1;
+        for (int value : old) {
+            if (value != 0) {
+                int i = slot(value, mask);
+                while (table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = value;
+            }
+        }
+    }
+}
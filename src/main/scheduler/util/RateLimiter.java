@@ -0,0 +1,83 @@
+package scheduler.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RateLimiter keeps one TokenBucket per user and one global TokenBucket in front of the commands,
+ * so a few scripted clients can't use up the database for everyone else.
+ * A request needs a token from its user's bucket and from the global bucket and is rejected at once otherwise,
+ * rejections are counted per user.
+ */
+public class RateLimiter {
+
+    private final double userRate;
+    private final int userBurst;
+    private final TokenBucket global;
+    private final ConcurrentHashMap<String, TokenBucket> users = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> rejections = new ConcurrentHashMap<>();
+    private final LongAdder totalRejections = new LongAdder();
+
+    /**
+     * @param userRate commands per second of one user
+     * @param userBurst commands one user can send at once
+     * @param globalRate commands per second of all users together
+     * @param globalBurst commands all users can send at once
+     */
+    public RateLimiter(double userRate, int userBurst, double globalRate, int globalBurst) {
+        this.userRate = userRate;
+        this.userBurst = userBurst;
+        this.global = new TokenBucket(globalRate, globalBurst);
+    }
+
+    /**
+     * @param user username, or any fixed key for users who are not logged-in
+     * @return whether the request may run now
+     */
+    public boolean tryAcquire(String user) {
+        TokenBucket bucket = users.computeIfAbsent(user, u -> new TokenBucket(userRate, userBurst));
+        if (!bucket.tryAcquire()) {
+            reject(user);
+            return false;
+        }
+        if (!global.tryAcquire()) {
+            // the user's token is not used, don't charge it for global load
+            bucket.release();
+            reject(user);
+            return false;
+        }
+        return true;
+    }
+
+    private void reject(String user) {
+        rejections.computeIfAbsent(user, u -> new LongAdder()).increment();
+        totalRejections.increment();
+    }
+
+    /**
+     * @return number of rejected requests of all users
+     */
+    public long getTotalRejections() {
+        return totalRejections.sum();
+    }
+
+    /**
+     * @param user username
+     * @return number of rejected requests of this user
+     */
+    public long getRejections(String user) {
+        LongAdder count = rejections.get(user);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * @return number of rejected requests of every user who was rejected at least once
+     */
+    public Map<String, Long> getRejections() {
+        Map<String, Long> snapshot = new HashMap<>();
+        rejections.forEach((user, count) -> snapshot.put(user, count.sum()));
+        return snapshot;
+    }
+}
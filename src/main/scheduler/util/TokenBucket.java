@@ -0,0 +1,54 @@
+package scheduler.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket which refills rate tokens per second up to burst tokens.
+ * The whole state is one AtomicLong holding the time at which the bucket will be full again
+ * (the generic cell rate algorithm), so tryAcquire() is a single compare-and-set without locks.
+ */
+public class TokenBucket {
+
+    private final long interval;//nanoseconds to refill one token
+    private final long capacity;//nanoseconds to refill the whole bucket
+    private final AtomicLong fullAt;
+
+    /**
+     * @param rate tokens refilled per second, positive
+     * @param burst maximum number of tokens, positive
+     * @throws IllegalArgumentException if rate or burst is not positive
+     */
+    public TokenBucket(double rate, int burst) {
+        if (rate <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive!");
+        }
+        this.interval = (long) (1_000_000_000L / rate);
+        this.capacity = interval * burst;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * take one token if there is one
+     * @return whether a token was taken
+     */
+    public boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long full = fullAt.get();
+            long next = Math.max(full, now) + interval;
+            if (next - now > capacity) {
+                return false;
+            }
+            if (fullAt.compareAndSet(full, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * give back a token taken by tryAcquire(), use when a later check rejects the request
+     */
+    public void release() {
+        fullAt.addAndGet(-interval);
+    }
+}
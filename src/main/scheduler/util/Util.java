@@ -13,6 +13,7 @@ public class Util {
     // constants for handling password
     private static final int HASH_STRENGTH = 10;
     private static final int KEY_LENGTH = 16;
+    private static final String HASH_ALGORITHM = "PBKDF2WithHmacSHA1";
 
     public static byte[] generateSalt() {
         // Generate a random cryptographic salt
@@ -29,11 +30,20 @@ public class Util {
         // Generate the hash
         SecretKeyFactory factory = null;
         byte[] hash = null;
+        HashEvent event = new HashEvent();
+        event.begin();
         try {
-            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            factory = SecretKeyFactory.getInstance(HASH_ALGORITHM);
             hash = factory.generateSecret(spec).getEncoded();
         } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
             throw new IllegalStateException();
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.algorithm = HASH_ALGORITHM;
+                event.iterations = HASH_STRENGTH;
+                event.commit();
+            }
         }
         return hash;
     }
@@ -48,4 +58,61 @@ public class Util {
 
         return Arrays.copyOf(bytes, i + 1);
     }
+
+    /**
+     * split a line on runs of whitespace without regular expressions
+     * @param line a line of input
+     * @return the words of the line, empty if the line is blank
+     */
+    public static String[] tokenize(String line) {
+        int length = line.length();
+        int count = 0;
+        for (int i = 0; i < length; ) {
+            while (i < length && line.charAt(i) <= ' ') {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+            count++;
+            while (i < length && line.charAt(i) > ' ') {
+                i++;
+            }
+        }
+        String[] tokens = new String[count];
+        int n = 0;
+        for (int i = 0; n < count; ) {
+            while (line.charAt(i) <= ' ') {
+                i++;
+            }
+            int start = i;
+            while (i < length && line.charAt(i) > ' ') {
+                i++;
+            }
+            tokens[n++] = line.substring(start, i);
+        }
+        return tokens;
+    }
+
+    /**
+     * append a string as a JSON string literal
+     * @param sb builder to append to
+     * @param s the string
+     */
+    public static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
 }
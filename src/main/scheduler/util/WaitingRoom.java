@@ -0,0 +1,161 @@
+package scheduler.util;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * WaitingRoom admits requests first come first served, at most admitRate per second
+ * and at most maxInFlight at the same time, so a peak turns into a queue instead of
+ * database timeouts. Every request gets a Ticket with its queue position and an estimated wait.
+ * usage: ticket = enter(); await(ticket); try { ... } finally { leave(ticket); }
+ */
+public class WaitingRoom {
+
+    private static final long RATE_WAIT_MILLIS = 10;//recheck interval while only the rate holds a request back
+    private static final double SMOOTHING = 0.2;//weight of the newest request in the average time
+
+    /**
+     * a place in the waiting room
+     */
+    public static class Ticket {
+        private final long number;
+        private final long position;//requests ahead of this one when it entered
+        private final long etaMillis;
+        private long admittedAt;
+
+        private Ticket(long number, long position, long etaMillis) {
+            this.number = number;
+            this.position = position;
+            this.etaMillis = etaMillis;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public long getEtaMillis() {
+            return etaMillis;
+        }
+    }
+
+    private final int maxInFlight;
+    private final double admitRate;
+    private final TokenBucket admissions;
+
+    private long nextTicket = 0;
+    private long nowServing = 0;
+    private final Set<Long> cancelled = new HashSet<>();
+    private int inFlight = 0;
+    private double averageMillis = 0;//moving average of the time a request stays in flight
+
+    /**
+     * @param maxInFlight requests allowed at the same time, use the connection pool size
+     * @param admitRate requests admitted per second
+     * @throws IllegalArgumentException if maxInFlight or admitRate is not positive
+     */
+    public WaitingRoom(int maxInFlight, double admitRate) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("In-flight limit must be positive!");
+        }
+        this.maxInFlight = maxInFlight;
+        this.admitRate = admitRate;
+        this.admissions = new TokenBucket(admitRate, maxInFlight);
+    }
+
+    /**
+     * take a ticket, does not wait
+     * @return the ticket with its position and estimated wait
+     */
+    public synchronized Ticket enter() {
+        long number = nextTicket++;
+        long position = number - nowServing;
+        if (inFlight >= maxInFlight) {
+            position++;//also wait for a request in flight to finish
+        }
+        return new Ticket(number, position, estimate(position));
+    }
+
+    /**
+     * @param position requests ahead
+     * @return estimated wait in milliseconds, limited by the admit rate or by how fast requests finish
+     */
+    private long estimate(long position) {
+        double perSecond = admitRate;
+        if (averageMillis > 0) {
+            perSecond = Math.min(perSecond, maxInFlight * 1000 / averageMillis);
+        }
+        return (long) (position * 1000 / perSecond);
+    }
+
+    /**
+     * wait until the ticket is first in line, there is room in flight and the rate allows it
+     * @param ticket ticket from enter()
+     * @throws InterruptedException if interrupted while waiting, the ticket is given up then
+     */
+    public synchronized void await(Ticket ticket) throws InterruptedException {
+        try {
+            while (true) {
+                if (ticket.number == nowServing && inFlight < maxInFlight) {
+                    if (admissions.tryAcquire()) {
+                        break;
+                    }
+                    wait(RATE_WAIT_MILLIS);
+                } else {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            // skip this ticket so the ones behind it are not stuck
+            cancel(ticket);
+            throw e;
+        }
+        advance();
+        inFlight++;
+        ticket.admittedAt = System.nanoTime();
+        notifyAll();
+    }
+
+    private void cancel(Ticket ticket) {
+        if (ticket.number == nowServing) {
+            advance();
+        } else {
+            cancelled.add(ticket.number);
+        }
+        notifyAll();
+    }
+
+    /**
+     * serve the next ticket, skipping tickets given up while waiting
+     */
+    private void advance() {
+        nowServing++;
+        while (cancelled.remove(nowServing)) {
+            nowServing++;
+        }
+    }
+
+    /**
+     * leave the waiting room after the admitted request finished
+     * @param ticket ticket passed to await()
+     */
+    public synchronized void leave(Ticket ticket) {
+        inFlight--;
+        double millis = (System.nanoTime() - ticket.admittedAt) / 1_000_000.0;
+        averageMillis = averageMillis == 0 ? millis : averageMillis * (1 - SMOOTHING) + millis * SMOOTHING;
+        notifyAll();
+    }
+
+    /**
+     * @return requests waiting to be admitted
+     */
+    public synchronized long waiting() {
+        return nextTicket - nowServing - cancelled.size();
+    }
+
+    /**
+     * @return requests admitted and not finished
+     */
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+}
@@ -0,0 +1,114 @@
+package scheduler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * AllocationCheck runs a scripted session through Scheduler --batch with allocation tracking on and a baseline of
+ * per-command allocation budgets, and fails when a command allocates more than its budget on average.
+ * It is a tool and not part of the application:
+ * java scheduler.AllocationCheck [session] [baseline] --wipe
+ * <p>
+ * session defaults to allocation-session.txt and baseline to allocation-baseline.properties next to this file.
+ * In the session ${dayN} is the date N days from today and ${appointment} the id of the last appointment
+ * booked by reserve. Every command of the session has to succeed, since a failing command allocates less
+ * and would hide a regression.
+ * <p>
+ * The session uses the database of the Server, DBName, UserID, Password and Shards variables like the
+ * application does, and every row of it is deleted first. --wipe confirms that.
+ * Compile and run with the application classes and the JDBC driver on the class path.
+ */
+public class AllocationCheck {
+
+    private static final Path HERE = Paths.get("src", "test", "scheduler");
+    private static final Pattern DAY = Pattern.compile("\\$\\{day(\\d+)}");
+    private static final Pattern BOOKED = Pattern.compile("Your appointment id is:(\\d+)");
+
+    public static void main(String[] args) throws Exception {
+        boolean wipe = args.length > 0 && args[args.length - 1].equals("--wipe");
+        int n = wipe ? args.length - 1 : args.length;
+        if (!wipe) {
+            System.err.println("Every row of the database is deleted first, add --wipe to confirm!");
+            System.exit(2);
+        }
+        Path session = n > 0 ? Paths.get(args[0]) : HERE.resolve("allocation-session.txt");
+        Path baseline = n > 1 ? Paths.get(args[1]) : HERE.resolve("allocation-baseline.properties");
+        System.exit(run(Files.readAllLines(session, StandardCharsets.UTF_8), baseline));
+    }
+
+    /**
+     * run the session in its own process, one command at a time
+     * @return 0 if every command succeeded within its budget
+     */
+    private static int run(List<String> session, Path baseline) throws SQLException, IOException, InterruptedException {
+        BookingStress.wipe();
+        ProcessBuilder builder = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "scheduler.Scheduler", "--batch");
+        // only the commands themselves should allocate, nothing running beside them
+        for (String variable : new String[] {"JournalFile", "NodeId", "SnapshotFile", "ChangeFeedFile",
+                "ChangeFeedPort", "HealthPort", "AdmitRate", "BookingEngine"}) {
+            builder.environment().remove(variable);
+        }
+        builder.environment().put("AllocationTracking", "on");
+        builder.environment().put("AllocationBudget", baseline.toAbsolutePath().toString());
+        // the report and the commands over budget are printed to stderr
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process = builder.start();
+        PrintWriter in = new PrintWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+
+        LocalDate today = LocalDate.now();
+        String appointment = "0";
+        int failed = 0;
+        for (String line : session) {
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                continue;
+            }
+            Matcher day = DAY.matcher(line);
+            StringBuffer command = new StringBuffer();
+            while (day.find()) {
+                day.appendReplacement(command, today.plusDays(Integer.parseInt(day.group(1))).toString());
+            }
+            day.appendTail(command);
+            in.println(command.toString().replace("${appointment}", appointment));
+            in.flush();
+            String result = out.readLine();
+            if (result == null) {
+                System.err.println("Scheduler stopped at: " + line);
+                failed++;
+                break;
+            }
+            if (result.contains("\"status\":\"error\"")) {
+                System.err.println("Failed: " + line + " -> " + result);
+                failed++;
+            }
+            Matcher booked = BOOKED.matcher(result);
+            if (booked.find()) {
+                appointment = booked.group(1);
+            }
+        }
+        in.println("quit");
+        in.close();
+        int exit = process.waitFor();
+        if (exit != 0) {
+            System.out.println("Allocation budget exceeded, see the report above");
+        } else if (failed > 0) {
+            System.out.println(failed + " commands failed, the allocations are not comparable to the baseline");
+        } else {
+            System.out.println("OK");
+        }
+        return exit != 0 ? exit : failed > 0 ? 1 : 0;
+    }
+}
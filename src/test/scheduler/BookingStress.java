@@ -0,0 +1,748 @@
+package scheduler;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Route;
+import scheduler.db.Shards;
+import scheduler.model.BookingEngine;
+import scheduler.model.BookingWriter;
+import scheduler.model.DoseAllocations;
+import scheduler.model.TimeSlots;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * BookingStress checks the in-memory booking engine, it is a tool and not part of the application.
+ * <p>
+ * java scheduler.BookingStress memory [threads] [seconds]
+ * runs random reserves, group reserves, cancels and rebalances against an engine without a database
+ * from many threads, then checks that no slot, dose or patient was given out twice.
+ * <p>
+ * java scheduler.BookingStress stress [threads] [seconds] --wipe
+ * does the same with the engine loaded from the tables and a BookingWriter writing to them, then waits for
+ * the writer and checks that the tables hold exactly what the engine holds and nothing was dead-lettered.
+ * <p>
+ * java scheduler.BookingStress equivalence [operations] [seed] --wipe
+ * runs the same random script through Scheduler --batch twice, once booking in the database and once with
+ * BookingEngine=memory, and checks that every command reports the same and the tables end up the same.
+ * Appointment ids, caregivers and times are left out of the comparison as both paths pick them at random.
+ * <p>
+ * stress and equivalence use the database of the Server, DBName, UserID, Password and Shards variables,
+ * like the application does, and delete every row of it first. --wipe confirms that.
+ * Compile and run with the application classes and the JDBC driver on the class path.
+ */
+public class BookingStress {
+
+    private static final int CAREGIVERS = 200;
+    private static final int DAYS = 30;
+    private static final int SLOT_MINUTES = 10;
+    private static final int PATIENTS = 1_000_000;
+    private static final int VACCINES = 3;
+    private static final int DOSES = 150_000;//unallocated doses of each vaccine
+    private static final int ALLOCATED = 2_000;//doses allocated to each of the first ALLOCATED_DAYS days
+    private static final int ALLOCATED_DAYS = 5;
+    private static final int PAST_DAYS = 2;//past days with unused allocations, moved forward by rebalance
+    private static final int MAX_GROUP = 5;//patients of one reserveAll
+
+    // a smaller setup for the database, it is inserted row by row
+    private static final int DB_CAREGIVERS = 40;
+    private static final int DB_DAYS = 10;
+    private static final int DB_PATIENTS = 20_000;
+    private static final int DB_DOSES = 20_000;
+    private static final int DB_ALLOCATED = 300;
+
+    private static final String PASSWORD = "Stress#2024";
+    private static final String[] TIMES = {"09:00", "10:00", "13:00"};
+    private static final Pattern BOOKED_ONE = Pattern.compile("Your appointment id is:(\\d+)");
+    private static final Pattern BOOKED_GROUP = Pattern.compile("Appointment id:(\\d+), Patient:([^,]+),");
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "memory";
+        boolean wipe = args.length > 0 && args[args.length - 1].equals("--wipe");
+        int n = wipe ? args.length - 1 : args.length;
+        if (!mode.equals("memory") && !wipe) {
+            System.err.println("Every row of the database is deleted first, add --wipe to confirm!");
+            System.exit(2);
+        }
+        int errors;
+        if (mode.equals("equivalence")) {
+            int operations = n > 1 ? Integer.parseInt(args[1]) : 150;
+            long seed = n > 2 ? Long.parseLong(args[2]) : System.nanoTime();
+            errors = equivalence(operations, seed);
+        } else {
+            int threads = n > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+            int seconds = n > 2 ? Integer.parseInt(args[2]) : 10;
+            errors = stress(mode.equals("stress"), threads, seconds);
+        }
+        System.out.println(errors == 0 ? "OK" : errors + " errors!");
+        System.exit(errors == 0 ? 0 : 1);
+    }
+
+    /**
+     * the setup of one stress run, ids of caregivers, patients and vaccines as the engine knows them
+     */
+    private static class Setup {
+        final LocalDate first = LocalDate.now();
+        int[] caregivers;
+        int[] patients;
+        int[] vaccines;
+        int days;
+        int totalDoses;//doses of each vaccine, allocated or not
+    }
+
+    /**
+     * run random operations from many threads, then check the engine and, with a database, the tables
+     * @return number of broken invariants
+     */
+    private static int stress(boolean database, int threads, int seconds) throws SQLException, InterruptedException {
+        Setup setup = new Setup();
+        BookingEngine engine;
+        if (database) {
+            wipe();
+            seed(setup);
+            engine = BookingEngine.load(new BookingWriter());
+        } else {
+            engine = new BookingEngine(null);
+            setup.caregivers = sequence(CAREGIVERS);
+            setup.patients = sequence(PATIENTS);
+            setup.vaccines = sequence(VACCINES);
+            setup.days = DAYS;
+            setup.totalDoses = DOSES + ALLOCATED * (ALLOCATED_DAYS + PAST_DAYS);
+            for (int day = 0; day < DAYS; day++) {
+                for (int caregiver : setup.caregivers) {
+                    engine.upload(caregiver, setup.first.plusDays(day), SLOT_MINUTES);
+                }
+            }
+            for (int vaccine : setup.vaccines) {
+                engine.addDoses(vaccine, setup.totalDoses);
+                for (int day = -PAST_DAYS; day < ALLOCATED_DAYS; day++) {
+                    engine.allocate(vaccine, setup.first.plusDays(day), ALLOCATED);
+                }
+            }
+        }
+
+        LongAdder ops = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                while ((count & 255) != 0 || System.nanoTime() < deadline) {
+                    int patient = setup.patients[random.nextInt(setup.patients.length)];
+                    int vaccine = setup.vaccines[random.nextInt(setup.vaccines.length)];
+                    LocalDate day = setup.first.plusDays(random.nextInt(setup.days));
+                    int op = random.nextInt(100);
+                    if (op < 50) {
+                        String time = random.nextInt(10) < 3
+                                ? TimeSlots.startTime(random.nextInt(TimeSlots.slotsPerDay(SLOT_MINUTES)), SLOT_MINUTES).toString()
+                                : null;
+                        engine.reserve(patient, vaccine, day, time, null);
+                    } else if (op < 60) {
+                        List<Integer> group = new ArrayList<>();
+                        for (int i = 1 + random.nextInt(MAX_GROUP); i > 0; i--) {
+                            int member = setup.patients[random.nextInt(setup.patients.length)];
+                            if (!group.contains(member)) {
+                                group.add(member);
+                            }
+                        }
+                        engine.reserveAll(group, vaccine, day);
+                    } else {
+                        List<BookingEngine.Booking> bookings = engine.appointmentsOf(patient, -1);
+                        if (!bookings.isEmpty()) {
+                            engine.cancel(bookings.get(0).getId(), patient, -1);
+                        }
+                    }
+                    count++;
+                }
+                ops.add(count);
+                done.countDown();
+            }, "stress-" + t);
+            thread.start();
+        }
+        // moves the past allocations forward while bookings take doses of the day they move to
+        Thread rebalancer = new Thread(() -> {
+            while (done.getCount() > 0) {
+                try {
+                    if (database) {
+                        DoseAllocations.rebalance(Date.valueOf(setup.first));
+                    }
+                    engine.rebalance(setup.first);
+                    Thread.sleep(ThreadLocalRandom.current().nextInt(50, 500));
+                } catch (SQLException e) {
+                    System.err.println(e.getMessage());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "stress-rebalancer");
+        rebalancer.start();
+        done.await();
+        rebalancer.join();
+        if (database) {
+            DoseAllocations.rebalance(Date.valueOf(setup.first));
+        }
+        engine.rebalance(setup.first);
+
+        System.out.println(threads + " threads, " + seconds + " seconds: " + ops.sum() / seconds + " ops/sec");
+        System.out.println("booked " + engine.getBooked() + ", cancelled " + engine.getCancelled() +
+                ", rejected " + engine.getRejected() + ", held " + engine.appointments().size());
+        int errors = verify(engine, setup);
+        if (database) {
+            engine.close();
+            if (engine.getDeadLetteredWrites() != 0) {
+                System.err.println(engine.getDeadLetteredWrites() + " changes were dead-lettered");
+                errors++;
+            }
+            errors += compareTables(engine);
+        }
+        return errors;
+    }
+
+    private static int[] sequence(int n) {
+        int[] ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i + 1;
+        }
+        return ids;
+    }
+
+    /**
+     * check the engine state after the threads stopped
+     * @return number of broken invariants
+     */
+    private static int verify(BookingEngine engine, Setup setup) {
+        int errors = 0;
+        Set<String> slots = new HashSet<>();
+        Set<Integer> patients = new HashSet<>();
+        Map<String, Integer> perDay = new HashMap<>();//caregiver and day, booked slots
+        Map<Integer, Integer> perVaccine = new HashMap<>();
+        for (BookingEngine.Booking b : engine.appointments()) {
+            //one appointment per slot
+            if (!slots.add(b.getCaregiverId() + "|" + b.getDay() + "|" + b.getSlot())) {
+                System.err.println("Slot booked twice: " + b.getCaregiverId() + " " + b.getDay() + " " + b.getSlot());
+                errors++;
+            }
+            //one appointment per patient
+            if (!patients.add(b.getPatientId())) {
+                System.err.println("Patient booked twice: " + b.getPatientId());
+                errors++;
+            }
+            //a booked slot is not free
+            if (TimeSlots.isFree(engine.getFreeSlots(b.getCaregiverId(), b.getDay()), b.getSlot())) {
+                System.err.println("Booked slot is still free: " + b.getId());
+                errors++;
+            }
+            if (!engine.hasAppointment(b.getPatientId())) {
+                System.err.println("Patient index lost: " + b.getPatientId());
+                errors++;
+            }
+            perDay.merge(b.getCaregiverId() + "|" + b.getDay(), 1, Integer::sum);
+            perVaccine.merge(b.getVaccineId(), 1, Integer::sum);
+        }
+        //booked and free slots add up to the whole day
+        for (int day = 0; day < setup.days; day++) {
+            for (int caregiver : setup.caregivers) {
+                LocalDate date = setup.first.plusDays(day);
+                int free = Long.bitCount(engine.getFreeSlots(caregiver, date));
+                int booked = perDay.getOrDefault(caregiver + "|" + date, 0);
+                if (free + booked != TimeSlots.slotsPerDay(SLOT_MINUTES)) {
+                    System.err.println("Slots lost: caregiver " + caregiver + " on " + date);
+                    errors++;
+                }
+            }
+        }
+        //no dose is created or lost, rebalance moves doses between allocations so only the sum is kept
+        for (int vaccine : setup.vaccines) {
+            int remaining = 0;
+            for (int day = -PAST_DAYS; day < setup.days; day++) {
+                int left = engine.getRemaining(vaccine, setup.first.plusDays(day));
+                if (left < 0 && left != -1) {
+                    System.err.println("Allocation overbooked: vaccine " + vaccine + " on " + setup.first.plusDays(day));
+                    errors++;
+                }
+                remaining += Math.max(0, left);
+            }
+            int used = perVaccine.getOrDefault(vaccine, 0);
+            if (engine.getFreeDoses(vaccine) + remaining + used != setup.totalDoses) {
+                System.err.println("Doses lost: vaccine " + vaccine);
+                errors++;
+            }
+            //nothing is left on past days once rebalanced
+            for (int day = -PAST_DAYS; day < 0; day++) {
+                if (engine.getRemaining(vaccine, setup.first.plusDays(day)) > 0) {
+                    System.err.println("Past allocation not rebalanced: vaccine " + vaccine);
+                    errors++;
+                }
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * delete every row of the main database and of every shard
+     */
+    static void wipe() throws SQLException {
+        for (int shard = 0; shard < Shards.count(); shard++) {
+            String[] tables = shard == 0
+                    ? new String[] {"AppointmentEvents", "Appointments", "Availabilities", "CaregiverCalendars",
+                            "DoseAllocations", "SchedulerNodes", "Vaccines", "Patients", "Caregivers"}
+                    : new String[] {"AppointmentEvents", "Appointments", "Availabilities"};
+            ConnectionManager cm = ConnectionManager.forShard(shard, Route.READ_WRITE);
+            Connection con = cm.createConnection();
+            try {
+                for (String table : tables) {
+                    con.prepareStatement("DELETE FROM " + table).executeUpdate();
+                }
+            } finally {
+                cm.closeConnection();
+            }
+        }
+        // forget what the model layer cached about the rows which are gone
+        DoseAllocations.invalidate();
+    }
+
+    /**
+     * insert the caregivers, patients, vaccines, availabilities and allocations of a database stress run
+     */
+    private static void seed(Setup setup) throws SQLException {
+        setup.days = DB_DAYS;
+        setup.totalDoses = DB_DOSES + DB_ALLOCATED * (ALLOCATED_DAYS + PAST_DAYS);
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            byte[] empty = new byte[16];
+            PreparedStatement caregivers = con.prepareStatement(
+                    "INSERT INTO Caregivers (Username, Salt, Hash, SlotMinutes) VALUES (?, ?, ?, ?)");
+            for (int i = 1; i <= DB_CAREGIVERS; i++) {
+                caregivers.setString(1, "stress-caregiver-" + i);
+                caregivers.setBytes(2, empty);
+                caregivers.setBytes(3, empty);
+                caregivers.setInt(4, SLOT_MINUTES);
+                caregivers.addBatch();
+            }
+            caregivers.executeBatch();
+            PreparedStatement patients = con.prepareStatement(
+                    "INSERT INTO Patients (Username, Salt, Hash) VALUES (?, ?, ?)");
+            for (int i = 1; i <= DB_PATIENTS; i++) {
+                patients.setString(1, "stress-patient-" + i);
+                patients.setBytes(2, empty);
+                patients.setBytes(3, empty);
+                patients.addBatch();
+                if (i % 1000 == 0) {
+                    patients.executeBatch();
+                }
+            }
+            patients.executeBatch();
+            PreparedStatement vaccines = con.prepareStatement("INSERT INTO Vaccines (Name, Doses) VALUES (?, ?)");
+            for (int i = 1; i <= VACCINES; i++) {
+                vaccines.setString(1, "stress-vaccine-" + i);
+                vaccines.setInt(2, setup.totalDoses);
+                vaccines.addBatch();
+            }
+            vaccines.executeBatch();
+            con.commit();
+            setup.caregivers = ids(con, "SELECT Id FROM Caregivers ORDER BY Id", DB_CAREGIVERS);
+            setup.patients = ids(con, "SELECT Id FROM Patients ORDER BY Id", DB_PATIENTS);
+            setup.vaccines = ids(con, "SELECT Id FROM Vaccines ORDER BY Id", VACCINES);
+            PreparedStatement allocations = con.prepareStatement(
+                    "INSERT INTO DoseAllocations (VaccineId, Date, Allocated, Reserved) VALUES (?, ?, ?, 0)");
+            for (int vaccine : setup.vaccines) {
+                for (int day = -PAST_DAYS; day < ALLOCATED_DAYS; day++) {
+                    allocations.setInt(1, vaccine);
+                    allocations.setDate(2, Date.valueOf(setup.first.plusDays(day)));
+                    allocations.setInt(3, DB_ALLOCATED);
+                    allocations.addBatch();
+                }
+            }
+            allocations.executeBatch();
+            con.commit();
+        } finally {
+            con.setAutoCommit(true);
+            cm.closeConnection();
+        }
+        for (int day = 0; day < setup.days; day++) {
+            Date date = Date.valueOf(setup.first.plusDays(day));
+            ConnectionManager shard = ConnectionManager.forDate(date, Route.READ_WRITE);
+            Connection shardCon = shard.createConnection();
+            try {
+                PreparedStatement upload = shardCon.prepareStatement(
+                        "INSERT INTO Availabilities (Time, CaregiverId, SlotMinutes, Slots) VALUES (?, ?, ?, ?)");
+                for (int caregiver : setup.caregivers) {
+                    upload.setDate(1, date);
+                    upload.setInt(2, caregiver);
+                    upload.setInt(3, SLOT_MINUTES);
+                    upload.setLong(4, TimeSlots.fullDay(SLOT_MINUTES));
+                    upload.addBatch();
+                }
+                upload.executeBatch();
+            } finally {
+                shard.closeConnection();
+            }
+        }
+    }
+
+    private static int[] ids(Connection con, String query, int n) throws SQLException {
+        int[] ids = new int[n];
+        ResultSet resultSet = con.prepareStatement(query).executeQuery();
+        for (int i = 0; i < n && resultSet.next(); i++) {
+            ids[i] = resultSet.getInt(1);
+        }
+        return ids;
+    }
+
+    /**
+     * check that the tables hold what the engine holds, after the writer wrote everything
+     * @return number of differences
+     */
+    private static int compareTables(BookingEngine engine) throws SQLException {
+        int errors = 0;
+        Map<Integer, String> expected = new HashMap<>();
+        for (BookingEngine.Booking b : engine.appointments()) {
+            expected.put(b.getId(), b.getPatientId() + "|" + b.getCaregiverId() + "|" + b.getVaccineId() + "|" +
+                    b.getDay() + "|" + b.getSlot());
+        }
+        Map<Integer, String> appointments = new HashMap<>();
+        Map<String, Long> slots = new HashMap<>();
+        for (int shard = 0; shard < Shards.count(); shard++) {
+            ConnectionManager cm = ConnectionManager.forShard(shard, Route.READ_WRITE);
+            Connection con = cm.createConnection();
+            try {
+                ResultSet rows = con.prepareStatement("SELECT id, PatientId, CaregiverId, VaccineId, Date, Slot " +
+                        "FROM Appointments").executeQuery();
+                while (rows.next()) {
+                    appointments.put(rows.getInt(1), rows.getInt(2) + "|" + rows.getInt(3) + "|" + rows.getInt(4) +
+                            "|" + rows.getDate(5).toLocalDate() + "|" + rows.getInt(6));
+                }
+                rows = con.prepareStatement("SELECT CaregiverId, Time, Slots FROM Availabilities").executeQuery();
+                while (rows.next()) {
+                    slots.put(rows.getInt(1) + "|" + rows.getDate(2).toLocalDate(), rows.getLong(3));
+                }
+            } finally {
+                cm.closeConnection();
+            }
+        }
+        if (!appointments.equals(expected)) {
+            Set<Integer> differ = new HashSet<>(expected.keySet());
+            differ.addAll(appointments.keySet());
+            differ.removeIf(id -> String.valueOf(expected.get(id)).equals(String.valueOf(appointments.get(id))));
+            System.err.println(differ.size() + " appointments differ between engine and table, e.g. " +
+                    differ.iterator().next());
+            errors++;
+        }
+        for (Map.Entry<String, Long> row : slots.entrySet()) {
+            String[] key = row.getKey().split("\\|");
+            if (engine.getFreeSlots(Integer.parseInt(key[0]), LocalDate.parse(key[1])) != row.getValue()) {
+                System.err.println("Free slots differ: caregiver " + key[0] + " on " + key[1]);
+                errors++;
+            }
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            Map<Integer, Integer> remaining = new HashMap<>();
+            ResultSet rows = con.prepareStatement("SELECT VaccineId, Date, Allocated - Reserved FROM DoseAllocations")
+                    .executeQuery();
+            while (rows.next()) {
+                int left = engine.getRemaining(rows.getInt(1), rows.getDate(2).toLocalDate());
+                if (left != rows.getInt(3)) {
+                    System.err.println("Allocation differs: vaccine " + rows.getInt(1) + " on " + rows.getDate(2) +
+                            ", table " + rows.getInt(3) + ", engine " + left);
+                    errors++;
+                }
+                remaining.merge(rows.getInt(1), rows.getInt(3), Integer::sum);
+            }
+            rows = con.prepareStatement("SELECT Id, Doses FROM Vaccines").executeQuery();
+            while (rows.next()) {
+                // the table counts allocated doses as well, the engine only the free ones
+                int doses = engine.getFreeDoses(rows.getInt(1)) + remaining.getOrDefault(rows.getInt(1), 0);
+                if (doses != rows.getInt(2)) {
+                    System.err.println("Doses differ: vaccine " + rows.getInt(1) + ", table " + rows.getInt(2) +
+                            ", engine " + doses);
+                    errors++;
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        return errors;
+    }
+
+    /**
+     * run the same script with and without the engine and compare what each command reported and the tables
+     * @return number of differences
+     */
+    private static int equivalence(int operations, long seed) throws SQLException, IOException, InterruptedException {
+        System.out.println("seed " + seed);
+        List<String> script = script(operations, new Random(seed));
+        wipe();
+        List<String> database = run(script, false);
+        List<String> databaseTables = tables();
+        wipe();
+        List<String> memory = run(script, true);
+        List<String> memoryTables = tables();
+
+        int errors = 0;
+        for (int i = 0; i < database.size() && i < memory.size(); i++) {
+            if (!database.get(i).equals(memory.get(i))) {
+                System.err.println("Command " + (i + 1) + " differs:\n  database: " + database.get(i) +
+                        "\n  engine:   " + memory.get(i));
+                errors++;
+            }
+        }
+        if (database.size() != memory.size()) {
+            System.err.println("Number of results differs: " + database.size() + " and " + memory.size());
+            errors++;
+        }
+        for (int i = 0; i < Math.max(databaseTables.size(), memoryTables.size()); i++) {
+            String expected = i < databaseTables.size() ? databaseTables.get(i) : "(nothing)";
+            String actual = i < memoryTables.size() ? memoryTables.get(i) : "(nothing)";
+            if (!expected.equals(actual)) {
+                System.err.println("Tables differ:\n  database: " + expected + "\n  engine:   " + actual);
+                errors++;
+            }
+        }
+        System.out.println(database.size() + " commands compared");
+        return errors;
+    }
+
+    /**
+     * a random script of reserves, group reserves, cancels and dose changes, with few caregivers, slots and doses
+     * so every way a reservation can fail shows up. Single reserves are on days 1 to 3, group reserves on day 4,
+     * "${patient}" stands for the id of that patient's appointment in the run, 0 if there is none
+     */
+    private static List<String> script(int operations, Random random) {
+        LocalDate first = LocalDate.now().plusDays(1);
+        int caregivers = 4;
+        int patients = 24;
+        List<String> script = new ArrayList<>();
+        for (int c = 1; c <= caregivers; c++) {
+            script.add("create_caregiver c" + c + " " + PASSWORD);
+            script.add("login_caregiver c" + c + " " + PASSWORD);
+            for (int day = 0; day < 4; day++) {
+                // day 1 and the group day only have two caregivers, so slots run out
+                if (c <= 2 || day == 1 || day == 2) {
+                    script.add("upload_availability " + first.plusDays(day));
+                }
+            }
+            script.add("logout");
+        }
+        for (int p = 1; p <= patients; p++) {
+            script.add("create_patient p" + p + " " + PASSWORD);
+        }
+        script.add("login_caregiver c1 " + PASSWORD);
+        script.add("add_doses Pfizer 14");
+        script.add("add_doses Moderna 8");
+        script.add("allocate_doses Moderna " + first.plusDays(1) + " 4");
+        script.add("logout");
+        String[] vaccines = {"Pfizer", "Pfizer", "Moderna", "Moderna", "Janssen"};
+        for (int i = 0; i < operations; i++) {
+            String patient = "p" + (1 + random.nextInt(patients));
+            int op = random.nextInt(100);
+            if (op < 45) {
+                script.add("login_patient " + patient + " " + PASSWORD);
+                script.add("reserve " + first.plusDays(random.nextInt(3)) + " " + vaccines[random.nextInt(vaccines.length)] +
+                        (random.nextInt(3) == 0 ? "" : " " + TIMES[random.nextInt(TIMES.length)]));
+                script.add("logout");
+            } else if (op < 70) {
+                script.add("login_patient " + patient + " " + PASSWORD);
+                // someone else's appointment now and then
+                script.add("cancel ${" + (random.nextInt(5) == 0 ? "p" + (1 + random.nextInt(patients)) : patient) + "}");
+                script.add("logout");
+            } else if (op < 90) {
+                StringBuilder group = new StringBuilder();
+                Set<Integer> members = new HashSet<>();
+                for (int n = 1 + random.nextInt(4); n > 0; n--) {
+                    members.add(1 + random.nextInt(patients));
+                }
+                for (int member : members) {
+                    group.append(" p").append(member);
+                }
+                script.add("login_caregiver c" + (1 + random.nextInt(caregivers)) + " " + PASSWORD);
+                script.add("reserve_batch " + first.plusDays(3) + " " + vaccines[random.nextInt(4)] + group);
+                script.add("logout");
+            } else {
+                script.add("login_caregiver c" + (1 + random.nextInt(caregivers)) + " " + PASSWORD);
+                script.add("add_doses " + vaccines[random.nextInt(4)] + " 2");
+                script.add("logout");
+            }
+        }
+        return script;
+    }
+
+    /**
+     * run a script through Scheduler --batch in its own process, one command at a time,
+     * so "${patient}" can be replaced with the appointment id this run gave the patient
+     * @param memory whether to book with the in-memory engine
+     * @return status, output and error of every command, without appointment ids, caregivers and times
+     */
+    private static List<String> run(List<String> script, boolean memory) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "scheduler.Scheduler", "--batch");
+        // nothing but the booking path may differ between the two runs
+        for (String variable : new String[] {"JournalFile", "NodeId", "SnapshotFile", "ChangeFeedFile",
+                "ChangeFeedPort", "HealthPort", "AdmitRate", "AllocationTracking"}) {
+            builder.environment().remove(variable);
+        }
+        if (memory) {
+            builder.environment().put("BookingEngine", "memory");
+        } else {
+            builder.environment().remove("BookingEngine");
+        }
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process = builder.start();
+        PrintWriter in = new PrintWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+
+        List<String> results = new ArrayList<>();
+        Map<String, String> ids = new HashMap<>();//patient, id of the appointment
+        String patient = null;
+        for (String line : script) {
+            Matcher placeholder = Pattern.compile("\\$\\{(\\w+)}").matcher(line);
+            String command = placeholder.find()
+                    ? line.substring(0, placeholder.start()) + ids.getOrDefault(placeholder.group(1), "0")
+                    : line;
+            in.println(command);
+            in.flush();
+            String result = out.readLine();
+            if (result == null) {
+                break;
+            }
+            String status = field(result, "status");
+            String output = field(result, "output");
+            if (command.startsWith("login_patient ") && status.equals("ok")) {
+                patient = command.split(" ")[1];
+            } else if (command.startsWith("logout")) {
+                patient = null;
+            } else if (status.equals("ok") && command.startsWith("reserve ")) {
+                Matcher booked = BOOKED_ONE.matcher(output);
+                if (booked.find()) {
+                    ids.put(patient, booked.group(1));
+                }
+            } else if (status.equals("ok") && command.startsWith("reserve_batch ")) {
+                Matcher booked = BOOKED_GROUP.matcher(output);
+                while (booked.find()) {
+                    ids.put(booked.group(2), booked.group(1));
+                }
+            } else if (status.equals("ok") && command.startsWith("cancel ")) {
+                ids.values().remove(command.split(" ")[1]);
+            }
+            results.add(line + " -> " + status + " " + mask(output) + " " + field(result, "error"));
+        }
+        in.println("quit");
+        in.close();
+        process.waitFor();
+        return results;
+    }
+
+    private static String mask(String output) {
+        return output.replaceAll("(id is:|id:)\\d+", "$1#")
+                .replaceAll("(caregiver is:|Caregiver:)[^,]+", "$1?")
+                .replaceAll("(time is:|Time:)\\S+", "$1?");
+    }
+
+    /**
+     * @return the string field of a batch result line
+     */
+    private static String field(String json, String name) {
+        int start = json.indexOf("\"" + name + "\":\"");
+        if (start < 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = start + name.length() + 4; i < json.length() && json.charAt(i) != '"'; i++) {
+            char c = json.charAt(i);
+            if (c == '\\') {
+                c = json.charAt(++i);
+                if (c == 'n') {
+                    c = '\n';
+                } else if (c == 'u') {
+                    c = (char) Integer.parseInt(json.substring(i + 1, i + 5), 16);
+                    i += 4;
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the booking state of the tables by name, appointments per patient and day, free slots per day,
+     * doses and allocations, in a stable order
+     */
+    private static List<String> tables() throws SQLException {
+        Map<Integer, String> patients = new HashMap<>();
+        Map<Integer, String> vaccines = new HashMap<>();
+        TreeMap<String, String> state = new TreeMap<>();
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            ResultSet rows = con.prepareStatement("SELECT Id, Username FROM Patients").executeQuery();
+            while (rows.next()) {
+                patients.put(rows.getInt(1), rows.getString(2));
+            }
+            rows = con.prepareStatement("SELECT Id, Name, Doses FROM Vaccines").executeQuery();
+            while (rows.next()) {
+                vaccines.put(rows.getInt(1), rows.getString(2));
+                state.put("doses " + rows.getString(2), String.valueOf(rows.getInt(3)));
+            }
+            rows = con.prepareStatement("SELECT VaccineId, Date, Allocated, Reserved FROM DoseAllocations")
+                    .executeQuery();
+            while (rows.next()) {
+                state.put("allocation " + vaccines.get(rows.getInt(1)) + " " + rows.getDate(2),
+                        rows.getInt(3) + " allocated, " + rows.getInt(4) + " reserved");
+            }
+        } finally {
+            cm.closeConnection();
+        }
+        for (int shard = 0; shard < Shards.count(); shard++) {
+            ConnectionManager shardCm = ConnectionManager.forShard(shard, Route.READ_WRITE);
+            Connection shardCon = shardCm.createConnection();
+            try {
+                ResultSet rows = shardCon.prepareStatement("SELECT PatientId, Date, VaccineId FROM Appointments")
+                        .executeQuery();
+                while (rows.next()) {
+                    state.put("appointment " + patients.get(rows.getInt(1)),
+                            rows.getDate(2) + " " + vaccines.get(rows.getInt(3)));
+                }
+                rows = shardCon.prepareStatement("SELECT Time, Slots FROM Availabilities").executeQuery();
+                while (rows.next()) {
+                    state.merge("free slots " + rows.getDate(1), String.valueOf(Long.bitCount(rows.getLong(2))),
+                            (a, b) -> String.valueOf(Integer.parseInt(a) + Integer.parseInt(b)));
+                }
+            } finally {
+                shardCm.closeConnection();
+            }
+        }
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, String> entry : state.entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,135 @@
+package scheduler.cluster;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * ClusterCheck runs several ClusterNodes in one JVM on a LocalMembership and checks how they split
+ * the caregivers while nodes join and leave. It is a tool and not part of the application, it needs no database:
+ * java scheduler.cluster.ClusterCheck [nodes]
+ * <p>
+ * checked: once the members are stable every caregiver has exactly one owner and the shares are even,
+ * a joining node takes no caregiver over before its handoff ends, the caregivers of a leaving node
+ * are taken over by the others, and ownership() judges like owns().
+ */
+public class ClusterCheck {
+
+    private static final int CAREGIVERS = 10_000;
+    private static final long HEARTBEAT_MILLIS = 100;
+    private static final long SETTLE_MILLIS = HEARTBEAT_MILLIS * 4;//handoffs are over and every node refreshed
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        LocalMembership membership = new LocalMembership(HEARTBEAT_MILLIS * 3);
+        List<String> caregivers = new ArrayList<>();
+        for (int i = 0; i < CAREGIVERS; i++) {
+            caregivers.add("caregiver" + i);
+        }
+        int errors = 0;
+
+        List<ClusterNode> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ClusterNode node = new ClusterNode("node" + i, membership, HEARTBEAT_MILLIS);
+            node.start();
+            nodes.add(node);
+        }
+        Thread.sleep(SETTLE_MILLIS);
+        errors += checkStable(nodes, caregivers, "after start");
+
+        // a new node owns nothing until its handoff ends, the others keep serving its caregivers meanwhile
+        ClusterNode joining = new ClusterNode("node" + count, membership, HEARTBEAT_MILLIS);
+        joining.start();
+        int early = owned(joining, caregivers);
+        if (early != 0) {
+            System.err.println("Joining node took over " + early + " caregivers before its handoff ended");
+            errors++;
+        }
+        nodes.add(joining);
+        Thread.sleep(SETTLE_MILLIS);
+        errors += checkStable(nodes, caregivers, "after a node joined");
+        if (owned(joining, caregivers) == 0) {
+            System.err.println("Joining node never took over any caregiver");
+            errors++;
+        }
+
+        // the caregivers of a leaving node go to the others
+        ClusterNode leaving = nodes.remove(0);
+        leaving.stop();
+        Thread.sleep(SETTLE_MILLIS);
+        errors += checkStable(nodes, caregivers, "after a node left");
+
+        for (ClusterNode node : nodes) {
+            node.stop();
+        }
+        System.out.println(errors == 0 ? "OK" : errors + " errors!");
+        System.exit(errors == 0 ? 0 : 1);
+    }
+
+    private static int owned(ClusterNode node, List<String> caregivers) {
+        Predicate<String> ownership = node.ownership();
+        int owned = 0;
+        for (String caregiver : caregivers) {
+            if (ownership.test(caregiver)) {
+                owned++;
+            }
+        }
+        return owned;
+    }
+
+    /**
+     * check that every caregiver has one owner, the shares are within half of the average of each other
+     * and ownership() agrees with owns()
+     * @return number of broken checks
+     */
+    private static int checkStable(List<ClusterNode> nodes, List<String> caregivers, String when) {
+        int errors = 0;
+        Map<String, Integer> shares = new HashMap<>();
+        int unowned = 0;
+        int shared = 0;
+        int disagree = 0;
+        List<Predicate<String>> ownerships = new ArrayList<>();
+        for (ClusterNode node : nodes) {
+            ownerships.add(node.ownership());
+        }
+        for (String caregiver : caregivers) {
+            int owners = 0;
+            for (int i = 0; i < nodes.size(); i++) {
+                boolean owns = ownerships.get(i).test(caregiver);
+                if (owns != nodes.get(i).owns(caregiver)) {
+                    disagree++;
+                }
+                if (owns) {
+                    owners++;
+                    shares.merge(nodes.get(i).getNodeId(), 1, Integer::sum);
+                }
+            }
+            if (owners == 0) {
+                unowned++;
+            } else if (owners > 1) {
+                shared++;
+            }
+        }
+        if (unowned > 0 || shared > 0) {
+            System.err.println(when + ": " + unowned + " caregivers without owner, " + shared + " with several");
+            errors++;
+        }
+        if (disagree > 0) {
+            System.err.println(when + ": ownership() and owns() disagree on " + disagree + " caregivers");
+            errors++;
+        }
+        int average = caregivers.size() / nodes.size();
+        for (ClusterNode node : nodes) {
+            int share = shares.getOrDefault(node.getNodeId(), 0);
+            if (share < average / 2 || share > average * 3 / 2) {
+                System.err.println(when + ": " + node.getNodeId() + " owns " + share + " caregivers, " +
+                        "the average is " + average);
+                errors++;
+            }
+        }
+        System.out.println(when + ": " + shares);
+        return errors;
+    }
+}
@@ -0,0 +1,276 @@
+package scheduler.db;
+
+import javax.net.SocketFactory;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * QueryBenchmark measures the bytes on the wire and the latency of the reads changed by the column projection,
+ * EXISTS and keyed lookup work, each before and after the change. It is a tool and not part of the application:
+ * java scheduler.db.QueryBenchmark [iterations]
+ * <p>
+ * "before" runs the old statement with the driver's default fetch settings, "after" the statement the model
+ * layer runs now with its QueryType. Bytes are counted on the socket of a connection of its own (see
+ * CountingSocketFactory), so they include the TDS and TLS framing and are what the network really carries.
+ * Latency is the median and 95th percentile of iterations runs after as many warm-up runs.
+ * <p>
+ * Only reads are run, on the database of the Server, DBName, UserID and Password variables like the application
+ * does. The parameters are taken from rows already there, a case is skipped if its table is empty.
+ * Compile and run with the application classes and the JDBC driver on the class path.
+ */
+public class QueryBenchmark {
+
+    private static final AtomicLong received = new AtomicLong();
+    private static final AtomicLong sent = new AtomicLong();
+
+    /**
+     * counts every byte read from and written to the sockets it creates, the driver creates the socket
+     * of each connection through it when the url names it as socketFactoryClass
+     */
+    public static class CountingSocketFactory extends SocketFactory {
+
+        public CountingSocketFactory() {
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new CountingSocket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return connected(new InetSocketAddress(host, port), null);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return connected(new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return connected(new InetSocketAddress(host, port), null);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return connected(new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort));
+        }
+
+        private static Socket connected(InetSocketAddress remote, InetSocketAddress local) throws IOException {
+            Socket socket = new CountingSocket();
+            if (local != null) {
+                socket.bind(local);
+            }
+            socket.connect(remote);
+            return socket;
+        }
+    }
+
+    private static class CountingSocket extends Socket {
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new FilterInputStream(super.getInputStream()) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        received.incrementAndGet();
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        received.addAndGet(n);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return new FilterOutputStream(super.getOutputStream()) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    sent.incrementAndGet();
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    sent.addAndGet(len);
+                }
+            };
+        }
+    }
+
+    /**
+     * one read as the model layer runs it, reading what the model layer reads of the result
+     */
+    private interface Read {
+        void run(Connection con) throws SQLException;
+    }
+
+    private static class Case {
+        private final String name;
+        private final Read before;
+        private final Read after;
+
+        private Case(String name, Read before, Read after) {
+            this.name = name;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        String url = ConnectionManager.url(System.getenv("Server")) + ";socketFactoryClass=" +
+                CountingSocketFactory.class.getName();
+        try (Connection con = DriverManager.getConnection(url, System.getenv("UserID"), System.getenv("Password"))) {
+            System.out.println(String.format(Locale.ROOT, "%-28s %-7s %12s %12s %11s %11s",
+                    "case", "", "bytes in", "bytes out", "median ms", "p95 ms"));
+            for (Case c : cases(con)) {
+                measure(con, c.name, "before", c.before, iterations);
+                measure(con, c.name, "after", c.after, iterations);
+            }
+        }
+    }
+
+    /**
+     * @return the cases which have rows to run on
+     */
+    private static List<Case> cases(Connection con) throws SQLException {
+        List<Case> cases = new ArrayList<>();
+        String patient = first(con, "SELECT TOP 1 Username FROM Patients");
+        if (patient != null) {
+            cases.add(new Case("username exists",
+                    c -> {
+                        // the old check only asked whether a row came back, the salt and hash came along anyway
+                        try (PreparedStatement statement = c.prepareStatement(
+                                "SELECT * FROM Patients WHERE Username = ?")) {
+                            statement.setString(1, patient);
+                            statement.executeQuery().isBeforeFirst();
+                        }
+                    },
+                    c -> {
+                        PreparedStatement statement = QueryType.POINT.apply(c.prepareStatement(
+                                "SELECT CASE WHEN EXISTS (SELECT 1 FROM Patients WHERE Username = ?) THEN 1 ELSE 0 END"));
+                        statement.setString(1, patient);
+                        readAll(statement);
+                    }));
+        }
+        String patientId = first(con, "SELECT TOP 1 PatientId FROM Appointments");
+        if (patientId != null) {
+            int id = Integer.parseInt(patientId);
+            cases.add(new Case("patient has appointment",
+                    c -> readAll(bound(c.prepareStatement("SELECT * FROM Appointments WHERE PatientId = ?"), id)),
+                    c -> readAll(bound(QueryType.POINT.apply(c.prepareStatement("SELECT CASE WHEN EXISTS " +
+                            "(SELECT 1 FROM Appointments WHERE PatientId = ?) THEN 1 ELSE 0 END")), id))));
+            cases.add(new Case("appointments of a patient",
+                    c -> readAll(bound(c.prepareStatement("SELECT * FROM Appointments WHERE PatientId = ?"), id)),
+                    c -> readAll(bound(QueryType.LIST.apply(c.prepareStatement("SELECT id, Date, VaccineId, " +
+                            "PatientId, CaregiverId, Slot, SlotMinutes FROM Appointments WHERE PatientId = ?")), id))));
+        }
+        String appointment = first(con, "SELECT TOP 1 id FROM Appointments");
+        if (appointment != null) {
+            int id = Integer.parseInt(appointment);
+            cases.add(new Case("cancel: appointment id valid",
+                    c -> readAll(c.prepareStatement("SELECT id FROM Appointments")),
+                    c -> readAll(bound(QueryType.POINT.apply(c.prepareStatement(
+                            "SELECT 1 FROM Appointments WHERE id = ?")), id))));
+        }
+        String day = first(con, "SELECT TOP 1 Time FROM Availabilities");
+        if (day != null) {
+            Date date = Date.valueOf(day);
+            cases.add(new Case("availabilities of a date",
+                    c -> {
+                        PreparedStatement statement = c.prepareStatement("SELECT * FROM Availabilities WHERE Time = ?");
+                        statement.setDate(1, date);
+                        readAll(statement);
+                    },
+                    c -> {
+                        PreparedStatement statement = QueryType.LIST.apply(c.prepareStatement("SELECT Time, " +
+                                "CaregiverId, SlotMinutes, Slots FROM Availabilities WHERE Time = ? AND Slots <> 0"));
+                        statement.setDate(1, date);
+                        readAll(statement);
+                    }));
+        }
+        if (cases.isEmpty()) {
+            System.out.println("The database has no rows to run the cases on!");
+        }
+        return cases;
+    }
+
+    /**
+     * run a read iterations times after as many warm-up runs and print bytes per run and latency
+     */
+    private static void measure(Connection con, String name, String variant, Read read, int iterations)
+            throws SQLException {
+        for (int i = 0; i < iterations; i++) {
+            read.run(con);
+        }
+        long[] nanos = new long[iterations];
+        long in = received.get();
+        long out = sent.get();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            read.run(con);
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        System.out.println(String.format(Locale.ROOT, "%-28s %-7s %12d %12d %11.3f %11.3f", name, variant,
+                (received.get() - in) / iterations, (sent.get() - out) / iterations,
+                nanos[iterations / 2] / 1e6, nanos[Math.min(iterations - 1, iterations * 95 / 100)] / 1e6));
+    }
+
+    private static PreparedStatement bound(PreparedStatement statement, int id) throws SQLException {
+        statement.setInt(1, id);
+        return statement;
+    }
+
+    /**
+     * read every column of every row, like the model layer reads the rows it selects
+     */
+    private static void readAll(PreparedStatement statement) throws SQLException {
+        ResultSet resultSet = statement.executeQuery();
+        int columns = resultSet.getMetaData().getColumnCount();
+        while (resultSet.next()) {
+            for (int i = 1; i <= columns; i++) {
+                resultSet.getObject(i);
+            }
+        }
+        statement.close();
+    }
+
+    private static String first(Connection con, String sql) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement(sql)) {
+            ResultSet resultSet = statement.executeQuery();
+            return resultSet.next() ? resultSet.getString(1) : null;
+        }
+    }
+}